@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.benchmarks;
+
+import com.paymenttracker.model.AccountBalances;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of AccountBalances.add under 1 and 4 contending
+ * threads, with a table of thousands and millions of balances. The table is
+ * filled in the setup, so the measured writes update existing balances;
+ * the GC profiler shows the heap is not touched.
+ * @author Jaromir Mlejnek
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=1g")
+public class AccountBalancesBenchmark {
+
+    private static final int USD = CurrencyCodes.pack("USD");
+
+    /**
+     * The balances shared by all the threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Balances {
+
+        @Param({ "10000", "4000000" })
+        public int accounts;
+
+        AccountBalances balances;
+
+        @Setup
+        public void setUp() {
+            balances = new AccountBalances();
+            for (int i = 1; i <= accounts; i++) {
+                balances.add(i, USD, 1);
+            }
+        }
+    }
+
+    /**
+     * Position of a thread in the accounts.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        long next;
+
+        @Setup
+        public void setUp() {
+            next = Thread.currentThread().getId();
+        }
+
+        long next(int accounts) {
+            // A large odd step visits the accounts in a cache-unfriendly order
+            next = (next + 0x9E3779B9L) % accounts;
+            return next + 1;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void add1Thread(Balances balances, Cursor cursor) {
+        balances.balances.add(cursor.next(balances.accounts), USD, 100);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void add4Threads(Balances balances, Cursor cursor) {
+        balances.balances.add(cursor.next(balances.accounts), USD, 100);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.benchmarks;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.Payment;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of CurrencyHolder.registerPayment under
+ * 1, 4 and 16 contending threads, with few and many currencies.
+ * @author Jaromir Mlejnek
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CurrencyHolderBenchmark {
+
+    /**
+     * Payments shared by all the threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Payments {
+
+        @Param({ "4", "1000" })
+        public int currencies;
+
+        Payment[] payments;
+
+        @Setup
+        public void setUp() {
+            payments = new Payment[currencies];
+            for (int i = 0; i < currencies; i++) {
+                // Spread the currencies over the whole table
+                int currency = (int) ((long) i * CurrencyCodes.SLOTS / currencies);
+                payments[i] = new Payment(CurrencyCodes.unpack(currency), i % 2 == 0 ? 100 : -50);
+            }
+        }
+    }
+
+    /**
+     * Position of a thread in the payments.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+
+        @Setup
+        public void setUp() {
+            next = (int) Thread.currentThread().getId();
+        }
+
+        Payment next(Payment[] payments) {
+            next = next + 1 == Integer.MAX_VALUE ? 0 : next + 1;
+            return payments[next % payments.length];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void register1Thread(Payments payments, Cursor cursor) {
+        CurrencyHolder.getInstance().registerPayment(cursor.next(payments.payments));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void register4Threads(Payments payments, Cursor cursor) {
+        CurrencyHolder.getInstance().registerPayment(cursor.next(payments.payments));
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void register16Threads(Payments payments, Cursor cursor) {
+        CurrencyHolder.getInstance().registerPayment(cursor.next(payments.payments));
+    }
+}
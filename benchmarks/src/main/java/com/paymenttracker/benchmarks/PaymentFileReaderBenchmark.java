@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.benchmarks;
+
+import com.paymenttracker.services.BinaryPaymentWriter;
+import com.paymenttracker.services.PaymentFileConverter;
+import com.paymenttracker.services.PaymentFileReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the end-to-end throughput of PaymentFileReader on a generated
+ * file, in the sequential and the parallel mode, and on the same payments
+ * converted to the binary format.
+ * @author Jaromir Mlejnek
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PaymentFileReaderBenchmark {
+
+    private static final String[] CURRENCIES = { "USD", "EUR", "CZK", "HKD", "RMB", "GBP", "JPY", "CHF" };
+
+    @Param({ "1000000" })
+    public int lines;
+
+    /**
+     * Percentage of invalid lines in the file.
+     */
+    @Param({ "0", "10", "100" })
+    public int invalidPercent;
+
+    private File file;
+
+    private File binaryFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("payments", ".txt");
+        Random random = new Random(42);
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < lines; i++) {
+                if (random.nextInt(100) < invalidPercent) {
+                    writer.write("XYZ not-an-amount");
+                } else {
+                    writer.write(CURRENCIES[random.nextInt(CURRENCIES.length)]);
+                    writer.write(' ');
+                    writer.write(Integer.toString(random.nextInt(200001) - 100000));
+                }
+                writer.newLine();
+            }
+        }
+
+        // Parse errors are expected, do not measure the log handler
+        java.util.logging.LogManager.getLogManager().reset();
+
+        binaryFile = File.createTempFile("payments", ".ptb");
+        try (BinaryPaymentWriter writer = new BinaryPaymentWriter(binaryFile)) {
+            PaymentFileConverter.convert(file, writer);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public void sequential(Blackhole blackhole) {
+        new PaymentFileReader(file.getPath(), false, new PaymentParserBenchmark.BlackholeSink(blackhole)).run();
+    }
+
+    @Benchmark
+    public void parallel(Blackhole blackhole) {
+        new PaymentFileReader(file.getPath(), true, new PaymentParserBenchmark.BlackholeSink(blackhole)).run();
+    }
+
+    @Benchmark
+    public void binary(Blackhole blackhole) {
+        new PaymentFileReader(binaryFile.getPath(), new PaymentParserBenchmark.BlackholeSink(blackhole)).run();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.benchmarks;
+
+import com.paymenttracker.model.Payment;
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentParserException;
+import com.paymenttracker.utils.PaymentSink;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of parsing one valid or invalid payment line
+ * by the String and the byte-level parser.
+ * @author Jaromir Mlejnek
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PaymentParserBenchmark {
+
+    private static final String VALID_LINE = "USD 1234.56";
+    private static final String INVALID_LINE = "USD 12x4.56";
+
+    private final byte[] validBytes = VALID_LINE.getBytes(StandardCharsets.US_ASCII);
+    private final byte[] invalidBytes = INVALID_LINE.getBytes(StandardCharsets.US_ASCII);
+
+    private BlackholeSink sink;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        sink = new BlackholeSink(blackhole);
+    }
+
+    @Benchmark
+    public Payment parseValid() throws PaymentParserException {
+        return PaymentParser.parse(VALID_LINE);
+    }
+
+    @Benchmark
+    public Object parseInvalid() {
+        try {
+            return PaymentParser.parse(INVALID_LINE);
+        } catch (PaymentParserException ex) {
+            return ex;
+        }
+    }
+
+    @Benchmark
+    public boolean parseBytesValid() throws PaymentParserException {
+        return PaymentParser.parse(validBytes, 0, validBytes.length, sink);
+    }
+
+    @Benchmark
+    public Object parseBytesInvalid() {
+        try {
+            return PaymentParser.parse(invalidBytes, 0, invalidBytes.length, sink);
+        } catch (PaymentParserException ex) {
+            return ex;
+        }
+    }
+
+    /**
+     * Sink which consumes the parsed payments by the blackhole.
+     */
+    static final class BlackholeSink implements PaymentSink {
+
+        private final Blackhole blackhole;
+
+        BlackholeSink(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void accept(int currency, long amount) {
+            blackhole.consume(currency);
+            blackhole.consume(amount);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.benchmarks;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.services.PaymentPrinterStreamWriter;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of rendering one report by PaymentPrinterStreamWriter,
+ * in the full and in the delta mode - of no change and of one changed
+ * currency. The output is discarded, so only the rendering is measured.
+ * @author Jaromir Mlejnek
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PaymentPrinterBenchmark {
+
+    @Param({ "10", "1000" })
+    public int currencies;
+
+    @Param({ "false", "true" })
+    public boolean delta;
+
+    private int currency;
+
+    private PaymentPrinterStreamWriter printer;
+
+    @Setup
+    public void setUp() {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        holder.resetRegister();
+        for (int i = 0; i < currencies; i++) {
+            holder.registerPayment((int) ((long) i * CurrencyCodes.SLOTS / currencies), 1000 + i);
+        }
+
+        currency = CurrencyCodes.pack("USD");
+        printer = new PaymentPrinterStreamWriter(new PrintStream(new NullOutputStream()), null, false, delta);
+    }
+
+    @Benchmark
+    public void print() {
+        printer.run();
+    }
+
+    @Benchmark
+    public void printAfterPayment() {
+        CurrencyHolder.getInstance().registerPayment(currency, 1);
+        printer.run();
+    }
+
+    /**
+     * Output stream which discards everything.
+     */
+    private static final class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
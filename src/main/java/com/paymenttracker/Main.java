@@ -16,75 +16,322 @@
 
 package com.paymenttracker;
 
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.services.AsyncReportSink;
+import com.paymenttracker.services.BinaryPaymentWriter;
+import com.paymenttracker.services.Checkpoint;
+import com.paymenttracker.services.CheckpointWriter;
+import com.paymenttracker.services.ExchangeRates;
+import com.paymenttracker.services.FileProgress;
 import com.paymenttracker.services.PaymentConsoleReader;
+import com.paymenttracker.services.PaymentFileConverter;
 import com.paymenttracker.services.PaymentFileReader;
+import com.paymenttracker.services.PaymentFileSetReader;
+import com.paymenttracker.services.PaymentJournal;
+import com.paymenttracker.services.PaymentNetworkReader;
+import com.paymenttracker.services.PaymentPipeline;
 import com.paymenttracker.services.PaymentPrinterStreamWriter;
+import com.paymenttracker.services.PaymentQueryServer;
+import com.paymenttracker.services.PaymentSource;
+import com.paymenttracker.services.RejectedLines;
+import com.paymenttracker.services.ReportChannel;
+import com.paymenttracker.services.ReportFormat;
+import com.paymenttracker.services.TrackerLifecycle;
+import com.paymenttracker.services.TrackerMetrics;
+import com.paymenttracker.utils.InputFiles;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Payment-tracker main class which creates threads for parallel reading
- * currency payments from the input file (if specified) and from the command line.
+ * currency payments from the input files (if specified) and from the command line.
  * It's also crates a thread which periodically prints the net amounts of each currency
- * to the line.
+ * to the line. The tracker runs until the quit sequence is read, all the inputs
+ * are exhausted or the process is terminated, then it prints the final report.
+ * The payments typed into the console and sent by the producers can be journaled (see {@link TrackerOptions}),
+ * the journal is replayed into the register on startup. When checkpoints are
+ * enabled, the register is restored from the last checkpoint and the input
+ * files are read from the recorded offsets. The payment lines can be also sent
+ * by producers over TCP (see {@link PaymentNetworkReader}) and the net amounts
+ * can be queried over HTTP (see {@link PaymentQueryServer}).
  * @author Jaromir Mlejnek
  */
 public class Main {
     
+    private static final Logger log = Logger.getLogger(Main.class.getName());
+    
     /**
      * Number of threads for the ScheduledExecutorService
      */
     private static final int NUMBER_OF_THREADS  = 1;
     
-    /**
-     * The time to delay first execution of the output scheduler
-     */
-    private static final long JOB_INITIAL_DELAY = 60;
-    
-    /**
-     * The period between successive executions of the output scheduler
-     */
-    private static final long JOB_PRINT_DELAY   = 60;
-    
     /**
      * Exit keyword
      */
     private static final String QUIT_SEQUENCE   = "quit";    
     
     
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        TrackerOptions options;
+        try {
+            options = TrackerOptions.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(TrackerOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+        
+        // The rejected lines are summarized in the log, the dead-letter file keeps them all
+        RejectedLines rejectedLines = RejectedLines.getInstance();
+        if (options.getDeadLetter() != null) {
+            try {
+                rejectedLines.open(new File(options.getDeadLetter()));
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
         
-        if (args != null && args.length == 1) {
-            // Read payment records from the file on input
-            PaymentFileReader fileReader = new PaymentFileReader(args[0]);
-            fileReader.start();
+        if (options.getConvert() != null) {
+            boolean converted = convert(options);
+            rejectedLines.close();
+            System.exit(converted ? 0 : 1);
+            return;
+        }
+        
+        // The reports convert the net amounts by the rates, the rate file is watched for changes
+        ExchangeRates rates = null;
+        if (options.getRates() != null) {
+            try {
+                rates = new ExchangeRates(new File(options.getRates()));
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(1);
+                return;
+            }
+            rates.start();
+        }
+        
+        // The reports are written by a background thread, a slow output never blocks the scheduler
+        final AsyncReportSink reportSink;
+        try {
+            reportSink = new AsyncReportSink(openReportChannel(options));
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        reportSink.start();
+        
+        // Publish the metrics over JMX
+        try {
+            TrackerMetrics.getInstance().registerMBeans(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException ex) {
+            log.log(Level.WARNING, "Metrics cannot be published: {0}", ex.getMessage());
+        }
+        
+        // Start the pipeline which applies the read payment records to the register
+        PaymentPipeline pipeline = new PaymentPipeline(CurrencyHolder.getInstance());
+        pipeline.start();
+        try {
+            TrackerMetrics.getInstance().registerPipeline(ManagementFactory.getPlatformMBeanServer(), pipeline);
+        } catch (JMException ex) {
+            log.log(Level.WARNING, "Metrics cannot be published: {0}", ex.getMessage());
         }
         
-        // Initialize the console reader which reads payment records from the standard input
-        PaymentConsoleReader consoleReader = new PaymentConsoleReader(QUIT_SEQUENCE, System.in);
-        consoleReader.start();
-                
         // Create the scheduler which periodically prints the net amounts of each currency        
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(NUMBER_OF_THREADS);
-        final ScheduledFuture<?> printHandler = scheduler.scheduleAtFixedRate(
-                new PaymentPrinterStreamWriter(System.out), JOB_INITIAL_DELAY, JOB_PRINT_DELAY, SECONDS
-        );
-        
-        // A loop which checks if the quit sequece was read from the command line
-        while (true) {
-            if (consoleReader.isExited()) {
-                
-                // Cancel the print task
-                printHandler.cancel(false);
-                
-                // Shutdown the scheduler
-                scheduler.shutdown();
-                break;
+        final PaymentPrinterStreamWriter printer = new PaymentPrinterStreamWriter(reportSink,
+                ReportFormat.forName(options.getReportFormat()), rates, options.isStatistics(), options.isDelta());
+        
+        // The lifecycle prints the final report of all the net amounts once the tracker is shut down
+        TrackerLifecycle lifecycle = new TrackerLifecycle(pipeline, scheduler, new Runnable() {
+            
+            @Override
+            public void run() {
+                printer.printAll();
+                try {
+                    reportSink.close();
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, ex.getMessage());
+                }
+            }
+        });
+        
+        List<PaymentSource> sources = new ArrayList<>();
+        
+        // Restore the register from the last checkpoint
+        Checkpoint checkpoint = readCheckpoint(options);
+        if (checkpoint != null) {
+            checkpoint.restore(CurrencyHolder.getInstance().withoutWindows());
+        }
+        
+        List<File> inputFiles = InputFiles.expand(options.getInputFiles());
+        if (options.isFollow()) {
+            // Each followed file waits for the appended lines in its own reader
+            for (File inputFile : inputFiles) {
+                PaymentFileReader reader = new PaymentFileReader(inputFile.getPath(), pipeline);
+                reader.setFollow(true);
+                FileProgress progress = resumeFile(reader.getPath(), checkpoint);
+                if (progress != null) {
+                    reader.resumeFrom(progress);
+                }
+                sources.add(reader);
             }
+        } else if (!inputFiles.isEmpty()) {
+            // Load payment records from the files on input
+            PaymentFileSetReader reader = new PaymentFileSetReader(inputFiles, pipeline);
+            for (File inputFile : inputFiles) {
+                FileProgress progress = resumeFile(inputFile.getPath(), checkpoint);
+                if (progress != null) {
+                    reader.resumeFrom(progress);
+                }
+            }
+            sources.add(reader);
+        }
+        
+        // The console input and the producers cannot be read again, journal them when requested
+        PaymentSink journaledSink = pipeline;
+        PaymentJournal journal = null;
+        if (options.getJournal() != null) {
+            journal = new PaymentJournal(new File(options.getJournal()), pipeline);
+            journal.replay(CurrencyHolder.getInstance().withoutWindows(), checkpoint != null ? checkpoint.getJournalLength() : 0);
+            journaledSink = journal;
+            try {
+                TrackerMetrics.getInstance().registerJournal(ManagementFactory.getPlatformMBeanServer(), journal);
+            } catch (JMException ex) {
+                log.log(Level.WARNING, "Metrics cannot be published: {0}", ex.getMessage());
+            }
+        }
+        
+        // The network reader journals the payments of each read with one commit
+        if (options.getListen() != null) {
+            sources.add(new PaymentNetworkReader(options.getListen(), journaledSink));
+        }
+        
+        // Initialize the console reader which reads payment records from the standard input
+        sources.add(new PaymentConsoleReader(QUIT_SEQUENCE, System.in, journaledSink));
+        
+        for (PaymentSource source : sources) {
+            lifecycle.addSource(source);
+        }
+        
+        // The last checkpoint is written once the sources are stopped, before the journal is closed.
+        // A checkpoint pauses the sources, hashes the input files and syncs the file,
+        // so it has its own thread and never delays the reports
+        if (options.getCheckpoint() != null) {
+            CheckpointWriter checkpointWriter = new CheckpointWriter(new File(options.getCheckpoint()), pipeline, journal);
+            for (PaymentSource source : sources) {
+                checkpointWriter.addSource(source);
+            }
+            lifecycle.addResource(checkpointWriter);
+            ScheduledExecutorService checkpointScheduler = Executors.newSingleThreadScheduledExecutor();
+            lifecycle.addScheduler(checkpointScheduler);
+            checkpointScheduler.scheduleAtFixedRate(checkpointWriter, options.getCheckpointInterval(),
+                    options.getCheckpointInterval(), SECONDS);
+        }
+        if (journal != null) {
+            lifecycle.addResource(journal);
+        }
+        lifecycle.addResource(rejectedLines);
+        if (rates != null) {
+            lifecycle.addResource(rates);
+        }
+        
+        // The query endpoint serves the net amounts until the tracker is shut down
+        if (options.getHttp() != null) {
+            PaymentQueryServer queryServer = new PaymentQueryServer(options.getHttp(), CurrencyHolder.getInstance());
+            queryServer.start();
+            lifecycle.addResource(queryServer);
+        }
+        
+        scheduler.scheduleAtFixedRate(printer, options.getReportInterval(), options.getReportInterval(), MILLISECONDS);
+        lifecycle.start();
+        
+        // Block until the quit sequence is read, all the sources are completed or the JVM is terminated
+        lifecycle.awaitShutdown();
+    }
+    
+    /**
+     * Opens the output of the reports - the report file or the standard output.
+     */
+    private static ReportChannel openReportChannel(TrackerOptions options) throws IOException {
+        if (options.getReportFile() == null) {
+            return ReportChannel.toStandardOutput();
+        }
+        return new ReportChannel(new File(options.getReportFile()), options.getReportRollSize(),
+                SECONDS.toMillis(options.getReportRollInterval()));
+    }
+    
+    /**
+     * Converts the input files to one binary payment file.
+     * @return False if the conversion failed.
+     */
+    private static boolean convert(TrackerOptions options) {
+        File output = new File(options.getConvert());
+        try (BinaryPaymentWriter writer = new BinaryPaymentWriter(output)) {
+            for (File inputFile : InputFiles.expand(options.getInputFiles())) {
+                log.log(Level.INFO, "Converted {0}", PaymentFileConverter.convert(inputFile, writer));
+            }
+            log.log(Level.INFO, "{0} payments written to {1}", new Object[] { writer.getPaymentCount(), output });
+            return true;
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Reads the checkpoint. A corrupted checkpoint is ignored,
+     * so the register is built from scratch.
+     */
+    private static Checkpoint readCheckpoint(TrackerOptions options) {
+        if (options.getCheckpoint() == null) {
+            return null;
+        }
+        
+        try {
+            return Checkpoint.read(new File(options.getCheckpoint()));
+        } catch (IOException ex) {
+            log.log(Level.WARNING, ex.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the progress the file is resumed from, if the file has not been changed
+     * since the checkpoint. Otherwise removes the payments of the file from the register.
+     * @param path the absolute path of the input file
+     * @param checkpoint the checkpoint or null
+     * @return The progress or null if the file is read from the beginning.
+     */
+    private static FileProgress resumeFile(String path, Checkpoint checkpoint) {
+        FileProgress progress = checkpoint != null ? checkpoint.getFile(path) : null;
+        if (progress == null) {
+            return null;
+        }
+        
+        if (progress.matches()) {
+            log.log(Level.INFO, "File {0} resumed at offset {1}", new Object[] { path, progress.getOffset() });
+            return progress;
         }
+        // The restored totals are not in any window, so they are removed outside the windows too
+        progress.subtractFrom(CurrencyHolder.getInstance().withoutWindows());
+        log.log(Level.INFO, "File {0} has been changed, it is read again", path);
+        return null;
     }
     
 }
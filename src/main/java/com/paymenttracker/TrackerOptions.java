@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker;
+
+import com.paymenttracker.services.ReportFormat;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds the command line options of the tracker. The options
+ * have the form "--name=value", the other arguments are the input files,
+ * directories or glob patterns (see {@link com.paymenttracker.utils.InputFiles}).
+ * @author Jaromir Mlejnek
+ */
+public final class TrackerOptions {
+
+    public static final String USAGE = "Usage: java -jar PaymentTracker.jar [options] [input-file | directory | pattern ...]" + System.lineSeparator()
+            + "Options:" + System.lineSeparator()
+            + "  --convert=FILE                  convert the input files to the binary payment file and exit" + System.lineSeparator()
+            + "  --follow                        keep reading the lines appended to the input files, like tail -F" + System.lineSeparator()
+            + "  --listen=[HOST:]PORT            accept the payment lines from producers over TCP" + System.lineSeparator()
+            + "  --http=[HOST:]PORT              serve the net amounts over HTTP at /totals" + System.lineSeparator()
+            + "  --dead-letter=FILE              append the rejected lines to the file" + System.lineSeparator()
+            + "  --rates=FILE                    exchange rates to the base currency, reloaded when the file changes" + System.lineSeparator()
+            + "  --report-interval=MILLIS        period of the reports (default 60000)" + System.lineSeparator()
+            + "  --report-format=text|csv|json   format of the reports (default text)" + System.lineSeparator()
+            + "  --report-file=FILE              write the reports to the file instead of the standard output" + System.lineSeparator()
+            + "  --report-roll-size=BYTES        roll the report file when it would exceed the size" + System.lineSeparator()
+            + "  --report-roll-interval=SECONDS  roll the report file when it's older than the interval" + System.lineSeparator()
+            + "  --delta                         report only the net amounts changed since the previous report" + System.lineSeparator()
+            + "  --statistics                    print the count, mean and quantiles of the payment sizes" + System.lineSeparator()
+            + "  --journal=FILE                  journal of the console and network payments, replayed on startup" + System.lineSeparator()
+            + "  --checkpoint=FILE               checkpoint of the totals and the input file offsets, restored on startup" + System.lineSeparator()
+            + "  --checkpoint-interval=SECONDS   period of the checkpoints (default 60)";
+
+    /**
+     * The default period of the checkpoints in seconds.
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+    /**
+     * The default period of the reports in milliseconds.
+     */
+    public static final long DEFAULT_REPORT_INTERVAL = 60000;
+
+    private static final String OPTION_PREFIX = "--";
+
+    private final List<String> inputFiles = new ArrayList<>();
+
+    private String convert;
+
+    private boolean follow = false;
+
+    private InetSocketAddress listen;
+
+    private InetSocketAddress http;
+
+    private String deadLetter;
+
+    private String rates;
+
+    private long reportInterval = DEFAULT_REPORT_INTERVAL;
+
+    private String reportFormat = ReportFormat.TEXT;
+
+    private String reportFile;
+
+    private long reportRollSize;
+
+    private long reportRollInterval;
+
+    private boolean delta = false;
+
+    private boolean statistics = false;
+
+    private String journal;
+
+    private String checkpoint;
+
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    private TrackerOptions() {
+    }
+
+    /**
+     * Parses the command line arguments.
+     * @param args the command line arguments
+     * @return The parsed options.
+     * @throws IllegalArgumentException if an argument is not valid
+     */
+    public static TrackerOptions parse(String[] args) {
+        TrackerOptions options = new TrackerOptions();
+        if (args == null) {
+            return options;
+        }
+
+        for (String arg : args) {
+            if (!arg.startsWith(OPTION_PREFIX)) {
+                options.inputFiles.add(arg);
+                continue;
+            }
+
+            int separator = arg.indexOf('=');
+            String name = separator < 0 ? arg.substring(OPTION_PREFIX.length()) : arg.substring(OPTION_PREFIX.length(), separator);
+            String value = separator < 0 ? null : arg.substring(separator + 1);
+
+            switch (name) {
+                case "convert":
+                    options.convert = requireValue(name, value);
+                    break;
+                case "follow":
+                    options.follow = requireFlag(name, value);
+                    break;
+                case "listen":
+                    options.listen = requireAddress(name, value);
+                    break;
+                case "http":
+                    options.http = requireAddress(name, value);
+                    break;
+                case "dead-letter":
+                    options.deadLetter = requireValue(name, value);
+                    break;
+                case "rates":
+                    options.rates = requireValue(name, value);
+                    break;
+                case "report-interval":
+                    options.reportInterval = requirePositive(name, value);
+                    break;
+                case "report-format":
+                    options.reportFormat = requireFormat(name, value);
+                    break;
+                case "report-file":
+                    options.reportFile = requireValue(name, value);
+                    break;
+                case "report-roll-size":
+                    options.reportRollSize = requirePositive(name, value);
+                    break;
+                case "report-roll-interval":
+                    options.reportRollInterval = requirePositive(name, value);
+                    break;
+                case "delta":
+                    options.delta = requireFlag(name, value);
+                    break;
+                case "statistics":
+                    options.statistics = requireFlag(name, value);
+                    break;
+                case "journal":
+                    options.journal = requireValue(name, value);
+                    break;
+                case "checkpoint":
+                    options.checkpoint = requireValue(name, value);
+                    break;
+                case "checkpoint-interval":
+                    options.checkpointInterval = requirePositive(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option '" + arg + "'");
+            }
+        }
+        return options;
+    }
+
+    private static String requireValue(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Option '" + OPTION_PREFIX + name + "' requires a value");
+        }
+        return value;
+    }
+
+    private static boolean requireFlag(String name, String value) {
+        if (value != null) {
+            throw new IllegalArgumentException("Option '" + OPTION_PREFIX + name + "' does not take a value");
+        }
+        return true;
+    }
+
+    private static String requireFormat(String name, String value) {
+        String format = requireValue(name, value);
+        if (!format.equals(ReportFormat.TEXT) && !format.equals(ReportFormat.CSV) && !format.equals(ReportFormat.JSON)) {
+            throw new IllegalArgumentException("Option '" + OPTION_PREFIX + name + "' requires "
+                    + ReportFormat.TEXT + ", " + ReportFormat.CSV + " or " + ReportFormat.JSON);
+        }
+        return format;
+    }
+
+    private static InetSocketAddress requireAddress(String name, String value) {
+        String address = requireValue(name, value);
+        int separator = address.lastIndexOf(':');
+        try {
+            int port = Integer.parseInt(address.substring(separator + 1));
+            if (port >= 0 && port <= 0xFFFF) {
+                return separator < 0 ? new InetSocketAddress(port) : new InetSocketAddress(address.substring(0, separator), port);
+            }
+        } catch (NumberFormatException ex) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Option '" + OPTION_PREFIX + name + "' requires [host:]port");
+    }
+
+    private static long requirePositive(String name, String value) {
+        try {
+            long number = Long.parseLong(requireValue(name, value));
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException ex) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Option '" + OPTION_PREFIX + name + "' requires a positive number");
+    }
+
+    /**
+     * @return The input files, directories and patterns, may be empty.
+     */
+    public List<String> getInputFiles() {
+        return Collections.unmodifiableList(inputFiles);
+    }
+
+    /**
+     * @return The binary payment file the input files are converted to,
+     * null if the input files are tracked.
+     */
+    public String getConvert() {
+        return convert;
+    }
+
+    /**
+     * @return True if the input files are followed for the appended lines.
+     */
+    public boolean isFollow() {
+        return follow;
+    }
+
+    /**
+     * @return The address the producers connect to or null if the tracker does not listen.
+     */
+    public InetSocketAddress getListen() {
+        return listen;
+    }
+
+    /**
+     * @return The address of the HTTP query endpoint or null if the net amounts are not served.
+     */
+    public InetSocketAddress getHttp() {
+        return http;
+    }
+
+    /**
+     * @return The file the rejected lines are appended to or null if they are only counted.
+     */
+    public String getDeadLetter() {
+        return deadLetter;
+    }
+
+    /**
+     * @return The exchange rate file or null if the net amounts are not converted.
+     */
+    public String getRates() {
+        return rates;
+    }
+
+    /**
+     * @return The period of the reports in milliseconds.
+     */
+    public long getReportInterval() {
+        return reportInterval;
+    }
+
+    /**
+     * @return The format of the reports (see {@link ReportFormat#forName(String)}).
+     */
+    public String getReportFormat() {
+        return reportFormat;
+    }
+
+    /**
+     * @return The report file or null if the reports are written to the standard output.
+     */
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * @return The size limit of the report file in bytes, 0 if the file is not rolled by the size.
+     */
+    public long getReportRollSize() {
+        return reportRollSize;
+    }
+
+    /**
+     * @return The time limit of the report file in seconds, 0 if the file is not rolled by the time.
+     */
+    public long getReportRollInterval() {
+        return reportRollInterval;
+    }
+
+    /**
+     * @return True if a report prints only the net amounts changed since the previous report.
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * @return True if the reports include the statistics of the payments.
+     */
+    public boolean isStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return The journal file or null if the payments are not journaled.
+     */
+    public String getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return The checkpoint file or null if no checkpoints are written.
+     */
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return The period of the checkpoints in seconds.
+     */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentSink;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class holds the balances of the accounts by the currency. The balances
+ * are kept off the heap in open-addressing hash tables (linear probing) of
+ * fixed-size entries in direct buffers, so tens of millions of balances
+ * cost no heap objects and nothing for the garbage collector to trace.
+ * <p>
+ * The keys are split by their hash into {@link #STRIPES} stripes, each of them
+ * is a table of its own guarded by its own lock, so the writers of different
+ * keys rarely meet. A full table is not rehashed at once - a twice larger one
+ * is allocated and every following write of the stripe moves a few entries
+ * of the previous table into it, so no write waits for a whole rehash.
+ * Until the previous table is emptied both tables are searched.
+ * <p>
+ * The memory of the tables is limited by -XX:MaxDirectMemorySize, an entry
+ * takes {@link #ENTRY_SIZE} bytes and the tables are kept at most 75% full.
+ * <p>
+ * A payment which would overflow the balance or which would need a new entry
+ * of a full table (a table cannot be larger than one direct buffer) is rejected
+ * by an ArithmeticException like the payments which would overflow a net amount.
+ * The payment can be passed to the sink of the net amounts while the balance
+ * is locked, so the balance and the net amount get the payment both or none.
+ * @author Jaromir Mlejnek
+ */
+public final class AccountBalances {
+
+    /**
+     * Number of the stripes.
+     */
+    public static final int STRIPES = 64;
+
+    /**
+     * The size of an entry - the account (8 bytes), the balance (8 bytes),
+     * the currency (4 bytes) and a padding.
+     */
+    public static final int ENTRY_SIZE = 24;
+
+    private static final int ACCOUNT_OFFSET = 0;
+    private static final int BALANCE_OFFSET = 8;
+    private static final int CURRENCY_OFFSET = 16;
+
+    /**
+     * The initial number of the entries of a stripe.
+     */
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * The maximal number of the entries of a stripe - the largest power of two
+     * which fits into one direct buffer.
+     */
+    private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / ENTRY_SIZE);
+
+    /**
+     * The number of the entries of the previous table moved by one write.
+     * A table is doubled when it's 75% full, so the previous table is emptied
+     * before the new one gets 50% full.
+     */
+    private static final int MIGRATION_STEP = 8;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public AccountBalances() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Adds the amount to the balance of the account.
+     * @param account the packed account (see {@link AccountCodes})
+     * @param currency the packed currency code
+     * @param amount the amount in minor units
+     * @throws ArithmeticException if the payment would overflow the balance or the table is full
+     */
+    public void add(long account, int currency, long amount) {
+        add(account, currency, amount, null);
+    }
+
+    /**
+     * Adds the amount to the balance of the account once the payment is accepted
+     * by the sink. The sink is called while the balance is locked and only if
+     * the payment fits into the balance, so a payment rejected by the sink
+     * does not change the balance and the other way round.
+     * @param account the packed account (see {@link AccountCodes})
+     * @param currency the packed currency code
+     * @param amount the amount in minor units
+     * @param sink the receiver of the net amounts or null
+     * @throws ArithmeticException if the payment would overflow the balance,
+     * the table is full or the sink rejects the payment
+     */
+    public void add(long account, int currency, long amount, PaymentSink sink) {
+        checkKey(account, currency);
+        long hash = hash(account, currency);
+        stripeOf(hash).add(account, currency, (int) hash, amount, sink);
+    }
+
+    /**
+     * Returns the balance of the account.
+     * @param account the packed account (see {@link AccountCodes})
+     * @param currency the packed currency code
+     * @return The balance in minor units, zero for an unknown account.
+     */
+    public long getBalance(long account, int currency) {
+        checkKey(account, currency);
+        long hash = hash(account, currency);
+        return stripeOf(hash).get(account, currency, (int) hash);
+    }
+
+    /**
+     * Passes all the balances to the visitor, the balances of one stripe are
+     * passed under its lock, so the visitor should be quick.
+     * @param visitor the receiver of the balances
+     */
+    public void forEach(Visitor visitor) {
+        for (Stripe stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    /**
+     * @return The number of the account and currency pairs.
+     */
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of the bytes allocated off the heap.
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.offHeapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes all the balances. The tables are replaced by the initial ones,
+     * the previous direct buffers are released by the garbage collector.
+     */
+    void reset() {
+        for (Stripe stripe : stripes) {
+            stripe.reset();
+        }
+    }
+
+    private Stripe stripeOf(long hash) {
+        return stripes[(int) (hash >>> 32) & (STRIPES - 1)];
+    }
+
+    private static void checkKey(long account, int currency) {
+        if (account <= AccountCodes.NONE) {
+            throw new IllegalArgumentException("Invalid packed account " + account);
+        }
+        if (currency < 0 || currency >= CurrencyCodes.SLOTS) {
+            throw new IllegalArgumentException("Invalid packed currency code " + currency);
+        }
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3 - the lower half selects the slot,
+     * the upper half selects the stripe.
+     */
+    private static long hash(long account, int currency) {
+        long h = account * 0x9E3779B97F4A7C15L + currency;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        // Direct buffers are zeroed, a zero account is an empty slot
+        return ByteBuffer.allocateDirect(capacity * ENTRY_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Receiver of the balances.
+     */
+    public interface Visitor {
+
+        /**
+         * @param account the packed account
+         * @param currency the packed currency code
+         * @param balance the balance in minor units
+         */
+        void visit(long account, int currency, long balance);
+    }
+
+    /**
+     * One stripe of the balances - the current table and the previous one,
+     * whose entries below the cursor have been moved to the current table.
+     */
+    private static final class Stripe {
+
+        private ByteBuffer table = allocate(INITIAL_CAPACITY);
+        private int mask = INITIAL_CAPACITY - 1;
+
+        private ByteBuffer previous;
+        private int previousMask;
+        private int cursor;
+
+        /**
+         * Number of the entries in both tables (without the moved ones).
+         */
+        private int size;
+
+        synchronized void add(long account, int currency, int hash, long amount, PaymentSink sink) {
+            if (previous != null) {
+                migrate();
+            }
+
+            int slot = find(table, mask, account, currency, hash);
+            int offset = slot * ENTRY_SIZE;
+            if (table.getLong(offset + ACCOUNT_OFFSET) != AccountCodes.NONE) {
+                update(table, offset, amount, sink);
+                return;
+            }
+
+            if (previous != null) {
+                int previousSlot = find(previous, previousMask, account, currency, hash);
+                if (previousSlot >= cursor && previous.getLong(previousSlot * ENTRY_SIZE + ACCOUNT_OFFSET) != AccountCodes.NONE) {
+                    update(previous, previousSlot * ENTRY_SIZE, amount, sink);
+                    return;
+                }
+            }
+
+            if (size + 1 >= table.capacity() / ENTRY_SIZE) {
+                throw new ArithmeticException("Account table is full");
+            }
+            if (sink != null) {
+                sink.accept(currency, amount);
+            }
+            insert(table, offset, account, currency, amount);
+            size++;
+            if (previous == null && size > (mask + 1) / 4 * 3 && mask + 1 < MAX_CAPACITY) {
+                grow();
+            }
+        }
+
+        synchronized long get(long account, int currency, int hash) {
+            int offset = find(table, mask, account, currency, hash) * ENTRY_SIZE;
+            if (table.getLong(offset + ACCOUNT_OFFSET) != AccountCodes.NONE) {
+                return table.getLong(offset + BALANCE_OFFSET);
+            }
+
+            if (previous != null) {
+                int previousSlot = find(previous, previousMask, account, currency, hash);
+                offset = previousSlot * ENTRY_SIZE;
+                if (previousSlot >= cursor && previous.getLong(offset + ACCOUNT_OFFSET) != AccountCodes.NONE) {
+                    return previous.getLong(offset + BALANCE_OFFSET);
+                }
+            }
+            return 0;
+        }
+
+        synchronized void forEach(Visitor visitor) {
+            visit(table, 0, visitor);
+            if (previous != null) {
+                visit(previous, cursor, visitor);
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long offHeapBytes() {
+            return table.capacity() + (previous != null ? previous.capacity() : 0);
+        }
+
+        synchronized void reset() {
+            table = allocate(INITIAL_CAPACITY);
+            mask = INITIAL_CAPACITY - 1;
+            previous = null;
+            size = 0;
+        }
+
+        /**
+         * Starts moving the entries to a twice larger table.
+         */
+        private void grow() {
+            previous = table;
+            previousMask = mask;
+            cursor = 0;
+            table = allocate((mask + 1) * 2);
+            mask = (mask + 1) * 2 - 1;
+        }
+
+        /**
+         * Moves the next entries of the previous table to the current one.
+         */
+        private void migrate() {
+            int end = Math.min(cursor + MIGRATION_STEP, previousMask + 1);
+            for (int slot = cursor; slot < end; slot++) {
+                int offset = slot * ENTRY_SIZE;
+                long account = previous.getLong(offset + ACCOUNT_OFFSET);
+                if (account != AccountCodes.NONE) {
+                    int currency = previous.getInt(offset + CURRENCY_OFFSET);
+                    int target = find(table, mask, account, currency, (int) hash(account, currency)) * ENTRY_SIZE;
+                    insert(table, target, account, currency, previous.getLong(offset + BALANCE_OFFSET));
+                }
+            }
+            cursor = end;
+            if (cursor > previousMask) {
+                previous = null;
+            }
+        }
+
+        /**
+         * Returns the slot of the key or the empty slot where the key belongs.
+         */
+        private static int find(ByteBuffer table, int mask, long account, int currency, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                int offset = slot * ENTRY_SIZE;
+                long stored = table.getLong(offset + ACCOUNT_OFFSET);
+                if (stored == AccountCodes.NONE
+                        || (stored == account && table.getInt(offset + CURRENCY_OFFSET) == currency)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static void insert(ByteBuffer table, int offset, long account, int currency, long balance) {
+            table.putInt(offset + CURRENCY_OFFSET, currency);
+            table.putLong(offset + BALANCE_OFFSET, balance);
+            table.putLong(offset + ACCOUNT_OFFSET, account);
+        }
+
+        private static void update(ByteBuffer table, int offset, long amount, PaymentSink sink) {
+            long balance = Amounts.addExact(table.getLong(offset + BALANCE_OFFSET), amount);
+            if (sink != null) {
+                sink.accept(table.getInt(offset + CURRENCY_OFFSET), amount);
+            }
+            table.putLong(offset + BALANCE_OFFSET, balance);
+        }
+
+        private static void visit(ByteBuffer table, int from, Visitor visitor) {
+            int slots = table.capacity() / ENTRY_SIZE;
+            for (int slot = from; slot < slots; slot++) {
+                int offset = slot * ENTRY_SIZE;
+                long account = table.getLong(offset + ACCOUNT_OFFSET);
+                if (account != AccountCodes.NONE) {
+                    visitor.visit(account, table.getInt(offset + CURRENCY_OFFSET), table.getLong(offset + BALANCE_OFFSET));
+                }
+            }
+        }
+    }
+}
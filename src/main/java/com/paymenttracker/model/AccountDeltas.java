@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.Amounts;
+
+/**
+ * This class collects the amounts of the payments of the accounts of partial
+ * totals by the account and the currency, until they are added to the balances
+ * together with the net amounts (see {@link CurrencyHolder#registerTotals(PaymentTotals)}).
+ * The amounts are kept in an open-addressing hash table (linear probing)
+ * of primitive arrays. Like the partial totals it's not thread-safe.
+ * @author Jaromir Mlejnek
+ */
+final class AccountDeltas {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The accounts of the slots, {@link AccountCodes#NONE} is an empty slot.
+     */
+    private long[] accounts = new long[INITIAL_CAPACITY];
+    private int[] currencies = new int[INITIAL_CAPACITY];
+    private long[] amounts = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Adds the amount to the collected amount of the account.
+     * @param account the packed account
+     * @param currency the packed currency code
+     * @param amount the amount in minor units
+     * @throws ArithmeticException if the collected amount would overflow
+     */
+    void add(long account, int currency, long amount) {
+        int slot = find(accounts, currencies, account, currency);
+        long sum = Amounts.addExact(amounts[slot], amount);
+        if (accounts[slot] == AccountCodes.NONE) {
+            accounts[slot] = account;
+            currencies[slot] = currency;
+            size++;
+        }
+        amounts[slot] = sum;
+        if (size > accounts.length / 4 * 3) {
+            grow();
+        }
+    }
+
+    /**
+     * Adds all the amounts of other deltas.
+     * @param other the deltas to add
+     * @throws ArithmeticException if a collected amount would overflow
+     */
+    void addAll(AccountDeltas other) {
+        for (int slot = 0; slot < other.slots(); slot++) {
+            if (other.isOccupied(slot)) {
+                add(other.accounts[slot], other.currencies[slot], other.amounts[slot]);
+            }
+        }
+    }
+
+    /**
+     * @return The number of the slots, occupied or not.
+     */
+    int slots() {
+        return accounts.length;
+    }
+
+    boolean isOccupied(int slot) {
+        return accounts[slot] != AccountCodes.NONE;
+    }
+
+    long getAccount(int slot) {
+        return accounts[slot];
+    }
+
+    int getCurrency(int slot) {
+        return currencies[slot];
+    }
+
+    long getAmount(int slot) {
+        return amounts[slot];
+    }
+
+    private void grow() {
+        long[] oldAccounts = accounts;
+        int[] oldCurrencies = currencies;
+        long[] oldAmounts = amounts;
+        accounts = new long[oldAccounts.length * 2];
+        currencies = new int[accounts.length];
+        amounts = new long[accounts.length];
+        for (int i = 0; i < oldAccounts.length; i++) {
+            if (oldAccounts[i] != AccountCodes.NONE) {
+                int slot = find(accounts, currencies, oldAccounts[i], oldCurrencies[i]);
+                accounts[slot] = oldAccounts[i];
+                currencies[slot] = oldCurrencies[i];
+                amounts[slot] = oldAmounts[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of the key or the empty slot where the key belongs.
+     */
+    private static int find(long[] accounts, int[] currencies, long account, int currency) {
+        int mask = accounts.length - 1;
+        long h = account * 0x9E3779B97F4A7C15L + currency;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        int slot = (int) h & mask;
+        while (accounts[slot] != AccountCodes.NONE
+                && (accounts[slot] != account || currencies[slot] != currency)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class keeps the net amounts of the currencies in a ring of time
+ * buckets of a fixed width. The time (in milliseconds, e.g.
+ * {@link System#currentTimeMillis()}) selects the bucket - bucket =
+ * (time / width) mod buckets. A total over the last n buckets is the sum
+ * of the current bucket and the preceding ones, so it covers (n - 1)
+ * complete buckets and the current part of the last one - several
+ * {@link SlidingWindow}s of different lengths can share one ring.
+ * <p>
+ * Each currency gets its ring when it is added for the first time and keeps
+ * it, so the memory does not depend on the number of the payments. Adding
+ * a payment costs one update of one bucket and allocates nothing. A bucket
+ * which belongs to a passed period is cleared for all the currencies by the
+ * first writer which reaches it; the readers skip such buckets.
+ * <p>
+ * The totals of the ring are clamped at ±{@link Long#MAX_VALUE},
+ * the exact all-time totals are kept by {@link CurrencyHolder}.
+ * @author Jaromir Mlejnek
+ */
+public final class BucketRing {
+
+    /**
+     * The tick of a bucket which is being cleared.
+     */
+    private static final long CLEARING = -1;
+
+    private final long bucketMillis;
+
+    private final int buckets;
+
+    /**
+     * The period (time / width) each bucket holds, shared by all the currencies.
+     */
+    private final AtomicLongArray ticks;
+
+    /**
+     * The rings of the buckets indexed by the packed currency code, null until
+     * the currency is added.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> rings = new AtomicReferenceArray<>(CurrencyCodes.SLOTS);
+
+    /**
+     * Bitset of the currencies which have a ring, so that a bucket is cleared
+     * without scanning all the slots.
+     */
+    private final AtomicLongArray occupied = new AtomicLongArray((CurrencyCodes.SLOTS + Long.SIZE - 1) / Long.SIZE);
+
+    /**
+     * @param bucketMillis the width of one bucket in milliseconds
+     * @param buckets the number of the buckets
+     */
+    public BucketRing(long bucketMillis, int buckets) {
+        if (bucketMillis <= 0 || buckets <= 0) {
+            throw new IllegalArgumentException("Invalid ring of " + buckets + " x " + bucketMillis + " ms");
+        }
+
+        this.bucketMillis = bucketMillis;
+        this.buckets = buckets;
+        this.ticks = new AtomicLongArray(buckets);
+    }
+
+    /**
+     * @return The width of one bucket in milliseconds.
+     */
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * @return The number of the buckets.
+     */
+    public int getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Adds a payment to the bucket of the time. A payment older than
+     * the whole ring (counted from the latest added payment) is not added.
+     * @param currency the packed currency code
+     * @param amount the amount in minor units
+     * @param timeMillis the time of the payment
+     */
+    public void add(int currency, long amount, long timeMillis) {
+        long tick = timeMillis / bucketMillis;
+        int bucket = (int) (tick % buckets);
+
+        AtomicLongArray ring = ring(currency);
+        while (true) {
+            long current = ticks.get(bucket);
+            if (current == CLEARING) {
+                Thread.yield();
+                continue;
+            }
+            if (current > tick) {
+                // The bucket holds a newer period, the payment is older than the whole ring
+                return;
+            }
+            if (current < tick && !advance(bucket, current, tick)) {
+                continue;
+            }
+
+            while (true) {
+                long total = ring.get(bucket);
+                if (ring.compareAndSet(bucket, total, addSaturated(total, amount))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the net amount of the currency in the last buckets up to the time.
+     * @param currency the packed currency code
+     * @param timeMillis the time of the last bucket, usually the current time
+     * @param count the number of the buckets, at most {@link #getBuckets()}
+     * @return The net amount in minor units, 0 for a currency which has not been added.
+     */
+    public long getTotal(int currency, long timeMillis, int count) {
+        AtomicLongArray ring = rings.get(currency);
+        if (ring == null) {
+            return 0;
+        }
+
+        long tick = timeMillis / bucketMillis;
+        long total = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            long current = ticks.get(bucket);
+            if (current > tick - count && current <= tick) {
+                total = addSaturated(total, ring.get(bucket));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Clears all the buckets, it must not run concurrently with the writers.
+     */
+    void reset() {
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            ticks.set(bucket, 0L);
+        }
+        for (int currency = nextOccupied(0); currency >= 0; currency = nextOccupied(currency + 1)) {
+            AtomicLongArray ring = rings.get(currency);
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                ring.set(bucket, 0L);
+            }
+        }
+    }
+
+    private AtomicLongArray ring(int currency) {
+        AtomicLongArray ring = rings.get(currency);
+        if (ring == null) {
+            rings.compareAndSet(currency, null, new AtomicLongArray(buckets));
+            ring = rings.get(currency);
+
+            int word = currency >>> 6;
+            long bit = 1L << currency;
+            long current = occupied.get(word);
+            while ((current & bit) == 0 && !occupied.compareAndSet(word, current, current | bit)) {
+                current = occupied.get(word);
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * Moves the bucket to the new period - its amounts are cleared before
+     * any writer of the new period can add to it.
+     * @return False if another writer has moved the bucket first.
+     */
+    private boolean advance(int bucket, long current, long tick) {
+        if (!ticks.compareAndSet(bucket, current, CLEARING)) {
+            return false;
+        }
+
+        for (int currency = nextOccupied(0); currency >= 0; currency = nextOccupied(currency + 1)) {
+            rings.get(currency).set(bucket, 0L);
+        }
+        ticks.set(bucket, tick);
+        return true;
+    }
+
+    /**
+     * Returns the first currency with a ring starting from the given one.
+     */
+    private int nextOccupied(int from) {
+        if (from >= CurrencyCodes.SLOTS) {
+            return -1;
+        }
+
+        int word = from >>> 6;
+        long bits = occupied.get(word) & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == occupied.length()) {
+                return -1;
+            }
+            bits = occupied.get(word);
+        }
+    }
+
+    private static long addSaturated(long total, long amount) {
+        try {
+            return Amounts.addExact(total, amount);
+        } catch (ArithmeticException ex) {
+            return amount > 0 ? Long.MAX_VALUE : -Long.MAX_VALUE;
+        }
+    }
+}
@@ -16,66 +16,777 @@
 
 package com.paymenttracker.model;
 
+import com.paymenttracker.utils.AccountPaymentSink;
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.CoarseClock;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentSink;
+import com.paymenttracker.utils.PerThreadCounters;
+import com.paymenttracker.utils.QuantileSketch;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * This class is used as a thread-safe register for currency payments.
  * It implements a thread-safe modification of Singleton pattern.
+ * The register is a dense table indexed by the packed currency code
+ * (see {@link CurrencyCodes}). Payments are registered without any global
+ * lock - the table is striped and each writer thread updates its own stripe.
+ * <p>
+ * The register is read through immutable snapshots (epoch-based copy-on-read).
+ * Writers update one of two banks of stripes. A snapshot switches the writers
+ * to the other bank, waits until the writers which are still in the previous
+ * bank leave it and folds that bank into the base totals. Writers never wait
+ * for readers and a snapshot never mixes totals from different moments.
+ * <p>
+ * The amounts are longs in minor units of the currencies, so the totals are
+ * exact and do not depend on the order in which the payments are applied.
+ * A payment which would overflow a net amount is rejected, no net amount
+ * is ever clamped. The stripes alone cannot tell it - a stripe is kept below
+ * 1 / (4 * stripes) of the long range, and a folded net amount over a half
+ * of the range marks its currency as large. A payment which would go over
+ * the stripe limit or a payment of a large currency takes the exact path -
+ * it folds the banks under the lock of the readers and adds the amount
+ * directly to the folded net amount. The stripes of a currency marked as
+ * large are written only by the writers which had checked the mark just
+ * before it was set, so the folded net amounts always fit into a long.
+ * <p>
+ * The register also counts the registered payments of each currency (partial
+ * totals by the number of their payments), per thread without any lock (see {@link PerThreadCounters}), and keeps
+ * the net amounts of the last minute, hour and day (see {@link SlidingWindow}).
+ * A payment updates one bucket of seconds and one bucket of minutes, stamped
+ * by {@link CoarseClock}. The payments restored from a checkpoint or replayed
+ * from a journal are registered by {@link #withoutWindows()}, they do not
+ * belong to any window.
+ * <p>
+ * The payments with an account are added to the balances of the accounts
+ * as well (see {@link AccountBalances}). The balances are kept in memory,
+ * they are not in the checkpoints - only the journaled payments of the accounts
+ * are added to the balances again when the journal is replayed.
+ * <p>
+ * The statistics of the sizes of the individual payments are kept in memory
+ * only as well (see {@link PaymentStatistics}), they are recorded once a payment
+ * is registered. The partial totals bring the statistics of their payments
+ * along, the restored net amounts are not payments.
+ * <p>
+ * A registration marks its currency as changed in a bitset once the amount
+ * is added, the bit is set only if it's clear, so the usual write is just
+ * a read of the bitset. A reporter takes the changed currencies by
+ * {@link #drainChanged(BitSet)} before it takes a snapshot, so the snapshot
+ * contains every drained change.
  * @author Jaromir Mlejnek
  */
-public final class CurrencyHolder {        
-    
+public final class CurrencyHolder implements AccountPaymentSink, TotalsSink {
+
+    /**
+     * Number of longs between two writer counters (64 bytes).
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * Writer counter unit of a finished registration - the higher 32 bits
+     * count finished registrations, the lower 32 bits count registrations
+     * in progress.
+     */
+    private static final long APPLIED = 1L << 32;
+
+    private static final long ACTIVE_MASK = APPLIED - 1;
+
+    /**
+     * The limit of an amount of a stripe - all the stripes of both banks
+     * together are within a half of the long range.
+     */
+    private static final long STRIPE_LIMIT = Long.MAX_VALUE / (4 * Stripes.COUNT);
+
+    /**
+     * The folded net amount over which the currency is registered by the exact path.
+     */
+    private static final long LARGE_LIMIT = Long.MAX_VALUE / 2;
+
+    /**
+     * Two banks of the payment register - the stripes of the net amounts
+     * (minor units) indexed by stripe * {@link CurrencyCodes#SLOTS}
+     * + packed currency code.
+     */
+    private final AtomicLongArray[] banks;
+
+    /**
+     * Writer counters indexed by (bank * stripes + stripe) * {@link #PADDING}.
+     */
+    private final AtomicLongArray writers;
+
+    /**
+     * Bitset of the currencies which have been registered.
+     */
+    private final AtomicLongArray occupied;
+
+    /**
+     * Bitset of the currencies which have been registered since the last drain.
+     */
+    private final AtomicLongArray changed;
+
+    /**
+     * Bitset of the currencies registered by the exact path.
+     */
+    private final AtomicLongArray large;
+
+    /**
+     * Bank selector - the writers use the bank (epoch &amp; 1).
+     */
+    private volatile int epoch;
+
+    /**
+     * True while a detailed snapshot reads the windows and the statistics,
+     * the writers wait for the lock of the snapshot instead of entering a bank.
+     */
+    private volatile boolean frozen;
+
+    /**
+     * Guards the state below, used by the readers only.
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Net amounts folded from the banks.
+     */
+    private final long[] base;
+
+    /**
+     * Number of finished registrations of each bank which are folded into the base.
+     */
+    private final long[] foldedApplied = new long[2];
+
+    /**
+     * True if a payment has been added directly to the base since the last snapshot.
+     */
+    private boolean baseChanged;
+
+    /**
+     * Scratch array for the currencies of a new snapshot.
+     */
+    private final int[] scratch;
+
+    /**
+     * The number of the registered payments indexed by the packed currency code.
+     */
+    private final PerThreadCounters registrations = new PerThreadCounters(CurrencyCodes.SLOTS);
+
+    /**
+     * The buckets of the last minute by seconds.
+     */
+    private final BucketRing seconds = new BucketRing(TimeUnit.SECONDS.toMillis(1), 60);
+
+    /**
+     * The buckets of the last day by minutes.
+     */
+    private final BucketRing minutes = new BucketRing(TimeUnit.MINUTES.toMillis(1), 24 * 60);
+
+    private final List<SlidingWindow> windows = Collections.unmodifiableList(Arrays.asList(
+            new SlidingWindow("1m", seconds, 60),
+            new SlidingWindow("1h", minutes, 60),
+            new SlidingWindow("1d", minutes, 24 * 60)));
+
     /**
-     * Payment register where keys are currency codes and values
-     * are the net amounts for given currency.
+     * The balances of the accounts by the currency.
      */
-    private ConcurrentMap<String, Double> currenciesStatus;
-    
+    private final AccountBalances accounts = new AccountBalances();
+
+    /**
+     * The statistics of the sizes of the payments by the currency.
+     */
+    private final PaymentStatistics statistics = new PaymentStatistics();
+
+    /**
+     * The sink of the payments which do not belong to any window.
+     */
+    private final AccountPaymentSink untimed = new AccountPaymentSink() {
+
+        @Override
+        public void accept(int currency, long amount) {
+            register(currency, amount, false, false, null);
+        }
+
+        @Override
+        public void accept(long account, int currency, long amount) {
+            accounts.add(account, currency, amount, this);
+        }
+    };
+
+    private long version;
+
+    private CurrencySnapshot lastSnapshot;
+
     private CurrencyHolder() {
         if (CurrencyLoader.INSTANCE != null) {
             throw new IllegalStateException("CurrencyLoader already instantiated");
         }
-        
-        currenciesStatus = new ConcurrentHashMap<>();
+
+        banks = new AtomicLongArray[] {
+            new AtomicLongArray(Stripes.COUNT * CurrencyCodes.SLOTS),
+            new AtomicLongArray(Stripes.COUNT * CurrencyCodes.SLOTS)
+        };
+        writers = new AtomicLongArray(2 * Stripes.COUNT * PADDING);
+        occupied = new AtomicLongArray((CurrencyCodes.SLOTS + Long.SIZE - 1) / Long.SIZE);
+        changed = new AtomicLongArray(occupied.length());
+        large = new AtomicLongArray(occupied.length());
+        base = new long[CurrencyCodes.SLOTS];
+        scratch = new int[CurrencyCodes.SLOTS];
+        lastSnapshot = new CurrencySnapshot(version, new int[0], new long[0]);
     }
-    
+
     /**
      * Registers a currency payment to the register
      * @param payment the payment for given currency
      */
-    public synchronized void registerPayment(Payment payment) {
-        if (!currenciesStatus.containsKey(payment.getCurrencyCode())) {
-            currenciesStatus.put(payment.getCurrencyCode(), payment.getAmount());
-        } else {
-            double currencyTotal = currenciesStatus.get(payment.getCurrencyCode());
-            currenciesStatus.put(payment.getCurrencyCode(), currencyTotal + payment.getAmount());
+    public void registerPayment(Payment payment) {
+        int currency = CurrencyCodes.pack(payment.getCurrencyCode());
+        if (currency == CurrencyCodes.INVALID) {
+            throw new IllegalArgumentException("Invalid currency code '" + payment.getCurrencyCode() + "'");
+        }
+
+        registerPayment(currency, payment.getAmount());
+    }
+
+    /**
+     * Registers a currency payment to the register
+     * @param currency the packed currency code
+     * @param amount the amount of the payment in minor units
+     * @throws ArithmeticException if the payment would overflow the net amount
+     */
+    public void registerPayment(int currency, long amount) {
+        register(currency, amount, true, true, null);
+    }
+
+    /**
+     * Adds the amount to the register. The windows and the statistics are
+     * changed before the registration leaves its bank, so a snapshot never
+     * holds a net amount without its windows and statistics.
+     * @param windowed true if the amount is added to the windows
+     * @param payment true if the amount is one payment recorded in the statistics
+     * @param payments the statistics of the payments of the amount or null
+     */
+    private void register(int currency, long amount, boolean windowed, boolean payment,
+            QuantileSketch.Snapshot payments) {
+        markOccupied(currency);
+
+        int stripe = Stripes.current();
+        while (true) {
+            int current = epoch;
+            int bank = current & 1;
+            int counter = (bank * Stripes.COUNT + stripe) * PADDING;
+
+            // Enter the bank, leave it again if a snapshot has just switched the banks
+            writers.getAndIncrement(counter);
+            if (epoch != current || frozen) {
+                writers.getAndDecrement(counter);
+                if (frozen) {
+                    synchronized (snapshotLock) {
+                        // The detailed snapshot has been taken once the lock is free
+                    }
+                }
+                continue;
+            }
+
+            boolean added = false;
+            try {
+                added = !isSet(large, currency) && add(banks[bank], stripe, currency, amount);
+                if (added) {
+                    addDetails(currency, amount, windowed, payment, payments);
+                }
+            } finally {
+                writers.getAndAdd(counter, added ? APPLIED - 1 : -1);
+            }
+            if (!added) {
+                addExact(currency, amount, windowed, payment, payments);
+            }
+            setBit(changed, currency);
+            // Partial totals count by their payments if their statistics are known
+            registrations.add(currency, payments != null && payments.getCount() > 0 ? payments.getCount() : 1);
+            return;
         }
     }
-    
+
+    /**
+     * Adds the registered amount to the windows and the statistics.
+     */
+    private void addDetails(int currency, long amount, boolean windowed, boolean payment,
+            QuantileSketch.Snapshot payments) {
+        if (windowed) {
+            long now = CoarseClock.currentTimeMillis();
+            seconds.add(currency, amount, now);
+            minutes.add(currency, amount, now);
+        }
+        if (payment) {
+            statistics.record(currency, amount);
+        } else if (payments != null && payments.getCount() > 0) {
+            statistics.merge(currency, payments);
+        }
+    }
+
+    @Override
+    public void accept(int currency, long amount) {
+        registerPayment(currency, amount);
+    }
+
+    /**
+     * Registers a payment of the account to the register and to the balance of the account.
+     * The payment is registered while the balance is locked, so the net amount
+     * and the balance either both get the payment or none of them does.
+     * @param account the packed account
+     * @param currency the packed currency code
+     * @param amount the amount of the payment in minor units
+     * @throws ArithmeticException if the payment would overflow the net amount
+     * or the balance, or the table of the account is full
+     */
+    @Override
+    public void accept(long account, int currency, long amount) {
+        accounts.add(account, currency, amount, this);
+    }
+
+    /**
+     * @return The balances of the accounts.
+     */
+    public AccountBalances getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * Returns the balance of the account.
+     * @param account the packed account
+     * @param currency the packed currency code
+     * @return The balance in minor units.
+     */
+    public long getAccountBalance(long account, int currency) {
+        return accounts.getBalance(account, currency);
+    }
+
+    /**
+     * @return The statistics of the sizes of the payments.
+     */
+    public PaymentStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns the statistics of the sizes of the payments of the currency.
+     * @param currency the packed currency code
+     * @return The count, minimum, maximum, mean and quantiles in minor units.
+     */
+    public QuantileSketch.Snapshot getStatistics(int currency) {
+        return statistics.snapshot(currency);
+    }
+
+    /**
+     * Registers all the partial net amounts to the register, adds the collected
+     * amounts of the accounts to their balances and merges the statistics
+     * of the payments. A currency is registered as a whole - if its net amount
+     * or a balance would overflow (or the table of an account is full),
+     * neither the net amount nor the balances of the currency are changed.
+     * The other currencies are registered.
+     * @param partial the partial totals collected by a worker
+     * @throws ArithmeticException if a currency is rejected
+     */
+    public void registerTotals(PaymentTotals partial) {
+        ArithmeticException rejected = null;
+        BitSet failed = new BitSet();
+
+        // The balances first, they are taken back if the net amount is rejected
+        AccountDeltas deltas = partial.getAccountDeltas();
+        boolean[] applied = deltas != null ? new boolean[deltas.slots()] : null;
+        for (int slot = 0; applied != null && slot < applied.length; slot++) {
+            if (!deltas.isOccupied(slot) || failed.get(deltas.getCurrency(slot))) {
+                continue;
+            }
+            try {
+                accounts.add(deltas.getAccount(slot), deltas.getCurrency(slot), deltas.getAmount(slot));
+                applied[slot] = true;
+            } catch (ArithmeticException ex) {
+                failed.set(deltas.getCurrency(slot));
+                rejected = rejected != null ? rejected : ex;
+            }
+        }
+
+        for (int currency = partial.nextRegistered(0); currency >= 0; currency = partial.nextRegistered(currency + 1)) {
+            if (failed.get(currency)) {
+                continue;
+            }
+            try {
+                register(currency, partial.getTotal(currency), true, false, partial.getStatistics(currency));
+            } catch (ArithmeticException ex) {
+                failed.set(currency);
+                rejected = rejected != null ? rejected : ex;
+            }
+        }
+
+        for (int slot = 0; applied != null && slot < applied.length; slot++) {
+            if (applied[slot] && failed.get(deltas.getCurrency(slot))) {
+                accounts.add(deltas.getAccount(slot), deltas.getCurrency(slot), -deltas.getAmount(slot));
+            }
+        }
+        if (rejected != null) {
+            throw rejected;
+        }
+    }
+
+    /**
+     * Same as {@link #registerTotals(PaymentTotals)}.
+     */
+    @Override
+    public void acceptTotals(PaymentTotals partial) {
+        registerTotals(partial);
+    }
+
+    /**
+     * Returns the sink which registers the payments to the all-time net amounts
+     * only, e.g. the payments restored after a restart. The sink is an
+     * {@link AccountPaymentSink}, so the replayed payments of the accounts
+     * are added to their balances.
+     * @return The sink of the payments which do not belong to any window.
+     */
+    public PaymentSink withoutWindows() {
+        return untimed;
+    }
+
+    /**
+     * @return The sliding windows of the register, from the shortest one.
+     */
+    public List<SlidingWindow> getWindows() {
+        return windows;
+    }
+
+    /**
+     * Returns the net amount of the currency registered within the window.
+     * @param currency the packed currency code
+     * @param window one of the windows of the register
+     * @return The net amount in minor units.
+     */
+    public long getWindowTotal(int currency, SlidingWindow window) {
+        return window.getTotal(currency, CoarseClock.currentTimeMillis());
+    }
+
+    /**
+     * Returns the number of the payments of the currency registered since the start
+     * (the reset of the register does not reset it). Partial totals count
+     * by the number of their payments, the totals without the statistics
+     * of their payments count as one.
+     * @param currency the packed currency code
+     * @return The number of the registered payments.
+     */
+    public long getRegistrations(int currency) {
+        return registrations.get(currency);
+    }
+
+    /**
+     * Returns a consistent snapshot of the register. When nothing has been
+     * registered since the previous snapshot, the previous one is returned.
+     * @return The snapshot of the register.
+     */
+    public CurrencySnapshot snapshot() {
+        synchronized (snapshotLock) {
+            if (!baseChanged && applied(0) + applied(1) == foldedApplied[0] + foldedApplied[1]) {
+                return lastSnapshot;
+            }
+
+            switchBanks();
+            baseChanged = false;
+            lastSnapshot = createSnapshot();
+            return lastSnapshot;
+        }
+    }
+
+    /**
+     * Returns a consistent snapshot of the register with the net amounts
+     * of the windows and optionally the statistics of the payments. The writers
+     * are held off the banks while the windows and the statistics are taken
+     * at one time, so they hold exactly the registrations of the net amounts.
+     * @param statistics true if the statistics of the payments are taken
+     * @return The snapshot of the register with the windows.
+     */
+    public CurrencySnapshot detailedSnapshot(boolean statistics) {
+        synchronized (snapshotLock) {
+            frozen = true;
+            try {
+                return createDetailedSnapshot(statistics);
+            } finally {
+                frozen = false;
+            }
+        }
+    }
+
+    private CurrencySnapshot createDetailedSnapshot(boolean statistics) {
+        // The banks are switched even if nothing has been applied, a writer
+        // may have changed the windows without leaving its bank yet
+        long folded = foldedApplied[0] + foldedApplied[1];
+        switchBanks();
+        if (baseChanged || foldedApplied[0] + foldedApplied[1] != folded) {
+            baseChanged = false;
+            lastSnapshot = createSnapshot();
+        }
+        CurrencySnapshot snapshot = lastSnapshot;
+        long now = CoarseClock.currentTimeMillis();
+        long[][] windowTotals = new long[windows.size()][snapshot.size()];
+        QuantileSketch.Snapshot[] payments = statistics ? new QuantileSketch.Snapshot[snapshot.size()] : null;
+        for (int i = 0; i < snapshot.size(); i++) {
+            int currency = snapshot.getCurrencyAt(i);
+            for (int w = 0; w < windowTotals.length; w++) {
+                windowTotals[w][i] = windows.get(w).getTotal(currency, now);
+            }
+            if (payments != null) {
+                payments[i] = this.statistics.snapshot(currency);
+            }
+        }
+        return snapshot.withDetails(now, windowTotals, payments);
+    }
+
+    /**
+     * Moves the currencies registered since the previous drain to the bitset
+     * (indexed by the packed currency code), the bits already set are kept.
+     * A currency is marked once its amount is in the register, so a snapshot
+     * taken after the drain contains all the drained changes. The changes
+     * made meanwhile are left for the next drain. The register has one bitset
+     * of the changes, so there should be one reader of them.
+     * @param target the receiver of the changed currencies
+     */
+    public void drainChanged(BitSet target) {
+        for (int word = 0; word < changed.length(); word++) {
+            long bits = changed.get(word) != 0 ? changed.getAndSet(word, 0L) : 0L;
+            while (bits != 0) {
+                target.set(word * Long.SIZE + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+    }
+
     /**
      * Resets the register.
      */
     public void resetRegister() {
-        currenciesStatus.clear();
+        // The balances are reset outside of the lock - a registration of
+        // a payment of an account takes the lock of the balance first
+        accounts.reset();
+        statistics.reset();
+        synchronized (snapshotLock) {
+            for (int i = 0; i < occupied.length(); i++) {
+                occupied.set(i, 0L);
+                changed.set(i, 0L);
+                large.set(i, 0L);
+            }
+            for (AtomicLongArray totals : banks) {
+                for (int i = 0; i < totals.length(); i++) {
+                    totals.set(i, 0L);
+                }
+            }
+            Arrays.fill(base, 0);
+            seconds.reset();
+            minutes.reset();
+            foldedApplied[0] = applied(0);
+            foldedApplied[1] = applied(1);
+            baseChanged = false;
+
+            lastSnapshot = createSnapshot();
+        }
     }
 
     /**
-     * Returns actual payment register map.
+     * Returns actual payment register map. The map is a read-only view
+     * of a snapshot of the register.
      * @return The payment register map.
      */
-    public Map<String, Double> getCurrenciesStatus() {
-        return currenciesStatus;
-    }    
-    
+    public Map<String, Long> getCurrenciesStatus() {
+        return snapshot().asMap();
+    }
+
+    /**
+     * Adds the amount to a stripe of the bank.
+     * @return False if the stripe would go over its limit.
+     */
+    private boolean add(AtomicLongArray totals, int stripe, int currency, long amount) {
+        if (amount > STRIPE_LIMIT || amount < -STRIPE_LIMIT) {
+            return false;
+        }
+
+        int index = stripe * CurrencyCodes.SLOTS + currency;
+        while (true) {
+            long current = totals.get(index);
+            long updated = current + amount;
+            if (updated > STRIPE_LIMIT || updated < -STRIPE_LIMIT) {
+                return false;
+            }
+            if (totals.compareAndSet(index, current, updated)) {
+                return true;
+            }
+
+            // Another thread uses the same stripe - move to another one
+            index = Stripes.advance() * CurrencyCodes.SLOTS + currency;
+        }
+    }
+
+    /**
+     * Adds the amount directly to the folded net amount. The currency is
+     * marked as large first, so the banks hold no amount of it once they
+     * are switched and the folded net amount is the exact one.
+     * @throws ArithmeticException if the payment would overflow the net amount
+     */
+    private void addExact(int currency, long amount, boolean windowed, boolean payment,
+            QuantileSketch.Snapshot payments) {
+        synchronized (snapshotLock) {
+            setBit(large, currency);
+            switchBanks();
+            try {
+                base[currency] = Amounts.addExact(base[currency], amount);
+                baseChanged = true;
+            } finally {
+                markLarge(currency);
+            }
+            addDetails(currency, amount, windowed, payment, payments);
+        }
+    }
+
+    private void markOccupied(int currency) {
+        setBit(occupied, currency);
+    }
+
+    private static boolean isSet(AtomicLongArray bits, int index) {
+        return (bits.get(index >>> 6) & 1L << index) != 0;
+    }
+
+    private static void setBit(AtomicLongArray bits, int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long current = bits.get(word);
+        while ((current & bit) == 0 && !bits.compareAndSet(word, current, current | bit)) {
+            current = bits.get(word);
+        }
+    }
+
+    private static void clearBit(AtomicLongArray bits, int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long current = bits.get(word);
+        while ((current & bit) != 0 && !bits.compareAndSet(word, current, current & ~bit)) {
+            current = bits.get(word);
+        }
+    }
+
+    /**
+     * Switches the writers to the other bank and folds the previous one.
+     */
+    private void switchBanks() {
+        int bank = epoch & 1;
+        epoch++;
+        awaitWriters(bank);
+        fold(bank);
+        foldedApplied[bank] = applied(bank);
+    }
+
+    /**
+     * Marks the currency as large if its folded net amount is over the limit,
+     * clears the mark otherwise.
+     */
+    private void markLarge(int currency) {
+        long total = base[currency];
+        if (total > LARGE_LIMIT || total < -LARGE_LIMIT) {
+            setBit(large, currency);
+        } else {
+            clearBit(large, currency);
+        }
+    }
+
+    /**
+     * Returns the number of finished registrations of the bank.
+     */
+    private long applied(int bank) {
+        long applied = 0;
+        for (int stripe = 0; stripe < Stripes.COUNT; stripe++) {
+            applied += writers.get((bank * Stripes.COUNT + stripe) * PADDING) >>> 32;
+        }
+        return applied;
+    }
+
+    /**
+     * Waits until no writer is in the bank.
+     */
+    private void awaitWriters(int bank) {
+        for (int stripe = 0; stripe < Stripes.COUNT; stripe++) {
+            int counter = (bank * Stripes.COUNT + stripe) * PADDING;
+            while ((writers.get(counter) & ACTIVE_MASK) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Moves the amounts of the bank to the base.
+     */
+    private void fold(int bank) {
+        AtomicLongArray totals = banks[bank];
+        for (int currency = nextRegistered(0); currency >= 0; currency = nextRegistered(currency + 1)) {
+            boolean folded = false;
+            for (int stripe = 0; stripe < Stripes.COUNT; stripe++) {
+                int index = stripe * CurrencyCodes.SLOTS + currency;
+                long amount = totals.get(index);
+                if (amount != 0) {
+                    // Cannot overflow - a currency under the large limit has at most
+                    // a quarter of the range in the stripes of a bank
+                    base[currency] += amount;
+                    totals.set(index, 0L);
+                    folded = true;
+                }
+            }
+            if (folded) {
+                markLarge(currency);
+            }
+        }
+    }
+
+    private CurrencySnapshot createSnapshot() {
+        int size = 0;
+        for (int currency = nextRegistered(0); currency >= 0; currency = nextRegistered(currency + 1)) {
+            scratch[size++] = currency;
+        }
+
+        int[] currencies = Arrays.copyOf(scratch, size);
+        long[] totals = new long[size];
+        for (int i = 0; i < size; i++) {
+            totals[i] = base[currencies[i]];
+        }
+
+        return new CurrencySnapshot(++version, currencies, totals);
+    }
+
+    /**
+     * Returns the first registered currency starting from the given one.
+     */
+    private int nextRegistered(int from) {
+        if (from < 0 || from >= CurrencyCodes.SLOTS) {
+            return -1;
+        }
+
+        int word = from >>> 6;
+        long bits = occupied.get(word) & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == occupied.length()) {
+                return -1;
+            }
+            bits = occupied.get(word);
+        }
+    }
+
     // Thread-safe singleton implementation
     private static class CurrencyLoader {
         private static final CurrencyHolder INSTANCE = new CurrencyHolder();
     }
-    
+
     public static CurrencyHolder getInstance() {
         return CurrencyLoader.INSTANCE;
     }
-        
+
 }
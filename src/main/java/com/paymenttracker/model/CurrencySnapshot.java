@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.QuantileSketch;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * This class is an immutable point-in-time view of the payment register.
+ * Every snapshot has a version - two snapshots with the same version
+ * hold the same net amounts. A detailed snapshot (see
+ * {@link CurrencyHolder#detailedSnapshot(boolean)}) holds the net amounts
+ * of the windows and the statistics of the payments taken with the net amounts.
+ * @author Jaromir Mlejnek
+ */
+public final class CurrencySnapshot {
+
+    private final long version;
+
+    /**
+     * Packed codes of the registered currencies in ascending order.
+     */
+    private final int[] currencies;
+
+    /**
+     * Net amounts of the currencies.
+     */
+    private final long[] totals;
+
+    /**
+     * The time of the windows, the net amounts of the windows indexed
+     * by the window and the currency and the statistics of the currencies,
+     * null in a snapshot which is not detailed.
+     */
+    private final long timeMillis;
+    private final long[][] windowTotals;
+    private final QuantileSketch.Snapshot[] statistics;
+
+    CurrencySnapshot(long version, int[] currencies, long[] totals) {
+        this(version, currencies, totals, 0, null, null);
+    }
+
+    private CurrencySnapshot(long version, int[] currencies, long[] totals,
+            long timeMillis, long[][] windowTotals, QuantileSketch.Snapshot[] statistics) {
+        this.version = version;
+        this.currencies = currencies;
+        this.totals = totals;
+        this.timeMillis = timeMillis;
+        this.windowTotals = windowTotals;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the detailed snapshot of the same net amounts.
+     */
+    CurrencySnapshot withDetails(long timeMillis, long[][] windowTotals, QuantileSketch.Snapshot[] statistics) {
+        return new CurrencySnapshot(version, currencies, totals, timeMillis, windowTotals, statistics);
+    }
+
+    /**
+     * @return The version of the register the snapshot was taken from.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The number of registered currencies.
+     */
+    public int size() {
+        return currencies.length;
+    }
+
+    /**
+     * Returns the packed code of the i-th currency.
+     * @param index the index of the currency, 0 .. size() - 1
+     * @return The packed currency code.
+     */
+    public int getCurrencyAt(int index) {
+        return currencies[index];
+    }
+
+    /**
+     * Returns the net amount of the i-th currency.
+     * @param index the index of the currency, 0 .. size() - 1
+     * @return The net amount.
+     */
+    public long getTotalAt(int index) {
+        return totals[index];
+    }
+
+    /**
+     * @return The end of the windows of a detailed snapshot.
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * Returns the net amount of the i-th currency in the window.
+     * @param window the index of the window (see {@link CurrencyHolder#getWindows()})
+     * @param index the index of the currency, 0 .. size() - 1
+     * @return The net amount of the window.
+     * @throws IllegalStateException if the snapshot is not detailed
+     */
+    public long getWindowTotalAt(int window, int index) {
+        if (windowTotals == null) {
+            throw new IllegalStateException("The snapshot has no windows");
+        }
+        return windowTotals[window][index];
+    }
+
+    /**
+     * Returns the statistics of the payments of the i-th currency.
+     * @param index the index of the currency, 0 .. size() - 1
+     * @return The statistics of the payments.
+     * @throws IllegalStateException if the snapshot has no statistics
+     */
+    public QuantileSketch.Snapshot getStatisticsAt(int index) {
+        if (statistics == null) {
+            throw new IllegalStateException("The snapshot has no statistics");
+        }
+        return statistics[index];
+    }
+
+    /**
+     * Checks whether the currency is in the snapshot.
+     * @param currency the packed currency code
+     * @return True if the currency has been registered.
+     */
+    public boolean contains(int currency) {
+        return Arrays.binarySearch(currencies, currency) >= 0;
+    }
+
+    /**
+     * Returns the net amount of the currency.
+     * @param currency the packed currency code
+     * @return The net amount, 0 for a currency which has not been registered.
+     */
+    public long getTotal(int currency) {
+        int index = Arrays.binarySearch(currencies, currency);
+        return index >= 0 ? totals[index] : 0;
+    }
+
+    /**
+     * Returns a read-only map view of the snapshot.
+     * @return The map of currency codes and net amounts.
+     */
+    public Map<String, Long> asMap() {
+        return new AbstractMap<String, Long>() {
+
+            @Override
+            public Long get(Object key) {
+                int index = indexOf(key);
+                return index >= 0 ? totals[index] : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return indexOf(key) >= 0;
+            }
+
+            @Override
+            public int size() {
+                return currencies.length;
+            }
+
+            @Override
+            public Set<Entry<String, Long>> entrySet() {
+                return new AbstractSet<Entry<String, Long>>() {
+
+                    @Override
+                    public Iterator<Entry<String, Long>> iterator() {
+                        return new Iterator<Entry<String, Long>>() {
+
+                            private int next;
+
+                            @Override
+                            public boolean hasNext() {
+                                return next < currencies.length;
+                            }
+
+                            @Override
+                            public Entry<String, Long> next() {
+                                if (next >= currencies.length) {
+                                    throw new NoSuchElementException();
+                                }
+                                int index = next++;
+                                return new SimpleImmutableEntry<>(CurrencyCodes.unpack(currencies[index]), totals[index]);
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return currencies.length;
+                    }
+                };
+            }
+        };
+    }
+
+    private int indexOf(Object key) {
+        int currency = key instanceof String ? CurrencyCodes.pack((String) key) : CurrencyCodes.INVALID;
+        return currency == CurrencyCodes.INVALID ? -1 : Arrays.binarySearch(currencies, currency);
+    }
+}
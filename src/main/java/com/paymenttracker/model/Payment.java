@@ -15,6 +15,10 @@
  */
 package com.paymenttracker.model;
 
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.CurrencyScales;
 import java.util.Objects;
 
 /**
@@ -29,16 +33,26 @@ public class Payment {
     private String currencyCode;
     
     /**
-     * Currency amount
+     * Currency amount in minor units (see {@link CurrencyScales})
      */
-    private double amount;
+    private long amount;
+    
+    /**
+     * Account identifier or null if the payment has no account (see {@link AccountCodes})
+     */
+    private String account;
+
+    public Payment(String currencyCode, long amount) {
+        this(currencyCode, amount, null);
+    }
 
-    public Payment(String currencyCode, double amount) {
+    public Payment(String currencyCode, long amount, String account) {
         this.currencyCode = currencyCode;
         this.amount = amount;
+        this.account = account;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
@@ -46,7 +60,7 @@ public class Payment {
         return currencyCode;
     }
 
-    public void setAmount(double amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 
@@ -54,9 +68,20 @@ public class Payment {
         this.currencyCode = currencyCode;
     }
 
+    public String getAccount() {
+        return account;
+    }
+
+    public void setAccount(String account) {
+        this.account = account;
+    }
+
     @Override
     public String toString() {
-        return String.format("%s %.0f", this.currencyCode, this.amount);
+        int currency = this.currencyCode == null ? CurrencyCodes.INVALID : CurrencyCodes.pack(this.currencyCode);
+        int scale = currency == CurrencyCodes.INVALID ? CurrencyScales.DEFAULT_SCALE : CurrencyScales.getScale(currency);
+        String result = this.currencyCode + " " + Amounts.format(this.amount, scale);
+        return this.account == null ? result : result + " " + this.account;
     } 
 
     @Override
@@ -67,7 +92,8 @@ public class Payment {
             boolean isCodeEq = (this.getCurrencyCode() == null  && pObj.getCurrencyCode() == null)
                     || (this.getCurrencyCode() != null && this.getCurrencyCode().equals(pObj.getCurrencyCode()));
             
-            return isCodeEq && (this.getAmount() == pObj.getAmount());
+            return isCodeEq && (this.getAmount() == pObj.getAmount())
+                    && Objects.equals(this.getAccount(), pObj.getAccount());
         }
         
         return super.equals(obj);
@@ -78,7 +104,8 @@ public class Payment {
     public int hashCode() {
         int hash = 7;
         hash = 41 * hash + Objects.hashCode(this.currencyCode);
-        hash = 41 * hash + (int) (Double.doubleToLongBits(this.amount) ^ (Double.doubleToLongBits(this.amount) >>> 32));
+        hash = 41 * hash + (int) (this.amount ^ (this.amount >>> 32));
+        hash = 41 * hash + Objects.hashCode(this.account);
         return hash;
     }
     
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.QuantileSketch;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class keeps the statistics of the sizes (absolute amounts)
+ * of the individual payments by the currency - their count, minimum, maximum,
+ * mean and approximate quantiles (see {@link QuantileSketch}).
+ * <p>
+ * Each writer thread records into sketches of its own, created on its first
+ * payment of a currency, so a recording takes no lock. A reader merges
+ * the sketches of all the threads. The sketches of a terminated thread are
+ * merged into shared sketches and dropped once another thread starts to record
+ * or the statistics are read, so the memory does not depend on the number
+ * of the payments nor on the threads which have come and gone, only on the
+ * number of the live writer threads and currencies.
+ * @author Jaromir Mlejnek
+ */
+public final class PaymentStatistics {
+
+    private volatile Generation generation = new Generation();
+
+    /**
+     * Records a payment.
+     * @param currency the packed currency code
+     * @param amount the amount of the payment in minor units
+     */
+    public void record(int currency, long amount) {
+        sketch(currency).record(size(amount));
+    }
+
+    /**
+     * Adds the statistics of other payments, e.g. of the payments of partial totals.
+     * @param currency the packed currency code
+     * @param payments the statistics of the payments
+     */
+    public void merge(int currency, QuantileSketch.Snapshot payments) {
+        sketch(currency).merge(payments);
+    }
+
+    /**
+     * Returns the statistics of the payments of the currency.
+     * @param currency the packed currency code
+     * @return The merged sketches of all the writer threads.
+     */
+    public QuantileSketch.Snapshot snapshot(int currency) {
+        if (currency < 0 || currency >= CurrencyCodes.SLOTS) {
+            throw new IllegalArgumentException("Invalid packed currency code " + currency);
+        }
+
+        Generation current = generation;
+        synchronized (current) {
+            current.retire();
+            QuantileSketch sketch = current.retired[currency];
+            QuantileSketch.Snapshot merged = sketch != null ? sketch.snapshot() : QuantileSketch.Snapshot.EMPTY;
+            for (Writer writer : current.writers) {
+                sketch = writer.sketches.get(currency);
+                if (sketch != null) {
+                    merged = merged.merge(sketch.snapshot());
+                }
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * @return The number of the threads whose sketches are kept apart.
+     */
+    public int getWriterCount() {
+        Generation current = generation;
+        synchronized (current) {
+            current.retire();
+            return current.writers.size();
+        }
+    }
+
+    /**
+     * Removes all the statistics. The writers switch to new sketches
+     * on their next payment.
+     */
+    void reset() {
+        generation = new Generation();
+    }
+
+    /**
+     * Returns the size of the payment, its absolute amount.
+     */
+    static long size(long amount) {
+        return amount >= 0 ? amount : amount == Long.MIN_VALUE ? Long.MAX_VALUE : -amount;
+    }
+
+    /**
+     * Returns the sketch of the currency of the current thread.
+     */
+    private QuantileSketch sketch(int currency) {
+        AtomicReferenceArray<QuantileSketch> sketches = generation.sketches.get();
+        QuantileSketch sketch = sketches.get(currency);
+        if (sketch == null) {
+            sketch = new QuantileSketch();
+            sketches.lazySet(currency, sketch);
+        }
+        return sketch;
+    }
+
+    /**
+     * The sketches of the writer threads since the last reset.
+     */
+    private static final class Generation {
+
+        /**
+         * The live writers - guarded by the generation.
+         */
+        private final List<Writer> writers = new ArrayList<>();
+
+        /**
+         * The merged sketches of the terminated writers - guarded by the generation.
+         */
+        private final QuantileSketch[] retired = new QuantileSketch[CurrencyCodes.SLOTS];
+
+        private final ThreadLocal<AtomicReferenceArray<QuantileSketch>> sketches =
+                new ThreadLocal<AtomicReferenceArray<QuantileSketch>>() {
+
+            @Override
+            protected AtomicReferenceArray<QuantileSketch> initialValue() {
+                Writer created = new Writer(Thread.currentThread());
+                synchronized (Generation.this) {
+                    retire();
+                    writers.add(created);
+                }
+                return created.sketches;
+            }
+        };
+
+        /**
+         * Merges the sketches of the terminated writers into the retired ones.
+         * The termination of a thread happens-before its isAlive() returns false,
+         * so all its payments are seen. Must be called under the generation lock.
+         */
+        private void retire() {
+            for (Iterator<Writer> i = writers.iterator(); i.hasNext();) {
+                Writer writer = i.next();
+                if (writer.thread.isAlive()) {
+                    continue;
+                }
+                for (int currency = 0; currency < CurrencyCodes.SLOTS; currency++) {
+                    QuantileSketch sketch = writer.sketches.get(currency);
+                    if (sketch == null) {
+                        continue;
+                    }
+                    if (retired[currency] == null) {
+                        retired[currency] = new QuantileSketch();
+                    }
+                    retired[currency].merge(sketch.snapshot());
+                }
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * The sketches of one writer thread.
+     */
+    private static final class Writer {
+
+        private final Thread thread;
+        private final AtomicReferenceArray<QuantileSketch> sketches = new AtomicReferenceArray<>(CurrencyCodes.SLOTS);
+
+        Writer(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+import com.paymenttracker.utils.AccountPaymentSink;
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentSink;
+import com.paymenttracker.utils.QuantileSketch;
+
+/**
+ * This class holds partial net amounts of currencies. Unlike
+ * {@link CurrencyHolder} it is not thread-safe - it's meant to be owned by
+ * one worker thread and merged into the register once the work is done.
+ * <p>
+ * The totals also collect the amounts of the payments of the accounts and
+ * the statistics of the sizes of their payments, both are added to the register
+ * together with the net amounts (see {@link CurrencyHolder#registerTotals(PaymentTotals)}).
+ * So the balances of a load which is cancelled or rejected are not changed,
+ * and a net amount of many payments is never taken for the size of one payment.
+ * @author Jaromir Mlejnek
+ */
+public final class PaymentTotals implements AccountPaymentSink, TotalsSink {
+
+    /**
+     * Net amounts (minor units) indexed by the packed currency code.
+     */
+    private final long[] totals = new long[CurrencyCodes.SLOTS];
+
+    /**
+     * Bitset of the currencies which have been registered.
+     */
+    private final long[] occupied = new long[(CurrencyCodes.SLOTS + Long.SIZE - 1) / Long.SIZE];
+
+    /**
+     * Statistics of the payments indexed by the packed currency code, created by the first payment.
+     */
+    private QuantileSketch[] sketches;
+
+    /**
+     * The amounts of the payments of the accounts, created by the first such payment.
+     */
+    private AccountDeltas deltas;
+
+    private final boolean details;
+
+    public PaymentTotals() {
+        this(true);
+    }
+
+    /**
+     * @param details true to keep the amounts of the accounts and the statistics
+     * of the payments, false if only the net amounts matter (e.g. the progress of a file)
+     */
+    public PaymentTotals(boolean details) {
+        this.details = details;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws ArithmeticException if the payment would overflow the net amount
+     */
+    @Override
+    public void accept(int currency, long amount) {
+        add(currency, amount);
+        if (details) {
+            sketch(currency).record(PaymentStatistics.size(amount));
+        }
+    }
+
+    /**
+     * {@inheritDoc} The amount of the account is collected, it's added
+     * to the balance once the totals are registered.
+     * @throws ArithmeticException if the payment would overflow the net amount
+     * or the collected amount of the account
+     */
+    @Override
+    public void accept(long account, int currency, long amount) {
+        if (details) {
+            Amounts.addExact(totals[currency], amount);
+            if (deltas == null) {
+                deltas = new AccountDeltas();
+            }
+            deltas.add(account, currency, amount);
+        }
+        accept(currency, amount);
+    }
+
+    /**
+     * Adds all the amounts and statistics of other partial totals to this one.
+     * @param other the partial totals to add
+     * @throws ArithmeticException if a net amount would overflow
+     */
+    public void merge(PaymentTotals other) {
+        if (details && other.deltas != null) {
+            if (deltas == null) {
+                deltas = new AccountDeltas();
+            }
+            deltas.addAll(other.deltas);
+        }
+        for (int currency = other.nextRegistered(0); currency >= 0; currency = other.nextRegistered(currency + 1)) {
+            add(currency, other.totals[currency]);
+            if (details) {
+                QuantileSketch.Snapshot payments = other.getStatistics(currency);
+                if (payments.getCount() > 0) {
+                    sketch(currency).merge(payments);
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #merge(PaymentTotals)}.
+     */
+    @Override
+    public void acceptTotals(PaymentTotals other) {
+        merge(other);
+    }
+
+    /**
+     * Passes the totals to the sink - at once to a {@link TotalsSink}, otherwise
+     * the amounts of the accounts (to an {@link AccountPaymentSink}) and
+     * the rest of the net amounts one by one, without the statistics.
+     * @param sink the receiver of the totals
+     */
+    public void passTo(PaymentSink sink) {
+        if (sink instanceof TotalsSink) {
+            ((TotalsSink) sink).acceptTotals(this);
+            return;
+        }
+
+        long[] rest = totals;
+        if (deltas != null && sink instanceof AccountPaymentSink) {
+            rest = totals.clone();
+            for (int slot = 0; slot < deltas.slots(); slot++) {
+                if (deltas.isOccupied(slot)) {
+                    int currency = deltas.getCurrency(slot);
+                    ((AccountPaymentSink) sink).accept(deltas.getAccount(slot), currency, deltas.getAmount(slot));
+                    rest[currency] -= deltas.getAmount(slot);
+                }
+            }
+        }
+        for (int currency = nextRegistered(0); currency >= 0; currency = nextRegistered(currency + 1)) {
+            sink.accept(currency, rest[currency]);
+        }
+    }
+
+    /**
+     * Returns the net amount of the currency.
+     * @param currency the packed currency code
+     * @return The net amount.
+     */
+    public long getTotal(int currency) {
+        return totals[currency];
+    }
+
+    /**
+     * @return The collected amounts of the accounts or null if there are none.
+     */
+    AccountDeltas getAccountDeltas() {
+        return deltas;
+    }
+
+    /**
+     * Returns the statistics of the payments of the currency.
+     * @param currency the packed currency code
+     * @return The statistics, empty if they are not kept.
+     */
+    public QuantileSketch.Snapshot getStatistics(int currency) {
+        QuantileSketch sketch = sketches != null ? sketches[currency] : null;
+        return sketch != null ? sketch.snapshot() : QuantileSketch.Snapshot.EMPTY;
+    }
+
+    /**
+     * Returns the first registered currency starting from the given one.
+     * @param from the packed currency code to start with
+     * @return The packed currency code or -1 if there is no such currency.
+     */
+    public int nextRegistered(int from) {
+        if (from < 0 || from >= CurrencyCodes.SLOTS) {
+            return -1;
+        }
+
+        int word = from >>> 6;
+        long bits = occupied[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == occupied.length) {
+                return -1;
+            }
+            bits = occupied[word];
+        }
+    }
+
+    private void add(int currency, long amount) {
+        totals[currency] = Amounts.addExact(totals[currency], amount);
+        occupied[currency >>> 6] |= 1L << currency;
+    }
+
+    private QuantileSketch sketch(int currency) {
+        if (sketches == null) {
+            sketches = new QuantileSketch[CurrencyCodes.SLOTS];
+        }
+        QuantileSketch sketch = sketches[currency];
+        if (sketch == null) {
+            sketch = new QuantileSketch();
+            sketches[currency] = sketch;
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+/**
+ * This class is a sliding time window of the net amounts - the last buckets
+ * of a {@link BucketRing}, e.g. the last hour is the last 60 buckets of a ring
+ * of one-minute buckets.
+ * @author Jaromir Mlejnek
+ */
+public final class SlidingWindow {
+
+    private final String name;
+
+    private final BucketRing ring;
+
+    private final int buckets;
+
+    /**
+     * @param name the name of the window, e.g. "1h"
+     * @param ring the ring of the buckets
+     * @param buckets the number of the last buckets of the ring in the window
+     */
+    public SlidingWindow(String name, BucketRing ring, int buckets) {
+        if (buckets <= 0 || buckets > ring.getBuckets()) {
+            throw new IllegalArgumentException("Invalid window " + name + " of " + buckets + " buckets");
+        }
+
+        this.name = name;
+        this.ring = ring;
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return The name of the window.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The length of the window in milliseconds.
+     */
+    public long getLengthMillis() {
+        return ring.getBucketMillis() * buckets;
+    }
+
+    /**
+     * Returns the net amount of the currency in the window ending at the time.
+     * @param currency the packed currency code
+     * @param timeMillis the end of the window, usually the current time
+     * @return The net amount in minor units.
+     */
+    public long getTotal(int currency, long timeMillis) {
+        return ring.getTotal(currency, timeMillis, buckets);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+/**
+ * This class assigns writer threads to stripes of the striped register.
+ * Every thread keeps its stripe until it hits a contention, then it is
+ * moved to another stripe.
+ * @author Jaromir Mlejnek
+ */
+final class Stripes {
+
+    /**
+     * Upper bound for the number of stripes.
+     */
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * Number of stripes - the power of two closest above the number of processors.
+     */
+    static final int COUNT = stripeCount();
+
+    private static final int MASK = COUNT - 1;
+
+    /**
+     * Stripe probe of the current thread.
+     */
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] { mix(Thread.currentThread().getId()) };
+        }
+    };
+
+    private Stripes() {
+    }
+
+    /**
+     * Returns the stripe of the current thread.
+     * @return The stripe index.
+     */
+    static int current() {
+        return PROBE.get()[0] & MASK;
+    }
+
+    /**
+     * Moves the current thread to another stripe after a contention.
+     * @return The new stripe index.
+     */
+    static int advance() {
+        int[] probe = PROBE.get();
+
+        // Marsaglia xorshift
+        int h = probe[0];
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        probe[0] = h;
+
+        return h & MASK;
+    }
+
+    private static int mix(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        int result = (int) (h ^ (h >>> 32));
+        return result == 0 ? 1 : result;
+    }
+
+    private static int stripeCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int count = 1;
+        while (count < processors && count < MAX_STRIPES) {
+            count <<= 1;
+        }
+        return count;
+    }
+}
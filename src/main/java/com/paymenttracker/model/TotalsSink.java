@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.model;
+
+import com.paymenttracker.utils.PaymentSink;
+
+/**
+ * Receiver of the partial totals of the payments loaded at once (e.g. a file
+ * loaded in parallel), see {@link PaymentTotals#passTo(PaymentSink)}.
+ * @author Jaromir Mlejnek
+ */
+public interface TotalsSink extends PaymentSink {
+
+    /**
+     * Accepts the net amounts and the statistics of the partial totals.
+     * The totals must not be changed any more by the caller.
+     * @param totals the partial totals
+     */
+    void acceptTotals(PaymentTotals totals);
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class writes the reports to a {@link ReportChannel} by a background thread,
+ * so a slow output (a pipe, a busy terminal, a slow disk) never blocks
+ * the thread which renders the reports. The reports are double buffered -
+ * a published report is copied into the pending buffer, the writer thread swaps
+ * it with the buffer it writes from and writes it without any lock held.
+ * Both buffers are reused, so the steady state does not allocate.
+ * <p>
+ * When the writer has not taken the previous report yet, the reports are
+ * coalesced - a complete report replaces the pending reports (it contains all
+ * of them), a delta report is appended to them. A delta report which would
+ * make the pending buffer larger than its limit is dropped, so the memory
+ * is bounded. The publisher learns about the drop and publishes a complete
+ * report next, so the changes of the dropped report are not lost. The dropped
+ * reports are counted and reported in the log.
+ * @author Jaromir Mlejnek
+ */
+public final class AsyncReportSink implements ReportSink, Closeable {
+
+    private static final Logger log = Logger.getLogger(AsyncReportSink.class.getName());
+
+    /**
+     * The default limit of the pending reports in bytes.
+     */
+    public static final int DEFAULT_MAX_PENDING = 1 << 20;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final ReportChannel channel;
+
+    private final int maxPending;
+
+    /**
+     * Guards the pending buffer and the state below.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The reports published but not taken by the writer.
+     */
+    private ReportBuffer pending = new ReportBuffer(INITIAL_BUFFER_SIZE);
+
+    /**
+     * The reports being written, used by the writer thread only.
+     */
+    private ReportBuffer writing = new ReportBuffer(INITIAL_BUFFER_SIZE);
+
+    private long coalesced;
+
+    private long dropped;
+
+    private boolean closed = false;
+
+    private Thread writer;
+
+    /**
+     * The last reported problem, so a failing output is not reported on every report.
+     */
+    private String problem;
+
+    /**
+     * @param channel the output of the reports
+     */
+    public AsyncReportSink(ReportChannel channel) {
+        this(channel, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param channel the output of the reports
+     * @param maxPending the limit of the pending reports in bytes
+     */
+    public AsyncReportSink(ReportChannel channel, int maxPending) {
+        this.channel = channel;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+
+        writer = new Thread("report-writer") {
+            @Override
+            public void run() {
+                writeReports();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public boolean publish(ReportBuffer report, boolean complete) {
+        synchronized (lock) {
+            if (closed) {
+                dropped++;
+                return false;
+            }
+
+            if (pending.size() > 0) {
+                if (complete) {
+                    pending.reset();
+                } else if (pending.size() + report.size() > maxPending) {
+                    if (dropped++ == 0) {
+                        log.log(Level.WARNING, "The report output is too slow, reports are dropped");
+                    }
+                    return false;
+                }
+                coalesced++;
+            }
+            pending.append(report);
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * @return The number of the reports merged with a pending report.
+     */
+    public long getCoalesced() {
+        synchronized (lock) {
+            return coalesced;
+        }
+    }
+
+    /**
+     * @return The number of the dropped reports.
+     */
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Writes the pending reports and stops the writer thread.
+     * @throws IOException if the report file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = writer;
+        }
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // Never started - write the pending reports by the closing thread
+            writeReports();
+        }
+
+        if (getDropped() > 0) {
+            log.log(Level.WARNING, "{0} reports dropped, {1} coalesced", new Object[] { getDropped(), getCoalesced() });
+        }
+        channel.close();
+    }
+
+    private void writeReports() {
+        while (true) {
+            synchronized (lock) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        // Only the close stops the writer
+                    }
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+
+                ReportBuffer taken = pending;
+                pending = writing;
+                writing = taken;
+            }
+
+            try {
+                channel.write(writing);
+                problem = null;
+            } catch (IOException ex) {
+                String message = "Reports cannot be written: " + ex.getMessage();
+                if (!message.equals(problem)) {
+                    problem = message;
+                    log.log(Level.WARNING, message);
+                }
+            } finally {
+                writing.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class loads a binary payment file written by {@link BinaryPaymentWriter}.
+ * The file is memory-mapped by large windows, the checksum of each block
+ * is verified and the records are added to the totals without any parsing
+ * or allocation per record. A corrupted or truncated block fails the whole
+ * load, so no payment of a damaged file is registered.
+ * @author Jaromir Mlejnek
+ */
+public class BinaryFileLoader implements Cancellable {
+
+    private static final Logger log = Logger.getLogger(BinaryFileLoader.class.getName());
+
+    /**
+     * The maximal size of the mapped window.
+     */
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private long payments = 0;
+
+    private long errors = 0;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Checks whether the file starts with the header of a binary payment file.
+     * @param file the input file
+     * @return True if the file is binary.
+     * @throws IOException
+     */
+    public static boolean isBinary(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            int magic = in.readInt();
+            return magic == BinaryPaymentWriter.MAGIC || magic == BinaryPaymentWriter.MAGIC_V1;
+        } catch (EOFException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return The number of the payments loaded so far.
+     */
+    public long getPaymentCount() {
+        return payments;
+    }
+
+    /**
+     * @return The number of the payments skipped for an overflow of the totals.
+     */
+    public long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * Loads a range of the binary payment file.
+     * @param channel the channel of the input file
+     * @param from the position of the first block, the start of the file means the first block
+     * @param to the end of the range
+     * @return The net amounts of the currencies in the range.
+     * @throws IOException if the file is not binary or is corrupted
+     */
+    public PaymentTotals load(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BinaryPaymentWriter.FILE_HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // Read the whole header
+        }
+        int recordSize;
+        if (header.hasRemaining()) {
+            throw new IOException("Not a binary payment file");
+        } else if (header.getInt(0) == BinaryPaymentWriter.MAGIC) {
+            recordSize = BinaryPaymentWriter.RECORD_SIZE;
+        } else if (header.getInt(0) == BinaryPaymentWriter.MAGIC_V1) {
+            recordSize = BinaryPaymentWriter.RECORD_SIZE_V1;
+        } else {
+            throw new IOException("Not a binary payment file");
+        }
+        if (header.getInt(4) != recordSize) {
+            throw new IOException("Unsupported record size " + header.getInt(4));
+        }
+
+        PaymentTotals totals = new PaymentTotals();
+        CRC32 crc = new CRC32();
+        byte[] records = new byte[BinaryPaymentWriter.BLOCK_RECORDS * recordSize];
+        ByteBuffer view = ByteBuffer.wrap(records);
+
+        long position = Math.max(from, BinaryPaymentWriter.FILE_HEADER_SIZE);
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+
+        while (position < to && !cancelled) {
+            if (to - position < BinaryPaymentWriter.BLOCK_HEADER_SIZE) {
+                throw new IOException("Block at " + position + " is truncated");
+            }
+
+            // Map the next window if the block header is not in the current one
+            if (window == null || position + BinaryPaymentWriter.BLOCK_HEADER_SIZE > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, to - windowStart));
+            }
+
+            int index = (int) (position - windowStart);
+            int count = window.getInt(index);
+            int checksum = window.getInt(index + 4);
+            int length = count * recordSize;
+            if (count <= 0 || count > BinaryPaymentWriter.BLOCK_RECORDS
+                    || position + BinaryPaymentWriter.BLOCK_HEADER_SIZE + length > to) {
+                throw new IOException("Block at " + position + " is corrupted or truncated");
+            }
+
+            // Map the block if it crosses the end of the window
+            if (index + BinaryPaymentWriter.BLOCK_HEADER_SIZE + length > window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, to - windowStart));
+                index = 0;
+            }
+
+            window.position(index + BinaryPaymentWriter.BLOCK_HEADER_SIZE);
+            window.get(records, 0, length);
+            crc.reset();
+            crc.update(records, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Block at " + position + " is corrupted");
+            }
+
+            addRecords(view, length, recordSize, totals);
+            position += BinaryPaymentWriter.BLOCK_HEADER_SIZE + length;
+        }
+        return totals;
+    }
+
+    private void addRecords(ByteBuffer view, int length, int recordSize, PaymentTotals totals) throws IOException {
+        for (int i = 0; i < length; i += recordSize) {
+            int currency = view.getShort(i) & 0xFFFF;
+            long amount = view.getLong(i + 2);
+            long account = recordSize == BinaryPaymentWriter.RECORD_SIZE ? view.getLong(i + 10) : AccountCodes.NONE;
+            if (currency >= CurrencyCodes.SLOTS) {
+                throw new IOException("Invalid currency " + currency);
+            }
+            if (account < AccountCodes.NONE) {
+                throw new IOException("Invalid account " + account);
+            }
+
+            try {
+                if (account != AccountCodes.NONE) {
+                    totals.accept(account, currency, amount);
+                } else {
+                    totals.accept(currency, amount);
+                }
+                payments++;
+            } catch (ArithmeticException ex) {
+                log.log(Level.WARNING, "Payment {0} {1} rejected: {2}",
+                        new Object[] { CurrencyCodes.unpack(currency), amount, ex.getMessage() });
+                TrackerMetrics.getInstance().recordRejected(ex);
+                errors++;
+            }
+        }
+    }
+}
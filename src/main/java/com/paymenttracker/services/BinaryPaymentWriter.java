@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.AccountPaymentSink;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * This class writes a binary payment file. The file starts with a header
+ * (the magic number and the record size) followed by blocks
+ * <code>[int count][int crc32][count * (short currency, long amount, long account)]</code>,
+ * all numbers are big-endian and the checksum covers the records of the block.
+ * The account of a payment without an account is {@link AccountCodes#NONE}.
+ * The binary file is read by {@link BinaryFileLoader} without any parsing,
+ * the files of the first version (records without the account) are read too.
+ * <p>
+ * The payments are written by the thread which passes them to the writer.
+ * The first I/O error stops the writing and is thrown by {@link #close()}.
+ * @author Jaromir Mlejnek
+ */
+public class BinaryPaymentWriter implements AccountPaymentSink, Closeable {
+
+    static final int MAGIC = 0x50544232; // "PTB2"
+
+    /**
+     * The magic number of the first version, whose records have no account.
+     */
+    static final int MAGIC_V1 = 0x50544231; // "PTB1"
+
+    static final int FILE_HEADER_SIZE = 8;
+
+    static final int BLOCK_HEADER_SIZE = 8;
+
+    static final int RECORD_SIZE = 18;
+
+    static final int RECORD_SIZE_V1 = 10;
+
+    /**
+     * The number of the records of a full block.
+     */
+    static final int BLOCK_RECORDS = 8192;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + BLOCK_RECORDS * RECORD_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    private int count = 0;
+
+    private long payments = 0;
+
+    private IOException failure;
+
+    /**
+     * Creates the binary file, an existing file is overwritten.
+     * @param file the binary payment file
+     * @throws IOException
+     */
+    public BinaryPaymentWriter(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(RECORD_SIZE).flip();
+        try {
+            write(header);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        block.position(BLOCK_HEADER_SIZE);
+    }
+
+    /**
+     * @return The number of the payments written so far.
+     */
+    public long getPaymentCount() {
+        return payments;
+    }
+
+    @Override
+    public void accept(int currency, long amount) {
+        accept(AccountCodes.NONE, currency, amount);
+    }
+
+    @Override
+    public void accept(long account, int currency, long amount) {
+        if (failure != null) {
+            return;
+        }
+
+        block.putShort((short) currency).putLong(amount).putLong(account);
+        payments++;
+        if (++count == BLOCK_RECORDS) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Writes the last block and closes the file.
+     * @throws IOException if any write failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (count > 0) {
+                flushBlock();
+            }
+            if (failure == null) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void flushBlock() {
+        crc.reset();
+        crc.update(block.array(), BLOCK_HEADER_SIZE, count * RECORD_SIZE);
+        block.putInt(0, count);
+        block.putInt(4, (int) crc.getValue());
+        block.flip();
+
+        try {
+            write(block);
+        } catch (IOException ex) {
+            failure = ex;
+        }
+
+        block.clear();
+        block.position(BLOCK_HEADER_SIZE);
+        count = 0;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
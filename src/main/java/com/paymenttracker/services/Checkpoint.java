@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.CurrencySnapshot;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an immutable checkpoint of the tracker - the net amounts of
+ * the register, the length of the journal and the progress of the input files,
+ * all taken at the same moment. The checkpoint is stored in a compact binary
+ * file which is replaced atomically.
+ * @author Jaromir Mlejnek
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x50544331; // "PTC1"
+
+    private final long journalLength;
+    private final int[] currencies;
+    private final long[] totals;
+    private final List<FileProgress> files;
+
+    /**
+     * @param journalLength the length of the journal content included in the checkpoint
+     * @param currencies the packed codes of the registered currencies
+     * @param totals the net amounts of the currencies
+     * @param files the progress of the input files
+     */
+    public Checkpoint(long journalLength, int[] currencies, long[] totals, List<FileProgress> files) {
+        this.journalLength = journalLength;
+        this.currencies = currencies;
+        this.totals = totals;
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+    }
+
+    static Checkpoint of(long journalLength, CurrencySnapshot snapshot, List<FileProgress> files) {
+        int[] currencies = new int[snapshot.size()];
+        long[] totals = new long[snapshot.size()];
+        for (int i = 0; i < currencies.length; i++) {
+            currencies[i] = snapshot.getCurrencyAt(i);
+            totals[i] = snapshot.getTotalAt(i);
+        }
+        return new Checkpoint(journalLength, currencies, totals, files);
+    }
+
+    /**
+     * @return The length of the journal content included in the checkpoint.
+     */
+    public long getJournalLength() {
+        return journalLength;
+    }
+
+    /**
+     * Returns the progress of the input file.
+     * @param path the absolute path of the file
+     * @return The progress or null if the file is not in the checkpoint.
+     */
+    public FileProgress getFile(String path) {
+        for (FileProgress file : files) {
+            if (file.getPath().equals(path)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    public List<FileProgress> getFiles() {
+        return files;
+    }
+
+    /**
+     * Passes the net amounts of the checkpoint to the sink.
+     * @param sink the receiver of the net amounts, usually the register
+     */
+    public void restore(PaymentSink sink) {
+        for (int i = 0; i < currencies.length; i++) {
+            sink.accept(currencies[i], totals[i]);
+        }
+    }
+
+    /**
+     * Reads the checkpoint file.
+     * @param file the checkpoint file
+     * @return The checkpoint or null if the file does not exist.
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static Checkpoint read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        if (content.length < 8) {
+            throw new IOException("Checkpoint " + file + " is corrupted");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(content, content.length - 4, 4).getInt()) {
+            throw new IOException("Checkpoint " + file + " is corrupted");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - 4));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("File " + file + " is not a checkpoint");
+        }
+
+        long journalLength = in.readLong();
+        int count = in.readInt();
+        int[] currencies = new int[count];
+        long[] totals = new long[count];
+        readTotals(in, currencies, totals);
+
+        int fileCount = in.readInt();
+        List<FileProgress> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            String path = in.readUTF();
+            long offset = in.readLong();
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            long hash = in.readLong();
+            int fileCurrencies = in.readInt();
+            int[] consumedCurrencies = new int[fileCurrencies];
+            long[] consumedTotals = new long[fileCurrencies];
+            readTotals(in, consumedCurrencies, consumedTotals);
+            files.add(new FileProgress(path, offset, size, lastModified, hash, consumedCurrencies, consumedTotals));
+        }
+
+        return new Checkpoint(journalLength, currencies, totals, files);
+    }
+
+    /**
+     * Writes the checkpoint file atomically - the previous checkpoint is
+     * replaced only when the new one is completely written to the disk.
+     * @param file the checkpoint file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeLong(journalLength);
+        out.writeInt(currencies.length);
+        for (int i = 0; i < currencies.length; i++) {
+            out.writeShort(currencies[i]);
+            out.writeLong(totals[i]);
+        }
+
+        out.writeInt(files.size());
+        for (FileProgress progress : files) {
+            out.writeUTF(progress.getPath());
+            out.writeLong(progress.getOffset());
+            out.writeLong(progress.getSize());
+            out.writeLong(progress.getLastModified());
+            out.writeLong(progress.getHash());
+            out.writeInt(progress.getCurrencyCount());
+            for (int i = 0; i < progress.getCurrencyCount(); i++) {
+                out.writeShort(progress.getCurrencyAt(i));
+                out.writeLong(progress.getTotalAt(i));
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] content = bytes.toByteArray();
+        crc.update(content);
+        out.writeInt((int) crc.getValue());
+
+        Path target = file.toPath().toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void readTotals(DataInputStream in, int[] currencies, long[] totals) throws IOException {
+        for (int i = 0; i < currencies.length; i++) {
+            currencies[i] = in.readShort() & 0xFFFF;
+            totals[i] = in.readLong();
+        }
+    }
+}
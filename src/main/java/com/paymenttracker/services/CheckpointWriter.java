@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.CurrencySnapshot;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class writes checkpoints of the tracker. To take a consistent cut
+ * the sources are paused at the end of their current progress step,
+ * the pipeline is flushed and then the register snapshot, the journal
+ * length and the progress of the file readers are recorded together.
+ * The sources are resumed before the checkpoint is written to the disk.
+ * The last checkpoint is written when the writer is closed.
+ * @author Jaromir Mlejnek
+ */
+public class CheckpointWriter implements Runnable, Closeable {
+
+    private static final Logger log = Logger.getLogger(CheckpointWriter.class.getName());
+
+    private final File file;
+    private final PaymentPipeline pipeline;
+    private final PaymentJournal journal;
+    private final List<PaymentSource> sources = new ArrayList<>();
+
+    private boolean closed = false;
+
+    /**
+     * @param file the checkpoint file
+     * @param pipeline the pipeline of the sources
+     * @param journal the journal or null if the payments are not journaled
+     */
+    public CheckpointWriter(File file, PaymentPipeline pipeline, PaymentJournal journal) {
+        this.file = file;
+        this.pipeline = pipeline;
+        this.journal = journal;
+    }
+
+    /**
+     * Adds a source which passes payments to the pipeline (or the journal).
+     * @param source the payment source
+     */
+    public synchronized void addSource(PaymentSource source) {
+        sources.add(source);
+    }
+
+    @Override
+    public synchronized void run() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            checkpoint();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the last checkpoint.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            checkpoint();
+            closed = true;
+        }
+    }
+
+    /**
+     * Takes and writes a checkpoint.
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        long start = System.nanoTime();
+        List<FileProgress> files = new ArrayList<>();
+        CurrencySnapshot snapshot;
+        long journalLength;
+
+        int paused = 0;
+        try {
+            for (PaymentSource source : sources) {
+                source.pauseProgress();
+                paused++;
+            }
+
+            pipeline.flush();
+            snapshot = CurrencyHolder.getInstance().snapshot();
+            journalLength = journal != null ? journal.getLength() : 0;
+            for (PaymentSource source : sources) {
+                files.addAll(source.getFileProgress());
+            }
+        } finally {
+            for (int i = paused - 1; i >= 0; i--) {
+                sources.get(i).resumeProgress();
+            }
+        }
+        long pause = System.nanoTime() - start;
+
+        // The consumed prefixes do not change, the identity can be taken later
+        List<FileProgress> identified = new ArrayList<>(files.size());
+        for (FileProgress progress : files) {
+            try {
+                identified.add(progress.identify());
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Progress of {0} not recorded: {1}",
+                        new Object[] { progress.getPath(), ex.getMessage() });
+            }
+        }
+        Checkpoint.of(journalLength, snapshot, identified).write(file);
+
+        log.log(Level.FINE, "Checkpoint {0} written: sources paused for {1} us, total {2} ms",
+                new Object[] { file, TimeUnit.NANOSECONDS.toMicros(pause),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+    }
+}
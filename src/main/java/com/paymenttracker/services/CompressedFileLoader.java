@@ -0,0 +1,310 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class loads a gzip-compressed payment file. The file is inflated
+ * by a decoder thread into large blocks which are parsed by the calling thread,
+ * so the decompression and the parsing run on different cores. The blocks
+ * are recycled, the decoder is at most a few blocks ahead of the parser.
+ * Concatenated gzip members are read one after another, so the load can
+ * also start at a member boundary (e.g. the end of a previously loaded file
+ * to which another member has been appended).
+ * @author Jaromir Mlejnek
+ */
+public class CompressedFileLoader implements Cancellable {
+
+    /**
+     * The size of the decoded blocks.
+     */
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    /**
+     * The number of the blocks in flight.
+     */
+    private static final int BLOCKS = 4;
+
+    /**
+     * The size of the buffer of the compressed input.
+     */
+    private static final int INPUT_BUFFER_SIZE = 64 << 10;
+
+    /**
+     * The maximal time the decoder waits for a free block before it checks the cancellation.
+     */
+    private static final long DECODER_POLL_MILLIS = 100;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    /**
+     * The parser of the decoded blocks of the last loaded file.
+     */
+    private LineSplitter lines;
+
+    private long decodedBytes = 0;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Checks whether the file starts with the gzip header.
+     * @param file the input file
+     * @return True if the file is compressed.
+     * @throws IOException
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            int first = in.read();
+            int second = in.read();
+            return first >= 0 && second >= 0 && (second << 8 | first) == GZIP_MAGIC;
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return The number of the payments loaded so far.
+     */
+    public long getPaymentCount() {
+        return lines != null ? lines.getPaymentCount() : 0;
+    }
+
+    /**
+     * @return The number of the invalid lines skipped so far.
+     */
+    public long getErrorCount() {
+        return lines != null ? lines.getErrorCount() : 0;
+    }
+
+    /**
+     * @return The number of the decompressed bytes parsed so far.
+     */
+    public long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    /**
+     * Loads the compressed payment file. Invalid lines are skipped (see {@link RejectedLines}).
+     * Can be called by a fork-join worker, the pool is compensated while
+     * the worker waits for the decoder.
+     * @param file the input file
+     * @param from the position of the first gzip member
+     * @return The net amounts of the currencies in the file.
+     * @throws IOException
+     */
+    public PaymentTotals load(File file, long from) throws IOException {
+        PaymentTotals totals = new PaymentTotals();
+        load(file, from, totals);
+        return totals;
+    }
+
+    /**
+     * Loads the compressed payment file and passes the payments to the sink
+     * one by one, by the calling thread. Invalid lines are skipped (see {@link RejectedLines}).
+     * @param file the input file
+     * @param from the position of the first gzip member
+     * @param sink the receiver of the payments
+     * @throws IOException
+     */
+    public void load(File file, long from, PaymentSink sink) throws IOException {
+        BlockingQueue<Block> free = new ArrayBlockingQueue<>(BLOCKS);
+        for (int i = 0; i < BLOCKS; i++) {
+            free.add(new Block(new byte[BLOCK_SIZE]));
+        }
+        BlockingQueue<Block> decoded = new ArrayBlockingQueue<>(BLOCKS + 1);
+
+        Decoder decoder = new Decoder(file, from, free, decoded);
+        Thread thread = new Thread(decoder, "payment-decoder");
+        thread.setDaemon(true);
+        thread.start();
+
+        lines = new LineSplitter(sink, RejectedLines.source(file.getPath(), from));
+        try {
+            while (!cancelled) {
+                Block block = take(decoded);
+                if (block.length < 0) {
+                    if (block.error != null) {
+                        throw block.error;
+                    }
+                    break;
+                }
+
+                lines.feed(block.data, block.length);
+                decodedBytes += block.length;
+                free.add(block);
+            }
+
+            if (!cancelled) {
+                lines.finish();
+            }
+        } finally {
+            decoder.stop();
+        }
+    }
+
+    private static Block take(BlockingQueue<Block> queue) throws IOException {
+        QueueBlocker blocker = new QueueBlocker(queue);
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the decoder");
+        }
+        return blocker.block;
+    }
+
+    /**
+     * A decoded block, a negative length marks the end of the file.
+     */
+    private static class Block {
+
+        final byte[] data;
+        int length;
+        IOException error;
+
+        Block(byte[] data) {
+            this.data = data;
+        }
+
+        static Block end(IOException error) {
+            Block block = new Block(null);
+            block.length = -1;
+            block.error = error;
+            return block;
+        }
+    }
+
+    /**
+     * Waits for a block without starving the fork-join pool of the caller.
+     */
+    private static class QueueBlocker implements ForkJoinPool.ManagedBlocker {
+
+        private final BlockingQueue<Block> queue;
+
+        Block block;
+
+        QueueBlocker(BlockingQueue<Block> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (block == null) {
+                block = queue.take();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            if (block == null) {
+                block = queue.poll();
+            }
+            return block != null;
+        }
+    }
+
+    /**
+     * Inflates the file into the free blocks.
+     */
+    private static class Decoder implements Runnable {
+
+        private final File file;
+        private final long from;
+        private final BlockingQueue<Block> free;
+        private final BlockingQueue<Block> decoded;
+
+        private volatile boolean stopped = false;
+
+        Decoder(File file, long from, BlockingQueue<Block> free, BlockingQueue<Block> decoded) {
+            this.file = file;
+            this.from = from;
+            this.free = free;
+            this.decoded = decoded;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            IOException error = null;
+            try (FileInputStream input = new FileInputStream(file)) {
+                input.getChannel().position(from);
+                InputStream in = new GZIPInputStream(input, INPUT_BUFFER_SIZE);
+                boolean end = false;
+                while (!end) {
+                    Block block = nextFree();
+                    if (block == null) {
+                        return;
+                    }
+
+                    int length = 0;
+                    while (length < block.data.length) {
+                        int read = in.read(block.data, length, block.data.length - length);
+                        if (read < 0) {
+                            end = true;
+                            break;
+                        }
+                        length += read;
+                    }
+
+                    if (length > 0) {
+                        block.length = length;
+                        decoded.add(block);
+                    }
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+            decoded.add(Block.end(error));
+        }
+
+        /**
+         * Returns a free block or null if the decoder was stopped.
+         */
+        private Block nextFree() {
+            try {
+                while (!stopped) {
+                    Block block = free.poll(DECODER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (block != null) {
+                        return block;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds the statistics of one producer connection.
+ * @author Jaromir Mlejnek
+ */
+public final class ConnectionStatistics {
+
+    private final String remoteAddress;
+    private final long bytes;
+    private final long payments;
+    private final long rejected;
+    private final long nanos;
+
+    /**
+     * @param remoteAddress the address of the producer
+     * @param bytes the number of the received bytes
+     * @param payments the number of the accepted payments
+     * @param rejected the number of the rejected lines
+     * @param nanos the time since the connection was accepted in nanoseconds
+     */
+    public ConnectionStatistics(String remoteAddress, long bytes, long payments, long rejected, long nanos) {
+        this.remoteAddress = remoteAddress;
+        this.bytes = bytes;
+        this.payments = payments;
+        this.rejected = rejected;
+        this.nanos = nanos;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getPayments() {
+        return payments;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return The average number of the accepted payments per second.
+     */
+    public double getPaymentRate() {
+        return nanos > 0 ? payments * (double) TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d bytes, %d payments, %d rejected lines in %d ms (%.0f payments/s)",
+                remoteAddress, bytes, payments, rejected, TimeUnit.NANOSECONDS.toMillis(nanos), getPaymentRate());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.QuantileSketch;
+
+/**
+ * The CSV report without a header, one row per line of the report:
+ * time (milliseconds since the epoch), currency, amount, base currency,
+ * converted amount, the net amounts of the windows (1m, 1h, 1d) and
+ * the statistics (n, min, max, mean, p50, p99, p99.9). The values which are
+ * not reported are empty. The grand total is the row "time,TOTAL,,base,total"
+ * padded to the same number of columns.
+ * @author Jaromir Mlejnek
+ */
+final class CsvReportFormat extends ReportFormat {
+
+    private static final int STATISTICS_COLUMNS = 7;
+
+    /**
+     * The number of the window columns of the last line.
+     */
+    private int windows;
+
+    @Override
+    void writeLine(ReportBuffer out, long time, Line line) {
+        out.writeLong(time);
+        out.write(',');
+        out.writeAscii(line.currency);
+        out.write(',');
+        out.writeAmount(line.amount, line.scale);
+        out.write(',');
+        if (line.base != null) {
+            out.writeAscii(line.base);
+            out.write(',');
+            out.writeAmount(line.converted, line.baseScale);
+        } else {
+            out.write(',');
+        }
+        for (int w = 0; w < line.windows; w++) {
+            out.write(',');
+            out.writeAmount(line.windowTotals[w], line.scale);
+        }
+        windows = line.windows;
+
+        QuantileSketch.Snapshot statistics = line.statistics;
+        if (statistics != null) {
+            out.write(',');
+            out.writeLong(statistics.getCount());
+            writeAmount(out, statistics.getMin(), line.scale);
+            writeAmount(out, statistics.getMax(), line.scale);
+            writeAmount(out, Math.round(statistics.getMean()), line.scale);
+            writeAmount(out, statistics.getQuantile(0.5), line.scale);
+            writeAmount(out, statistics.getQuantile(0.99), line.scale);
+            writeAmount(out, statistics.getQuantile(0.999), line.scale);
+        } else {
+            pad(out, STATISTICS_COLUMNS);
+        }
+        out.write('\n');
+    }
+
+    @Override
+    void writeTotal(ReportBuffer out, long time, String base, long total, int scale, String[] unconverted, int count) {
+        out.writeLong(time);
+        out.writeAscii(",TOTAL,,");
+        out.writeAscii(base);
+        out.write(',');
+        out.writeAmount(total, scale);
+        pad(out, windows + STATISTICS_COLUMNS);
+        out.write('\n');
+    }
+
+    private static void writeAmount(ReportBuffer out, long amount, int scale) {
+        out.write(',');
+        out.writeAmount(amount, scale);
+    }
+
+    private static void pad(ReportBuffer out, int columns) {
+        for (int i = 0; i < columns; i++) {
+            out.write(',');
+        }
+    }
+}
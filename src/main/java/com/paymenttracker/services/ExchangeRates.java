@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class holds the current exchange rates loaded from a rate file
+ * (see {@link RateTable}). A daemon thread watches the file and replaces
+ * the table when the content of the file changes - the new table is built
+ * aside and published by one volatile write, so the readers never lock
+ * and always see a complete table. A file which cannot be read or parsed
+ * is reported and the previous table is kept.
+ * @author Jaromir Mlejnek
+ */
+public final class ExchangeRates implements Closeable {
+
+    private static final Logger log = Logger.getLogger(ExchangeRates.class.getName());
+
+    /**
+     * The maximal time between two checks of the rate file.
+     */
+    public static final long POLL_MILLIS = 5000;
+
+    private final File file;
+
+    private volatile RateTable table;
+
+    /**
+     * The last content of the file, the table is rebuilt only when it differs.
+     */
+    private byte[] content;
+
+    /**
+     * The last reported problem, so a broken file is not reported on every check.
+     */
+    private String problem;
+
+    private FileChangeWatcher watcher;
+
+    private Thread reloader;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Loads the rate file.
+     * @param file the rate file
+     * @throws IOException if the file cannot be read or it is not a valid rate table
+     */
+    public ExchangeRates(File file) throws IOException {
+        this.file = file;
+        this.content = Files.readAllBytes(file.toPath());
+        this.table = RateTable.parse(content, file.getPath());
+    }
+
+    /**
+     * @return The current rate table.
+     */
+    public RateTable getTable() {
+        return table;
+    }
+
+    /**
+     * Starts watching the rate file.
+     */
+    public synchronized void start() {
+        if (reloader != null || closed) {
+            return;
+        }
+
+        watcher = new FileChangeWatcher(file.toPath(), POLL_MILLIS);
+        reloader = new Thread("exchange-rates") {
+            @Override
+            public void run() {
+                while (!closed) {
+                    watcher.await();
+                    if (!closed) {
+                        reload();
+                    }
+                }
+            }
+        };
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    /**
+     * Reads the rate file again and replaces the table if the content has changed.
+     * @return True if the table has been replaced.
+     */
+    public synchronized boolean reload() {
+        byte[] current;
+        try {
+            current = Files.readAllBytes(file.toPath());
+        } catch (IOException ex) {
+            report("Rate file " + file + " cannot be read: " + ex);
+            return false;
+        }
+        if (Arrays.equals(current, content)) {
+            return false;
+        }
+
+        content = current;
+        try {
+            table = RateTable.parse(current, file.getPath());
+        } catch (IOException ex) {
+            report(ex.getMessage());
+            return false;
+        }
+        problem = null;
+        log.log(Level.INFO, "Exchange rates reloaded from {0}", file);
+        return true;
+    }
+
+    private void report(String message) {
+        if (!message.equals(problem)) {
+            problem = message;
+            log.log(Level.WARNING, "{0}, the previous rates are kept", message);
+        }
+    }
+
+    /**
+     * Stops watching the rate file, the current table is kept.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = reloader;
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class waits for changes of a file. It uses a {@link WatchService}
+ * registered on the directory of the file; the waiting is also limited
+ * by a poll interval, so changes which are not reported by the file system
+ * (e.g. network file systems) are noticed too.
+ * @author Jaromir Mlejnek
+ */
+final class FileChangeWatcher implements Closeable {
+
+    private static final Logger log = Logger.getLogger(FileChangeWatcher.class.getName());
+
+    private final Path fileName;
+    private final long pollMillis;
+    private final WatchService watchService;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param file the watched file
+     * @param pollMillis the maximal time between two checks of the file
+     */
+    FileChangeWatcher(Path file, long pollMillis) {
+        Path absolute = file.toAbsolutePath();
+        this.fileName = absolute.getFileName();
+        this.pollMillis = pollMillis;
+        this.watchService = register(absolute.getParent());
+    }
+
+    /**
+     * Waits until the file may have changed - it was created, modified or deleted,
+     * the poll interval elapsed or the watcher was closed.
+     */
+    void await() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            if (watchService == null) {
+                Thread.sleep(pollMillis);
+                return;
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollMillis);
+            long remaining = pollMillis;
+            while (remaining > 0) {
+                WatchKey key = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    return;
+                }
+
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    // An overflow may hide an event of the file
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    return;
+                }
+                remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException ex) {
+            // Closed while waiting
+        }
+    }
+
+    /**
+     * Closes the watcher, a waiting thread returns immediately.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, ex.getMessage());
+            }
+        }
+    }
+
+    private static WatchService register(Path directory) {
+        WatchService service = null;
+        try {
+            service = directory.getFileSystem().newWatchService();
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            return service;
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.log(Level.FINE, "Directory {0} cannot be watched, polling it: {1}",
+                    new Object[] { directory, ex.getMessage() });
+            if (service != null) {
+                try {
+                    service.close();
+                } catch (IOException closeEx) {
+                    // Nothing to do
+                }
+            }
+            return null;
+        }
+    }
+}
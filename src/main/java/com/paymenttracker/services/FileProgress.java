@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an immutable record of the progress of a payment file reader -
+ * the number of bytes consumed from the file and the net amounts of the payments
+ * read from them. The identity of the file (size, modification time and a hash
+ * of the consumed prefix) tells whether the reading can be resumed.
+ * @author Jaromir Mlejnek
+ */
+public final class FileProgress {
+
+    /**
+     * The number of bytes hashed at the beginning and at the end of the consumed prefix.
+     */
+    private static final int HASHED_BYTES = 64 << 10;
+
+    private final String path;
+    private final long offset;
+    private final long size;
+    private final long lastModified;
+    private final long hash;
+    private final int[] currencies;
+    private final long[] totals;
+
+    FileProgress(String path, long offset, long size, long lastModified, long hash, int[] currencies, long[] totals) {
+        this.path = path;
+        this.offset = offset;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+        this.currencies = currencies;
+        this.totals = totals;
+    }
+
+    /**
+     * Creates a progress record without the file identity.
+     * @param path the absolute path of the file
+     * @param offset the number of consumed bytes
+     * @param consumed the net amounts of the consumed payments
+     * @return The progress record.
+     */
+    static FileProgress of(String path, long offset, PaymentTotals consumed) {
+        int size = 0;
+        for (int currency = consumed.nextRegistered(0); currency >= 0; currency = consumed.nextRegistered(currency + 1)) {
+            size++;
+        }
+
+        int[] currencies = new int[size];
+        long[] totals = new long[size];
+        int i = 0;
+        for (int currency = consumed.nextRegistered(0); currency >= 0; currency = consumed.nextRegistered(currency + 1)) {
+            currencies[i] = currency;
+            totals[i++] = consumed.getTotal(currency);
+        }
+        return new FileProgress(path, offset, 0, 0, 0, currencies, totals);
+    }
+
+    /**
+     * Returns a copy of the record with the current identity of the file.
+     * @return The identified progress record.
+     * @throws IOException
+     */
+    public FileProgress identify() throws IOException {
+        File file = new File(path);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new FileProgress(path, offset, channel.size(), file.lastModified(), hash(channel, offset),
+                    currencies, totals);
+        }
+    }
+
+    /**
+     * Checks whether the file still starts with the consumed content,
+     * so the reading can be resumed at the offset.
+     * @return True if the reading can be resumed.
+     */
+    public boolean matches() {
+        File file = new File(path);
+        if (!file.isFile() || file.length() < offset) {
+            return false;
+        }
+        if (file.length() == size && file.lastModified() == lastModified && offset == size) {
+            // Nothing has changed since the checkpoint, avoid reading the file
+            return true;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return hash(channel, offset) == hash;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Passes the net amounts to the sink.
+     * @param target the receiver of the net amounts
+     */
+    public void addTo(PaymentSink target) {
+        for (int i = 0; i < currencies.length; i++) {
+            target.accept(currencies[i], totals[i]);
+        }
+    }
+
+    /**
+     * Passes the negated net amounts to the sink, e.g. to remove the payments
+     * of a changed file from the register.
+     * @param target the receiver of the net amounts
+     */
+    public void subtractFrom(PaymentSink target) {
+        for (int i = 0; i < currencies.length; i++) {
+            target.accept(currencies[i], -totals[i]);
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return The number of consumed bytes.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The number of currencies of the consumed payments.
+     */
+    public int getCurrencyCount() {
+        return currencies.length;
+    }
+
+    public int getCurrencyAt(int index) {
+        return currencies[index];
+    }
+
+    public long getTotalAt(int index) {
+        return totals[index];
+    }
+
+    /**
+     * Hashes the first and the last bytes of the file prefix.
+     */
+    private static long hash(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(HASHED_BYTES);
+
+        update(crc, channel, buffer, 0, Math.min(length, HASHED_BYTES));
+        if (length > HASHED_BYTES) {
+            long from = Math.max(HASHED_BYTES, length - HASHED_BYTES);
+            update(crc, channel, buffer, from, length - from);
+        }
+        return crc.getValue() ^ (length << 32);
+    }
+
+    private static void update(CRC32 crc, FileChannel channel, ByteBuffer buffer, long from, long length) throws IOException {
+        buffer.clear();
+        buffer.limit((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        crc.update(buffer.array(), 0, buffer.limit());
+    }
+}
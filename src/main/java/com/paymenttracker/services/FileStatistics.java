@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds the statistics of one loaded input file.
+ * @author Jaromir Mlejnek
+ */
+public final class FileStatistics {
+
+    private final String path;
+    private final long bytes;
+    private final long payments;
+    private final long errors;
+    private final long nanos;
+
+    /**
+     * @param path the path of the file
+     * @param bytes the number of the loaded bytes, decompressed for a compressed file
+     * @param payments the number of the loaded payments
+     * @param errors the number of the invalid lines
+     * @param nanos the duration of the load in nanoseconds
+     */
+    public FileStatistics(String path, long bytes, long payments, long errors, long nanos) {
+        this.path = path;
+        this.bytes = bytes;
+        this.payments = payments;
+        this.errors = errors;
+        this.nanos = nanos;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getPayments() {
+        return payments;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return The throughput of the load in megabytes per second.
+     */
+    public double getThroughput() {
+        return throughput(bytes, nanos);
+    }
+
+    static double throughput(long bytes, long nanos) {
+        return nanos > 0 ? bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos / (1 << 20) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d bytes, %d payments, %d invalid lines in %d ms (%.1f MB/s)",
+                path, bytes, payments, errors, TimeUnit.NANOSECONDS.toMillis(nanos), getThroughput());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the ingestion counters (see {@link TrackerMetrics}).
+ * @author Jaromir Mlejnek
+ */
+public interface IngestMetricsMXBean {
+
+    /**
+     * @return The number of the non-empty lines read by each kind of source.
+     */
+    Map<String, Long> getLinesRead();
+
+    /**
+     * @return The number of the successfully parsed lines.
+     */
+    long getParsed();
+
+    /**
+     * @return The number of the rejected lines by the reason.
+     */
+    Map<String, Long> getRejected();
+
+    /**
+     * @return The number of the registered payments by the currency.
+     */
+    Map<String, Long> getRegistrations();
+
+    /**
+     * @return The number of the account and currency pairs with a balance.
+     */
+    long getAccountBalances();
+
+    /**
+     * @return The number of the bytes of the account balances allocated off the heap.
+     */
+    long getAccountBalancesOffHeapBytes();
+}
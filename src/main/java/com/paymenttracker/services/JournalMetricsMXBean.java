@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+/**
+ * The JMX view of the group commits of the journal (see {@link PaymentJournal}).
+ * @author Jaromir Mlejnek
+ */
+public interface JournalMetricsMXBean {
+
+    /**
+     * @return The number of durable payments.
+     */
+    long getPayments();
+
+    /**
+     * @return The number of group commits (forces of the file).
+     */
+    long getCommits();
+
+    double getAverageBatchSize();
+
+    int getMaxBatchSize();
+
+    int getLastBatchSize();
+
+    /**
+     * @return The average time of a commit (write and force) in microseconds.
+     */
+    double getAverageCommitMicros();
+
+    double getMaxCommitMicros();
+
+    double getLastCommitMicros();
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.QuantileSketch;
+
+/**
+ * The JSON lines report, one object per line of the report, e.g.
+ * {"time":1438387200000,"currency":"EUR","amount":1000,"converted":{"currency":"USD","amount":1084.20},
+ * "windows":{"1m":10,"1h":500,"1d":1000}} and
+ * {"time":1438387200000,"total":{"currency":"USD","amount":1084.20,"without":["GBP"]}}.
+ * The amounts are decimal numbers, the optional statistics are the object
+ * "statistics" with the members n, min, max, mean, p50, p99 and p99.9.
+ * The currency codes and the window names need no escaping.
+ * @author Jaromir Mlejnek
+ */
+final class JsonReportFormat extends ReportFormat {
+
+    @Override
+    void writeLine(ReportBuffer out, long time, Line line) {
+        out.writeAscii("{\"time\":");
+        out.writeLong(time);
+        out.writeAscii(",\"currency\":\"");
+        out.writeAscii(line.currency);
+        out.writeAscii("\",\"amount\":");
+        out.writeAmount(line.amount, line.scale);
+        if (line.base != null) {
+            out.writeAscii(",\"converted\":{\"currency\":\"");
+            out.writeAscii(line.base);
+            out.writeAscii("\",\"amount\":");
+            out.writeAmount(line.converted, line.baseScale);
+            out.write('}');
+        }
+        if (line.windows > 0) {
+            out.writeAscii(",\"windows\":{");
+            for (int w = 0; w < line.windows; w++) {
+                if (w > 0) {
+                    out.write(',');
+                }
+                out.write('"');
+                out.writeAscii(line.windowNames[w]);
+                out.writeAscii("\":");
+                out.writeAmount(line.windowTotals[w], line.scale);
+            }
+            out.write('}');
+        }
+
+        QuantileSketch.Snapshot statistics = line.statistics;
+        if (statistics != null) {
+            out.writeAscii(",\"statistics\":{\"n\":");
+            out.writeLong(statistics.getCount());
+            writeMember(out, "min", statistics.getMin(), line.scale);
+            writeMember(out, "max", statistics.getMax(), line.scale);
+            writeMember(out, "mean", Math.round(statistics.getMean()), line.scale);
+            writeMember(out, "p50", statistics.getQuantile(0.5), line.scale);
+            writeMember(out, "p99", statistics.getQuantile(0.99), line.scale);
+            writeMember(out, "p99.9", statistics.getQuantile(0.999), line.scale);
+            out.write('}');
+        }
+        out.writeAscii("}\n");
+    }
+
+    @Override
+    void writeTotal(ReportBuffer out, long time, String base, long total, int scale, String[] unconverted, int count) {
+        out.writeAscii("{\"time\":");
+        out.writeLong(time);
+        out.writeAscii(",\"total\":{\"currency\":\"");
+        out.writeAscii(base);
+        out.writeAscii("\",\"amount\":");
+        out.writeAmount(total, scale);
+        out.writeAscii(",\"without\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write('"');
+            out.writeAscii(unconverted[i]);
+            out.write('"');
+        }
+        out.writeAscii("]}}\n");
+    }
+
+    private static void writeMember(ReportBuffer out, String name, long amount, int scale) {
+        out.writeAscii(",\"");
+        out.writeAscii(name);
+        out.writeAscii("\":");
+        out.writeAmount(amount, scale);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+/**
+ * The JMX view of one latency histogram (see {@link TrackerMetrics}).
+ * All the latencies are in nanoseconds. The samples of a block latency
+ * histogram are the mean latencies of the lines of the blocks, its count
+ * is the number of the blocks.
+ * @author Jaromir Mlejnek
+ */
+public interface LatencyMetricsMXBean {
+
+    long getCount();
+
+    double getMeanNanos();
+
+    long getMaxNanos();
+
+    long getP50Nanos();
+
+    long getP99Nanos();
+
+    long getP999Nanos();
+}
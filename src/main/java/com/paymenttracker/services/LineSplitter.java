@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentSink;
+import java.util.Arrays;
+
+/**
+ * This class parses a stream of payment records which comes in blocks.
+ * The complete lines of a block are parsed in place, the incomplete
+ * last line is carried to the next block. Invalid lines are counted and
+ * recorded (see {@link RejectedLines}).
+ * @author Jaromir Mlejnek
+ */
+final class LineSplitter {
+
+    private final PaymentSink sink;
+
+    private final RejectedLines.Recorder recorder;
+
+    private long payments = 0;
+
+    private long errors = 0;
+
+    /**
+     * The number of the last terminated line.
+     */
+    private long line = 0;
+
+    /**
+     * Whether the last line was terminated by '\r', so that "\r\n" is counted as one line end.
+     */
+    private boolean afterCr = false;
+
+    /**
+     * The incomplete line at the end of the last block.
+     */
+    private byte[] carry = new byte[256];
+
+    private int carryLength = 0;
+
+    /**
+     * @param sink the receiver of the parsed payments
+     * @param source the name of the stream in the records of the rejected lines
+     */
+    LineSplitter(PaymentSink sink, String source) {
+        this.sink = sink;
+        this.recorder = RejectedLines.getInstance().recorder(source);
+    }
+
+    long getPaymentCount() {
+        return payments;
+    }
+
+    long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * Parses the complete lines of the block.
+     * @param data the block
+     * @param length the number of bytes in the block
+     */
+    void feed(byte[] data, int length) {
+        int i = 0;
+        if (carryLength > 0) {
+            while (i < length && !ParallelFileLoader.isLineEnd(data[i])) {
+                i++;
+            }
+            appendCarry(data, 0, i);
+            if (i == length) {
+                return;
+            }
+            parseLine(carry, 0, carryLength, data[i]);
+            carryLength = 0;
+            i++;
+        }
+
+        int lineStart = i;
+        for (; i < length; i++) {
+            if (ParallelFileLoader.isLineEnd(data[i])) {
+                parseLine(data, lineStart, i, data[i]);
+                lineStart = i + 1;
+            }
+        }
+        appendCarry(data, lineStart, length);
+        recorder.flush();
+    }
+
+    /**
+     * Parses the last line without a line terminator, if any.
+     */
+    void finish() {
+        if (carryLength > 0) {
+            parseLine(carry, 0, carryLength, (byte) 0);
+            carryLength = 0;
+        }
+        recorder.flush();
+    }
+
+    private void appendCarry(byte[] data, int from, int to) {
+        int length = to - from;
+        if (carryLength + length > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+        }
+        System.arraycopy(data, from, carry, carryLength, length);
+        carryLength += length;
+    }
+
+    private void parseLine(byte[] data, int from, int to, byte terminator) {
+        if (terminator != '\n' || from != to || !afterCr) {
+            line++;
+        }
+        afterCr = terminator == '\r';
+
+        int result = recorder.parse(data, from, to, line, sink);
+        if (result == PaymentParser.PARSED) {
+            payments++;
+        } else if (result == PaymentParser.REJECTED) {
+            errors++;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.utils.PaymentParser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class loads a payment file in parallel. The file is memory-mapped,
+ * cut into newline-aligned chunks and the chunks are parsed on a fork-join
+ * pool. Each task collects its own partial totals, the partial totals are
+ * merged in the file order while the tasks are joined. The pool can be shared
+ * by several loaders.
+ * @author Jaromir Mlejnek
+ */
+public class ParallelFileLoader implements Cancellable {
+
+    /**
+     * The maximal size of one chunk.
+     */
+    private static final long MAX_CHUNK_SIZE = 64L << 20;
+
+    /**
+     * The minimal size of one chunk.
+     */
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+
+    /**
+     * Number of chunks per worker thread, so that the work can be balanced.
+     */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    /**
+     * The size of the buffer used for looking up the chunk boundaries.
+     */
+    private static final int PROBE_SIZE = 4096;
+
+    private final ForkJoinPool pool;
+
+    private final AtomicLong payments = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private volatile boolean cancelled = false;
+
+    public ParallelFileLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Cancels a running load - the chunks which are not parsed yet are skipped.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return The number of the payments loaded so far.
+     */
+    public long getPaymentCount() {
+        return payments.get();
+    }
+
+    /**
+     * @return The number of the invalid lines skipped so far.
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * Loads the payment file. Invalid lines are skipped (see {@link RejectedLines}).
+     * @param file the input file
+     * @return The net amounts of the currencies in the file.
+     * @throws IOException
+     */
+    public PaymentTotals load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return load(channel, 0, channel.size(), file.getPath());
+        }
+    }
+
+    /**
+     * Loads a range of the payment file. Invalid lines are skipped (see {@link RejectedLines}).
+     * @param channel the channel of the input file
+     * @param from the position of the first line
+     * @param to the end of the range
+     * @param path the path of the input file
+     * @return The net amounts of the currencies in the range.
+     * @throws IOException
+     */
+    public PaymentTotals load(FileChannel channel, long from, long to, String path) throws IOException {
+        long[] bounds = split(channel, from, to);
+        if (bounds.length == 1) {
+            return new PaymentTotals();
+        }
+
+        Chunks chunks = new Chunks(channel, bounds, RejectedLines.source(path, from));
+        try {
+            return pool.invoke(new ChunkTask(chunks, 0, bounds.length - 1));
+        } catch (ChunkReadException ex) {
+            // The pool may rethrow a copy of the exception which wraps the original one
+            Throwable cause = ex;
+            while (!(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw (IOException) cause;
+        }
+    }
+
+    /**
+     * Cuts the range into chunks which start at the beginning of a line.
+     * @return The chunk boundaries - the first one is the start, the last one is the end of the range.
+     */
+    private long[] split(FileChannel channel, long from, long size) throws IOException {
+        long chunkSize = (size - from) / ((long) pool.getParallelism() * CHUNKS_PER_WORKER);
+        chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+
+        List<Long> bounds = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+        long position = from;
+
+        bounds.add(position);
+        while (position < size) {
+            position = position + chunkSize < size ? nextLine(channel, position + chunkSize, size, probe) : size;
+            bounds.add(position);
+        }
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the position of the line following the given position.
+     */
+    private static long nextLine(FileChannel channel, long from, long size, ByteBuffer probe) throws IOException {
+        long position = from;
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = probe.get(i);
+                if (isLineEnd(b)) {
+                    // Keep "\r\n" in one chunk, so that the chunks count their lines alike
+                    long next = position + i + 1;
+                    return b == '\r' && next < size && byteAt(channel, next, probe) == '\n' ? next + 1 : next;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static byte byteAt(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+        probe.clear().limit(1);
+        return channel.read(probe, position) == 1 ? probe.get(0) : 0;
+    }
+
+    /**
+     * Line terminators - the same ones like {@link java.io.BufferedReader#readLine()} uses.
+     * Empty lines are skipped by the parser, "\r\n" is counted as one line end
+     * by the line numbers of the rejected lines.
+     */
+    static boolean isLineEnd(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * The chunks of one load and the numbers of their lines. The line numbers
+     * are needed only for the rejected lines, so a chunk counts its lines
+     * while it's parsed and the lines of the preceding chunks are counted
+     * when the chunk rejects its first line.
+     */
+    private static class Chunks {
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final String source;
+
+        /**
+         * The number of the lines of each chunk, -1 if not known yet.
+         */
+        private final AtomicLongArray lines;
+
+        Chunks(FileChannel channel, long[] bounds, String source) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.source = source;
+            this.lines = new AtomicLongArray(bounds.length - 1);
+            for (int i = 0; i < lines.length(); i++) {
+                lines.set(i, -1);
+            }
+        }
+
+        /**
+         * @return The number of the lines preceding the chunk.
+         */
+        long linesBefore(int chunk) throws IOException {
+            long result = 0;
+            for (int i = 0; i < chunk; i++) {
+                long count = lines.get(i);
+                if (count < 0) {
+                    count = countLines(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]));
+                    lines.set(i, count);
+                }
+                result += count;
+            }
+            return result;
+        }
+
+        /**
+         * Counts the lines like the parser does - "\r\n" is one line end,
+         * "\r" alone is a line end as well.
+         */
+        static long countLines(ByteBuffer buffer) {
+            long count = 0;
+            int limit = buffer.limit();
+            for (int i = 0; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n' || (b == '\r' && (i + 1 == limit || buffer.get(i + 1) != '\n'))) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Parses a range of chunks.
+     */
+    private class ChunkTask extends RecursiveTask<PaymentTotals> {
+
+        private final Chunks chunks;
+        private final int from;
+        private final int to;
+
+        ChunkTask(Chunks chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected PaymentTotals compute() {
+            if (to - from == 1) {
+                if (cancelled) {
+                    return new PaymentTotals();
+                }
+                try {
+                    return parseChunk(from);
+                } catch (IOException ex) {
+                    throw new ChunkReadException(ex);
+                }
+            }
+
+            int middle = (from + to) >>> 1;
+            ChunkTask head = new ChunkTask(chunks, from, middle);
+            ChunkTask tail = new ChunkTask(chunks, middle, to);
+            head.fork();
+
+            PaymentTotals tailTotals = tail.compute();
+            PaymentTotals totals = head.join();
+            totals.merge(tailTotals);
+            return totals;
+        }
+
+        private PaymentTotals parseChunk(final int chunk) throws IOException {
+            long start = chunks.bounds[chunk];
+            MappedByteBuffer buffer = chunks.channel.map(FileChannel.MapMode.READ_ONLY, start, chunks.bounds[chunk + 1] - start);
+            RejectedLines.Recorder recorder = RejectedLines.getInstance().new Recorder(chunks.source, true) {
+                private long base = -1;
+
+                @Override
+                protected long lineBase() {
+                    if (base < 0) {
+                        try {
+                            base = chunks.linesBefore(chunk);
+                        } catch (IOException ex) {
+                            throw new ChunkReadException(ex);
+                        }
+                    }
+                    return base;
+                }
+            };
+            PaymentTotals totals = new PaymentTotals();
+            int limit = buffer.limit();
+            int lineStart = 0;
+            long line = 0;
+            long chunkPayments = 0;
+            long chunkErrors = 0;
+            byte previous = 0;
+
+            for (int i = 0; i <= limit; i++) {
+                byte b = i < limit ? buffer.get(i) : 0;
+                if (i == limit || isLineEnd(b)) {
+                    if (b != '\n' || previous != '\r') {
+                        // Not the second half of "\r\n"
+                        line++;
+                    }
+                    int result = recorder.parse(buffer, lineStart, i, line, totals);
+                    if (result == PaymentParser.PARSED) {
+                        chunkPayments++;
+                    } else if (result == PaymentParser.REJECTED) {
+                        chunkErrors++;
+                    }
+                    lineStart = i + 1;
+                }
+                previous = b;
+            }
+            recorder.flush();
+            chunks.lines.compareAndSet(chunk, -1, Chunks.countLines(buffer));
+
+            payments.addAndGet(chunkPayments);
+            errors.addAndGet(chunkErrors);
+            return totals;
+        }
+    }
+
+    /**
+     * Carries an I/O error of a chunk out of the fork-join pool.
+     */
+    private static class ChunkReadException extends RuntimeException {
+
+        ChunkReadException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
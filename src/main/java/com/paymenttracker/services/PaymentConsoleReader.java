@@ -18,8 +18,12 @@ package com.paymenttracker.services;
 
 import com.paymenttracker.model.CurrencyHolder;
 import com.paymenttracker.model.Payment;
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.AccountPaymentSink;
+import com.paymenttracker.utils.CurrencyCodes;
 import com.paymenttracker.utils.PaymentParserException;
 import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentSink;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,32 +33,61 @@ import java.util.logging.Logger;
 
 /**
  * This class implements a console-read functionality. It reads payment records
- * from the specified input stream and stores them.
+ * from the specified input stream and stores them. The reader is completed
+ * when the exit sequence is read (which requests the tracker shutdown) or
+ * at the end of the stream.
  * @author Jaromir Mlejnek
  */
-public class PaymentConsoleReader extends Thread {
+public class PaymentConsoleReader extends PaymentSource {
 
     private static final Logger log = Logger.getLogger(PaymentConsoleReader.class.getName());
         
     private final String exitSequence; 
     private final InputStream inputStream;
+    private final PaymentSink sink;
     private volatile boolean exited = false;
+    
+    /**
+     * True while the reader is blocked waiting for the next line.
+     */
+    private volatile boolean waiting = false;
 
     public PaymentConsoleReader(String exitSequence, InputStream inputStream) {
+        this(exitSequence, inputStream, CurrencyHolder.getInstance());
+    }        
+    
+    public PaymentConsoleReader(String exitSequence, InputStream inputStream, PaymentSink sink) {
+        super("payment-console-reader");
         this.exitSequence = exitSequence;        
         this.inputStream = inputStream;
+        this.sink = sink;
+        
+        // A blocking read of the input stream cannot be interrupted
+        setDaemon(true);
     }        
     
     @Override
-    public void run() {
+    protected void read() {
         BufferedReader br = new BufferedReader(new InputStreamReader(this.inputStream));
+        // The typed lines are reported to the user one by one
+        RejectedLines.Recorder rejected = RejectedLines.getInstance().new Recorder("console", false);
         Payment payment;
-        String line;
+        String line = null;
+        long lineNumber = 0;
         
         while (true) {
             try {
+                waiting = true;
                 line = br.readLine();
-                if (line != null && line.equalsIgnoreCase(this.exitSequence)) {
+                waiting = false;
+                
+                lineNumber++;
+                if (line == null || isStopRequested()) {
+                    
+                    // The end of the input or the tracker is shutting down - break
+                    break;
+                }
+                if (line.equalsIgnoreCase(this.exitSequence)) {
 
                     // The exit sequence was read - break
                     this.exited = true;                    
@@ -62,18 +95,54 @@ public class PaymentConsoleReader extends Thread {
                 }                
 
                 // Parse the line into a payment record
+                long start = System.nanoTime();
                 payment = PaymentParser.parse(line);
+                recordLines(payment != null ? 1 : 0, 0, System.nanoTime() - start);
 
                 // Register the payment record
-                CurrencyHolder.getInstance().registerPayment(payment);
-            } catch (IOException | PaymentParserException ex) {            
+                if (payment != null) {
+                    beginProgress();
+                    try {
+                        int currency = CurrencyCodes.pack(payment.getCurrencyCode());
+                        if (payment.getAccount() != null && sink instanceof AccountPaymentSink) {
+                            ((AccountPaymentSink) sink).accept(AccountCodes.pack(payment.getAccount()),
+                                    currency, payment.getAmount());
+                        } else {
+                            sink.accept(currency, payment.getAmount());
+                        }
+                    } finally {
+                        endProgress();
+                    }
+                }
+            } catch (PaymentParserException ex) {            
+                log.log(Level.WARNING, ex.getMessage());
+                rejected.reject(line, lineNumber, ex.getReason());
+                rejected.flush();
+                recordLines(0, 1, 0);
+            } catch (IOException ex) {            
                 log.log(Level.WARNING, ex.getMessage());
+                break;
             }
         }                
     }
 
+    /**
+     * Returns immediately when the reader is blocked waiting for the next line,
+     * such a reader checks the stop request before it registers anything.
+     */
+    @Override
+    public void awaitStop(long timeoutMillis) throws InterruptedException {
+        if (!waiting) {
+            super.awaitStop(timeoutMillis);
+        }
+    }
+
+    @Override
+    public boolean isShutdownRequested() {
+        return exited;
+    }
+
     public boolean isExited() {
         return exited;
     }
 }
-
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class converts text payment files (plain or gzip-compressed)
+ * to the binary payment format (see {@link BinaryPaymentWriter}).
+ * Invalid lines are not converted (see {@link RejectedLines}).
+ * @author Jaromir Mlejnek
+ */
+public final class PaymentFileConverter {
+
+    /**
+     * The size of the blocks read from a plain text file.
+     */
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private PaymentFileConverter() {
+    }
+
+    /**
+     * Converts the text payment file, the payments are written in the file order.
+     * @param input the text payment file
+     * @param writer the writer of the binary file
+     * @return The statistics of the converted file.
+     * @throws IOException if the file cannot be read or is binary already
+     */
+    public static FileStatistics convert(File input, BinaryPaymentWriter writer) throws IOException {
+        long start = System.nanoTime();
+        String path = input.getAbsolutePath();
+
+        if (BinaryFileLoader.isBinary(input)) {
+            throw new IOException("File '" + path + "' is a binary payment file already");
+        }
+
+        if (CompressedFileLoader.isCompressed(input)) {
+            CompressedFileLoader loader = new CompressedFileLoader();
+            loader.load(input, 0, writer);
+            return new FileStatistics(path, loader.getDecodedBytes(), loader.getPaymentCount(),
+                    loader.getErrorCount(), System.nanoTime() - start);
+        }
+
+        LineSplitter lines = new LineSplitter(writer, input.getPath());
+        byte[] block = new byte[BLOCK_SIZE];
+        long bytes = 0;
+        try (InputStream in = new FileInputStream(input)) {
+            int read;
+            while ((read = in.read(block)) >= 0) {
+                lines.feed(block, read);
+                bytes += read;
+            }
+        }
+        lines.finish();
+
+        return new FileStatistics(path, bytes, lines.getPaymentCount(), lines.getErrorCount(), System.nanoTime() - start);
+    }
+}
@@ -17,33 +17,189 @@
 package com.paymenttracker.services;
 
 import com.paymenttracker.model.CurrencyHolder;
-import com.paymenttracker.model.Payment;
-import com.paymenttracker.utils.PaymentParserException;
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.utils.AccountPaymentSink;
 import com.paymenttracker.utils.PaymentParser;
-import java.io.BufferedReader;
+import com.paymenttracker.utils.PaymentSink;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class implements a file-read functionality. It reads payment records
- * from the specified file and stores them.
+ * from the specified file and stores them. Large files are read in parallel
+ * by {@link ParallelFileLoader}, gzip-compressed files are read
+ * by {@link CompressedFileLoader} and binary files by {@link BinaryFileLoader}.
+ * <p>
+ * The reader keeps its progress - the number of consumed bytes and the net
+ * amounts of the payments read from them (see {@link FileProgress}), so
+ * the reading can be resumed from a checkpoint.
+ * <p>
+ * In the follow mode (like <code>tail -F</code>) the reader does not finish
+ * at the end of the file, it waits for appended lines and reads them as soon as
+ * they are complete. A truncated or replaced (rotated) file is read again
+ * from the beginning. Compressed and binary files are not followed.
  * @author Jaromir Mlejnek
  */
-public class PaymentFileReader extends Thread {
+public class PaymentFileReader extends PaymentSource {
 
     private static final Logger log = Logger.getLogger(PaymentFileReader.class.getName());
     
+    /**
+     * The minimal file size for which the parallel mode is used by default.
+     */
+    private static final long PARALLEL_THRESHOLD = 32L << 20;
+    
+    /**
+     * The size of the blocks read by the sequential mode.
+     */
+    private static final int BLOCK_SIZE = 64 << 10;
+    
+    /**
+     * The maximal time between two checks of a followed file,
+     * if its changes are not reported by the file system.
+     */
+    private static final long FOLLOW_POLL_MILLIS = 100;
+    
     private final String pathToFile;
     
+    /**
+     * True for the parallel mode, false for the sequential one,
+     * null to decide according to the file size.
+     */
+    private final Boolean parallel;
+    
+    /**
+     * The receiver of the read payments.
+     */
+    private final PaymentSink sink;
+    
+    /**
+     * The net amounts of the payments passed to the sink.
+     */
+    private PaymentTotals consumed = new PaymentTotals(false);
+    
+    /**
+     * The number of bytes of the file whose payments were passed to the sink.
+     */
+    private volatile long offset;
+    
+    /**
+     * The loader of the parallel or the compressed file, while it's running.
+     */
+    private volatile Cancellable loader;
+    
+    /**
+     * True if the reader waits for the lines appended to the file.
+     */
+    private volatile boolean follow = false;
+    
+    /**
+     * The watcher of the followed file, while it's running.
+     */
+    private volatile FileChangeWatcher watcher;
+    
+    /**
+     * The numbers of the parsed and the rejected lines of the current block.
+     */
+    private long blockParsed;
+    private long blockRejected;
+    
+    /**
+     * The recorder of the rejected lines, the number of the last line
+     * and whether it was terminated by '\r' (the sequential reading only).
+     */
+    private RejectedLines.Recorder recorder;
+    private long line;
+    private boolean afterCr;
+    
     public PaymentFileReader(String pathToFile) {        
+        this(pathToFile, CurrencyHolder.getInstance());
+    }
+    
+    public PaymentFileReader(String pathToFile, PaymentSink sink) {        
+        this(pathToFile, null, sink);
+    }
+    
+    public PaymentFileReader(String pathToFile, boolean parallel, PaymentSink sink) {        
+        this(pathToFile, Boolean.valueOf(parallel), sink);
+    }
+    
+    private PaymentFileReader(String pathToFile, Boolean parallel, PaymentSink sink) {        
+        super("payment-file-reader");
         this.pathToFile = pathToFile;
+        this.parallel = parallel;
+        this.sink = sink;
+    }
+
+    /**
+     * @return The absolute path of the input file.
+     */
+    public String getPath() {
+        return new File(pathToFile).getAbsolutePath();
+    }
+    
+    /**
+     * Switches the follow mode on or off. Must be called before the reader is started.
+     * @param follow true if the reader should wait for the lines appended to the file
+     */
+    public void setFollow(boolean follow) {
+        this.follow = follow;
+    }
+    
+    /**
+     * Continues the reading from the recorded progress. Must be called
+     * before the reader is started, the payments of the consumed part
+     * of the file are expected to be registered already.
+     * @param progress the progress of the previous reader of the same file
+     */
+    public void resumeFrom(FileProgress progress) {
+        offset = progress.getOffset();
+        progress.addTo(consumed);
+    }
+    
+    /**
+     * Returns the current progress of the reader. The reader must be paused
+     * (see {@link #pauseProgress()}) or not running, so the progress is consistent.
+     * @return The progress without the file identity.
+     */
+    public FileProgress getProgress() {
+        return FileProgress.of(getPath(), offset, consumed);
     }
 
     @Override
-    public void run() {
+    public List<FileProgress> getFileProgress() {
+        return Collections.singletonList(getProgress());
+    }
+
+    @Override
+    public void requestStop() {
+        super.requestStop();
+        
+        Cancellable current = loader;
+        if (current != null) {
+            current.cancel();
+        }
+        
+        FileChangeWatcher currentWatcher = watcher;
+        if (currentWatcher != null) {
+            currentWatcher.close();
+        }
+    }
+
+    @Override
+    protected void read() {
         // Open the file
         File file = new File(pathToFile);
         
@@ -51,11 +207,38 @@ public class PaymentFileReader extends Thread {
             // Check the file for existence
             checkFile(file);
 
-            // Read the file
-            readFile(file);
+            if (CompressedFileLoader.isCompressed(file)) {
+                readFileCompressed(file);
+                return;
+            }
+            if (BinaryFileLoader.isBinary(file)) {
+                readFileBinary(file);
+                return;
+            }
+
+            if (follow) {
+                watcher = new FileChangeWatcher(file.toPath(), FOLLOW_POLL_MILLIS);
+                if (isStopRequested()) {
+                    watcher.close();
+                }
+            }
+
+            // Read the file, the appended lines are followed sequentially
+            boolean parallelRead = isParallel(file);
+            if (parallelRead) {
+                readFileParallel(file);
+            }
+            if (!parallelRead || follow) {
+                readFile(file);
+            }
             
-        } catch (IllegalArgumentException ex) {
+        } catch (IllegalArgumentException | IOException ex) {
             log.log(Level.WARNING, ex.getMessage());
+        } finally {
+            if (watcher != null) {
+                watcher.close();
+                watcher = null;
+            }
         }
     }        
     
@@ -73,34 +256,329 @@ public class PaymentFileReader extends Thread {
     }
     
     /**
-     * Reads the input file line by line, parses the lines, creates a payment records
-     * and registers them into a payment register.
+     * Decides whether the file should be read in parallel.
      * @param file the input file
      */
-    private void readFile(File file) {
-        BufferedReader br;
-        String line;
-        Payment payment;                
+    private boolean isParallel(File file) {
+        if (parallel != null) {
+            return parallel;
+        }
+        return file.length() - offset >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1;
+    }
+    
+    /**
+     * Reads the input file in parallel and passes the net amounts
+     * to the sink at once, when the whole file is parsed.
+     * @param file the input file
+     */
+    private void readFileParallel(File file) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool();
+        ParallelFileLoader parallelLoader = new ParallelFileLoader(pool);
+        loader = parallelLoader;
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = channel.size();
+            PaymentTotals totals = parallelLoader.load(channel, offset, end, pathToFile);
+            if (isStopRequested()) {
+                return;
+            }
+            passAll(totals, end);
+            recordLines(parallelLoader.getPaymentCount(), parallelLoader.getErrorCount(), System.nanoTime() - start);
+            
+        } catch (IOException ex) {
+            log.log(Level.WARNING, ex.getMessage());
+        } finally {
+            loader = null;
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Reads the compressed input file from the progress to its end and passes
+     * the net amounts to the sink at once. The progress is always at the end
+     * of a gzip member.
+     * @param file the input file
+     */
+    private void readFileCompressed(File file) {
+        if (offset == file.length()) {
+            return;
+        }
         
+        long start = System.nanoTime();
+        CompressedFileLoader compressedLoader = new CompressedFileLoader();
+        loader = compressedLoader;
+        try {
+            long end = file.length();
+            PaymentTotals totals = compressedLoader.load(file, offset);
+            if (isStopRequested()) {
+                return;
+            }
+            passAll(totals, end);
+            recordLines(compressedLoader.getPaymentCount(), compressedLoader.getErrorCount(), System.nanoTime() - start);
+            
+        } catch (IOException ex) {
+            log.log(Level.WARNING, ex.getMessage());
+        } finally {
+            loader = null;
+        }
+    }
+    
+    /**
+     * Reads the binary input file from the progress to its end and passes
+     * the net amounts to the sink at once. The progress is always at the end
+     * of a block.
+     * @param file the input file
+     */
+    private void readFileBinary(File file) {
+        long start = System.nanoTime();
+        BinaryFileLoader binaryLoader = new BinaryFileLoader();
+        loader = binaryLoader;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = channel.size();
+            if (offset == end) {
+                return;
+            }
+            
+            PaymentTotals totals = binaryLoader.load(channel, offset, end);
+            if (isStopRequested()) {
+                return;
+            }
+            passAll(totals, end);
+            recordLines(binaryLoader.getPaymentCount(), binaryLoader.getErrorCount(), System.nanoTime() - start);
+            
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "File {0} skipped: {1}", new Object[] { pathToFile, ex.getMessage() });
+        } finally {
+            loader = null;
+        }
+    }
+    
+    /**
+     * Passes the partial totals to the sink and moves the progress to the end.
+     */
+    private void passAll(PaymentTotals totals, long end) {
+        beginProgress();
+        try {
+            consumed.merge(totals);
+            totals.passTo(sink);
+            offset = end;
+        } finally {
+            endProgress();
+        }
+    }
+    
+    /**
+     * Reads the input file by blocks, parses the lines and passes the payments
+     * to the sink. The progress is updated after each block. In the follow mode
+     * the reader waits for the changes of the file at its end, an incomplete
+     * last line is kept until its line terminator is appended.
+     * @param file the input file
+     */
+    private void readFile(File file) {
+        Path path = file.toPath();
+        FileChannel channel = null;
         try {
-            br = new BufferedReader(new FileReader(file));
-            while ((line = br.readLine()) != null) {                
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            Object fileKey = getFileKey(path);
+            channel.position(offset);
+            startLines(offset);
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            
+            while (!isStopRequested()) {
+                boolean end = channel.read(buffer) < 0;
                 
-                try {
-                    // Parse the line into a payment record
-                    payment = PaymentParser.parse(line);
-                    
-                    // Register the payment record
-                    CurrencyHolder.getInstance().registerPayment(payment);
-                    
-                } catch (PaymentParserException ex1) {
-                    log.log(Level.WARNING, ex1.getMessage());
-                }                                
+                if (end && follow) {
+                    if (channel.size() < channel.position()) {
+                        log.log(Level.INFO, "File {0} has been truncated, it is read from the beginning", pathToFile);
+                        channel.position(0);
+                        buffer.clear();
+                        restart();
+                    } else if (isReplaced(path, fileKey)) {
+                        // The rest of the replaced file is complete
+                        parseBlock(buffer, true);
+                        log.log(Level.INFO, "File {0} has been replaced, it is read from the beginning", pathToFile);
+                        channel.close();
+                        channel = FileChannel.open(path, StandardOpenOption.READ);
+                        fileKey = getFileKey(path);
+                        buffer.clear();
+                        restart();
+                    } else {
+                        watcher.await();
+                    }
+                    continue;
+                }
+                
+                parseBlock(buffer, end);
+                if (end) {
+                    break;
+                }
+                
+                if (!buffer.hasRemaining()) {
+                    // A line longer than the buffer
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
             }
             
         } catch (IOException ex) {
             log.log(Level.WARNING, ex.getMessage());
-        }        
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, ex.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Parses the complete lines of the buffer, advances the progress
+     * and keeps the incomplete last line in the buffer.
+     * @param buffer the buffer filled by the file channel
+     * @param last true if the buffer ends with the end of the file
+     */
+    private void parseBlock(ByteBuffer buffer, boolean last) {
+        long start = System.nanoTime();
+        blockParsed = 0;
+        blockRejected = 0;
+        beginProgress();
+        try {
+            int consumedBytes = parseLines(buffer.array(), buffer.position(), last);
+            offset += consumedBytes;
+            buffer.flip();
+            buffer.position(consumedBytes);
+            buffer.compact();
+        } finally {
+            endProgress();
+        }
+        recorder.flush();
+        recordLines(blockParsed, blockRejected, System.nanoTime() - start);
     }
     
+    /**
+     * Starts the progress of a truncated or replaced file from the beginning.
+     * The payments of the previous content stay registered.
+     */
+    private void restart() {
+        beginProgress();
+        try {
+            offset = 0;
+            consumed = new PaymentTotals(false);
+        } finally {
+            endProgress();
+        }
+        startLines(0);
+    }
+    
+    /**
+     * Starts numbering the lines of the rejected lines from the position.
+     */
+    private void startLines(long position) {
+        recorder = RejectedLines.getInstance().recorder(RejectedLines.source(pathToFile, position));
+        line = 0;
+        afterCr = false;
+    }
+    
+    /**
+     * Checks whether the path refers to another file than the open one.
+     * @param path the path of the input file
+     * @param fileKey the key of the open file or null if the keys are not supported
+     * @return False if the file is the same or the path does not exist (yet).
+     */
+    private static boolean isReplaced(Path path, Object fileKey) throws IOException {
+        if (fileKey == null) {
+            return false;
+        }
+        
+        try {
+            return !fileKey.equals(getFileKey(path));
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+    }
+    
+    private static Object getFileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+    
+    /**
+     * Parses the complete lines of the block and passes the payments to the sink.
+     * @param block the bytes read from the file
+     * @param length the number of bytes in the block
+     * @param last true if the block ends with the end of the file
+     * @return The number of bytes of the parsed lines.
+     */
+    private int parseLines(byte [] block, int length, boolean last) {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = block[i];
+            if (ParallelFileLoader.isLineEnd(b)) {
+                if (b != '\n' || (i > 0 ? block[i - 1] != '\r' : !afterCr)) {
+                    // Not the second half of "\r\n"
+                    line++;
+                }
+                parseLine(block, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart > 0) {
+            afterCr = block[lineStart - 1] == '\r';
+        }
+        
+        if (last && lineStart < length) {
+            // The last line without a line terminator
+            line++;
+            parseLine(block, lineStart, length);
+            lineStart = length;
+        }
+        return lineStart;
+    }
+    
+    private void parseLine(byte [] block, int from, int to) {
+        int result = recorder.parse(block, from, to, line, progressSink);
+        if (result == PaymentParser.PARSED) {
+            blockParsed++;
+        } else if (result == PaymentParser.REJECTED) {
+            blockRejected++;
+        }
+    }
+    
+    /**
+     * Passes the payment to the sink and records it in the progress.
+     */
+    private void pass(int currency, long amount) {
+        consumed.accept(currency, amount);
+        sink.accept(currency, amount);
+    }
+    
+    /**
+     * Passes the payment of the account to the sink and records it in the progress.
+     */
+    private void pass(long account, int currency, long amount) {
+        consumed.accept(currency, amount);
+        if (sink instanceof AccountPaymentSink) {
+            ((AccountPaymentSink) sink).accept(account, currency, amount);
+        } else {
+            sink.accept(currency, amount);
+        }
+    }
+    
+    private final AccountPaymentSink progressSink = new AccountPaymentSink() {
+        
+        @Override
+        public void accept(int currency, long amount) {
+            pass(currency, amount);
+        }
+        
+        @Override
+        public void accept(long account, int currency, long amount) {
+            pass(account, currency, amount);
+        }
+    };
+    
 }
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class loads a set of payment files on one work-stealing pool sized
+ * to the machine. Large files are split into chunks by {@link ParallelFileLoader},
+ * small files are batched together, so that neither the number nor the sizes
+ * of the files limit the use of the cores. Each gzip-compressed file is loaded
+ * by its own task and a decoder thread (see {@link CompressedFileLoader}), each binary
+ * file by its own task without any parsing (see {@link BinaryFileLoader}). Each file is parsed into its own
+ * partial totals which are passed to the sink once the file is loaded.
+ * <p>
+ * The reader keeps the progress of each file (see {@link FileProgress}),
+ * so the loading can be resumed from a checkpoint, and the statistics
+ * of each loaded file (see {@link FileStatistics}).
+ * @author Jaromir Mlejnek
+ */
+public class PaymentFileSetReader extends PaymentSource {
+
+    private static final Logger log = Logger.getLogger(PaymentFileSetReader.class.getName());
+
+    /**
+     * The minimal size of the files which are split into chunks.
+     */
+    private static final long SPLIT_THRESHOLD = 8L << 20;
+
+    /**
+     * The number of bytes of the small files loaded by one task.
+     */
+    private static final long BATCH_SIZE = 4L << 20;
+
+    private final List<InputFile> files = new ArrayList<>();
+
+    private final int parallelism;
+
+    /**
+     * The receiver of the read payments.
+     */
+    private final PaymentSink sink;
+
+    /**
+     * The loaders of the large and the compressed files, while they are running.
+     */
+    private final List<Cancellable> loaders = new ArrayList<>();
+
+    public PaymentFileSetReader(List<File> files, PaymentSink sink) {
+        this(files, Runtime.getRuntime().availableProcessors(), sink);
+    }
+
+    /**
+     * @param files the input files
+     * @param parallelism the number of the worker threads
+     * @param sink the receiver of the read payments
+     */
+    public PaymentFileSetReader(List<File> files, int parallelism, PaymentSink sink) {
+        super("payment-file-set-reader");
+        for (File file : files) {
+            this.files.add(new InputFile(file));
+        }
+        this.parallelism = parallelism;
+        this.sink = sink;
+    }
+
+    /**
+     * Continues the loading of a file from the recorded progress. Must be called
+     * before the reader is started, the payments of the consumed part
+     * of the file are expected to be registered already.
+     * @param progress the progress of the previous reader of the file
+     */
+    public void resumeFrom(FileProgress progress) {
+        for (InputFile file : files) {
+            if (file.path.equals(progress.getPath())) {
+                file.offset = progress.getOffset();
+                progress.addTo(file.consumed);
+            }
+        }
+    }
+
+    @Override
+    public List<FileProgress> getFileProgress() {
+        List<FileProgress> progress = new ArrayList<>(files.size());
+        for (InputFile file : files) {
+            progress.add(FileProgress.of(file.path, file.offset, file.consumed));
+        }
+        return progress;
+    }
+
+    /**
+     * @return The statistics of the files loaded so far.
+     */
+    public List<FileStatistics> getStatistics() {
+        List<FileStatistics> statistics = new ArrayList<>(files.size());
+        for (InputFile file : files) {
+            if (file.statistics != null) {
+                statistics.add(file.statistics);
+            }
+        }
+        return statistics;
+    }
+
+    @Override
+    public void requestStop() {
+        super.requestStop();
+
+        synchronized (loaders) {
+            for (Cancellable loader : loaders) {
+                loader.cancel();
+            }
+        }
+    }
+
+    @Override
+    protected void read() {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            // The batches of the small files and the compressed files run while the large files are split
+            List<InputFile> large = new ArrayList<>();
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            List<InputFile> batch = new ArrayList<>();
+            long batchBytes = 0;
+
+            for (InputFile file : files) {
+                if (!checkFile(file)) {
+                    continue;
+                }
+
+                file.end = file.file.length();
+                long remaining = file.end - file.offset;
+                if (remaining > 0 && isCompressed(file)) {
+                    tasks.add(pool.submit(new CompressedTask(file)));
+                } else if (remaining > 0 && isBinary(file)) {
+                    tasks.add(pool.submit(new BinaryTask(file)));
+                } else if (remaining >= SPLIT_THRESHOLD) {
+                    large.add(file);
+                } else if (remaining > 0) {
+                    batch.add(file);
+                    batchBytes += remaining;
+                    if (batchBytes >= BATCH_SIZE) {
+                        tasks.add(pool.submit(new BatchTask(batch)));
+                        batch = new ArrayList<>();
+                        batchBytes = 0;
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                tasks.add(pool.submit(new BatchTask(batch)));
+            }
+
+            for (InputFile file : large) {
+                if (isStopRequested()) {
+                    break;
+                }
+                loadLarge(pool, file);
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+
+        } finally {
+            pool.shutdown();
+        }
+
+        logSummary(System.nanoTime() - start);
+    }
+
+    /**
+     * Checks if the input file exists and can be read.
+     */
+    private boolean checkFile(InputFile file) {
+        if (!file.file.isFile()) {
+            log.log(Level.WARNING, "File ''{0}'' does not exist", file.path);
+            return false;
+        }
+        if (!file.file.canRead()) {
+            log.log(Level.WARNING, "File ''{0}'' cannot be read", file.path);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isCompressed(InputFile file) {
+        try {
+            return CompressedFileLoader.isCompressed(file.file);
+        } catch (IOException ex) {
+            // Reported when the file is read
+            return false;
+        }
+    }
+
+    private static boolean isBinary(InputFile file) {
+        try {
+            return BinaryFileLoader.isBinary(file.file);
+        } catch (IOException ex) {
+            // Reported when the file is read
+            return false;
+        }
+    }
+
+    /**
+     * Loads a large file, its chunks are parsed by all the workers.
+     */
+    private void loadLarge(ForkJoinPool pool, InputFile file) {
+        long start = System.nanoTime();
+        ParallelFileLoader loader = new ParallelFileLoader(pool);
+        register(loader);
+
+        try (FileChannel channel = FileChannel.open(file.file.toPath(), StandardOpenOption.READ)) {
+            long from = file.offset;
+            PaymentTotals totals = loader.load(channel, from, file.end, file.path);
+            if (isStopRequested()) {
+                return;
+            }
+
+            pass(file, totals);
+            file.statistics = new FileStatistics(file.path, file.end - from,
+                    loader.getPaymentCount(), loader.getErrorCount(), System.nanoTime() - start);
+            log.log(Level.FINE, "{0}", file.statistics);
+            record(file.statistics);
+
+        } catch (IOException ex) {
+            log.log(Level.WARNING, ex.getMessage());
+        } finally {
+            unregister(loader);
+        }
+    }
+
+    private void record(FileStatistics statistics) {
+        recordLines(statistics.getPayments(), statistics.getErrors(), statistics.getNanos());
+    }
+
+    private void register(Cancellable loader) {
+        synchronized (loaders) {
+            loaders.add(loader);
+        }
+        if (isStopRequested()) {
+            loader.cancel();
+        }
+    }
+
+    private void unregister(Cancellable loader) {
+        synchronized (loaders) {
+            loaders.remove(loader);
+        }
+    }
+
+    /**
+     * Passes the partial totals of the file to the sink and records them in the progress.
+     */
+    private void pass(InputFile file, PaymentTotals totals) {
+        beginProgress();
+        try {
+            file.consumed.merge(totals);
+            totals.passTo(sink);
+            file.offset = file.end;
+        } finally {
+            endProgress();
+        }
+    }
+
+    private void logSummary(long nanos) {
+        long bytes = 0;
+        long payments = 0;
+        long errors = 0;
+        List<FileStatistics> statistics = getStatistics();
+        for (FileStatistics file : statistics) {
+            bytes += file.getBytes();
+            payments += file.getPayments();
+            errors += file.getErrors();
+        }
+
+        log.log(Level.INFO, String.format(Locale.ROOT,
+                "%d files (%d bytes) loaded in %d ms (%.1f MB/s), %d payments, %d invalid lines",
+                statistics.size(), bytes, TimeUnit.NANOSECONDS.toMillis(nanos),
+                FileStatistics.throughput(bytes, nanos), payments, errors));
+    }
+
+    /**
+     * Loads a batch of small files by one worker, the file content is read
+     * into a buffer which is reused for the next file.
+     */
+    private class BatchTask extends RecursiveAction {
+
+        private final List<InputFile> batch;
+
+        private byte[] buffer = new byte[0];
+
+        BatchTask(List<InputFile> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        protected void compute() {
+            for (InputFile file : batch) {
+                if (isStopRequested()) {
+                    return;
+                }
+                try {
+                    loadSmall(file);
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, ex.getMessage());
+                }
+            }
+        }
+
+        private void loadSmall(InputFile file) throws IOException {
+            long start = System.nanoTime();
+            int length = (int) (file.end - file.offset);
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+
+            try (FileChannel channel = FileChannel.open(file.file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer block = ByteBuffer.wrap(buffer, 0, length);
+                while (block.hasRemaining()) {
+                    if (channel.read(block, file.offset + block.position()) < 0) {
+                        throw new IOException("File '" + file.path + "' has been truncated");
+                    }
+                }
+            }
+
+            RejectedLines.Recorder recorder = RejectedLines.getInstance().recorder(RejectedLines.source(file.path, file.offset));
+            PaymentTotals totals = new PaymentTotals();
+            long payments = 0;
+            long errors = 0;
+            long line = 0;
+            int lineStart = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || ParallelFileLoader.isLineEnd(buffer[i])) {
+                    if (i == length || buffer[i] != '\n' || i == 0 || buffer[i - 1] != '\r') {
+                        line++;
+                    }
+                    int result = recorder.parse(buffer, lineStart, i, line, totals);
+                    if (result == PaymentParser.PARSED) {
+                        payments++;
+                    } else if (result == PaymentParser.REJECTED) {
+                        errors++;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            recorder.flush();
+
+            pass(file, totals);
+            file.statistics = new FileStatistics(file.path, length, payments, errors, System.nanoTime() - start);
+            log.log(Level.FINE, "{0}", file.statistics);
+            record(file.statistics);
+        }
+    }
+
+    /**
+     * Loads a compressed file - the task parses the blocks inflated by a decoder thread.
+     */
+    private class CompressedTask extends RecursiveAction {
+
+        private final InputFile file;
+
+        CompressedTask(InputFile file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            if (isStopRequested()) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            CompressedFileLoader loader = new CompressedFileLoader();
+            register(loader);
+            try {
+                PaymentTotals totals = loader.load(file.file, file.offset);
+                if (isStopRequested()) {
+                    return;
+                }
+
+                pass(file, totals);
+                file.statistics = new FileStatistics(file.path, loader.getDecodedBytes(),
+                        loader.getPaymentCount(), loader.getErrorCount(), System.nanoTime() - start);
+                log.log(Level.FINE, "{0}", file.statistics);
+                record(file.statistics);
+
+            } catch (IOException ex) {
+                log.log(Level.WARNING, ex.getMessage());
+            } finally {
+                unregister(loader);
+            }
+        }
+    }
+
+    /**
+     * Loads a binary file - the task adds the records of the mapped blocks.
+     */
+    private class BinaryTask extends RecursiveAction {
+
+        private final InputFile file;
+
+        BinaryTask(InputFile file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            if (isStopRequested()) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            BinaryFileLoader loader = new BinaryFileLoader();
+            register(loader);
+            try (FileChannel channel = FileChannel.open(file.file.toPath(), StandardOpenOption.READ)) {
+                long from = file.offset;
+                PaymentTotals totals = loader.load(channel, from, file.end);
+                if (isStopRequested()) {
+                    return;
+                }
+
+                pass(file, totals);
+                file.statistics = new FileStatistics(file.path, file.end - from,
+                        loader.getPaymentCount(), loader.getErrorCount(), System.nanoTime() - start);
+                log.log(Level.FINE, "{0}", file.statistics);
+                record(file.statistics);
+
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "File {0} skipped: {1}", new Object[] { file.path, ex.getMessage() });
+            } finally {
+                unregister(loader);
+            }
+        }
+    }
+
+    /**
+     * The progress of one input file.
+     */
+    private static class InputFile {
+
+        final File file;
+        final String path;
+
+        /**
+         * The end of the file when the loading started.
+         */
+        long end;
+
+        // Changed under the progress lock
+        long offset;
+        final PaymentTotals consumed = new PaymentTotals(false);
+
+        volatile FileStatistics statistics;
+
+        InputFile(File file) {
+            this.file = file;
+            this.path = file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,647 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.AccountPaymentSink;
+import com.paymenttracker.utils.LatencyHistogram;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements a write-ahead journal of the registered payments.
+ * Every payment is appended to an append-only binary file and forced to
+ * the disk before it's passed to the target sink. Payments of concurrent
+ * writers are grouped - the first waiting writer becomes the leader, writes
+ * all the pending payments as one batch and forces the file once, the other
+ * writers just wait for the batch to be durable. A thread which serves many
+ * producers (e.g. the network reader) collects the payments of one read
+ * in a {@link Block} and waits for them all at once.
+ * <p>
+ * The file starts with a magic header, followed by batches. A batch is
+ * the number of payments (int), the CRC32 of the payload (int) and the payload -
+ * every payment is the packed currency code (short), the amount in minor units
+ * (long) and the packed account or {@link AccountCodes#NONE} (long). A torn batch
+ * at the end of the file (a crash during a write) is discarded when the journal
+ * is opened.
+ * <p>
+ * A journal of the first version (records without the accounts) is still
+ * replayed and appended in its own format, its payments are replayed
+ * without the accounts.
+ * @author Jaromir Mlejnek
+ */
+public class PaymentJournal implements AccountPaymentSink, Closeable {
+
+    private static final Logger log = Logger.getLogger(PaymentJournal.class.getName());
+
+    private static final int MAGIC = 0x50544A32; // "PTJ2"
+
+    /**
+     * The magic header of the journal without the accounts.
+     */
+    private static final int MAGIC_V1 = 0x50544A31; // "PTJ1"
+
+    private static final int FILE_HEADER_SIZE = 4;
+
+    private static final int BATCH_HEADER_SIZE = 8;
+
+    private static final int RECORD_SIZE = 18;
+
+    private static final int RECORD_SIZE_V1 = 10;
+
+    /**
+     * The initial capacity of a batch buffer (payments).
+     */
+    private static final int INITIAL_BATCH_CAPACITY = 1024;
+
+    /**
+     * The size of the buffer used by the replay.
+     */
+    private static final int REPLAY_BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+    private final FileChannel channel;
+    private final PaymentSink target;
+
+    /**
+     * The size of a payment record in this journal.
+     */
+    private int recordSize = RECORD_SIZE;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+
+    /**
+     * The batch collecting the payments and the spare batch used by the next leader.
+     * Both contain the batch header space at the beginning.
+     */
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+
+    /**
+     * Sequences of the last appended and the last durable payment.
+     */
+    private long appended;
+    private long durable;
+
+    private boolean committing = false;
+    private boolean failed = false;
+
+    /**
+     * The end of the valid journal content found when the journal was opened.
+     */
+    private final long validLength;
+
+    /**
+     * The length of the durable journal content.
+     */
+    private long length;
+
+    private long commits;
+    private int maxBatchSize;
+    private int lastBatchSize;
+    private long commitNanos;
+    private long maxCommitNanos;
+    private long lastCommitNanos;
+
+    /**
+     * The latencies of the commits (write and force of a batch).
+     */
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    /**
+     * Opens (or creates) the journal. The torn tail of the journal is truncated.
+     * @param file the journal file
+     * @param target the receiver of the journaled payments
+     * @throws IOException
+     */
+    public PaymentJournal(File file, PaymentSink target) throws IOException {
+        this.file = file;
+        this.target = target;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            validLength = recover();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        length = validLength;
+        pending = newBatch(INITIAL_BATCH_CAPACITY, recordSize);
+        spare = newBatch(INITIAL_BATCH_CAPACITY, recordSize);
+    }
+
+    /**
+     * Passes all the journaled payments to the sink. Should be called before
+     * any payment is appended. The accounts are passed only to
+     * an {@link AccountPaymentSink}.
+     * @param sink the receiver of the payments, usually the register
+     * @return The number of replayed payments.
+     * @throws IOException
+     */
+    public long replay(PaymentSink sink) throws IOException {
+        return replay(sink, 0);
+    }
+
+    /**
+     * Passes the payments journaled after the given length of the journal
+     * (see {@link #getLength()}) to the sink. Should be called before any
+     * payment is appended.
+     * @param sink the receiver of the payments, usually the register
+     * @param from the length of the journal content which is skipped
+     * @return The number of replayed payments.
+     * @throws IOException
+     */
+    public long replay(PaymentSink sink, long from) throws IOException {
+        if (from > validLength) {
+            log.log(Level.WARNING, "Journal {0} is shorter than expected, nothing replayed", file);
+            return 0;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+        long position = Math.max(from, FILE_HEADER_SIZE);
+        long replayed = 0;
+
+        while (position < validLength) {
+            header.clear();
+            readFully(header, position);
+            int count = header.getInt(0);
+            position += BATCH_HEADER_SIZE;
+
+            long end = position + (long) count * recordSize;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity() / recordSize * recordSize, end - position));
+                readFully(buffer, position);
+                position += buffer.limit();
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int currency = buffer.getShort() & 0xFFFF;
+                    long amount = buffer.getLong();
+                    long account = recordSize == RECORD_SIZE ? buffer.getLong() : AccountCodes.NONE;
+                    if (account != AccountCodes.NONE && sink instanceof AccountPaymentSink) {
+                        ((AccountPaymentSink) sink).accept(account, currency, amount);
+                    } else {
+                        sink.accept(currency, amount);
+                    }
+                    replayed++;
+                }
+            }
+        }
+
+        log.log(Level.INFO, "{0} payments replayed from the journal {1}", new Object[] { replayed, file });
+        return replayed;
+    }
+
+    /**
+     * Appends the payment to the journal, waits until it's durable
+     * and passes it to the target. When the journal cannot be written,
+     * the payments are passed to the target without journaling.
+     * @param currency the packed currency code
+     * @param amount the amount of the payment
+     */
+    @Override
+    public void accept(int currency, long amount) {
+        append(AccountCodes.NONE, currency, amount);
+        target.accept(currency, amount);
+    }
+
+    /**
+     * Appends the payment to the journal with the account, waits until
+     * it's durable and passes it to the target with the account.
+     * @param account the packed account
+     * @param currency the packed currency code
+     * @param amount the amount of the payment
+     */
+    @Override
+    public void accept(long account, int currency, long amount) {
+        append(account, currency, amount);
+        pass(account, currency, amount);
+    }
+
+    /**
+     * Creates a block which collects the payments of one thread, the payments
+     * are journaled and passed to the target when the block is flushed.
+     * @return The empty block.
+     */
+    public Block newBlock() {
+        return new Block();
+    }
+
+    private void pass(long account, int currency, long amount) {
+        if (account != AccountCodes.NONE && target instanceof AccountPaymentSink) {
+            ((AccountPaymentSink) target).accept(account, currency, amount);
+        } else {
+            target.accept(currency, amount);
+        }
+    }
+
+    private void append(long account, int currency, long amount) {
+        lock.lock();
+        try {
+            put(account, currency, amount);
+            awaitDurable(++appended);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(Block block) {
+        lock.lock();
+        try {
+            for (int i = 0; i < block.size; i++) {
+                put(block.accounts[i], block.currencies[i], block.amounts[i]);
+            }
+            appended += block.size;
+            awaitDurable(appended);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the payment to the pending batch. Called with the lock held.
+     */
+    private void put(long account, int currency, long amount) {
+        if (pending.remaining() < recordSize) {
+            pending = grow(pending);
+        }
+        pending.putShort((short) currency);
+        pending.putLong(amount);
+        if (recordSize == RECORD_SIZE) {
+            pending.putLong(account);
+        }
+    }
+
+    /**
+     * Waits until the payment of the sequence is durable, the first waiting
+     * writer commits the pending batch. Called with the lock held.
+     */
+    private void awaitDurable(long sequence) {
+        boolean interrupted = false;
+        while (durable < sequence) {
+            if (!committing) {
+                commit();
+            } else {
+                try {
+                    committed.await();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the journal file.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        log.log(Level.FINE, "Journal closed: {0}", getStatistics());
+    }
+
+    /**
+     * Returns the length of the durable journal content. Payments appended
+     * later can be replayed by {@link #replay(PaymentSink, long)}.
+     * @return The length in bytes.
+     */
+    public long getLength() {
+        lock.lock();
+        try {
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current statistics of the journal.
+     * @return The statistics snapshot.
+     */
+    public Statistics getStatistics() {
+        lock.lock();
+        try {
+            return new Statistics(durable, commits, maxBatchSize, lastBatchSize, commitNanos,
+                    maxCommitNanos, lastCommitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending batch as the leader. Called with the lock held,
+     * the lock is released during the write.
+     */
+    private void commit() {
+        committing = true;
+        ByteBuffer batch = pending;
+        pending = spare;
+        spare = null;
+        long last = appended;
+        int count = (batch.position() - BATCH_HEADER_SIZE) / recordSize;
+
+        long written = 0;
+        long start = System.nanoTime();
+        lock.unlock();
+        try {
+            if (!failed) {
+                write(batch, count);
+                written = batch.limit();
+            }
+        } catch (IOException ex) {
+            failed = true;
+            log.log(Level.SEVERE, "Journal " + file + " cannot be written, payments are not journaled any more", ex);
+        } finally {
+            lock.lock();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        batch.clear();
+        batch.position(BATCH_HEADER_SIZE);
+        spare = batch;
+
+        commits++;
+        maxBatchSize = Math.max(maxBatchSize, count);
+        lastBatchSize = count;
+        commitLatency.record(elapsed);
+        commitNanos += elapsed;
+        maxCommitNanos = Math.max(maxCommitNanos, elapsed);
+        lastCommitNanos = elapsed;
+
+        length += written;
+        durable = last;
+        committing = false;
+        committed.signalAll();
+    }
+
+    private void write(ByteBuffer batch, int count) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(batch.array(), batch.arrayOffset() + BATCH_HEADER_SIZE, batch.position() - BATCH_HEADER_SIZE);
+        batch.putInt(0, count);
+        batch.putInt(4, (int) crc.getValue());
+
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Checks the journal content, writes the header of a new journal
+     * and truncates a torn tail.
+     * @return The length of the valid content.
+     */
+    private long recover() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+            return FILE_HEADER_SIZE;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(Math.max(FILE_HEADER_SIZE, BATCH_HEADER_SIZE));
+        header.limit(FILE_HEADER_SIZE);
+        if (size < FILE_HEADER_SIZE || !readFully(header, 0)
+                || header.getInt(0) != MAGIC && header.getInt(0) != MAGIC_V1) {
+            throw new IOException("File " + file + " is not a payment journal");
+        }
+        if (header.getInt(0) == MAGIC_V1) {
+            recordSize = RECORD_SIZE_V1;
+            log.log(Level.INFO, "Journal {0} has no accounts, the accounts are not journaled", file);
+        }
+
+        long position = FILE_HEADER_SIZE;
+        ByteBuffer payload = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+        while (position < size) {
+            header.clear();
+            if (size - position < BATCH_HEADER_SIZE || !readFully(header, position)) {
+                break;
+            }
+            int count = header.getInt(0);
+            int checksum = header.getInt(4);
+            long end = position + BATCH_HEADER_SIZE + (long) count * recordSize;
+            if (count <= 0 || end > size || !checkBatch(position + BATCH_HEADER_SIZE, end, checksum, payload)) {
+                break;
+            }
+            position = end;
+        }
+
+        if (position < size) {
+            log.log(Level.WARNING, "Torn tail of the journal {0} discarded ({1} bytes)",
+                    new Object[] { file, size - position });
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        return position;
+    }
+
+    private boolean checkBatch(long from, long to, int checksum, ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = from; position < to; position += buffer.limit()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            if (!readFully(buffer, position)) {
+                return false;
+            }
+            crc.update(buffer.array(), 0, buffer.limit());
+        }
+        return (int) crc.getValue() == checksum;
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer from the position of the file.
+     * @return False if the end of the file is reached first.
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private static ByteBuffer newBatch(int capacity, int recordSize) {
+        ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + capacity * recordSize);
+        batch.position(BATCH_HEADER_SIZE);
+        return batch;
+    }
+
+    private static ByteBuffer grow(ByteBuffer batch) {
+        ByteBuffer larger = ByteBuffer.allocate(BATCH_HEADER_SIZE + (batch.capacity() - BATCH_HEADER_SIZE) * 2);
+        batch.flip();
+        larger.put(batch);
+        return larger;
+    }
+
+    /**
+     * @return The histogram of the latencies of the commits.
+     */
+    LatencyHistogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * The payments of one thread which are journaled with one commit. A block
+     * is not thread-safe, each thread which journals by blocks has its own one.
+     */
+    public final class Block implements AccountPaymentSink {
+
+        private long[] accounts = new long[INITIAL_BATCH_CAPACITY];
+        private int[] currencies = new int[INITIAL_BATCH_CAPACITY];
+        private long[] amounts = new long[INITIAL_BATCH_CAPACITY];
+        private int size;
+
+        private Block() {
+        }
+
+        @Override
+        public void accept(int currency, long amount) {
+            accept(AccountCodes.NONE, currency, amount);
+        }
+
+        @Override
+        public void accept(long account, int currency, long amount) {
+            if (size == amounts.length) {
+                accounts = Arrays.copyOf(accounts, size * 2);
+                currencies = Arrays.copyOf(currencies, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+            }
+            accounts[size] = account;
+            currencies[size] = currency;
+            amounts[size] = amount;
+            size++;
+        }
+
+        /**
+         * Appends the collected payments to the journal, waits until they are
+         * durable and passes them to the target of the journal.
+         */
+        public void flush() {
+            if (size == 0) {
+                return;
+            }
+            append(this);
+            for (int i = 0; i < size; i++) {
+                pass(accounts[i], currencies[i], amounts[i]);
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Snapshot of the journal counters.
+     */
+    public static final class Statistics {
+
+        private final long payments;
+        private final long commits;
+        private final int maxBatchSize;
+        private final int lastBatchSize;
+        private final long commitNanos;
+        private final long maxCommitNanos;
+        private final long lastCommitNanos;
+
+        Statistics(long payments, long commits, int maxBatchSize, int lastBatchSize, long commitNanos,
+                long maxCommitNanos, long lastCommitNanos) {
+            this.payments = payments;
+            this.commits = commits;
+            this.maxBatchSize = maxBatchSize;
+            this.lastBatchSize = lastBatchSize;
+            this.commitNanos = commitNanos;
+            this.maxCommitNanos = maxCommitNanos;
+            this.lastCommitNanos = lastCommitNanos;
+        }
+
+        /**
+         * @return The number of durable payments.
+         */
+        public long getPayments() {
+            return payments;
+        }
+
+        /**
+         * @return The number of group commits (forces of the file).
+         */
+        public long getCommits() {
+            return commits;
+        }
+
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public int getLastBatchSize() {
+            return lastBatchSize;
+        }
+
+        public double getAverageBatchSize() {
+            return commits == 0 ? 0 : (double) payments / commits;
+        }
+
+        /**
+         * @return The average time of a commit (write and force) in microseconds.
+         */
+        public double getAverageCommitMicros() {
+            return commits == 0 ? 0 : commitNanos / 1e3 / commits;
+        }
+
+        public double getMaxCommitMicros() {
+            return maxCommitNanos / 1e3;
+        }
+
+        public double getLastCommitMicros() {
+            return lastCommitNanos / 1e3;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("payments %d, commits %d (batch avg %.1f, max %d, last %d), "
+                    + "commit latency avg %.0f us, max %.0f us, last %.0f us",
+                    payments, commits, getAverageBatchSize(), maxBatchSize, lastBatchSize,
+                    getAverageCommitMicros(), getMaxCommitMicros(), getLastCommitMicros());
+        }
+    }
+}
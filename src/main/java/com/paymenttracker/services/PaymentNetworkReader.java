@@ -0,0 +1,362 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentParserException;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a network-read functionality. It listens on a TCP port
+ * and reads payment records (one per line, like in the input files) from
+ * any number of producer connections. All the connections are served by one
+ * selector thread with non-blocking reads, so a slow producer never blocks
+ * the others. A connection holds a direct buffer from a pool only while
+ * it has an incomplete line; lines longer than the buffer are rejected.
+ * <p>
+ * When the payments are journaled (the sink is a {@link PaymentJournal}),
+ * the payments of one read of a connection are journaled with one commit,
+ * so the selector thread does not wait for a commit per payment.
+ * @author Jaromir Mlejnek
+ */
+public class PaymentNetworkReader extends PaymentSource {
+
+    private static final Logger log = Logger.getLogger(PaymentNetworkReader.class.getName());
+
+    /**
+     * The size of the read buffers, it limits the length of a line.
+     */
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * The maximal number of the idle buffers kept in the pool.
+     */
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final ServerSocketChannel server;
+
+    private final Selector selector;
+
+    /**
+     * The receiver of the read payments.
+     */
+    private final PaymentSink sink;
+
+    /**
+     * The block of the journaled payments of the current read or null.
+     */
+    private final PaymentJournal.Block block;
+
+    /**
+     * The idle direct buffers, used by the selector thread only.
+     */
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    /**
+     * Opens the listening socket.
+     * @param address the local address, the port 0 means any free port
+     * @param sink the receiver of the read payments
+     * @throws IOException if the address cannot be bound
+     */
+    public PaymentNetworkReader(InetSocketAddress address, PaymentSink sink) throws IOException {
+        super("payment-network-reader");
+        this.block = sink instanceof PaymentJournal ? ((PaymentJournal) sink).newBlock() : null;
+        this.sink = block != null ? block : sink;
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            server.close();
+            selector.close();
+            throw ex;
+        }
+        log.log(Level.INFO, "Listening for payments on {0}", getLocalAddress());
+    }
+
+    /**
+     * @return The address the reader listens on.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * @return The statistics of the open connections.
+     */
+    public List<ConnectionStatistics> getStatistics() {
+        List<ConnectionStatistics> statistics = new ArrayList<>();
+        for (Connection connection : connections) {
+            statistics.add(connection.getStatistics());
+        }
+        return statistics;
+    }
+
+    @Override
+    public void requestStop() {
+        super.requestStop();
+        selector.wakeup();
+    }
+
+    @Override
+    protected void read() {
+        try {
+            while (!isStopRequested()) {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.read();
+                        } catch (IOException ex) {
+                            log.log(Level.WARNING, "Connection {0} failed: {1}",
+                                    new Object[] { connection.remoteAddress, ex.getMessage() });
+                            connection.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, ex.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+        log.log(Level.FINE, "Connection {0} accepted", connection.remoteAddress);
+    }
+
+    private void closeAll() {
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.close();
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    private ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        if (buffers.size() < MAX_POOLED_BUFFERS) {
+            buffers.push(buffer);
+        }
+    }
+
+    /**
+     * One producer connection, used by the selector thread only
+     * (the counters are read by other threads).
+     */
+    private class Connection {
+
+        final SocketChannel channel;
+        final String remoteAddress;
+        final long connected = System.nanoTime();
+
+        /**
+         * The buffer with the incomplete line or null.
+         */
+        ByteBuffer buffer;
+
+        /**
+         * True while the rest of a too long line is skipped.
+         */
+        boolean discarding = false;
+
+        final RejectedLines.Recorder recorder;
+
+        /**
+         * The number of the last line and whether it was terminated by '\r'.
+         */
+        long line = 0;
+        boolean afterCr = false;
+
+        volatile long bytes = 0;
+        volatile long payments = 0;
+        volatile long rejected = 0;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+            this.recorder = RejectedLines.getInstance().recorder(remoteAddress);
+        }
+
+        /**
+         * Reads the available bytes once and parses the complete lines.
+         */
+        void read() throws IOException {
+            if (buffer == null) {
+                buffer = borrowBuffer();
+            }
+
+            int read = channel.read(buffer);
+            if (read > 0) {
+                bytes += read;
+            }
+
+            long start = System.nanoTime();
+            long previousPayments = payments;
+            long previousRejected = rejected;
+            beginProgress();
+            try {
+                parseLines(read < 0);
+                if (block != null) {
+                    block.flush();
+                }
+            } finally {
+                endProgress();
+            }
+            recorder.flush();
+            recordLines(payments - previousPayments, rejected - previousRejected, System.nanoTime() - start);
+
+            if (read < 0) {
+                close();
+            } else if (buffer.position() == 0) {
+                releaseBuffer(buffer);
+                buffer = null;
+            }
+        }
+
+        /**
+         * Parses the complete lines of the buffer and keeps the incomplete last line.
+         * @param last true if the producer closed the connection
+         */
+        private void parseLines(boolean last) {
+            int length = buffer.position();
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(i);
+                if (ParallelFileLoader.isLineEnd(b)) {
+                    if (b != '\n' || (i > 0 ? buffer.get(i - 1) != '\r' : !afterCr)) {
+                        // Not the second half of "\r\n"
+                        line++;
+                    }
+                    parseLine(lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart > 0) {
+                afterCr = buffer.get(lineStart - 1) == '\r';
+            }
+
+            if (last && lineStart < length) {
+                // The last line without a line terminator
+                line++;
+                parseLine(lineStart, length);
+                lineStart = length;
+            } else if (lineStart == 0 && length == buffer.capacity()) {
+                // The line does not fit into the buffer, its beginning is recorded
+                if (!discarding) {
+                    recorder.reject(buffer, 0, length, line + 1, PaymentParserException.Reason.FORMAT);
+                    rejected++;
+                }
+                discarding = true;
+                afterCr = false;
+                lineStart = length;
+            }
+
+            buffer.limit(length);
+            buffer.position(lineStart);
+            buffer.compact();
+        }
+
+        private void parseLine(int from, int to) {
+            if (discarding) {
+                // The end of a too long line
+                discarding = false;
+                return;
+            }
+
+            int result = recorder.parse(buffer, from, to, line, sink);
+            if (result == PaymentParser.PARSED) {
+                payments++;
+            } else if (result == PaymentParser.REJECTED) {
+                rejected++;
+            }
+        }
+
+        ConnectionStatistics getStatistics() {
+            return new ConnectionStatistics(remoteAddress, bytes, payments, rejected, System.nanoTime() - connected);
+        }
+
+        void close() {
+            if (!connections.remove(this)) {
+                return;
+            }
+
+            if (buffer != null) {
+                releaseBuffer(buffer);
+                buffer = null;
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, ex.getMessage());
+            }
+            log.log(Level.INFO, "Connection closed: {0}", getStatistics());
+        }
+    }
+}
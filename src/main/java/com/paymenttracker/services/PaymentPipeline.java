@@ -0,0 +1,382 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.model.TotalsSink;
+import com.paymenttracker.utils.AccountPaymentSink;
+import com.paymenttracker.utils.PaymentRingBuffer;
+import com.paymenttracker.utils.PaymentSink;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a staged ingestion pipeline. Reader stages put parsed
+ * payments into a bounded ring buffer (see {@link PaymentRingBuffer}), one
+ * aggregator thread drains the buffer in batches and applies each batch
+ * to the target register. Readers are slowed down when the buffer is full.
+ * <p>
+ * The partial totals of the files loaded at once bypass the ring buffer,
+ * they are queued and applied by the aggregator as a whole, so the target
+ * gets the statistics of their payments as well (see {@link TotalsSink}).
+ * @author Jaromir Mlejnek
+ */
+public class PaymentPipeline implements AccountPaymentSink, TotalsSink {
+
+    private static final Logger log = Logger.getLogger(PaymentPipeline.class.getName());
+
+    /**
+     * The default number of slots of the ring buffer.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * The maximal number of payments applied in one batch.
+     */
+    private static final int MAX_BATCH = 4096;
+
+    /**
+     * The maximal time the aggregator sleeps when there is nothing to do.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The sleep time of a thread waiting for the pipeline to be flushed.
+     */
+    private static final long FLUSH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * The period of the statistics log record.
+     */
+    private static final long STATISTICS_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final PaymentRingBuffer buffer;
+    private final PaymentSink target;
+
+    /**
+     * The partial totals waiting for the aggregator.
+     */
+    private final Queue<PaymentTotals> pendingTotals = new ConcurrentLinkedQueue<>();
+    private final AtomicLong publishedTotals = new AtomicLong();
+    private final AtomicLong consumedTotals = new AtomicLong();
+    private final AtomicLong failedTotals = new AtomicLong();
+    private final Aggregator aggregator;
+    private final long startNanos;
+
+    /**
+     * Aggregator stage counters - written only by the aggregator thread.
+     */
+    private volatile long batches;
+    private volatile int maxBatchSize;
+    private volatile int maxDepth;
+
+    public PaymentPipeline(PaymentSink target) {
+        this(target, DEFAULT_CAPACITY);
+    }
+
+    public PaymentPipeline(PaymentSink target, int capacity) {
+        this.buffer = new PaymentRingBuffer(capacity);
+        this.target = target;
+        this.aggregator = new Aggregator();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts the aggregator stage.
+     */
+    public void start() {
+        aggregator.start();
+    }
+
+    /**
+     * Puts the payment into the pipeline. Blocks while the pipeline is full.
+     * @param currency the packed currency code
+     * @param amount the amount of the payment
+     */
+    @Override
+    public void accept(int currency, long amount) {
+        buffer.accept(currency, amount);
+    }
+
+    /**
+     * Puts the payment of the account into the pipeline. Blocks while the pipeline is full.
+     * @param account the packed account
+     * @param currency the packed currency code
+     * @param amount the amount of the payment
+     */
+    @Override
+    public void accept(long account, int currency, long amount) {
+        buffer.accept(account, currency, amount);
+    }
+
+    /**
+     * Puts the partial totals into the pipeline, the totals are applied to the target
+     * as a whole if it's a {@link TotalsSink}, otherwise by the net amounts.
+     * @param totals the partial totals which are not changed any more
+     */
+    @Override
+    public void acceptTotals(PaymentTotals totals) {
+        publishedTotals.incrementAndGet();
+        pendingTotals.add(totals);
+        LockSupport.unpark(aggregator);
+    }
+
+    /**
+     * Waits until all the payments put into the pipeline so far
+     * are applied to the target.
+     */
+    public void flush() {
+        long published = buffer.getPublished();
+        long totals = publishedTotals.get();
+        while (buffer.getConsumed() < published || consumedTotals.get() < totals) {
+            LockSupport.unpark(aggregator);
+            LockSupport.parkNanos(FLUSH_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Stops the aggregator stage once all the payments put into
+     * the pipeline so far are applied to the target.
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        aggregator.running = false;
+        LockSupport.unpark(aggregator);
+        aggregator.join();
+        log.log(Level.FINE, "Pipeline closed: {0}", getStatistics());
+    }
+
+    /**
+     * Returns the current statistics of the pipeline.
+     * @return The statistics snapshot.
+     */
+    public Statistics getStatistics() {
+        return new Statistics(buffer.getPublished(), buffer.getConsumed(), batches, maxBatchSize,
+                buffer.size(), maxDepth, buffer.getCapacity(), buffer.getStalls(), buffer.getFailures(),
+                consumedTotals.get(), failedTotals.get(), System.nanoTime() - startNanos);
+    }
+
+    /**
+     * The aggregator stage.
+     */
+    private class Aggregator extends Thread {
+
+        private volatile boolean running = true;
+
+        Aggregator() {
+            super("payment-aggregator");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long nextStatistics = System.nanoTime() + STATISTICS_PERIOD_NANOS;
+
+            while (running || buffer.size() > 0 || !pendingTotals.isEmpty()) {
+                int depth = buffer.size();
+                long start = System.nanoTime();
+                int drained = buffer.drain(target, MAX_BATCH);
+                boolean applied = applyTotals();
+
+                if (drained > 0) {
+                    TrackerMetrics.getInstance().recordRegistrations(drained, System.nanoTime() - start);
+                    batches++;
+                    if (drained > maxBatchSize) {
+                        maxBatchSize = drained;
+                    }
+                    if (depth > maxDepth) {
+                        maxDepth = depth;
+                    }
+                } else if (applied) {
+                    // More payments may have come meanwhile, look again before parking
+                } else if (running) {
+                    buffer.awaitPayments(IDLE_PARK_NANOS);
+                } else if (buffer.size() > 0) {
+                    // A producer claimed a slot but has not published it yet
+                    Thread.yield();
+                }
+
+                if (System.nanoTime() - nextStatistics >= 0) {
+                    log.log(Level.FINE, "Pipeline: {0}", getStatistics());
+                    nextStatistics += STATISTICS_PERIOD_NANOS;
+                }
+            }
+        }
+
+        /**
+         * Applies all the queued partial totals to the target. The totals
+         * which fail in the target (e.g. a net amount is rejected because
+         * of an overflow) are logged and counted.
+         * @return False if there were no totals.
+         */
+        private boolean applyTotals() {
+            boolean applied = false;
+            PaymentTotals totals;
+            while ((totals = pendingTotals.poll()) != null) {
+                try {
+                    totals.passTo(target);
+                } catch (ArithmeticException ex) {
+                    failedTotals.incrementAndGet();
+                    log.log(Level.WARNING, "Partial totals rejected: {0}", ex.getMessage());
+                } catch (RuntimeException ex) {
+                    failedTotals.incrementAndGet();
+                    log.log(Level.SEVERE, "Partial totals failed", ex);
+                } finally {
+                    consumedTotals.incrementAndGet();
+                }
+                applied = true;
+            }
+            return applied;
+        }
+    }
+
+    /**
+     * Snapshot of the pipeline counters.
+     */
+    public static final class Statistics {
+
+        private final long published;
+        private final long consumed;
+        private final long batches;
+        private final int maxBatchSize;
+        private final int depth;
+        private final int maxDepth;
+        private final int capacity;
+        private final long stalls;
+        private final long failures;
+        private final long totals;
+        private final long failedTotals;
+        private final long elapsedNanos;
+
+        Statistics(long published, long consumed, long batches, int maxBatchSize,
+                int depth, int maxDepth, int capacity, long stalls, long failures,
+                long totals, long failedTotals, long elapsedNanos) {
+            this.published = published;
+            this.consumed = consumed;
+            this.batches = batches;
+            this.maxBatchSize = maxBatchSize;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.capacity = capacity;
+            this.stalls = stalls;
+            this.failures = failures;
+            this.totals = totals;
+            this.failedTotals = failedTotals;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return The number of payments put into the pipeline by the readers.
+         */
+        public long getPublished() {
+            return published;
+        }
+
+        /**
+         * @return The number of payments applied by the aggregator.
+         */
+        public long getConsumed() {
+            return consumed;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        /**
+         * @return The number of payments waiting in the buffer.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @return The number of payments which had to wait for a free slot.
+         */
+        public long getStalls() {
+            return stalls;
+        }
+
+        /**
+         * @return The number of payments which failed in the target.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return The number of partial totals applied by the aggregator.
+         */
+        public long getTotals() {
+            return totals;
+        }
+
+        /**
+         * @return The number of partial totals which failed in the target.
+         */
+        public long getFailedTotals() {
+            return failedTotals;
+        }
+
+        /**
+         * @return The reader stage throughput (payments per second).
+         */
+        public double getPublishRate() {
+            return rate(published);
+        }
+
+        /**
+         * @return The aggregator stage throughput (payments per second).
+         */
+        public double getConsumeRate() {
+            return rate(consumed);
+        }
+
+        public double getAverageBatchSize() {
+            return batches == 0 ? 0 : (double) consumed / batches;
+        }
+
+        private double rate(long count) {
+            return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("readers %d (%.0f/s), aggregator %d (%.0f/s), batches %d (avg %.1f, max %d), "
+                    + "depth %d/%d (max %d), stalls %d, failures %d, totals %d (failed %d)",
+                    published, getPublishRate(), consumed, getConsumeRate(), batches, getAverageBatchSize(),
+                    maxBatchSize, depth, capacity, maxDepth, stalls, failures, totals, failedTotals);
+        }
+    }
+}
@@ -1,12 +1,12 @@
 /*
  * Copyright 2015 Jaromir Mlejnek
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -17,43 +17,258 @@
 package com.paymenttracker.services;
 
 import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.CurrencySnapshot;
+import com.paymenttracker.model.SlidingWindow;
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.CurrencyScales;
 import java.io.PrintStream;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * This class implements a payment printer which prints
  * the net amounts of each currency into the print stream.
+ * The whole report is rendered from one snapshot of the register
+ * into a reused buffer and written to the stream at once. Each line
+ * is followed by the net amounts of the sliding windows of the register,
+ * e.g. "USD 1000 (1m 10, 1h 500, 1d 1000)".
+ * <p>
+ * When the exchange rates are set, each net amount is also converted to the base
+ * currency, e.g. "EUR 1000 = USD 1084.20 (1m ...)", and the report ends with
+ * the grand total of the converted amounts, e.g. "Total USD 2084.20". The currencies
+ * without a rate are listed after the grand total. The rate table is read once
+ * per report, so a reloaded table never mixes with the previous one.
+ * <p>
+ * When the statistics are enabled, each line ends with the statistics of the sizes
+ * of the payments of the currency, e.g. "[n 3, min 10, max 500, mean 173.33,
+ * p50 10.07, p99 500, p99.9 500]" (see {@link CurrencyHolder#getStatistics(int)}).
+ * <p>
+ * In the delta mode a report prints only the currencies whose net amounts have
+ * changed since the previous report, a net amount which has dropped to zero
+ * is printed as well. The changed currencies are taken from the register
+ * (see {@link CurrencyHolder#drainChanged(BitSet)}), so a report of no change
+ * is empty and costs almost nothing. The grand total still covers all
+ * the currencies. A report dropped by the sink is followed by a complete
+ * report, so its drained changes are not lost. The final report
+ * ({@link #printAll()}) prints all of them.
+ * <p>
+ * The report is encoded by a {@link ReportFormat} (the text above, CSV or
+ * JSON lines) and published to a {@link ReportSink}, e.g. to an {@link AsyncReportSink}
+ * which writes it by a background thread. The print stream constructors
+ * write the text reports directly to the stream.
  * @author Jaromir Mlejnek
  */
 public class PaymentPrinterStreamWriter implements Runnable {
-    
-    private final PrintStream printStream;        
-    
+
+    /**
+     * The initial size of the report buffer.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final ReportSink sink;
+
+    private final ReportFormat format;
+
+    private final ExchangeRates rates;
+
+    private final boolean statistics;
+
+    private final boolean delta;
+
+    /**
+     * The currencies changed since the previous report, used in the delta mode.
+     */
+    private final BitSet changed = new BitSet(CurrencyCodes.SLOTS);
+
+    /**
+     * The last reported net amounts indexed by the packed currency code,
+     * null unless the delta mode is used.
+     */
+    private final long [] reported;
+
+    /**
+     * True if the previous report has been dropped by the sink, so the next
+     * report must contain all the net amounts.
+     */
+    private boolean resync;
+
+    /**
+     * The report buffer, reused by all the reports.
+     */
+    private final ReportBuffer buffer = new ReportBuffer(INITIAL_BUFFER_SIZE);
+
+    /**
+     * The line of a currency, reused by all the lines.
+     */
+    private final ReportFormat.Line line = new ReportFormat.Line();
+
+    /**
+     * Scratch space for the currencies without a rate.
+     */
+    private String [] unconverted = new String[16];
+
     public PaymentPrinterStreamWriter(PrintStream printStream) {
-        this.printStream = printStream;
+        this(printStream, null);
+    }
+
+    /**
+     * @param printStream the print stream of the reports
+     * @param rates the exchange rates to the base currency or null if the amounts are not converted
+     */
+    public PaymentPrinterStreamWriter(PrintStream printStream, ExchangeRates rates) {
+        this(printStream, rates, false);
+    }
+
+    /**
+     * @param printStream the print stream of the reports
+     * @param rates the exchange rates to the base currency or null if the amounts are not converted
+     * @param statistics true if the statistics of the payments are printed
+     */
+    public PaymentPrinterStreamWriter(PrintStream printStream, ExchangeRates rates, boolean statistics) {
+        this(printStream, rates, statistics, false);
+    }
+
+    /**
+     * @param printStream the print stream of the reports
+     * @param rates the exchange rates to the base currency or null if the amounts are not converted
+     * @param statistics true if the statistics of the payments are printed
+     * @param delta true if a report prints only the net amounts changed since the previous report
+     */
+    public PaymentPrinterStreamWriter(PrintStream printStream, ExchangeRates rates, boolean statistics, boolean delta) {
+        this(new PrintStreamSink(printStream), ReportFormat.forName(ReportFormat.TEXT), rates, statistics, delta);
+    }
+
+    /**
+     * @param sink the receiver of the encoded reports
+     * @param format the format of the reports
+     * @param rates the exchange rates to the base currency or null if the amounts are not converted
+     * @param statistics true if the statistics of the payments are printed
+     * @param delta true if a report prints only the net amounts changed since the previous report
+     */
+    public PaymentPrinterStreamWriter(ReportSink sink, ReportFormat format, ExchangeRates rates,
+            boolean statistics, boolean delta) {
+        this.sink = sink;
+        this.format = format;
+        this.rates = rates;
+        this.statistics = statistics;
+        this.delta = delta;
+        this.reported = delta ? new long[CurrencyCodes.SLOTS] : null;
     }
 
     @Override
-    public void run() {                
-        print();
-    }
-    
-    /**
-     * Prints the net amounts of each currency into the print stream.
-     */
-    private void print() {
-        Set<String> currencies = CurrencyHolder.getInstance().getCurrenciesStatus().keySet();
-        Iterator<String> iterator = currencies.iterator();
-        String output;
-        
-        while (iterator.hasNext()) {
-            String currency = iterator.next();
-            double ammount =  CurrencyHolder.getInstance().getCurrenciesStatus().get(currency);            
-            if (ammount != 0) {
-                output = String.format("%s %.0f", currency, ammount);
-                this.printStream.println(output);
+    public void run() {
+        print(delta && !resync);
+    }
+
+    /**
+     * Prints the net amounts of all the currencies, even in the delta mode.
+     */
+    public void printAll() {
+        print(false);
+    }
+
+    /**
+     * Renders the net amounts of each currency (or of the changed ones) and publishes them.
+     */
+    private void print(boolean changesOnly) {
+        long start = System.nanoTime();
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        if (changesOnly) {
+            // The changes must be drained before the snapshot which contains them
+            changed.clear();
+            holder.drainChanged(changed);
+        }
+        // The windows and the statistics are taken with the net amounts
+        CurrencySnapshot snapshot = holder.detailedSnapshot(statistics);
+        List<SlidingWindow> windows = holder.getWindows();
+        long time = System.currentTimeMillis();
+        RateTable table = rates != null ? rates.getTable() : null;
+        String base = table != null ? CurrencyCodes.unpack(table.getBaseCurrency()) : null;
+        int baseScale = table != null ? CurrencyScales.getScale(table.getBaseCurrency()) : 0;
+        long grandTotal = 0;
+        int unconvertedCount = 0;
+        buffer.reset();
+        prepareWindows(windows);
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            long ammount = snapshot.getTotalAt(i);
+            int currency = snapshot.getCurrencyAt(i);
+            boolean convertible = table != null && ammount != 0 && table.hasRate(currency);
+            long converted = 0;
+            if (convertible) {
+                converted = table.convert(currency, ammount);
+                grandTotal = addSaturated(grandTotal, converted);
+            } else if (table != null && ammount != 0) {
+                if (unconvertedCount == unconverted.length) {
+                    unconverted = Arrays.copyOf(unconverted, unconvertedCount * 2);
+                }
+                unconverted[unconvertedCount++] = CurrencyCodes.unpack(currency);
             }
+
+            boolean printed = changesOnly ? changed.get(currency) && ammount != reported[currency] : ammount != 0;
+            if (reported != null && (printed || !changesOnly)) {
+                // An unmarked change is not recorded, it's reported once its mark is drained
+                reported[currency] = ammount;
+            }
+            if (printed) {
+                line.currency = CurrencyCodes.unpack(currency);
+                line.amount = ammount;
+                line.scale = CurrencyScales.getScale(currency);
+                line.base = convertible ? base : null;
+                line.converted = converted;
+                line.baseScale = baseScale;
+                for (int w = 0; w < line.windows; w++) {
+                    line.windowTotals[w] = snapshot.getWindowTotalAt(w, i);
+                }
+                line.statistics = statistics ? snapshot.getStatisticsAt(i) : null;
+                format.writeLine(buffer, time, line);
+            }
+        }
+
+        if (table != null && buffer.size() > 0) {
+            format.writeTotal(buffer, time, base, grandTotal, baseScale, unconverted, unconvertedCount);
+        }
+
+        resync = buffer.size() > 0 && !sink.publish(buffer, !changesOnly);
+        TrackerMetrics.getInstance().recordPrint(System.nanoTime() - start);
+    }
+
+    private void prepareWindows(List<SlidingWindow> windows) {
+        if (line.windowNames == null || line.windowNames.length != windows.size()) {
+            line.windowNames = new String[windows.size()];
+            line.windowTotals = new long[windows.size()];
+            line.windows = windows.size();
+        }
+        for (int w = 0; w < line.windows; w++) {
+            line.windowNames[w] = windows.get(w).getName();
+        }
+    }
+
+    private static long addSaturated(long total, long amount) {
+        try {
+            return Amounts.addExact(total, amount);
+        } catch (ArithmeticException ex) {
+            return amount > 0 ? Long.MAX_VALUE : -Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The sink which writes the reports to the print stream in one call.
+     */
+    private static final class PrintStreamSink implements ReportSink {
+
+        private final PrintStream printStream;
+
+        PrintStreamSink(PrintStream printStream) {
+            this.printStream = printStream;
+        }
+
+        @Override
+        public boolean publish(ReportBuffer report, boolean complete) {
+            report.writeTo(printStream);
+            return true;
         }
     }
 }
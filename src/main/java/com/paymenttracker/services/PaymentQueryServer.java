@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.CurrencySnapshot;
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.CurrencyScales;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a read-only HTTP endpoint with the net amounts
+ * of the register. The resources are
+ * <ul>
+ * <li>{@code /totals} - the net amounts of all the registered currencies,</li>
+ * <li>{@code /totals/XXX} - the net amount of one currency,</li>
+ * </ul>
+ * as JSON (default) or plain text lines ({@code ?format=text}). The responses
+ * of all the currencies are rendered once per version of the register and
+ * served from the cache until the next version, the version is also sent
+ * as the ETag, so a poller with an unchanged version gets an empty 304
+ * response. Reading the register never blocks the writers (see
+ * {@link CurrencyHolder#snapshot()}).
+ * @author Jaromir Mlejnek
+ */
+public class PaymentQueryServer implements Closeable {
+
+    private static final Logger log = Logger.getLogger(PaymentQueryServer.class.getName());
+
+    public static final String CONTEXT = "/totals";
+
+    /**
+     * The number of the request threads.
+     */
+    private static final int THREADS = 2;
+
+    /**
+     * The time given to the running requests on close in seconds.
+     */
+    private static final int STOP_DELAY = 1;
+
+    private static final String JSON_TYPE = "application/json; charset=US-ASCII";
+
+    private static final String TEXT_TYPE = "text/plain; charset=US-ASCII";
+
+    private static final byte [] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final CurrencyHolder holder;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    /**
+     * The responses of the last rendered version.
+     */
+    private volatile Rendered cached;
+
+    /**
+     * Binds the endpoint, the requests are served once it is started.
+     * @param address the local address, the port 0 means any free port
+     * @param holder the register to query
+     * @throws IOException if the address cannot be bound
+     */
+    public PaymentQueryServer(InetSocketAddress address, CurrencyHolder holder) throws IOException {
+        this.holder = holder;
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "payment-query-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        server.setExecutor(executor);
+        server.createContext(CONTEXT, new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The address the endpoint listens on.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Starts serving the requests.
+     */
+    public void start() {
+        server.start();
+        log.log(Level.INFO, "Serving the net amounts on http://{0}:{1,number,#}{2}",
+                new Object[] { getLocalAddress().getHostString(), getLocalAddress().getPort(), CONTEXT });
+    }
+
+    @Override
+    public void close() {
+        server.stop(STOP_DELAY);
+        executor.shutdown();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            sendError(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getRawQuery();
+        boolean text;
+        if (query == null || query.isEmpty() || "format=json".equals(query)) {
+            text = false;
+        } else if ("format=text".equals(query)) {
+            text = true;
+        } else {
+            sendError(exchange, 400, "Unknown query '" + query + "', use format=json or format=text");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        String code = path.length() > CONTEXT.length() + 1 ? path.substring(CONTEXT.length() + 1) : null;
+        if (code == null ? !path.equals(CONTEXT) && !path.equals(CONTEXT + "/") : code.indexOf('/') >= 0) {
+            sendError(exchange, 404, "Not found");
+            return;
+        }
+
+        CurrencySnapshot snapshot = holder.snapshot();
+        String etag = "\"" + snapshot.getVersion() + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        byte[] body;
+        if (code == null) {
+            Rendered rendered = render(snapshot);
+            body = text ? rendered.text : rendered.json;
+        } else {
+            int currency = CurrencyCodes.pack(code);
+            if (currency == CurrencyCodes.INVALID) {
+                sendError(exchange, 400, "Invalid currency code '" + code + "'");
+                return;
+            }
+            if (!snapshot.contains(currency)) {
+                sendError(exchange, 404, "Currency " + code + " has not been registered");
+                return;
+            }
+            body = renderCurrency(snapshot, currency, text);
+        }
+
+        send(exchange, 200, text ? TEXT_TYPE : JSON_TYPE, body);
+    }
+
+    /**
+     * Returns the responses of all the currencies of the snapshot,
+     * they are rendered only if the snapshot is newer than the cached ones.
+     */
+    private Rendered render(CurrencySnapshot snapshot) {
+        Rendered rendered = cached;
+        if (rendered != null && rendered.version >= snapshot.getVersion()) {
+            return rendered.version == snapshot.getVersion() ? rendered : new Rendered(snapshot);
+        }
+
+        rendered = new Rendered(snapshot);
+        cached = rendered;
+        return rendered;
+    }
+
+    private static byte[] renderCurrency(CurrencySnapshot snapshot, int currency, boolean text) {
+        Writer writer = new Writer();
+        if (text) {
+            writer.writeLine(currency, snapshot.getTotal(currency));
+        } else {
+            writer.writeAscii("{\"version\":");
+            writer.writeAscii(Long.toString(snapshot.getVersion()));
+            writer.writeAscii(",\"currency\":\"");
+            writer.writeAscii(CurrencyCodes.unpack(currency));
+            writer.writeAscii("\",\"total\":");
+            writer.writeAmount(currency, snapshot.getTotal(currency));
+            writer.write('}');
+        }
+        return writer.toByteArray();
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Writer writer = new Writer();
+        writer.writeAscii(message);
+        writer.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+        send(exchange, status, TEXT_TYPE, writer.toByteArray());
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * The responses of all the currencies of one version of the register.
+     */
+    private static final class Rendered {
+
+        final long version;
+        final byte[] json;
+        final byte[] text;
+
+        Rendered(CurrencySnapshot snapshot) {
+            this.version = snapshot.getVersion();
+
+            Writer writer = new Writer();
+            writer.writeAscii("{\"version\":");
+            writer.writeAscii(Long.toString(version));
+            writer.writeAscii(",\"totals\":{");
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write('"');
+                writer.writeAscii(CurrencyCodes.unpack(snapshot.getCurrencyAt(i)));
+                writer.writeAscii("\":");
+                writer.writeAmount(snapshot.getCurrencyAt(i), snapshot.getTotalAt(i));
+            }
+            writer.writeAscii("}}");
+            this.json = writer.toByteArray();
+
+            writer.reset();
+            for (int i = 0; i < snapshot.size(); i++) {
+                writer.writeLine(snapshot.getCurrencyAt(i), snapshot.getTotalAt(i));
+            }
+            this.text = writer.toByteArray();
+        }
+    }
+
+    /**
+     * ASCII response writer.
+     */
+    private static final class Writer extends ByteArrayOutputStream {
+
+        private final byte [] digits = new byte[Amounts.MAX_LENGTH];
+
+        void writeAscii(String str) {
+            for (int i = 0; i < str.length(); i++) {
+                write(str.charAt(i));
+            }
+        }
+
+        void writeAmount(int currency, long amount) {
+            write(digits, 0, Amounts.write(amount, CurrencyScales.getScale(currency), digits, 0));
+        }
+
+        void writeLine(int currency, long amount) {
+            writeAscii(CurrencyCodes.unpack(currency));
+            write(' ');
+            writeAmount(currency, amount);
+            write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a base of the threads which read payment records from
+ * some source. It notifies a listener when the source is completed
+ * and supports a cooperative stop.
+ * <p>
+ * A source passes payments to its sink only between {@link #beginProgress()}
+ * and {@link #endProgress()}. Another thread can {@link #pauseProgress()} the source
+ * to see the payments passed so far consistent with the progress of the source
+ * (e.g. for a checkpoint).
+ * @author Jaromir Mlejnek
+ */
+public abstract class PaymentSource extends Thread {
+
+    /**
+     * Receives the completion signals of the sources.
+     */
+    public interface Listener {
+
+        /**
+         * Called by the source thread when the source is completed.
+         * @param source the completed source
+         */
+        void sourceCompleted(PaymentSource source);
+    }
+
+    private volatile boolean stopRequested = false;
+
+    private volatile Listener listener;
+
+    /**
+     * Held by the source thread while it makes progress, fair so that
+     * a pausing thread is not starved.
+     */
+    private final ReentrantLock progressLock = new ReentrantLock(true);
+
+    protected PaymentSource(String name) {
+        super(name);
+    }
+
+    @Override
+    public final void run() {
+        try {
+            read();
+        } finally {
+            Listener current = listener;
+            if (current != null) {
+                current.sourceCompleted(this);
+            }
+        }
+    }
+
+    /**
+     * Reads the source until it's exhausted or a stop is requested.
+     */
+    protected abstract void read();
+
+    /**
+     * Asks the source to stop reading. The source does not pass any payment
+     * to its sink once {@link #awaitStop(long)} returns.
+     */
+    public void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Waits until the source stops passing payments to its sink.
+     * @param timeoutMillis the maximal time to wait
+     * @throws InterruptedException
+     */
+    public void awaitStop(long timeoutMillis) throws InterruptedException {
+        join(timeoutMillis);
+    }
+
+    /**
+     * Checks whether the source was completed by a user request
+     * to shut the whole tracker down.
+     * @return True if the tracker should shut down.
+     */
+    public boolean isShutdownRequested() {
+        return false;
+    }
+
+    /**
+     * Blocks the source before it passes any more payments to its sink.
+     * Waits until the source finishes the current progress step.
+     * Must be followed by {@link #resumeProgress()} called by the same thread.
+     */
+    public void pauseProgress() {
+        progressLock.lock();
+    }
+
+    /**
+     * Lets a paused source continue.
+     */
+    public void resumeProgress() {
+        progressLock.unlock();
+    }
+
+    /**
+     * Returns the progress of the input files read by the source. The source must be
+     * paused (see {@link #pauseProgress()}) or not running, so the progress is consistent.
+     * @return The progress of the files without their identity, empty if the source does not read files.
+     */
+    public List<FileProgress> getFileProgress() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Records a block of lines read by the source in the metrics (see {@link TrackerMetrics}).
+     * @param parsed the number of the parsed lines
+     * @param rejected the number of the rejected lines
+     * @param nanos the time of reading and parsing the block
+     */
+    protected void recordLines(long parsed, long rejected, long nanos) {
+        TrackerMetrics.getInstance().recordLines(getName(), parsed, rejected, nanos);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    protected boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Starts a progress step - waits while the source is paused.
+     */
+    protected final void beginProgress() {
+        progressLock.lock();
+    }
+
+    /**
+     * Ends a progress step.
+     */
+    protected final void endProgress() {
+        progressLock.unlock();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+/**
+ * The JMX view of the stages of the payment pipeline (see {@link PaymentPipeline}).
+ * @author Jaromir Mlejnek
+ */
+public interface PipelineMetricsMXBean {
+
+    /**
+     * @return The number of payments put into the pipeline by the readers.
+     */
+    long getPublished();
+
+    /**
+     * @return The number of payments applied by the aggregator.
+     */
+    long getConsumed();
+
+    /**
+     * @return The reader stage throughput (payments per second).
+     */
+    double getPublishRate();
+
+    /**
+     * @return The aggregator stage throughput (payments per second).
+     */
+    double getConsumeRate();
+
+    long getBatches();
+
+    double getAverageBatchSize();
+
+    int getMaxBatchSize();
+
+    /**
+     * @return The number of payments waiting in the buffer.
+     */
+    int getDepth();
+
+    int getMaxDepth();
+
+    int getCapacity();
+
+    /**
+     * @return The number of payments which had to wait for a free slot.
+     */
+    long getStalls();
+
+    /**
+     * @return The number of payments which failed in the register.
+     */
+    long getFailures();
+
+    /**
+     * @return The number of partial totals applied by the aggregator.
+     */
+    long getTotals();
+
+    /**
+     * @return The number of partial totals which failed in the register.
+     */
+    long getFailedTotals();
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.CurrencyScales;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class is an immutable table of the exchange rates to one base currency.
+ * The rates are read from a text file with one definition per line:
+ * <pre>
+ * # comment
+ * BASE USD
+ * EUR 1.0842
+ * JPY 0.0067
+ * </pre>
+ * The rate is the value of one unit of the currency in the base currency,
+ * the rate of the base currency itself is 1. The table keeps the conversion
+ * factors of the minor units indexed by the packed currency code, so a
+ * conversion is one array read and one multiplication.
+ * @author Jaromir Mlejnek
+ */
+public final class RateTable {
+
+    private static final String BASE = "BASE";
+
+    private final int baseCurrency;
+
+    /**
+     * The rates indexed by the packed currency code, zero if the currency has no rate.
+     */
+    private final double[] rates;
+
+    /**
+     * The minor units of the base currency per a minor unit of the currency,
+     * indexed by the packed currency code.
+     */
+    private final double[] factors;
+
+    /**
+     * @param baseCurrency the packed code of the base currency
+     * @param rates the rates indexed by the packed currency code, zero if the currency has no rate
+     */
+    public RateTable(int baseCurrency, double[] rates) {
+        if (rates.length != CurrencyCodes.SLOTS) {
+            throw new IllegalArgumentException("Rates must be indexed by the packed currency code");
+        }
+
+        this.baseCurrency = baseCurrency;
+        this.rates = Arrays.copyOf(rates, rates.length);
+        this.rates[baseCurrency] = 1;
+        this.factors = new double[rates.length];
+        int baseScale = CurrencyScales.getScale(baseCurrency);
+        for (int currency = 0; currency < rates.length; currency++) {
+            if (this.rates[currency] > 0) {
+                factors[currency] = this.rates[currency] * Math.pow(10, baseScale - CurrencyScales.getScale(currency));
+            }
+        }
+    }
+
+    /**
+     * @return The packed code of the base currency.
+     */
+    public int getBaseCurrency() {
+        return baseCurrency;
+    }
+
+    /**
+     * @param currency the packed currency code
+     * @return True if the currency can be converted to the base currency.
+     */
+    public boolean hasRate(int currency) {
+        return factors[currency] > 0;
+    }
+
+    /**
+     * @param currency the packed currency code
+     * @return The value of one unit of the currency in the base currency or zero if the currency has no rate.
+     */
+    public double getRate(int currency) {
+        return rates[currency];
+    }
+
+    /**
+     * Converts the amount to the base currency. The result is rounded to the minor
+     * units of the base currency (half up) and clamped to the range of the amounts;
+     * an amount above 2^53 minor units may lose precision.
+     * @param currency the packed currency code, see {@link #hasRate(int)}
+     * @param amount the amount in minor units of the currency
+     * @return The amount in minor units of the base currency, zero if the currency has no rate.
+     */
+    public long convert(int currency, long amount) {
+        long converted = Math.round(amount * factors[currency]);
+        return converted == Long.MIN_VALUE ? -Long.MAX_VALUE : converted;
+    }
+
+    /**
+     * Parses the rate table.
+     * @param content the content of the rate file
+     * @param name the name of the rate file, used in the error messages
+     * @return The rate table.
+     * @throws IOException if the content is not a valid rate table
+     */
+    public static RateTable parse(byte[] content, String name) throws IOException {
+        int baseCurrency = CurrencyCodes.INVALID;
+        double[] rates = new double[CurrencyCodes.SLOTS];
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.US_ASCII));
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split("\\s+");
+            if (parts.length != 2) {
+                throw invalidLine(name, lineNumber, line);
+            }
+            if (BASE.equals(parts[0])) {
+                int currency = CurrencyCodes.pack(parts[1]);
+                if (currency == CurrencyCodes.INVALID || baseCurrency != CurrencyCodes.INVALID) {
+                    throw invalidLine(name, lineNumber, line);
+                }
+                baseCurrency = currency;
+                continue;
+            }
+
+            int currency = CurrencyCodes.pack(parts[0]);
+            double rate;
+            try {
+                rate = Double.parseDouble(parts[1]);
+            } catch (NumberFormatException ex) {
+                throw invalidLine(name, lineNumber, line);
+            }
+            if (currency == CurrencyCodes.INVALID || !(rate > 0) || Double.isInfinite(rate)) {
+                throw invalidLine(name, lineNumber, line);
+            }
+            rates[currency] = rate;
+        }
+
+        if (baseCurrency == CurrencyCodes.INVALID) {
+            throw new IOException("Rate file " + name + " does not define the " + BASE + " currency");
+        }
+        return new RateTable(baseCurrency, rates);
+    }
+
+    private static IOException invalidLine(String name, int lineNumber, String line) {
+        return new IOException("Invalid rate '" + line + "' at line " + lineNumber + " of " + name);
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.Amounts;
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentParserException.Reason;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class handles the rejected input lines. A stream of invalid lines must
+ * not slow the ingestion down, so the readers do not log every rejected line:
+ * <ul>
+ * <li>the first {@link #LOGGED_LINES} rejected lines are logged one by one,
+ * the following ones are only counted and summarized by the reason
+ * at most once per {@link #SUMMARY_PERIOD_SECONDS} seconds,</li>
+ * <li>every rejected line can be written to a dead-letter file as
+ * "source TAB line number TAB raw line", so it can be fixed and
+ * loaded again.</li>
+ * </ul>
+ * Each reader thread uses its own {@link Recorder} which counts the rejected
+ * lines and collects the dead-letter records locally and hands them over
+ * in bulk, so a rejected line costs about as much as a parsed one.
+ * It implements a thread-safe modification of Singleton pattern.
+ * @author Jaromir Mlejnek
+ */
+public final class RejectedLines implements Closeable {
+
+    private static final Logger log = Logger.getLogger(RejectedLines.class.getName());
+
+    /**
+     * The number of the rejected lines logged one by one.
+     */
+    public static final int LOGGED_LINES = 10;
+
+    /**
+     * The minimal period of the summaries of the rejected lines.
+     */
+    public static final int SUMMARY_PERIOD_SECONDS = 10;
+
+    private static final long SUMMARY_PERIOD = TimeUnit.SECONDS.toNanos(SUMMARY_PERIOD_SECONDS);
+
+    private static final Reason[] REASONS = Reason.values();
+
+    /**
+     * The number of the bytes of a rejected line shown in the log.
+     */
+    private static final int MAX_LOGGED_LENGTH = 256;
+
+    /**
+     * The size of the dead-letter records collected by a recorder before they are written.
+     */
+    private static final int RECORDS_SIZE = 64 * 1024;
+
+    /**
+     * A recorder hands its counts over and checks the summary once per this number of rejected lines.
+     */
+    private static final int CHECK_MASK = 1024 - 1;
+
+    private final AtomicInteger loggedLines = new AtomicInteger();
+
+    private final AtomicLong nextSummary = new AtomicLong(System.nanoTime() + SUMMARY_PERIOD);
+
+    /**
+     * The rejected lines covered by the previous summaries, guarded by this.
+     */
+    private final long[] summarized = new long[REASONS.length];
+
+    private volatile OutputStream deadLetter;
+
+    private File deadLetterFile;
+
+    private RejectedLines() {
+    }
+
+    /**
+     * Starts writing the rejected lines to the dead-letter file,
+     * the records are appended to an existing file.
+     * @param file the dead-letter file
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized void open(File file) throws IOException {
+        if (deadLetter != null) {
+            throw new IllegalStateException("Dead-letter file " + deadLetterFile + " is open already");
+        }
+        deadLetter = new BufferedOutputStream(new FileOutputStream(file, true), RECORDS_SIZE);
+        deadLetterFile = file;
+    }
+
+    /**
+     * Closes the dead-letter file (if any) and logs the summary of the rejected
+     * lines which have not been summarized yet. The recorders are expected
+     * to be flushed already.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        summarize();
+        OutputStream stream = deadLetter;
+        if (stream != null) {
+            deadLetter = null;
+            stream.close();
+            log.log(Level.INFO, "Rejected lines written to {0}", deadLetterFile);
+        }
+    }
+
+    /**
+     * Creates a recorder of the rejected lines for one reader thread.
+     * @param source the name of the input in the dead-letter records, e.g. the file path
+     */
+    Recorder recorder(String source) {
+        return new Recorder(source, true);
+    }
+
+    /**
+     * Returns the name of a file source, the name of a file read from the middle
+     * (e.g. resumed from a checkpoint) contains the offset, because the line
+     * numbers are counted from it.
+     * @param path the path of the file
+     * @param offset the position the reading starts at
+     */
+    static String source(String path, long offset) {
+        return offset > 0 ? path + "@" + offset : path;
+    }
+
+    private void write(byte[] records, int length) {
+        synchronized (this) {
+            OutputStream stream = deadLetter;
+            if (stream == null) {
+                return;
+            }
+            try {
+                stream.write(records, 0, length);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Dead-letter file {0} cannot be written: {1}",
+                        new Object[] { deadLetterFile, ex.getMessage() });
+            }
+        }
+    }
+
+    private void logLine(String source, long line, Reason reason, byte[] data, int from, int to) {
+        int logged = loggedLines.incrementAndGet();
+        if (logged > LOGGED_LINES) {
+            return;
+        }
+
+        String text = new String(data, from, Math.min(to - from, MAX_LOGGED_LENGTH), Charset.defaultCharset());
+        log.log(Level.WARNING, "Line {1,number,#} of {0} rejected ({2}): {3}", new Object[] {
+            source, line, reason, to - from > MAX_LOGGED_LENGTH ? text + "..." : text });
+        if (logged == LOGGED_LINES) {
+            log.log(Level.WARNING, "Further rejected lines are summarized at most once per {0} s",
+                    SUMMARY_PERIOD_SECONDS);
+        }
+    }
+
+    private void summarizeLater() {
+        long next = nextSummary.get();
+        long now = System.nanoTime();
+        if (now - next >= 0 && nextSummary.compareAndSet(next, now + SUMMARY_PERIOD)) {
+            summarize();
+        }
+    }
+
+    private synchronized void summarize() {
+        if (loggedLines.get() < LOGGED_LINES) {
+            // All the rejected lines have been logged one by one
+            return;
+        }
+
+        TrackerMetrics metrics = TrackerMetrics.getInstance();
+        StringBuilder reasons = new StringBuilder();
+        long total = 0;
+        for (int i = 0; i < REASONS.length; i++) {
+            long rejected = metrics.getRejected(REASONS[i]);
+            long count = rejected - summarized[i];
+            summarized[i] = rejected;
+            if (count > 0) {
+                reasons.append(reasons.length() > 0 ? ", " : "").append(REASONS[i]).append(' ').append(count);
+                total += count;
+            }
+        }
+        if (total > 0) {
+            log.log(Level.WARNING, "Rejected {0,number,#} lines ({1})", new Object[] { total, reasons });
+        }
+    }
+
+    /**
+     * Parses the lines of one reader thread and records the rejected ones.
+     * It is not thread-safe, the counts and the dead-letter records are
+     * handed over when enough of them is collected and by {@link #flush()},
+     * which must be called when the reader stops (e.g. at the end of a block
+     * or a file).
+     */
+    class Recorder {
+
+        private final String source;
+
+        private final byte[] prefix;
+
+        /**
+         * False if the reader reports the rejected lines itself, e.g. to the user typing them.
+         */
+        private final boolean logged;
+
+        private final long[] counts = new long[REASONS.length];
+
+        private long rejected;
+
+        private byte[] records;
+
+        private int length;
+
+        private byte[] line;
+
+        Recorder(String source, boolean logged) {
+            this.source = source;
+            this.logged = logged;
+            this.prefix = (source + '\t').getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the number of the lines preceding the lines numbered by the reader,
+         * the method is called only for the rejected lines.
+         */
+        protected long lineBase() {
+            return 0;
+        }
+
+        /**
+         * Parses the line and passes the payment to the sink, a rejected line is recorded.
+         * @param data the buffer with the line
+         * @param from the index of the first byte of the line
+         * @param to the index after the last byte of the line (without the line terminator)
+         * @param lineNumber the number of the line, starting from 1
+         * @param sink the receiver of the parsed payment
+         * @return {@link PaymentParser#PARSED}, {@link PaymentParser#EMPTY} or {@link PaymentParser#REJECTED}.
+         */
+        int parse(byte[] data, int from, int to, long lineNumber, PaymentSink sink) {
+            try {
+                int result = PaymentParser.tryParse(data, from, to, sink);
+                if (result == PaymentParser.REJECTED) {
+                    reject(data, from, to, lineNumber, PaymentParser.reasonOf(data, from, to));
+                }
+                return result;
+            } catch (ArithmeticException ex) {
+                // The amount overflows the totals of the sink
+                reject(data, from, to, lineNumber, Reason.OVERFLOW);
+                return PaymentParser.REJECTED;
+            }
+        }
+
+        /**
+         * Parses the line stored in the byte buffer range, see {@link #parse(byte[], int, int, long, PaymentSink)}.
+         */
+        int parse(ByteBuffer buffer, int from, int to, long lineNumber, PaymentSink sink) {
+            if (buffer.hasArray()) {
+                int offset = buffer.arrayOffset();
+                return parse(buffer.array(), offset + from, offset + to, lineNumber, sink);
+            }
+
+            int size = copy(buffer, from, to);
+            return parse(line, 0, size, lineNumber, sink);
+        }
+
+        /**
+         * Records a rejected line.
+         * @param data the buffer with the line
+         * @param from the index of the first byte of the line
+         * @param to the index after the last byte of the line (without the line terminator)
+         * @param lineNumber the number of the line, starting from 1
+         * @param reason the reason of the rejection
+         */
+        void reject(byte[] data, int from, int to, long lineNumber, Reason reason) {
+            counts[reason.ordinal()]++;
+            if (logged && loggedLines.get() < LOGGED_LINES) {
+                logLine(source, lineBase() + lineNumber, reason, data, from, to);
+            }
+            if (deadLetter != null) {
+                append(data, from, to, lineBase() + lineNumber);
+            }
+            if ((++rejected & CHECK_MASK) == 0) {
+                flushCounts();
+                summarizeLater();
+            }
+        }
+
+        /**
+         * Records a rejected line stored in the byte buffer range,
+         * see {@link #reject(byte[], int, int, long, Reason)}.
+         */
+        void reject(ByteBuffer buffer, int from, int to, long lineNumber, Reason reason) {
+            int size = copy(buffer, from, to);
+            reject(line, 0, size, lineNumber, reason);
+        }
+
+        /**
+         * Records a rejected line, see {@link #reject(byte[], int, int, long, Reason)}.
+         */
+        void reject(String text, long lineNumber, Reason reason) {
+            byte[] data = text.getBytes(Charset.defaultCharset());
+            reject(data, 0, data.length, lineNumber, reason);
+        }
+
+        /**
+         * Hands the counts and the dead-letter records over.
+         */
+        void flush() {
+            flushCounts();
+            if (length > 0) {
+                write(records, length);
+                length = 0;
+            }
+            if (rejected > 0) {
+                summarizeLater();
+            }
+        }
+
+        private int copy(ByteBuffer buffer, int from, int to) {
+            int size = to - from;
+            if (line == null || line.length < size) {
+                line = new byte[Math.max(size, 256)];
+            }
+            for (int i = 0; i < size; i++) {
+                line[i] = buffer.get(from + i);
+            }
+            return size;
+        }
+
+        private void append(byte[] data, int from, int to, long lineNumber) {
+            int size = prefix.length + 21 + (to - from) + 1;
+            if (records == null) {
+                records = new byte[Math.max(RECORDS_SIZE, size)];
+            } else if (records.length - length < size) {
+                write(records, length);
+                length = 0;
+                if (records.length < size) {
+                    records = new byte[size];
+                }
+            }
+
+            System.arraycopy(prefix, 0, records, length, prefix.length);
+            length = Amounts.write(lineNumber, 0, records, length + prefix.length);
+            records[length++] = '\t';
+            System.arraycopy(data, from, records, length, to - from);
+            length += to - from;
+            records[length++] = '\n';
+        }
+
+        private void flushCounts() {
+            TrackerMetrics metrics = TrackerMetrics.getInstance();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    metrics.recordRejected(REASONS[i], counts[i]);
+                    counts[i] = 0;
+                }
+            }
+        }
+    }
+
+    // Thread-safe singleton implementation
+    private static class RejectedLinesLoader {
+        private static final RejectedLines INSTANCE = new RejectedLines();
+    }
+
+    public static RejectedLines getInstance() {
+        return RejectedLinesLoader.INSTANCE;
+    }
+}
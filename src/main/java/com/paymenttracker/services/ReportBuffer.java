@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.Amounts;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class is a reusable byte buffer of an encoded report. The buffer grows
+ * to the size of the largest report and is then reused, so encoding a report
+ * does not allocate. The text is ASCII.
+ * @author Jaromir Mlejnek
+ */
+public final class ReportBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Scratch space for the digits of an amount.
+     */
+    private final byte [] digits = new byte[Amounts.MAX_LENGTH];
+
+    /**
+     * @param initialSize the initial capacity in bytes
+     */
+    public ReportBuffer(int initialSize) {
+        super(initialSize);
+    }
+
+    /**
+     * Appends the ASCII string.
+     * @param str the string
+     */
+    public void writeAscii(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            write(str.charAt(i));
+        }
+    }
+
+    /**
+     * Appends the decimal amount (see {@link Amounts#write(long, int, byte[], int)}).
+     * @param amount the amount in minor units
+     * @param scale the number of the decimal places of the currency
+     */
+    public void writeAmount(long amount, int scale) {
+        write(digits, 0, Amounts.write(amount, scale, digits, 0));
+    }
+
+    /**
+     * Appends the integer number.
+     * @param number the number
+     */
+    public void writeLong(long number) {
+        write(digits, 0, Amounts.write(number, 0, digits, 0));
+    }
+
+    /**
+     * Appends the content of the other buffer.
+     * @param other the appended buffer
+     */
+    public void append(ReportBuffer other) {
+        write(other.buf, 0, other.count);
+    }
+
+    /**
+     * Writes the content to the print stream in one call and flushes it.
+     * @param printStream the print stream
+     */
+    public void writeTo(PrintStream printStream) {
+        printStream.write(buf, 0, count);
+        printStream.flush();
+    }
+
+    /**
+     * Writes the whole content to the channel.
+     * @param channel the channel
+     * @throws IOException if the channel fails
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(buf, 0, count);
+        while (content.hasRemaining()) {
+            channel.write(content);
+        }
+    }
+}
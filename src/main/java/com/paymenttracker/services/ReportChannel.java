@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class writes the encoded reports to the standard output or to a report
+ * file through an NIO channel. A report file is rolled before a report which
+ * would make it larger than the size limit or when it's older than the time
+ * limit - the file is renamed to "file.1", "file.2", ... (the highest number
+ * is the newest one) and a new file is started. A report is never split
+ * between two files. The channel is not thread-safe.
+ * @author Jaromir Mlejnek
+ */
+public final class ReportChannel implements Closeable {
+
+    private static final Logger log = Logger.getLogger(ReportChannel.class.getName());
+
+    private final File file;
+
+    private final long rollBytes;
+
+    private final long rollMillis;
+
+    private WritableByteChannel channel;
+
+    private long size;
+
+    private long opened;
+
+    /**
+     * The number of the last rolled file.
+     */
+    private int rolled;
+
+    private ReportChannel(WritableByteChannel channel) {
+        this.file = null;
+        this.rollBytes = 0;
+        this.rollMillis = 0;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the report file, the reports are appended to the existing content.
+     * @param file the report file
+     * @param rollBytes the size limit of the file in bytes, 0 if the file is not rolled by the size
+     * @param rollMillis the time limit of the file in milliseconds, 0 if the file is not rolled by the time
+     * @throws IOException if the file cannot be opened
+     */
+    public ReportChannel(File file, long rollBytes, long rollMillis) throws IOException {
+        this.file = file;
+        this.rollBytes = rollBytes;
+        this.rollMillis = rollMillis;
+        while (rolledFile(rolled + 1).exists()) {
+            rolled++;
+        }
+        open();
+    }
+
+    /**
+     * @return The channel of the standard output, it's never rolled.
+     */
+    public static ReportChannel toStandardOutput() {
+        return new ReportChannel(Channels.newChannel(new FileOutputStream(FileDescriptor.out)));
+    }
+
+    /**
+     * Writes the report, the file is rolled first if it's due.
+     * @param report the encoded report
+     * @throws IOException if the report cannot be written
+     */
+    public void write(ReportBuffer report) throws IOException {
+        if (file != null && size > 0 && (rollBytes > 0 && size + report.size() > rollBytes
+                || rollMillis > 0 && System.currentTimeMillis() - opened >= rollMillis)) {
+            roll();
+        }
+        report.writeTo(channel);
+        size += report.size();
+    }
+
+    /**
+     * Closes the report file, the standard output is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            channel.close();
+        }
+    }
+
+    private void open() throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channel = fileChannel;
+        size = fileChannel.size();
+        opened = System.currentTimeMillis();
+    }
+
+    private void roll() throws IOException {
+        channel.close();
+        File target = rolledFile(rolled + 1);
+        try {
+            Files.move(file.toPath(), target.toPath());
+            rolled++;
+            log.log(Level.INFO, "Report file rolled to {0}", target);
+        } finally {
+            // The reports continue in the file even if it cannot be rolled
+            open();
+        }
+    }
+
+    private File rolledFile(int number) {
+        return new File(file.getPath() + "." + number);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.QuantileSketch;
+
+/**
+ * This class encodes the lines of a report into a {@link ReportBuffer}.
+ * A report is a sequence of the lines of the currencies, optionally
+ * followed by the grand total of the converted amounts. The formats are
+ * plain text (the console report), CSV and JSON lines - one row or object
+ * per line of the report, each stamped by the time of the report.
+ * @author Jaromir Mlejnek
+ */
+public abstract class ReportFormat {
+
+    public static final String TEXT = "text";
+
+    public static final String CSV = "csv";
+
+    public static final String JSON = "json";
+
+    /**
+     * Returns the format of the name.
+     * @param name {@link #TEXT}, {@link #CSV} or {@link #JSON}
+     * @return The format.
+     * @throws IllegalArgumentException if the format is not known
+     */
+    public static ReportFormat forName(String name) {
+        switch (name) {
+            case TEXT:
+                return new TextReportFormat();
+            case CSV:
+                return new CsvReportFormat();
+            case JSON:
+                return new JsonReportFormat();
+            default:
+                throw new IllegalArgumentException("Unknown report format '" + name + "'");
+        }
+    }
+
+    /**
+     * Encodes the line of a currency.
+     * @param out the buffer of the report
+     * @param time the time of the report in milliseconds since the epoch
+     * @param line the line
+     */
+    abstract void writeLine(ReportBuffer out, long time, Line line);
+
+    /**
+     * Encodes the grand total of the converted amounts.
+     * @param out the buffer of the report
+     * @param time the time of the report in milliseconds since the epoch
+     * @param base the base currency code
+     * @param total the grand total in minor units of the base currency
+     * @param scale the number of the decimal places of the base currency
+     * @param unconverted the codes of the currencies without a rate
+     * @param count the number of the currencies without a rate
+     */
+    abstract void writeTotal(ReportBuffer out, long time, String base, long total, int scale,
+            String[] unconverted, int count);
+
+    /**
+     * One line of a report, the instance is reused for all the lines.
+     */
+    static final class Line {
+
+        String currency;
+        long amount;
+        int scale;
+
+        /**
+         * The base currency code or null if the amount is not converted.
+         */
+        String base;
+        long converted;
+        int baseScale;
+
+        String[] windowNames;
+        long[] windowTotals;
+        int windows;
+
+        /**
+         * The statistics of the payments or null if they are not reported.
+         */
+        QuantileSketch.Snapshot statistics;
+    }
+}
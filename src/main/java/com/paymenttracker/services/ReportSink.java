@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+/**
+ * Receiver of the encoded reports of {@link PaymentPrinterStreamWriter}.
+ * @author Jaromir Mlejnek
+ */
+public interface ReportSink {
+
+    /**
+     * Publishes the encoded report. The buffer is reused by the next report,
+     * so its content must be written or copied before the method returns.
+     * @param report the encoded report, not empty
+     * @param complete true if the report contains all the net amounts, false
+     * if it contains only the changes since the previous report
+     * @return False if the report has been dropped, so the next report
+     * must be a complete one
+     */
+    boolean publish(ReportBuffer report, boolean complete);
+}
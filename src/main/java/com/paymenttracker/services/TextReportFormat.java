@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.utils.QuantileSketch;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The console report, e.g. "EUR 1000 = USD 1084.20 (1m 10, 1h 500, 1d 1000)"
+ * and "Total USD 1084.20 (without GBP)". The time of the report is not printed.
+ * @author Jaromir Mlejnek
+ */
+final class TextReportFormat extends ReportFormat {
+
+    private static final byte [] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    @Override
+    void writeLine(ReportBuffer out, long time, Line line) {
+        out.writeAscii(line.currency);
+        out.write(' ');
+        out.writeAmount(line.amount, line.scale);
+        if (line.base != null) {
+            out.writeAscii(" = ");
+            out.writeAscii(line.base);
+            out.write(' ');
+            out.writeAmount(line.converted, line.baseScale);
+        }
+        for (int w = 0; w < line.windows; w++) {
+            out.writeAscii(w == 0 ? " (" : ", ");
+            out.writeAscii(line.windowNames[w]);
+            out.write(' ');
+            out.writeAmount(line.windowTotals[w], line.scale);
+        }
+        if (line.windows > 0) {
+            out.write(')');
+        }
+        if (line.statistics != null) {
+            writeStatistics(out, line.statistics, line.scale);
+        }
+        out.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    @Override
+    void writeTotal(ReportBuffer out, long time, String base, long total, int scale, String[] unconverted, int count) {
+        out.writeAscii("Total ");
+        out.writeAscii(base);
+        out.write(' ');
+        out.writeAmount(total, scale);
+        for (int i = 0; i < count; i++) {
+            out.writeAscii(i == 0 ? " (without " : ", ");
+            out.writeAscii(unconverted[i]);
+        }
+        if (count > 0) {
+            out.write(')');
+        }
+        out.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    private static void writeStatistics(ReportBuffer out, QuantileSketch.Snapshot snapshot, int scale) {
+        out.writeAscii(" [n ");
+        out.writeLong(snapshot.getCount());
+        writeAmount(out, ", min ", snapshot.getMin(), scale);
+        writeAmount(out, ", max ", snapshot.getMax(), scale);
+        writeAmount(out, ", mean ", Math.round(snapshot.getMean()), scale);
+        writeAmount(out, ", p50 ", snapshot.getQuantile(0.5), scale);
+        writeAmount(out, ", p99 ", snapshot.getQuantile(0.99), scale);
+        writeAmount(out, ", p99.9 ", snapshot.getQuantile(0.999), scale);
+        out.write(']');
+    }
+
+    private static void writeAmount(ReportBuffer out, String label, long amount, int scale) {
+        out.writeAscii(label);
+        out.writeAmount(amount, scale);
+    }
+}
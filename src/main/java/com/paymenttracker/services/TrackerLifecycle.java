@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class manages the lifecycle of the tracker. It starts the payment
+ * sources and blocks until the tracker should shut down - a source requests
+ * it (the quit sequence), all the sources are completed or the JVM is
+ * terminated (SIGTERM, via a shutdown hook). The shutdown is ordered:
+ * the sources are stopped, the in-flight payments are drained from the
+ * pipeline, the schedulers are stopped, the resources (e.g. the journal)
+ * are closed and the final report is printed.
+ * @author Jaromir Mlejnek
+ */
+public class TrackerLifecycle implements PaymentSource.Listener {
+
+    private static final Logger log = Logger.getLogger(TrackerLifecycle.class.getName());
+
+    /**
+     * The maximal time to wait for the sources to stop.
+     */
+    private static final long SOURCE_STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * The maximal time to wait for a running periodic task to finish.
+     */
+    private static final long SCHEDULER_STOP_TIMEOUT = 5;
+
+    private final PaymentPipeline pipeline;
+    private final List<ScheduledExecutorService> schedulers = new CopyOnWriteArrayList<>();
+    private final Runnable finalReport;
+    private final List<PaymentSource> sources = new CopyOnWriteArrayList<>();
+    private final List<Closeable> resources = new CopyOnWriteArrayList<>();
+    private final AtomicInteger completedSources = new AtomicInteger();
+    private final CountDownLatch shutdownRequested = new CountDownLatch(1);
+    private final Thread shutdownHook;
+
+    private boolean shutdownDone = false;
+
+    public TrackerLifecycle(PaymentPipeline pipeline, ScheduledExecutorService scheduler, Runnable finalReport) {
+        this.pipeline = pipeline;
+        this.schedulers.add(scheduler);
+        this.finalReport = finalReport;
+        this.shutdownHook = new Thread("payment-tracker-shutdown") {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        };
+    }
+
+    /**
+     * Adds a source which will be started by {@link #start()}.
+     * @param source the payment source
+     */
+    public void addSource(PaymentSource source) {
+        source.setListener(this);
+        sources.add(source);
+    }
+
+    /**
+     * Adds a resource which is closed once the in-flight payments are drained.
+     * @param resource the resource to close
+     */
+    public void addResource(Closeable resource) {
+        resources.add(resource);
+    }
+
+    /**
+     * Adds another scheduler which is stopped together with the scheduler of the reports.
+     * @param scheduler the scheduler of periodic tasks
+     */
+    public void addScheduler(ScheduledExecutorService scheduler) {
+        schedulers.add(scheduler);
+    }
+
+    /**
+     * Installs the shutdown hook and starts the sources.
+     */
+    public void start() {
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        for (PaymentSource source : sources) {
+            source.start();
+        }
+    }
+
+    /**
+     * Blocks until the tracker should shut down and shuts it down.
+     * @throws InterruptedException
+     */
+    public void awaitShutdown() throws InterruptedException {
+        shutdownRequested.await();
+        shutdown();
+    }
+
+    /**
+     * Requests the shutdown of the tracker.
+     */
+    public void requestShutdown() {
+        shutdownRequested.countDown();
+    }
+
+    @Override
+    public void sourceCompleted(PaymentSource source) {
+        // Shut down on a user request or when nothing more can arrive
+        if (source.isShutdownRequested() || completedSources.incrementAndGet() == sources.size()) {
+            requestShutdown();
+        }
+    }
+
+    /**
+     * Shuts the tracker down. The method may be called several times,
+     * the shutdown is performed only once.
+     */
+    public synchronized void shutdown() {
+        if (shutdownDone) {
+            return;
+        }
+        shutdownDone = true;
+        requestShutdown();
+
+        try {
+            // Stop the sources
+            long start = System.nanoTime();
+            for (PaymentSource source : sources) {
+                source.requestStop();
+            }
+            long deadline = System.currentTimeMillis() + SOURCE_STOP_TIMEOUT;
+            for (PaymentSource source : sources) {
+                source.awaitStop(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            long stopped = System.nanoTime();
+
+            // Apply the in-flight payments
+            long pending = pipeline.getStatistics().getDepth();
+            pipeline.close();
+            long drained = System.nanoTime();
+
+            // Stop the periodic tasks, let the running ones finish before
+            // the resources they use are closed
+            for (ScheduledExecutorService scheduler : schedulers) {
+                scheduler.shutdown();
+            }
+            for (ScheduledExecutorService scheduler : schedulers) {
+                scheduler.awaitTermination(SCHEDULER_STOP_TIMEOUT, TimeUnit.SECONDS);
+            }
+
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException ex) {
+                    report(Level.WARNING, ex.getMessage());
+                }
+            }
+
+            finalReport.run();
+
+            report(Level.INFO, String.format("Shutdown: sources stopped in %d ms, %d in-flight payments drained in %d ms",
+                    TimeUnit.NANOSECONDS.toMillis(stopped - start), pending,
+                    TimeUnit.NANOSECONDS.toMillis(drained - stopped)));
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            report(Level.WARNING, "Shutdown interrupted");
+        }
+
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // The JVM is already shutting down
+            }
+        }
+    }
+
+    /**
+     * Logs a message of the shutdown. The shutdown hook of the logging may
+     * have reset the handlers already when the JVM is terminated, the message
+     * is written to the standard error output then.
+     */
+    private void report(Level level, String message) {
+        if (Thread.currentThread() == shutdownHook) {
+            System.err.println(level.getName() + ": " + message);
+        } else {
+            log.log(level, message);
+        }
+    }
+}
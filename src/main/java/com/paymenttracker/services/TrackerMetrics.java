@@ -0,0 +1,465 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.services;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.CurrencySnapshot;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.LatencyHistogram;
+import com.paymenttracker.utils.PaymentParserException;
+import com.paymenttracker.utils.PerThreadCounters;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class is the registry of the tracker metrics - the lines read by each
+ * kind of source, the parsed and rejected lines, the registered payments by the
+ * currency (kept by {@link CurrencyHolder}) and the latency histograms of
+ * parsing, registering and printing. All of them are recorded into
+ * {@link PerThreadCounters} without any lock and summed when they are read.
+ * <p>
+ * Parsing and registering are timed by blocks (a chunk of a file, a batch
+ * of the pipeline) - timing every line would cost more than parsing it.
+ * A block is recorded as one sample, the mean latency of its lines, so their
+ * histograms are the histograms of the block means: the quantiles are not
+ * the tail latencies of single lines, one slow line is averaged with its block.
+ * <p>
+ * The metrics are published as MXBeans in the {@link #DOMAIN} domain together
+ * with the counters of the stages of the pipeline and the commits of the journal.
+ * It implements a thread-safe modification of Singleton pattern.
+ * @author Jaromir Mlejnek
+ */
+public final class TrackerMetrics {
+
+    public static final String DOMAIN = "com.paymenttracker";
+
+    private static final PaymentParserException.Reason[] REASONS = PaymentParserException.Reason.values();
+
+    private static final int PARSED = REASONS.length;
+
+    /**
+     * The lines read by the kinds of the sources.
+     */
+    private final ConcurrentMap<String, PerThreadCounters> linesRead = new ConcurrentHashMap<>();
+
+    /**
+     * The rejected lines indexed by the reason ordinal and the parsed lines.
+     */
+    private final PerThreadCounters lines = new PerThreadCounters(REASONS.length + 1);
+
+    /**
+     * The mean latencies of parsing a line of the blocks.
+     */
+    private final LatencyHistogram parseBlockLatency = new LatencyHistogram();
+
+    /**
+     * The mean latencies of registering a payment of the batches.
+     */
+    private final LatencyHistogram registerBlockLatency = new LatencyHistogram();
+
+    private final LatencyHistogram printLatency = new LatencyHistogram();
+
+    private TrackerMetrics() {
+    }
+
+    /**
+     * Records a block of lines read by a source.
+     * @param source the name of the source kind
+     * @param parsed the number of the parsed lines
+     * @param rejected the number of the rejected lines
+     * @param nanos the time of reading and parsing the block
+     */
+    public void recordLines(String source, long parsed, long rejected, long nanos) {
+        long count = parsed + rejected;
+        if (count == 0) {
+            return;
+        }
+
+        PerThreadCounters counter = linesRead.get(source);
+        if (counter == null) {
+            PerThreadCounters created = new PerThreadCounters(1);
+            counter = linesRead.putIfAbsent(source, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.add(0, count);
+        lines.add(PARSED, parsed);
+        parseBlockLatency.record(nanos / count);
+    }
+
+    /**
+     * Records a rejected line.
+     * @param ex the exception thrown for the line
+     */
+    public void recordRejected(Exception ex) {
+        recordRejected(PaymentParserException.reasonOf(ex));
+    }
+
+    /**
+     * Records a rejected line.
+     * @param reason the reason of the rejection
+     */
+    public void recordRejected(PaymentParserException.Reason reason) {
+        recordRejected(reason, 1);
+    }
+
+    /**
+     * Records several lines rejected for the same reason.
+     * @param reason the reason of the rejection
+     * @param count the number of the rejected lines
+     */
+    public void recordRejected(PaymentParserException.Reason reason, long count) {
+        if (count > 0) {
+            lines.add(reason.ordinal(), count);
+        }
+    }
+
+    /**
+     * Records a batch of registrations as one sample, the mean latency of its payments.
+     * @param count the number of the registered payments
+     * @param nanos the time of registering the batch
+     */
+    public void recordRegistrations(long count, long nanos) {
+        if (count > 0) {
+            registerBlockLatency.record(nanos / count);
+        }
+    }
+
+    /**
+     * Records a printed report.
+     * @param nanos the time of printing the report
+     */
+    public void recordPrint(long nanos) {
+        printLatency.record(nanos);
+    }
+
+    /**
+     * @param source the name of the source kind
+     * @return The number of the non-empty lines read by the sources of the kind.
+     */
+    public long getLinesRead(String source) {
+        PerThreadCounters counter = linesRead.get(source);
+        return counter != null ? counter.get(0) : 0;
+    }
+
+    /**
+     * @return The number of the successfully parsed lines.
+     */
+    public long getParsed() {
+        return lines.get(PARSED);
+    }
+
+    /**
+     * @param reason the reason of the rejection
+     * @return The number of the lines rejected for the reason.
+     */
+    public long getRejected(PaymentParserException.Reason reason) {
+        return lines.get(reason.ordinal());
+    }
+
+    /**
+     * @return The histogram of the mean latencies of parsing a line, one sample per block.
+     */
+    public LatencyHistogram.Snapshot getParseBlockLatency() {
+        return parseBlockLatency.snapshot();
+    }
+
+    /**
+     * @return The histogram of the mean latencies of registering a payment, one sample per batch.
+     */
+    public LatencyHistogram.Snapshot getRegisterBlockLatency() {
+        return registerBlockLatency.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getPrintLatency() {
+        return printLatency.snapshot();
+    }
+
+    /**
+     * Publishes the metrics to the MBean server, the MBeans which are
+     * registered already are kept.
+     * @param server the MBean server, usually the platform one
+     * @throws JMException if a MBean cannot be registered
+     */
+    public void registerMBeans(MBeanServer server) throws JMException {
+        register(server, new ObjectName(DOMAIN + ":type=Ingest"), new IngestMetrics());
+        register(server, new ObjectName(DOMAIN + ":type=BlockLatency,name=parse"), new LatencyMetrics(parseBlockLatency));
+        register(server, new ObjectName(DOMAIN + ":type=BlockLatency,name=register"),
+                new LatencyMetrics(registerBlockLatency));
+        register(server, new ObjectName(DOMAIN + ":type=Latency,name=print"), new LatencyMetrics(printLatency));
+    }
+
+    /**
+     * Publishes the metrics of the stages of the pipeline to the MBean server,
+     * the MBean is kept if it is registered already.
+     * @param server the MBean server, usually the platform one
+     * @param pipeline the pipeline of the tracker
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void registerPipeline(MBeanServer server, PaymentPipeline pipeline) throws JMException {
+        register(server, new ObjectName(DOMAIN + ":type=Pipeline"), new PipelineMetrics(pipeline));
+    }
+
+    /**
+     * Publishes the commits of the journal to the MBean server, with the histogram
+     * of their latencies. The MBeans are kept if they are registered already.
+     * @param server the MBean server, usually the platform one
+     * @param journal the journal of the payments
+     * @throws JMException if a MBean cannot be registered
+     */
+    public void registerJournal(MBeanServer server, PaymentJournal journal) throws JMException {
+        register(server, new ObjectName(DOMAIN + ":type=Journal"), new JournalMetrics(journal));
+        register(server, new ObjectName(DOMAIN + ":type=Latency,name=commit"),
+                new LatencyMetrics(journal.getCommitLatency()));
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (!server.isRegistered(name)) {
+            server.registerMBean(bean, name);
+        }
+    }
+
+    private class IngestMetrics implements IngestMetricsMXBean {
+
+        @Override
+        public Map<String, Long> getLinesRead() {
+            Map<String, Long> result = new TreeMap<>();
+            for (Map.Entry<String, PerThreadCounters> entry : linesRead.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get(0));
+            }
+            return result;
+        }
+
+        @Override
+        public long getParsed() {
+            return TrackerMetrics.this.getParsed();
+        }
+
+        @Override
+        public Map<String, Long> getRejected() {
+            Map<String, Long> result = new TreeMap<>();
+            for (PaymentParserException.Reason reason : REASONS) {
+                result.put(reason.name(), TrackerMetrics.this.getRejected(reason));
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getRegistrations() {
+            CurrencyHolder holder = CurrencyHolder.getInstance();
+            CurrencySnapshot snapshot = holder.snapshot();
+            Map<String, Long> result = new TreeMap<>();
+            for (int i = 0; i < snapshot.size(); i++) {
+                int currency = snapshot.getCurrencyAt(i);
+                result.put(CurrencyCodes.unpack(currency), holder.getRegistrations(currency));
+            }
+            return result;
+        }
+
+        @Override
+        public long getAccountBalances() {
+            return CurrencyHolder.getInstance().getAccounts().size();
+        }
+
+        @Override
+        public long getAccountBalancesOffHeapBytes() {
+            return CurrencyHolder.getInstance().getAccounts().getOffHeapBytes();
+        }
+    }
+
+    private static class LatencyMetrics implements LatencyMetricsMXBean {
+
+        private final LatencyHistogram histogram;
+
+        LatencyMetrics(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public long getCount() {
+            return histogram.snapshot().getCount();
+        }
+
+        @Override
+        public double getMeanNanos() {
+            return histogram.snapshot().getMean();
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return histogram.snapshot().getMax();
+        }
+
+        @Override
+        public long getP50Nanos() {
+            return histogram.snapshot().getQuantile(0.5);
+        }
+
+        @Override
+        public long getP99Nanos() {
+            return histogram.snapshot().getQuantile(0.99);
+        }
+
+        @Override
+        public long getP999Nanos() {
+            return histogram.snapshot().getQuantile(0.999);
+        }
+    }
+
+    private static class PipelineMetrics implements PipelineMetricsMXBean {
+
+        private final PaymentPipeline pipeline;
+
+        PipelineMetrics(PaymentPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public long getPublished() {
+            return pipeline.getStatistics().getPublished();
+        }
+
+        @Override
+        public long getConsumed() {
+            return pipeline.getStatistics().getConsumed();
+        }
+
+        @Override
+        public double getPublishRate() {
+            return pipeline.getStatistics().getPublishRate();
+        }
+
+        @Override
+        public double getConsumeRate() {
+            return pipeline.getStatistics().getConsumeRate();
+        }
+
+        @Override
+        public long getBatches() {
+            return pipeline.getStatistics().getBatches();
+        }
+
+        @Override
+        public double getAverageBatchSize() {
+            return pipeline.getStatistics().getAverageBatchSize();
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return pipeline.getStatistics().getMaxBatchSize();
+        }
+
+        @Override
+        public int getDepth() {
+            return pipeline.getStatistics().getDepth();
+        }
+
+        @Override
+        public int getMaxDepth() {
+            return pipeline.getStatistics().getMaxDepth();
+        }
+
+        @Override
+        public int getCapacity() {
+            return pipeline.getStatistics().getCapacity();
+        }
+
+        @Override
+        public long getStalls() {
+            return pipeline.getStatistics().getStalls();
+        }
+
+        @Override
+        public long getFailures() {
+            return pipeline.getStatistics().getFailures();
+        }
+
+        @Override
+        public long getTotals() {
+            return pipeline.getStatistics().getTotals();
+        }
+
+        @Override
+        public long getFailedTotals() {
+            return pipeline.getStatistics().getFailedTotals();
+        }
+    }
+
+    private static class JournalMetrics implements JournalMetricsMXBean {
+
+        private final PaymentJournal journal;
+
+        JournalMetrics(PaymentJournal journal) {
+            this.journal = journal;
+        }
+
+        @Override
+        public long getPayments() {
+            return journal.getStatistics().getPayments();
+        }
+
+        @Override
+        public long getCommits() {
+            return journal.getStatistics().getCommits();
+        }
+
+        @Override
+        public double getAverageBatchSize() {
+            return journal.getStatistics().getAverageBatchSize();
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return journal.getStatistics().getMaxBatchSize();
+        }
+
+        @Override
+        public int getLastBatchSize() {
+            return journal.getStatistics().getLastBatchSize();
+        }
+
+        @Override
+        public double getAverageCommitMicros() {
+            return journal.getStatistics().getAverageCommitMicros();
+        }
+
+        @Override
+        public double getMaxCommitMicros() {
+            return journal.getStatistics().getMaxCommitMicros();
+        }
+
+        @Override
+        public double getLastCommitMicros() {
+            return journal.getStatistics().getLastCommitMicros();
+        }
+    }
+
+    // Thread-safe singleton implementation
+    private static class MetricsLoader {
+        private static final TrackerMetrics INSTANCE = new TrackerMetrics();
+    }
+
+    public static TrackerMetrics getInstance() {
+        return MetricsLoader.INSTANCE;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+/**
+ * This class packs account identifiers - 1 to {@link #MAX_LENGTH} digits and
+ * upper-case letters - into positive longs and back. The identifiers are
+ * numbers in the bijective base 36, so "7" and "007" are different accounts
+ * and no identifier is packed into zero ({@link #NONE}).
+ * @author Jaromir Mlejnek
+ */
+public final class AccountCodes {
+
+    /**
+     * The maximal length of an account identifier.
+     */
+    public static final int MAX_LENGTH = 12;
+
+    /**
+     * Number of characters in the identifier alphabet.
+     */
+    private static final int RADIX = 10 + ('Z' - 'A' + 1);
+
+    /**
+     * The packed account of a payment without an account.
+     */
+    public static final long NONE = 0;
+
+    /**
+     * Returned by the pack methods for an invalid identifier.
+     */
+    public static final long INVALID = -1;
+
+    private AccountCodes() {
+    }
+
+    /**
+     * Packs the given identifier.
+     * @param account the account identifier
+     * @return The packed account or {@link #INVALID} if the identifier is not valid.
+     */
+    public static long pack(CharSequence account) {
+        if (account == null || account.length() == 0 || account.length() > MAX_LENGTH) {
+            return INVALID;
+        }
+
+        long packed = 0;
+        for (int i = 0; i < account.length(); i++) {
+            int digit = digit(account.charAt(i));
+            if (digit < 0) {
+                return INVALID;
+            }
+            packed = packed * RADIX + digit + 1;
+        }
+        return packed;
+    }
+
+    /**
+     * Packs the identifier stored in the byte array range.
+     * @param buffer the buffer with the identifier
+     * @param from the index of the first byte of the identifier
+     * @param to the index after the last byte of the identifier
+     * @return The packed account or {@link #INVALID} if the identifier is not valid.
+     */
+    public static long pack(byte[] buffer, int from, int to) {
+        if (to <= from || to - from > MAX_LENGTH) {
+            return INVALID;
+        }
+
+        long packed = 0;
+        for (int i = from; i < to; i++) {
+            int digit = digit(buffer[i]);
+            if (digit < 0) {
+                return INVALID;
+            }
+            packed = packed * RADIX + digit + 1;
+        }
+        return packed;
+    }
+
+    /**
+     * Returns the identifier for the packed account.
+     * @param packed the packed account
+     * @return The account identifier.
+     */
+    public static String unpack(long packed) {
+        if (packed <= NONE) {
+            throw new IllegalArgumentException("Invalid packed account " + packed);
+        }
+
+        char[] chars = new char[MAX_LENGTH];
+        int position = MAX_LENGTH;
+        while (packed > 0) {
+            packed--;
+            int digit = (int) (packed % RADIX);
+            chars[--position] = (char) (digit < 10 ? '0' + digit : 'A' + digit - 10);
+            packed /= RADIX;
+        }
+        return new String(chars, position, MAX_LENGTH - position);
+    }
+
+    private static int digit(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (CurrencyCodes.isLetter(c)) {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+/**
+ * Receiver of the payments which keeps their accounts. {@link PaymentParser}
+ * passes a payment with an account to this method, other sinks receive
+ * the payment without its account.
+ * @author Jaromir Mlejnek
+ */
+public interface AccountPaymentSink extends PaymentSink {
+
+    /**
+     * Accepts a parsed payment of an account.
+     * @param account the packed account (see {@link AccountCodes})
+     * @param currency the packed currency code (see {@link CurrencyCodes})
+     * @param amount the amount of the payment in minor units (see {@link CurrencyScales})
+     */
+    void accept(long account, int currency, long amount);
+}
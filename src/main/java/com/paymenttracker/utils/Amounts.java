@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class works with fixed-point amounts. An amount is a long number
+ * of minor units of a currency, the number of decimal places of the currency
+ * (the scale) is given by {@link CurrencyScales}.
+ * @author Jaromir Mlejnek
+ */
+public final class Amounts {
+
+    /**
+     * The maximal supported scale.
+     */
+    public static final int MAX_SCALE = 18;
+
+    /**
+     * The maximal length of a formatted amount.
+     */
+    public static final int MAX_LENGTH = 40;
+
+    /**
+     * Returned by {@link #parse(byte[], int, int, int)} for an invalid amount.
+     * It's never a valid amount - the valid ones are in the range
+     * -Long.MAX_VALUE .. Long.MAX_VALUE.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private Amounts() {
+    }
+
+    /**
+     * Returns the number of minor units in one major unit.
+     * @param scale the scale of the currency
+     * @return 10 to the power of scale.
+     */
+    public static long unit(int scale) {
+        return POWERS_OF_TEN[scale];
+    }
+
+    /**
+     * Adds two amounts.
+     * @throws ArithmeticException if the result overflows
+     */
+    public static long addExact(long first, long second) {
+        long result = first + second;
+        if (((first ^ result) & (second ^ result)) < 0) {
+            throw new ArithmeticException("Amount overflow");
+        }
+        return result;
+    }
+
+    /**
+     * Parses a decimal amount ([+-]digits[.digits]) stored in the byte array
+     * range into minor units. The amount may not have more non-zero decimal
+     * places than the scale allows.
+     * @param buffer the buffer with the amount
+     * @param from the index of the first byte of the amount
+     * @param to the index after the last byte of the amount
+     * @param scale the scale of the currency
+     * @return The amount in minor units or {@link #INVALID}.
+     */
+    public static long parse(byte[] buffer, int from, int to, int scale) {
+        int position = from;
+        boolean negative = false;
+
+        if (position < to && (buffer[position] == '-' || buffer[position] == '+')) {
+            negative = buffer[position] == '-';
+            position++;
+        }
+
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+
+        for (; position < to; position++) {
+            int c = buffer[position];
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (fractionDigits >= 0 && ++fractionDigits > scale) {
+                    // Only zeros are allowed behind the scale
+                    if (c != '0') {
+                        return INVALID;
+                    }
+                    continue;
+                }
+
+                int digit = c - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    return INVALID;
+                }
+                value = value * 10 + digit;
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+
+        if (digits == 0) {
+            return INVALID;
+        }
+
+        int missing = scale - Math.max(fractionDigits, 0);
+        if (missing > 0) {
+            long unit = POWERS_OF_TEN[missing];
+            if (value > Long.MAX_VALUE / unit) {
+                return INVALID;
+            }
+            value *= unit;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Writes the amount into the byte array. The decimal places are written
+     * only if the amount is not a whole number.
+     * @param amount the amount in minor units
+     * @param scale the scale of the currency
+     * @param buffer the target buffer, at least {@link #MAX_LENGTH} bytes must be free
+     * @param position the index of the first byte to write
+     * @return The index after the last written byte.
+     */
+    public static int write(long amount, int scale, byte[] buffer, int position) {
+        if (amount == Long.MIN_VALUE) {
+            byte[] formatted = BigDecimal.valueOf(amount, scale).toPlainString().getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(formatted, 0, buffer, position, formatted.length);
+            return position + formatted.length;
+        }
+
+        if (amount < 0) {
+            buffer[position++] = '-';
+            amount = -amount;
+        }
+
+        long unit = POWERS_OF_TEN[scale];
+        position = writeDigits(amount / unit, 1, buffer, position);
+
+        long fraction = amount % unit;
+        if (fraction != 0) {
+            buffer[position++] = '.';
+            position = writeDigits(fraction, scale, buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * Formats the amount like {@link #write(long, int, byte[], int)} does.
+     * @param amount the amount in minor units
+     * @param scale the scale of the currency
+     * @return The formatted amount.
+     */
+    public static String format(long amount, int scale) {
+        byte[] buffer = new byte[MAX_LENGTH];
+        int length = write(amount, scale, buffer, 0);
+        return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static int writeDigits(long value, int minDigits, byte[] buffer, int position) {
+        int count = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            count++;
+        }
+        count = Math.max(count, minDigits);
+
+        for (int i = position + count - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + count;
+    }
+}
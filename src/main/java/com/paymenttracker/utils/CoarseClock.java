@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a wall clock for the hot paths. Reading the system clock
+ * costs more than registering a payment, so a daemon thread reads it every
+ * {@link #RESOLUTION_MILLIS} ms and the hot paths read a volatile field.
+ * The time is at most one resolution (plus the scheduling delay) behind
+ * {@link System#currentTimeMillis()}.
+ * @author Jaromir Mlejnek
+ */
+public final class CoarseClock {
+
+    /**
+     * The period of the updates of the time.
+     */
+    public static final long RESOLUTION_MILLIS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread("payment-clock") {
+            @Override
+            public void run() {
+                while (true) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RESOLUTION_MILLIS));
+                    now = System.currentTimeMillis();
+                }
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * @return The current time in milliseconds, see {@link System#currentTimeMillis()}.
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
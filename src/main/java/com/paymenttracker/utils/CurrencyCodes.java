@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class packs 3 letter upper-case currency codes into small integers
+ * and back. A packed code is a number in the range 0 .. {@link #SLOTS} - 1,
+ * so it can be used directly as an index into dense arrays.
+ * @author Jaromir Mlejnek
+ */
+public final class CurrencyCodes {
+
+    /**
+     * The length of currency code.
+     */
+    public static final int CODE_LENGTH = 3;
+
+    /**
+     * Number of letters in the code alphabet.
+     */
+    private static final int RADIX = 'Z' - 'A' + 1;
+
+    /**
+     * Number of all possible packed codes.
+     */
+    public static final int SLOTS = RADIX * RADIX * RADIX;
+
+    /**
+     * Returned by the pack methods for an invalid code.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * Cache of the unpacked codes, so that printing does not allocate.
+     */
+    private static final AtomicReferenceArray<String> NAMES = new AtomicReferenceArray<>(SLOTS);
+
+    private CurrencyCodes() {
+    }
+
+    /**
+     * Packs the given code.
+     * @param code the currency code
+     * @return The packed code or {@link #INVALID} if the code is not a 3 letter upper-case code.
+     */
+    public static int pack(CharSequence code) {
+        if (code == null || code.length() != CODE_LENGTH) {
+            return INVALID;
+        }
+        return pack(code.charAt(0), code.charAt(1), code.charAt(2));
+    }
+
+    /**
+     * Packs the code given by its letters.
+     * @return The packed code or {@link #INVALID} if any of the letters is not an upper-case letter.
+     */
+    public static int pack(int first, int second, int third) {
+        if (!isLetter(first) || !isLetter(second) || !isLetter(third)) {
+            return INVALID;
+        }
+        return ((first - 'A') * RADIX + (second - 'A')) * RADIX + (third - 'A');
+    }
+
+    /**
+     * Checks whether the given character is allowed in a currency code.
+     * @param c the character
+     * @return True for 'A' .. 'Z'.
+     */
+    public static boolean isLetter(int c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    /**
+     * Returns the currency code for the packed code.
+     * @param packed the packed code
+     * @return The 3 letter currency code.
+     */
+    public static String unpack(int packed) {
+        if (packed < 0 || packed >= SLOTS) {
+            throw new IllegalArgumentException("Invalid packed currency code " + packed);
+        }
+
+        String name = NAMES.get(packed);
+        if (name == null) {
+            char[] letters = new char[CODE_LENGTH];
+            letters[2] = (char) ('A' + packed % RADIX);
+            letters[1] = (char) ('A' + packed / RADIX % RADIX);
+            letters[0] = (char) ('A' + packed / (RADIX * RADIX));
+            name = new String(letters);
+            NAMES.lazySet(packed, name);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class holds the scales (number of decimal places) of the currencies.
+ * The scale is 2 unless the currency is a well-known exception (e.g. JPY 0,
+ * KWD 3). Both can be changed by the system properties:
+ * <ul>
+ * <li>{@value #DEFAULT_SCALE_PROPERTY} - the default scale</li>
+ * <li>{@value #SCALES_PROPERTY} - comma separated scales of the currencies, e.g. "JPY=0,BHD=3"</li>
+ * </ul>
+ * @author Jaromir Mlejnek
+ */
+public final class CurrencyScales {
+
+    private static final Logger log = Logger.getLogger(CurrencyScales.class.getName());
+
+    public static final String DEFAULT_SCALE_PROPERTY = "paymenttracker.scale";
+
+    public static final String SCALES_PROPERTY = "paymenttracker.scales";
+
+    /**
+     * The default scale of a currency.
+     */
+    public static final int DEFAULT_SCALE = 2;
+
+    /**
+     * Well-known currencies with a different scale than the default one.
+     */
+    private static final String KNOWN_SCALES = "JPY=0,KRW=0,VND=0,CLP=0,ISK=0,PYG=0,UGX=0,"
+            + "BHD=3,IQD=3,JOD=3,KWD=3,LYD=3,OMR=3,TND=3";
+
+    /**
+     * Scales indexed by the packed currency code.
+     */
+    private static final byte[] SCALES = loadScales();
+
+    private CurrencyScales() {
+    }
+
+    /**
+     * Returns the scale of the currency.
+     * @param currency the packed currency code
+     * @return The number of decimal places of the currency.
+     */
+    public static int getScale(int currency) {
+        return SCALES[currency];
+    }
+
+    private static byte[] loadScales() {
+        byte[] scales = new byte[CurrencyCodes.SLOTS];
+
+        int defaultScale = DEFAULT_SCALE;
+        String property = System.getProperty(DEFAULT_SCALE_PROPERTY);
+        if (property != null) {
+            try {
+                defaultScale = checkScale(Integer.parseInt(property.trim()));
+            } catch (IllegalArgumentException ex) {
+                log.log(Level.WARNING, "Invalid default scale ''{0}'' ignored", property);
+            }
+        }
+        Arrays.fill(scales, (byte) defaultScale);
+
+        applyScales(scales, KNOWN_SCALES);
+        String overrides = System.getProperty(SCALES_PROPERTY);
+        if (overrides != null) {
+            applyScales(scales, overrides);
+        }
+        return scales;
+    }
+
+    private static void applyScales(byte[] scales, String definitions) {
+        for (String definition : definitions.split(",")) {
+            String[] parts = definition.trim().split("=");
+            try {
+                int currency = CurrencyCodes.pack(parts[0].trim());
+                if (parts.length != 2 || currency == CurrencyCodes.INVALID) {
+                    throw new IllegalArgumentException();
+                }
+                scales[currency] = (byte) checkScale(Integer.parseInt(parts[1].trim()));
+            } catch (IllegalArgumentException ex) {
+                log.log(Level.WARNING, "Invalid currency scale ''{0}'' ignored", definition);
+            }
+        }
+    }
+
+    private static int checkScale(int scale) {
+        if (scale < 0 || scale > Amounts.MAX_SCALE) {
+            throw new IllegalArgumentException("Scale out of range");
+        }
+        return scale;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class expands the input arguments of the tracker to the input files.
+ * An argument is a file, a directory (its regular files are read, hidden files
+ * are skipped) or a glob pattern like "in/2015-*&#47;*.txt" ("**" crosses
+ * directories). The files of a directory or a pattern are sorted by their path.
+ * @author Jaromir Mlejnek
+ */
+public final class InputFiles {
+
+    private static final Logger log = Logger.getLogger(InputFiles.class.getName());
+
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    private InputFiles() {
+    }
+
+    /**
+     * Expands the input arguments. A file is listed only once even if it
+     * is matched by several arguments.
+     * @param arguments the files, directories and glob patterns
+     * @return The absolute input files in the order of the arguments.
+     * @throws IOException if a directory cannot be read
+     */
+    public static List<File> expand(List<String> arguments) throws IOException {
+        Set<File> files = new LinkedHashSet<>();
+        for (String argument : arguments) {
+            List<File> expanded;
+            if (isPattern(argument)) {
+                expanded = glob(argument);
+            } else if (new File(argument).isDirectory()) {
+                expanded = list(new File(argument));
+            } else {
+                // A missing file is reported by its reader
+                expanded = Collections.singletonList(new File(argument));
+            }
+
+            if (expanded.isEmpty()) {
+                log.log(Level.WARNING, "No input file matches ''{0}''", argument);
+            }
+            for (File file : expanded) {
+                files.add(file.getAbsoluteFile());
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static boolean isPattern(String argument) {
+        for (int i = 0; i < argument.length(); i++) {
+            if (GLOB_CHARACTERS.indexOf(argument.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists the regular files of the directory.
+     */
+    private static List<File> list(File directory) throws IOException {
+        List<File> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path) && !path.getFileName().toString().startsWith(".")) {
+                    files.add(path.toFile());
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Finds the regular files matching the pattern. The directories without
+     * a glob character are the base of the search.
+     */
+    private static List<File> glob(String pattern) throws IOException {
+        String normalized = pattern.replace(File.separatorChar, '/');
+        int firstGlob = 0;
+        while (GLOB_CHARACTERS.indexOf(normalized.charAt(firstGlob)) < 0) {
+            firstGlob++;
+        }
+        int baseEnd = normalized.lastIndexOf('/', firstGlob);
+        final Path base = Paths.get(baseEnd < 0 ? "." : baseEnd == 0 ? "/" : normalized.substring(0, baseEnd));
+        String relative = normalized.substring(baseEnd + 1);
+        if (!Files.isDirectory(base)) {
+            return Collections.emptyList();
+        }
+
+        int depth = relative.contains("**") ? Integer.MAX_VALUE : countSeparators(relative) + 1;
+        final PathMatcher matcher = base.getFileSystem().getPathMatcher("glob:" + relative);
+        final List<File> files = new ArrayList<>();
+        Files.walkFileTree(base, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && matcher.matches(base.relativize(file))) {
+                    files.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                log.log(Level.WARNING, "File {0} skipped: {1}", new Object[] { file, ex.getMessage() });
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    private static int countSeparators(String path) {
+        int count = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
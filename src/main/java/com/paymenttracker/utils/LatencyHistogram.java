@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+/**
+ * This class is a lock-free histogram of latencies in nanoseconds.
+ * The buckets are log-linear (see {@link LogLinearBuckets}) - every power
+ * of two is split into {@link #SUB_BUCKETS} equal buckets, so a quantile
+ * is reported with a relative error below 1 / {@link #SUB_BUCKETS}. The buckets are
+ * {@link PerThreadCounters}, a recording costs a few plain stores.
+ * @author Jaromir Mlejnek
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+
+    /**
+     * The number of the buckets of every power of two.
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * The number of the buckets, enough for any non-negative long.
+     */
+    static final int BUCKETS = LogLinearBuckets.count(SUB_BITS);
+
+    private static final int COUNT = BUCKETS;
+
+    private static final int SUM = BUCKETS + 1;
+
+    private static final int MAX = BUCKETS + 2;
+
+    private final PerThreadCounters counters = new PerThreadCounters(BUCKETS + 3);
+
+    /**
+     * Records one latency.
+     * @param nanos the latency in nanoseconds, a negative one is recorded as 0
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Records the same latency several times, e.g. the mean latency
+     * of the items of a batch.
+     * @param nanos the latency in nanoseconds, a negative one is recorded as 0
+     * @param count the number of the recorded latencies
+     */
+    public void record(long nanos, long count) {
+        if (count <= 0) {
+            return;
+        }
+
+        long value = Math.max(nanos, 0);
+        counters.add(bucket(value), count, COUNT, count);
+        counters.add(SUM, value * count);
+        counters.max(MAX, value);
+    }
+
+    /**
+     * @return The recorded latencies summed over all the threads.
+     */
+    public Snapshot snapshot() {
+        long[] sums = new long[counters.size()];
+        counters.sumTo(sums);
+        return new Snapshot(sums, counters.getMax(MAX));
+    }
+
+    static int bucket(long value) {
+        return LogLinearBuckets.bucket(value, SUB_BITS);
+    }
+
+    /**
+     * Returns the highest value of the bucket.
+     */
+    static long upperBound(int bucket) {
+        return LogLinearBuckets.upperBound(bucket, SUB_BITS);
+    }
+
+    /**
+     * A point-in-time copy of the histogram.
+     */
+    public static final class Snapshot {
+
+        private final long[] sums;
+        private final long max;
+
+        Snapshot(long[] sums, long max) {
+            this.sums = sums;
+            this.max = max;
+        }
+
+        /**
+         * @return The number of the recorded latencies.
+         */
+        public long getCount() {
+            return sums[COUNT];
+        }
+
+        /**
+         * @return The mean latency in nanoseconds, 0 if nothing has been recorded.
+         */
+        public double getMean() {
+            return sums[COUNT] > 0 ? (double) sums[SUM] / sums[COUNT] : 0;
+        }
+
+        /**
+         * @return The maximal latency in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the latency which is not exceeded by the given fraction
+         * of the recorded latencies.
+         * @param quantile the fraction, 0 .. 1
+         * @return The upper bound of the quantile in nanoseconds, 0 if nothing has been recorded.
+         */
+        public long getQuantile(double quantile) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += sums[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += sums[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
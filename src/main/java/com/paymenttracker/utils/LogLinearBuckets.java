@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+/**
+ * This class maps non-negative longs to log-linear buckets - the values below
+ * 2^subBits have a bucket each, every higher power of two is split into
+ * 2^subBits equal buckets. The relative width of a bucket is below 2^-subBits.
+ * @author Jaromir Mlejnek
+ */
+final class LogLinearBuckets {
+
+    private LogLinearBuckets() {
+    }
+
+    /**
+     * @param subBits the number of the bits of the sub-buckets
+     * @return The number of the buckets, enough for any non-negative long.
+     */
+    static int count(int subBits) {
+        return bucket(Long.MAX_VALUE, subBits) + 1;
+    }
+
+    /**
+     * @param value the non-negative value
+     * @param subBits the number of the bits of the sub-buckets
+     * @return The bucket of the value.
+     */
+    static int bucket(long value, int subBits) {
+        int subBuckets = 1 << subBits;
+        if (value < subBuckets) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - subBits)) & (subBuckets - 1);
+        return (exponent - subBits + 1) * subBuckets + sub;
+    }
+
+    /**
+     * @param bucket the bucket
+     * @param subBits the number of the bits of the sub-buckets
+     * @return The highest value of the bucket.
+     */
+    static long upperBound(int bucket, int subBits) {
+        int subBuckets = 1 << subBits;
+        if (bucket < subBuckets) {
+            return bucket;
+        }
+
+        int exponent = bucket / subBuckets + subBits - 1;
+        int sub = bucket % subBuckets;
+        long lower = (long) (subBuckets + sub) << (exponent - subBits);
+        return lower + (1L << (exponent - subBits)) - 1;
+    }
+}
@@ -16,9 +16,13 @@
 package com.paymenttracker.utils;
 
 import com.paymenttracker.model.Payment;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
- * This class parses Strings into Payment objects.
+ * This class parses Strings into Payment objects. A payment record is
+ * "CODE amount" optionally followed by the account of the payment,
+ * e.g. "USD 100.50 ACC42" (see {@link AccountCodes}).
  * @author Jaromir Mlejnek
  */
 public class PaymentParser {
@@ -29,9 +33,34 @@ public class PaymentParser {
     private static final String DELIMITER   = " ";
     
     /**
-     * The length of currency code field.
+     * The maximal length of a line parsed from a direct ByteBuffer.
      */
-    private static final int CODE_LENGTH    = 3;
+    private static final int MAX_LINE_LENGTH = 1024;
+    
+    /**
+     * The result of {@link #tryParse(byte[], int, int, PaymentSink)} for an empty line.
+     */
+    public static final int EMPTY = 0;
+    
+    /**
+     * The result of {@link #tryParse(byte[], int, int, PaymentSink)} for a parsed payment.
+     */
+    public static final int PARSED = 1;
+    
+    /**
+     * The result of {@link #tryParse(byte[], int, int, PaymentSink)} for an invalid line.
+     */
+    public static final int REJECTED = -1;
+    
+    /**
+     * Scratch buffers for lines of direct ByteBuffers.
+     */
+    private static final ThreadLocal<byte []> LINE_BUFFER = new ThreadLocal<byte []>() {
+        @Override
+        protected byte [] initialValue() {
+            return new byte[MAX_LINE_LENGTH];
+        }
+    };
     
     private PaymentParser() {
     }
@@ -52,19 +81,214 @@ public class PaymentParser {
         
         // Splip according to the delimiter
         String [] parts = line.split(DELIMITER);
-        if (parts.length != 2) {
+        if (parts.length != 2 && parts.length != 3) {
             throw new PaymentParserException("Invalid format of payment record", line);
         }
         
+        String currencyCode;
         try {
-            String currencyCode = getCurrencyCode(parts[0]);
-            double amount = getAmount(parts[1]);
-            
-            return new Payment(currencyCode, amount);
+            currencyCode = getCurrencyCode(parts[0]);
+        } catch (IllegalArgumentException ex) {
+            throw new PaymentParserException(PaymentParserException.Reason.CURRENCY, ex.getMessage(), line);
+        }
         
+        long amount;
+        try {
+            amount = getAmount(parts[1], CurrencyScales.getScale(CurrencyCodes.pack(currencyCode)));
         } catch (IllegalArgumentException ex) {
-            throw new PaymentParserException(ex.getMessage(), line);
-        }        
+            throw new PaymentParserException(PaymentParserException.Reason.AMOUNT, ex.getMessage(), line);
+        }
+        
+        if (parts.length == 2) {
+            return new Payment(currencyCode, amount);
+        }
+        if (AccountCodes.pack(parts[2]) == AccountCodes.INVALID) {
+            throw new PaymentParserException(PaymentParserException.Reason.ACCOUNT,
+                    "Only 1 to " + AccountCodes.MAX_LENGTH + " digits and upper-case letters are supported", line);
+        }
+        return new Payment(currencyCode, amount, parts[2]);
+    }
+    
+    /**
+     * Parses the line stored in the byte array range and passes the payment
+     * to the sink. The method does not allocate anything for the valid lines
+     * ("CODE amount [account]"), other lines are parsed
+     * by {@link #parse(String)}, so both methods accept and reject exactly
+     * the same lines.
+     * @param buffer the buffer with the line
+     * @param from the index of the first byte of the line
+     * @param to the index after the last byte of the line (without the line terminator)
+     * @param sink the receiver of the parsed payment
+     * @return False if the line is empty, true if the payment was passed to the sink.
+     * @throws PaymentParserException 
+     */
+    public static final boolean parse(byte [] buffer, int from, int to, PaymentSink sink) throws PaymentParserException {
+        int result = tryParse(buffer, from, to, sink);
+        if (result != REJECTED) {
+            return result == PARSED;
+        }
+        
+        // Not a usual line - let the String parser decide (and build the exception)
+        return parseSlow(new String(buffer, from, to - from, StandardCharsets.ISO_8859_1), sink);
+    }
+    
+    /**
+     * Parses the line stored in the byte array range and passes the payment
+     * to the sink. It accepts exactly the same lines like {@link #parse(String)},
+     * but a rejected line is only reported by the result - nothing is allocated
+     * and no exception is thrown, so even invalid input is parsed fast
+     * (see {@link #reasonOf(byte[], int, int)} for the reason of the rejection).
+     * A payment with an account is passed with the account if the sink is
+     * an {@link AccountPaymentSink}.
+     * @param buffer the buffer with the line
+     * @param from the index of the first byte of the line
+     * @param to the index after the last byte of the line (without the line terminator)
+     * @param sink the receiver of the parsed payment
+     * @return {@link #PARSED}, {@link #EMPTY} or {@link #REJECTED}.
+     */
+    public static final int tryParse(byte [] buffer, int from, int to, PaymentSink sink) {
+        if (from == to) return EMPTY;
+        
+        int start = from;
+        int end = to;
+        
+        // Trim
+        while (start < end && (buffer[start] & 0xFF) <= ' ') start++;
+        while (end > start && (buffer[end - 1] & 0xFF) <= ' ') end--;
+        
+        // Currency code followed by white spaces
+        if (end - start <= CurrencyCodes.CODE_LENGTH || !isWhitespace(buffer[start + CurrencyCodes.CODE_LENGTH])) {
+            return REJECTED;
+        }
+        int currency = CurrencyCodes.pack(buffer[start], buffer[start + 1], buffer[start + 2]);
+        if (currency == CurrencyCodes.INVALID) {
+            return REJECTED;
+        }
+        
+        int position = start + CurrencyCodes.CODE_LENGTH;
+        while (position < end && isWhitespace(buffer[position])) position++;
+        
+        // The amount is followed by the optional account
+        int amountEnd = position;
+        while (amountEnd < end && !isWhitespace(buffer[amountEnd])) amountEnd++;
+        
+        long amount = Amounts.parse(buffer, position, amountEnd, CurrencyScales.getScale(currency));
+        if (amount == Amounts.INVALID) {
+            return REJECTED;
+        }
+        
+        if (amountEnd == end) {
+            sink.accept(currency, amount);
+            return PARSED;
+        }
+        
+        position = amountEnd;
+        while (position < end && isWhitespace(buffer[position])) position++;
+        long account = AccountCodes.pack(buffer, position, end);
+        if (account == AccountCodes.INVALID) {
+            return REJECTED;
+        }
+        
+        if (sink instanceof AccountPaymentSink) {
+            ((AccountPaymentSink) sink).accept(account, currency, amount);
+        } else {
+            sink.accept(currency, amount);
+        }
+        return PARSED;
+    }
+    
+    /**
+     * Returns the reason why the line was rejected by {@link #tryParse(byte[], int, int, PaymentSink)},
+     * it's the same reason {@link #parse(String)} reports.
+     * @param buffer the buffer with the rejected line
+     * @param from the index of the first byte of the line
+     * @param to the index after the last byte of the line (without the line terminator)
+     * @return The reason of the rejection.
+     */
+    public static final PaymentParserException.Reason reasonOf(byte [] buffer, int from, int to) {
+        int start = from;
+        int end = to;
+        while (start < end && (buffer[start] & 0xFF) <= ' ') start++;
+        while (end > start && (buffer[end - 1] & 0xFF) <= ' ') end--;
+        
+        // The first token and the number of tokens
+        int codeEnd = start;
+        while (codeEnd < end && !isWhitespace(buffer[codeEnd])) codeEnd++;
+        
+        int tokens = start < end ? 1 : 0;
+        for (int i = codeEnd; i < end; i++) {
+            if (isWhitespace(buffer[i - 1]) && !isWhitespace(buffer[i])) {
+                tokens++;
+            }
+        }
+        
+        if (tokens != 2 && tokens != 3) {
+            return PaymentParserException.Reason.FORMAT;
+        }
+        if (codeEnd - start != CurrencyCodes.CODE_LENGTH
+                || CurrencyCodes.pack(buffer[start], buffer[start + 1], buffer[start + 2]) == CurrencyCodes.INVALID) {
+            return PaymentParserException.Reason.CURRENCY;
+        }
+        if (tokens == 2) {
+            return PaymentParserException.Reason.AMOUNT;
+        }
+        
+        int amountStart = codeEnd;
+        while (isWhitespace(buffer[amountStart])) amountStart++;
+        int amountEnd = amountStart;
+        while (!isWhitespace(buffer[amountEnd])) amountEnd++;
+        int scale = CurrencyScales.getScale(CurrencyCodes.pack(buffer[start], buffer[start + 1], buffer[start + 2]));
+        if (Amounts.parse(buffer, amountStart, amountEnd, scale) == Amounts.INVALID) {
+            return PaymentParserException.Reason.AMOUNT;
+        }
+        return PaymentParserException.Reason.ACCOUNT;
+    }
+    
+    /**
+     * Parses the line stored in the byte buffer range and passes the payment
+     * to the sink. The position of the buffer is not changed.
+     * @see #parse(byte[], int, int, PaymentSink) 
+     * @param buffer the buffer with the line
+     * @param from the index of the first byte of the line
+     * @param to the index after the last byte of the line (without the line terminator)
+     * @param sink the receiver of the parsed payment
+     * @return False if the line is empty, true if the payment was passed to the sink.
+     * @throws PaymentParserException 
+     */
+    public static final boolean parse(ByteBuffer buffer, int from, int to, PaymentSink sink) throws PaymentParserException {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            return parse(buffer.array(), offset + from, offset + to, sink);
+        }
+        
+        int length = to - from;
+        byte [] line = length <= MAX_LINE_LENGTH ? LINE_BUFFER.get() : new byte[length];
+        for (int i = 0; i < length; i++) {
+            line[i] = buffer.get(from + i);
+        }
+        return parse(line, 0, length, sink);
+    }
+    
+    private static boolean parseSlow(String line, PaymentSink sink) throws PaymentParserException {
+        Payment payment = parse(line);
+        if (payment == null) {
+            return false;
+        }
+        
+        int currency = CurrencyCodes.pack(payment.getCurrencyCode());
+        if (payment.getAccount() != null && sink instanceof AccountPaymentSink) {
+            ((AccountPaymentSink) sink).accept(AccountCodes.pack(payment.getAccount()), currency, payment.getAmount());
+        } else {
+            sink.accept(currency, payment.getAmount());
+        }
+        return true;
+    }
+    
+    /**
+     * Checks whether the character is a white space in the meaning of "\\s" regular expression.
+     */
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
     }
     
     /**
@@ -73,10 +297,10 @@ public class PaymentParser {
      * @return 3 letter String which represents a currency code if it's valid one.
      */
     private static String getCurrencyCode(String str) {       
-        if (str.length() != CODE_LENGTH) {
+        if (str.length() != CurrencyCodes.CODE_LENGTH) {
             throw new IllegalArgumentException("Only 3 char's code is supported");
         }
-        if (!str.equals(str.toUpperCase())) {
+        if (CurrencyCodes.pack(str) == CurrencyCodes.INVALID) {
             throw new IllegalArgumentException("Only upper-case code is supported");
         }
         
@@ -86,14 +310,15 @@ public class PaymentParser {
     /**
      * Returns an amount for for given input.
      * @param str
-     * @return Double representation of a amount if it's a valid one.
+     * @param scale the scale of the currency
+     * @return The amount in minor units if it's a valid one.
      */
-    private static double getAmount(String str) {
-        double value = 0;
+    private static long getAmount(String str, int scale) {
+        // Any other character than the ASCII ones is invalid anyway
+        byte [] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+        long value = Amounts.parse(bytes, 0, bytes.length, scale);
         
-        try {
-            value = Double.parseDouble(str);
-        } catch (NumberFormatException ex) {
+        if (value == Amounts.INVALID) {
             throw new IllegalArgumentException("Invalid format for amount");
         }
         
@@ -22,23 +22,75 @@ package com.paymenttracker.utils;
  */
 public class PaymentParserException extends Exception {
 
+    /**
+     * The reasons of rejected payment records.
+     */
+    public enum Reason {
+        /**
+         * The record is not "CODE amount [account]".
+         */
+        FORMAT,
+        /**
+         * The currency code is not 3 upper-case letters.
+         */
+        CURRENCY,
+        /**
+         * The amount is not a valid number of the currency.
+         */
+        AMOUNT,
+        /**
+         * The amount would overflow a net amount (reported as an ArithmeticException).
+         */
+        OVERFLOW,
+        /**
+         * The account is not 1 to 12 digits and upper-case letters.
+         */
+        ACCOUNT
+    }
+
+    private final Reason reason;
+
     private final String line;
     
     public PaymentParserException() {
         super();
+        this.reason = Reason.FORMAT;
         this.line = "";
     }        
     
     public PaymentParserException(String message) {
         super(message);
+        this.reason = Reason.FORMAT;
         this.line = "";
     }
 
     public PaymentParserException(String message, String line) {
+        this(Reason.FORMAT, message, line);
+    }
+
+    public PaymentParserException(Reason reason, String message, String line) {
         super(message);
+        this.reason = reason;
         this.line = line;
     }
 
+    /**
+     * @return The reason of the rejection.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns the reason of a rejected line.
+     * @param ex the exception thrown for the line - a PaymentParserException
+     * or an ArithmeticException of an overflow
+     * @return The reason of the rejection.
+     */
+    public static Reason reasonOf(Exception ex) {
+        return ex instanceof PaymentParserException ? ((PaymentParserException) ex).getReason() : Reason.OVERFLOW;
+    }
+
     @Override
     public String getMessage() {        
         return String.format("%s - thrown for line '%s'", super.getMessage(), this.line);
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is a bounded, preallocated ring buffer of parsed payments.
+ * Any number of threads can put payments into it, exactly one thread
+ * drains them. A producer which finds the buffer full waits until the
+ * consumer frees a slot (back-pressure).
+ * @author Jaromir Mlejnek
+ */
+public final class PaymentRingBuffer implements AccountPaymentSink {
+
+    private static final Logger log = Logger.getLogger(PaymentRingBuffer.class.getName());
+
+    /**
+     * Number of busy spins of a waiting producer before it starts to park.
+     */
+    private static final int SPINS = 100;
+
+    /**
+     * Park time of a producer waiting for a free slot.
+     */
+    private static final long PRODUCER_PARK_NANOS = 50000;
+
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * Slots - packed currency codes, amounts and accounts.
+     */
+    private final int[] currencies;
+    private final long[] amounts;
+    private final long[] accounts;
+
+    /**
+     * Sequence of the payment stored in each slot - a slot is readable
+     * when it holds the sequence the consumer waits for.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * The next sequence to be claimed by a producer.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * The next sequence to be read by the consumer.
+     */
+    private final AtomicLong consumed = new AtomicLong();
+
+    /**
+     * Number of payments which had to wait for a free slot.
+     */
+    private final AtomicLong stalls = new AtomicLong();
+
+    /**
+     * Number of payments which failed in the target - written only by the consumer.
+     */
+    private volatile long failures;
+
+    /**
+     * The consumer thread if it's parked waiting for payments.
+     */
+    private volatile Thread waitingConsumer;
+
+    public PaymentRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.currencies = new int[capacity];
+        this.amounts = new long[capacity];
+        this.accounts = new long[capacity];
+        this.published = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, i - capacity);
+        }
+    }
+
+    /**
+     * Puts the payment into the buffer. Waits if the buffer is full.
+     * @param currency the packed currency code
+     * @param amount the amount of the payment in minor units
+     */
+    @Override
+    public void accept(int currency, long amount) {
+        accept(AccountCodes.NONE, currency, amount);
+    }
+
+    /**
+     * Puts the payment of the account into the buffer. Waits if the buffer is full.
+     * @param account the packed account or {@link AccountCodes#NONE}
+     * @param currency the packed currency code
+     * @param amount the amount of the payment in minor units
+     */
+    @Override
+    public void accept(long account, int currency, long amount) {
+        long sequence = claimed.getAndIncrement();
+
+        if (sequence - capacity >= consumed.get()) {
+            awaitSlot(sequence);
+        }
+
+        int index = (int) sequence & mask;
+        currencies[index] = currency;
+        amounts[index] = amount;
+        accounts[index] = account;
+        // A volatile store, not lazySet - the store must not be reordered with
+        // the read of waitingConsumer below, otherwise a consumer which has just
+        // checked the slot and parked would not be woken up (it sets waitingConsumer
+        // before it checks the slot, so one of the two sides always sees the other)
+        published.set(index, sequence);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Moves at most maxBatch payments to the target. May be called only
+     * by the consumer thread. A payment which fails in the target (e.g. it is
+     * rejected because of an overflow) is logged, counted and skipped, so
+     * the producers are never left waiting for a dead consumer. The accounts are passed only to
+     * an {@link AccountPaymentSink}.
+     * @param target the receiver of the payments
+     * @param maxBatch the maximal number of payments to move
+     * @return The number of moved payments.
+     */
+    public int drain(PaymentSink target, int maxBatch) {
+        AccountPaymentSink accountTarget = target instanceof AccountPaymentSink ? (AccountPaymentSink) target : null;
+        long next = consumed.get();
+        int count = 0;
+
+        while (count < maxBatch) {
+            int index = (int) next & mask;
+            if (published.get(index) != next) {
+                break;
+            }
+            try {
+                if (accountTarget != null && accounts[index] != AccountCodes.NONE) {
+                    accountTarget.accept(accounts[index], currencies[index], amounts[index]);
+                } else {
+                    target.accept(currencies[index], amounts[index]);
+                }
+            } catch (ArithmeticException ex) {
+                failures++;
+                log.log(Level.WARNING, "Payment {0} {1} rejected: {2}", new Object[] {
+                    CurrencyCodes.unpack(currencies[index]), amounts[index], ex.getMessage() });
+            } catch (RuntimeException ex) {
+                failures++;
+                log.log(Level.SEVERE, "Payment " + CurrencyCodes.unpack(currencies[index]) + " "
+                        + amounts[index] + " failed", ex);
+            }
+            next++;
+            count++;
+        }
+
+        if (count > 0) {
+            consumed.lazySet(next);
+        }
+        return count;
+    }
+
+    /**
+     * Parks the consumer thread until a payment is available or the timeout elapses.
+     * May be called only by the consumer thread.
+     * @param timeoutNanos the maximal time to wait
+     */
+    public void awaitPayments(long timeoutNanos) {
+        waitingConsumer = Thread.currentThread();
+        try {
+            if (!hasPayments()) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Checks whether the next payment is readable by the consumer.
+     * @return True if there is a payment to drain.
+     */
+    public boolean hasPayments() {
+        long next = consumed.get();
+        return published.get((int) next & mask) == next;
+    }
+
+    /**
+     * Returns the number of payments waiting in the buffer, including the
+     * ones which are being written.
+     * @return The queue depth.
+     */
+    public int size() {
+        long size = claimed.get() - consumed.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of payments put into the buffer.
+     */
+    public long getPublished() {
+        return claimed.get();
+    }
+
+    /**
+     * @return The number of payments drained from the buffer.
+     */
+    public long getConsumed() {
+        return consumed.get();
+    }
+
+    /**
+     * @return The number of payments which had to wait for a free slot.
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * @return The number of payments which failed in the target.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    private void awaitSlot(long sequence) {
+        stalls.incrementAndGet();
+
+        int spins = 0;
+        while (sequence - capacity >= consumed.get()) {
+            if (spins < SPINS) {
+                spins++;
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+            }
+        }
+    }
+}
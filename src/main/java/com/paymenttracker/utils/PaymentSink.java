@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+/**
+ * Receiver of the payments parsed by the allocation-free entry points
+ * of {@link PaymentParser}.
+ * @author Jaromir Mlejnek
+ */
+public interface PaymentSink {
+
+    /**
+     * Accepts a parsed payment.
+     * @param currency the packed currency code (see {@link CurrencyCodes})
+     * @param amount the amount of the payment in minor units (see {@link CurrencyScales})
+     */
+    void accept(int currency, long amount);
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a fixed-size array of counters for the hot paths.
+ * Every thread updates its own recorder without any lock or atomic
+ * read-modify-write (each recorder has exactly one writer, the update
+ * is an ordered store), the readers sum the recorders of all the threads.
+ * A read is not an atomic snapshot of all the counters, but every counter
+ * is exact once its writers are quiet.
+ * @author Jaromir Mlejnek
+ */
+public final class PerThreadCounters {
+
+    /**
+     * Number of longs before and after the counters of a recorder (64 bytes),
+     * so the recorders of different threads do not share a cache line.
+     */
+    private static final int PADDING = 8;
+
+    private final int size;
+
+    /**
+     * The recorders of all the threads, the recorders of finished threads are kept.
+     */
+    private final Queue<AtomicLongArray> recorders = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<AtomicLongArray> recorder = new ThreadLocal<AtomicLongArray>() {
+        @Override
+        protected AtomicLongArray initialValue() {
+            AtomicLongArray counters = new AtomicLongArray(size + 2 * PADDING);
+            recorders.add(counters);
+            return counters;
+        }
+    };
+
+    /**
+     * @param size the number of the counters
+     */
+    public PerThreadCounters(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return The number of the counters.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the delta to the counter of the current thread.
+     * @param index the index of the counter
+     * @param delta the value to add
+     */
+    public void add(int index, long delta) {
+        AtomicLongArray counters = recorder.get();
+        int slot = PADDING + index;
+        counters.lazySet(slot, counters.get(slot) + delta);
+    }
+
+    /**
+     * Adds the deltas to two counters of the current thread.
+     * @param first the index of the first counter
+     * @param firstDelta the value to add to the first counter
+     * @param second the index of the second counter
+     * @param secondDelta the value to add to the second counter
+     */
+    public void add(int first, long firstDelta, int second, long secondDelta) {
+        AtomicLongArray counters = recorder.get();
+        counters.lazySet(PADDING + first, counters.get(PADDING + first) + firstDelta);
+        counters.lazySet(PADDING + second, counters.get(PADDING + second) + secondDelta);
+    }
+
+    /**
+     * Raises the counter of the current thread to the value, if it's lower.
+     * @param index the index of the counter
+     * @param value the new value
+     */
+    public void max(int index, long value) {
+        AtomicLongArray counters = recorder.get();
+        int slot = PADDING + index;
+        if (counters.get(slot) < value) {
+            counters.lazySet(slot, value);
+        }
+    }
+
+    /**
+     * Returns the sum of the counter over all the threads.
+     * @param index the index of the counter
+     * @return The sum.
+     */
+    public long get(int index) {
+        long sum = 0;
+        for (AtomicLongArray counters : recorders) {
+            sum += counters.get(PADDING + index);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the maximum of the counter over all the threads.
+     * @param index the index of the counter
+     * @return The maximum, 0 if no thread recorded anything.
+     */
+    public long getMax(int index) {
+        long max = 0;
+        for (AtomicLongArray counters : recorders) {
+            max = Math.max(max, counters.get(PADDING + index));
+        }
+        return max;
+    }
+
+    /**
+     * Sums all the counters over all the threads.
+     * @param sums the target array of {@link #size()} counters, it's overwritten
+     */
+    public void sumTo(long[] sums) {
+        for (int i = 0; i < size; i++) {
+            sums[i] = 0;
+        }
+        for (AtomicLongArray counters : recorders) {
+            for (int i = 0; i < size; i++) {
+                sums[i] += counters.get(PADDING + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a constant-size sketch of non-negative values - their count,
+ * sum (a double), minimum, maximum and a log-linear histogram (see {@link LogLinearBuckets})
+ * which reports a quantile with a relative error below 1 / {@link #SUB_BUCKETS}.
+ * <p>
+ * A sketch has exactly one writer thread, a recording is a few ordered stores
+ * without any lock or atomic read-modify-write. Any thread can read it,
+ * the snapshots of the sketches of several writers are merged.
+ * @author Jaromir Mlejnek
+ */
+public final class QuantileSketch {
+
+    private static final int SUB_BITS = 5;
+
+    /**
+     * The number of the buckets of every power of two.
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int BUCKETS = LogLinearBuckets.count(SUB_BITS);
+
+    private static final int COUNT = BUCKETS;
+
+    private static final int SUM = BUCKETS + 1;
+
+    private static final int MIN = BUCKETS + 2;
+
+    private static final int MAX = BUCKETS + 3;
+
+    private static final int SIZE = BUCKETS + 4;
+
+    private final AtomicLongArray values = new AtomicLongArray(SIZE);
+
+    public QuantileSketch() {
+        values.set(MIN, Long.MAX_VALUE);
+    }
+
+    /**
+     * Records the value, may be called only by the writer thread.
+     * @param value the non-negative value
+     */
+    public void record(long value) {
+        int bucket = LogLinearBuckets.bucket(value, SUB_BITS);
+        values.lazySet(bucket, values.get(bucket) + 1);
+        values.lazySet(COUNT, values.get(COUNT) + 1);
+
+        // The sum is a double, it cannot overflow and it's exact below 2^53
+        double sum = Double.longBitsToDouble(values.get(SUM)) + value;
+        values.lazySet(SUM, Double.doubleToRawLongBits(sum));
+        if (value < values.get(MIN)) {
+            values.lazySet(MIN, value);
+        }
+        if (value > values.get(MAX)) {
+            values.lazySet(MAX, value);
+        }
+    }
+
+    /**
+     * Adds the values of the snapshot to the sketch, may be called only by the writer thread.
+     * @param snapshot the snapshot of other values, e.g. of a sketch of another thread
+     */
+    public void merge(Snapshot snapshot) {
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+
+        for (int i = 0; i <= COUNT; i++) {
+            values.lazySet(i, values.get(i) + snapshot.values[i]);
+        }
+        double sum = Double.longBitsToDouble(values.get(SUM)) + Double.longBitsToDouble(snapshot.values[SUM]);
+        values.lazySet(SUM, Double.doubleToRawLongBits(sum));
+        if (snapshot.values[MIN] < values.get(MIN)) {
+            values.lazySet(MIN, snapshot.values[MIN]);
+        }
+        if (snapshot.values[MAX] > values.get(MAX)) {
+            values.lazySet(MAX, snapshot.values[MAX]);
+        }
+    }
+
+    /**
+     * @return The current values of the sketch.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            copy[i] = values.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    /**
+     * A point-in-time copy of one sketch or of several merged sketches.
+     */
+    public static final class Snapshot {
+
+        /**
+         * The snapshot of no values.
+         */
+        public static final Snapshot EMPTY = new QuantileSketch().snapshot();
+
+        private final long[] values;
+
+        Snapshot(long[] values) {
+            this.values = values;
+        }
+
+        /**
+         * Merges the snapshots, e.g. of the sketches of several writers.
+         * @param other the other snapshot
+         * @return The snapshot of the values of both snapshots.
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = new long[SIZE];
+            for (int i = 0; i <= COUNT; i++) {
+                merged[i] = values[i] + other.values[i];
+            }
+            double sum = Double.longBitsToDouble(values[SUM]) + Double.longBitsToDouble(other.values[SUM]);
+            merged[SUM] = Double.doubleToRawLongBits(sum);
+            merged[MIN] = Math.min(values[MIN], other.values[MIN]);
+            merged[MAX] = Math.max(values[MAX], other.values[MAX]);
+            return new Snapshot(merged);
+        }
+
+        /**
+         * @return The number of the values.
+         */
+        public long getCount() {
+            return values[COUNT];
+        }
+
+        /**
+         * @return The minimal value, 0 if there is no value.
+         */
+        public long getMin() {
+            return values[COUNT] > 0 ? values[MIN] : 0;
+        }
+
+        /**
+         * @return The maximal value, 0 if there is no value.
+         */
+        public long getMax() {
+            return values[MAX];
+        }
+
+        /**
+         * @return The mean of the values, 0 if there is no value.
+         */
+        public double getMean() {
+            return values[COUNT] > 0 ? Double.longBitsToDouble(values[SUM]) / values[COUNT] : 0;
+        }
+
+        /**
+         * Returns the value which is not exceeded by the given fraction of the values.
+         * @param quantile the fraction, 0 .. 1
+         * @return The upper bound of the quantile, 0 if there is no value.
+         */
+        public long getQuantile(double quantile) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += values[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += values[i];
+                if (seen >= rank) {
+                    return Math.max(Math.min(LogLinearBuckets.upperBound(i, SUB_BITS), values[MAX]), getMin());
+                }
+            }
+            return values[MAX];
+        }
+    }
+}
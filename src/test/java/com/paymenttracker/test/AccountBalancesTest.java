@@ -0,0 +1,315 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.AccountBalances;
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.PaymentConsoleReader;
+import com.paymenttracker.services.PaymentJournal;
+import com.paymenttracker.services.PaymentPipeline;
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.AccountPaymentSink;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the balances of the accounts.
+ * @author Jaromir Mlejnek
+ */
+public class AccountBalancesTest {
+
+    private static final int USD = CurrencyCodes.pack("USD");
+    private static final int EUR = CurrencyCodes.pack("EUR");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    @After
+    public void resetRegister() {
+        CurrencyHolder.getInstance().resetRegister();
+    }
+
+    /**
+     * Tests packing of the account identifiers.
+     */
+    @Test
+    public void codesTest() {
+        for (String account : new String[] { "0", "7", "007", "ACC42", "ZZZZZZZZZZZZ", "000000000000" }) {
+            long packed = AccountCodes.pack(account);
+            assertTrue(account, packed > AccountCodes.NONE);
+            assertEquals(account, AccountCodes.unpack(packed));
+            byte[] bytes = (" " + account + " ").getBytes(StandardCharsets.US_ASCII);
+            assertEquals(packed, AccountCodes.pack(bytes, 1, bytes.length - 1));
+        }
+        assertNotEquals(AccountCodes.pack("7"), AccountCodes.pack("007"));
+        for (String account : new String[] { "", "acc", "ACC-1", "ZZZZZZZZZZZZZ", "ÁČ" }) {
+            assertEquals(account, AccountCodes.INVALID, AccountCodes.pack(account));
+        }
+    }
+
+    /**
+     * Tests that the balances survive several incremental resizes.
+     */
+    @Test
+    public void growTest() {
+        AccountBalances balances = new AccountBalances();
+        long initialBytes = balances.getOffHeapBytes();
+        int accounts = 200000;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i <= accounts; i++) {
+                balances.add(i, USD, i);
+                balances.add(i, EUR, -1);
+            }
+        }
+
+        assertEquals(2 * accounts, balances.size());
+        assertTrue(balances.getOffHeapBytes() >= 2L * accounts * AccountBalances.ENTRY_SIZE);
+        assertTrue(balances.getOffHeapBytes() > initialBytes);
+        for (int i = 1; i <= accounts; i++) {
+            assertEquals(2L * i, balances.getBalance(i, USD));
+            assertEquals(-2, balances.getBalance(i, EUR));
+        }
+        assertEquals(0, balances.getBalance(accounts + 1, USD));
+        assertEquals(0, balances.getBalance(1, CurrencyCodes.pack("CZK")));
+
+        final long[] sums = new long[2];
+        balances.forEach(new AccountBalances.Visitor() {
+            @Override
+            public void visit(long account, int currency, long balance) {
+                sums[0]++;
+                sums[1] += balance;
+            }
+        });
+        assertEquals(2 * accounts, sums[0]);
+        assertEquals((long) accounts * (accounts + 1) - 2L * accounts, sums[1]);
+    }
+
+    /**
+     * Tests that concurrent writers of the same accounts do not lose any payment.
+     */
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        final AccountBalances balances = new AccountBalances();
+        final int accounts = 20000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= accounts; i++) {
+                        balances.add(i, USD, 1);
+                        balances.add(accounts + 1 - i, USD, 2);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(accounts, balances.size());
+        for (int i = 1; i <= accounts; i++) {
+            assertEquals(12, balances.getBalance(i, USD));
+        }
+    }
+
+    /**
+     * Tests that the parsed payments reach the account balances of the register
+     * through the pipeline and through the partial totals.
+     */
+    @Test
+    public void registerTest() throws Exception {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        long account = AccountCodes.pack("ACC42");
+
+        PaymentPipeline pipeline = new PaymentPipeline(holder);
+        pipeline.start();
+        parse("USD 100 ACC42", pipeline);
+        parse("USD 50", pipeline);
+        parse("USD -20.5 ACC42", pipeline);
+        pipeline.close();
+
+        PaymentTotals totals = new PaymentTotals();
+        parse("EUR 3 ACC42", totals);
+        holder.registerTotals(totals);
+
+        assertEquals(7950, holder.getAccountBalance(account, USD));
+        assertEquals(300, holder.getAccountBalance(account, EUR));
+        assertEquals(12950, holder.snapshot().getTotal(USD));
+        assertEquals(300, holder.snapshot().getTotal(EUR));
+        assertEquals(2, holder.getAccounts().size());
+    }
+
+    /**
+     * Tests that a payment rejected for an overflow changes neither
+     * the net amount nor the balance.
+     */
+    @Test
+    public void rejectTest() {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        long account = AccountCodes.pack("ACC42");
+        long other = AccountCodes.pack("ACC43");
+
+        holder.accept(account, USD, Long.MAX_VALUE - 10);
+        assertRejected(holder, account, USD, 11);
+        assertEquals(Long.MAX_VALUE - 10, holder.snapshot().getTotal(USD));
+        assertEquals(Long.MAX_VALUE - 10, holder.getAccountBalance(account, USD));
+
+        // The net amount overflows, the new balance would not
+        assertRejected(holder, other, USD, 11);
+        assertEquals(0, holder.getAccountBalance(other, USD));
+        assertEquals(1, holder.getAccounts().size());
+
+        // The balance overflows, the net amount would not
+        holder.accept(other, EUR, -Long.MAX_VALUE);
+        holder.accept(account, EUR, Long.MAX_VALUE);
+        assertRejected(holder.withoutWindows(), account, EUR, 1);
+        assertEquals(0, holder.snapshot().getTotal(EUR));
+        assertEquals(Long.MAX_VALUE, holder.getAccountBalance(account, EUR));
+
+        PaymentTotals totals = new PaymentTotals();
+        totals.accept(account, USD, Long.MAX_VALUE);
+        assertRejected(totals, account, USD, 1);
+        assertRejected(totals, other, USD, 1);
+        assertEquals(Long.MAX_VALUE, totals.getTotal(USD));
+    }
+
+    /**
+     * Tests that the amounts of the accounts of partial totals change
+     * the balances only together with the net amounts.
+     */
+    @Test
+    public void totalsTest() {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        long account = AccountCodes.pack("ACC42");
+        long other = AccountCodes.pack("ACC43");
+
+        // A dropped load (e.g. a cancelled one) changes nothing
+        PaymentTotals totals = new PaymentTotals();
+        totals.accept(account, USD, 11);
+        totals.accept(account, EUR, 5);
+        totals.accept(USD, 1);
+        assertEquals(0, holder.getAccountBalance(account, USD));
+        assertEquals(0, holder.getAccounts().size());
+
+        // The net amount of USD overflows, EUR is registered
+        holder.accept(USD, Long.MAX_VALUE - 10);
+        try {
+            holder.registerTotals(totals);
+            fail("Overflow accepted");
+        } catch (ArithmeticException ex) {
+            // Expected
+        }
+        assertEquals(Long.MAX_VALUE - 10, holder.snapshot().getTotal(USD));
+        assertEquals(0, holder.getAccountBalance(account, USD));
+        assertEquals(5, holder.snapshot().getTotal(EUR));
+        assertEquals(5, holder.getAccountBalance(account, EUR));
+
+        // The balance of the other account overflows, the net amount would not
+        holder.accept(other, EUR, Long.MAX_VALUE - 5);
+        holder.accept(account, EUR, -Long.MAX_VALUE);
+        totals = new PaymentTotals();
+        totals.accept(account, EUR, 3);
+        totals.accept(other, EUR, 6);
+        try {
+            holder.registerTotals(totals);
+            fail("Overflow accepted");
+        } catch (ArithmeticException ex) {
+            // Expected
+        }
+        assertEquals(5 - 5, holder.snapshot().getTotal(EUR));
+        assertEquals(5 - Long.MAX_VALUE, holder.getAccountBalance(account, EUR));
+        assertEquals(Long.MAX_VALUE - 5, holder.getAccountBalance(other, EUR));
+
+        totals = new PaymentTotals();
+        totals.accept(account, EUR, 3);
+        totals.accept(other, EUR, 5);
+        holder.registerTotals(totals);
+        assertEquals(8, holder.snapshot().getTotal(EUR));
+        assertEquals(8 - Long.MAX_VALUE, holder.getAccountBalance(account, EUR));
+        assertEquals(Long.MAX_VALUE, holder.getAccountBalance(other, EUR));
+    }
+
+    /**
+     * Tests that the payments of the accounts typed into the console are journaled
+     * and their balances are restored by the replay of the journal.
+     */
+    @Test
+    public void consoleTest() throws Exception {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        long account = AccountCodes.pack("ACC42");
+        File file = folder.newFile("console.journal");
+        file.delete();
+
+        PaymentPipeline pipeline = new PaymentPipeline(holder);
+        pipeline.start();
+        try (PaymentJournal journal = new PaymentJournal(file, pipeline)) {
+            String input = "USD 100 ACC42\nUSD 50\nEUR -2.5 ACC42\nquit\n";
+            PaymentConsoleReader reader = new PaymentConsoleReader("quit",
+                    new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)), journal);
+            reader.start();
+            reader.join();
+        }
+        pipeline.close();
+
+        assertEquals(10000, holder.getAccountBalance(account, USD));
+        assertEquals(-250, holder.getAccountBalance(account, EUR));
+        assertEquals(15000, holder.snapshot().getTotal(USD));
+
+        holder.resetRegister();
+        try (PaymentJournal journal = new PaymentJournal(file, holder)) {
+            assertEquals(3, journal.replay(holder.withoutWindows()));
+        }
+        assertEquals(10000, holder.getAccountBalance(account, USD));
+        assertEquals(-250, holder.getAccountBalance(account, EUR));
+        assertEquals(15000, holder.snapshot().getTotal(USD));
+        assertEquals(2, holder.getAccounts().size());
+    }
+
+    private static void assertRejected(PaymentSink sink, long account, int currency, long amount) {
+        try {
+            ((AccountPaymentSink) sink).accept(account, currency, amount);
+            fail("Overflow accepted");
+        } catch (ArithmeticException ex) {
+            // Expected
+        }
+    }
+
+    private static void parse(String line, PaymentSink sink) throws Exception {
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        assertEquals(PaymentParser.PARSED, PaymentParser.tryParse(bytes, 0, bytes.length, sink));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.BinaryFileLoader;
+import com.paymenttracker.services.BinaryPaymentWriter;
+import com.paymenttracker.services.FileStatistics;
+import com.paymenttracker.services.PaymentFileConverter;
+import com.paymenttracker.services.PaymentFileReader;
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the conversion to the binary payment format and its loading.
+ * @author Jaromir Mlejnek
+ */
+public class BinaryPaymentFileTest {
+
+    /**
+     * Enough lines for several blocks.
+     */
+    private static final int LINES = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that the converted plain and compressed files are loaded
+     * with the same net amounts like the text files.
+     */
+    @Test
+    public void convertTest() throws IOException {
+        int usd = CurrencyCodes.pack("USD");
+        int jpy = CurrencyCodes.pack("JPY");
+        int eur = CurrencyCodes.pack("EUR");
+        File text = folder.newFile("payments.txt");
+        File compressed = folder.newFile("payments.txt.gz");
+        writeText(new FileOutputStream(text));
+        writeText(new GZIPOutputStream(new FileOutputStream(compressed)));
+
+        File binary = folder.newFile("payments.ptb");
+        try (BinaryPaymentWriter writer = new BinaryPaymentWriter(binary)) {
+            FileStatistics statistics = PaymentFileConverter.convert(text, writer);
+            assertEquals(LINES * 2 + 2, statistics.getPayments());
+            assertEquals(1, statistics.getErrors());
+            statistics = PaymentFileConverter.convert(compressed, writer);
+            assertEquals(LINES * 2 + 2, statistics.getPayments());
+        }
+        assertThat(BinaryFileLoader.isBinary(binary), is(true));
+        assertThat(BinaryFileLoader.isBinary(text), is(false));
+
+        PaymentTotals totals = load(binary);
+        assertEquals(2 * (LINES * 150L - LINES * 100L), totals.getTotal(usd));
+        assertEquals(2 * LINES * 100L, totals.getTotal(jpy));
+        assertEquals(2 * -5, totals.getTotal(eur));
+
+        // The reader recognizes the binary file
+        PaymentTotals read = new PaymentTotals();
+        PaymentFileReader reader = new PaymentFileReader(binary.getPath(), read);
+        reader.run();
+        assertEquals(totals.getTotal(usd), read.getTotal(usd));
+        assertEquals(binary.length(), reader.getProgress().getOffset());
+
+        try {
+            PaymentFileConverter.convert(binary, null);
+            fail("A binary file cannot be converted");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that the accounts of the converted payments are loaded and that
+     * a file of the first version (without the accounts) is still loaded.
+     */
+    @Test
+    public void accountTest() throws IOException {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        holder.resetRegister();
+        int usd = CurrencyCodes.pack("USD");
+        long account = AccountCodes.pack("ACC42");
+        File text = folder.newFile("accounts.txt");
+        Files.write(text.toPath(), "USD 1 ACC42\nUSD 2\nUSD -0.5 ACC42\n".getBytes(StandardCharsets.US_ASCII));
+
+        File binary = folder.newFile("accounts.ptb");
+        try (BinaryPaymentWriter writer = new BinaryPaymentWriter(binary)) {
+            assertEquals(3, PaymentFileConverter.convert(text, writer).getPayments());
+        }
+        try {
+            holder.registerTotals(load(binary));
+            assertEquals(250, holder.snapshot().getTotal(usd));
+            assertEquals(50, holder.getAccountBalance(account, usd));
+        } finally {
+            holder.resetRegister();
+        }
+
+        // The header and one block of two records (short currency, long amount)
+        ByteBuffer records = ByteBuffer.allocate(20);
+        records.putShort((short) usd).putLong(100).putShort((short) usd).putLong(-30);
+        CRC32 crc = new CRC32();
+        crc.update(records.array());
+        File first = folder.newFile("first.ptb");
+        ByteBuffer file = ByteBuffer.allocate(36);
+        file.putInt(0x50544231).putInt(10).putInt(2).putInt((int) crc.getValue()).put(records.array());
+        Files.write(first.toPath(), file.array());
+        assertThat(BinaryFileLoader.isBinary(first), is(true));
+        assertEquals(70, load(first).getTotal(usd));
+    }
+
+    /**
+     * Tests that a corrupted or truncated file is refused as a whole.
+     */
+    @Test
+    public void corruptedTest() throws IOException {
+        File binary = folder.newFile("payments.ptb");
+        try (BinaryPaymentWriter writer = new BinaryPaymentWriter(binary)) {
+            for (int i = 0; i < LINES; i++) {
+                writer.accept(CurrencyCodes.pack("USD"), i);
+            }
+        }
+        long length = binary.length();
+
+        try (RandomAccessFile file = new RandomAccessFile(binary, "rw")) {
+            file.seek(length - 3);
+            int b = file.read();
+            file.seek(length - 3);
+            file.write(b ^ 1);
+        }
+        assertRefused(binary);
+
+        try (RandomAccessFile file = new RandomAccessFile(binary, "rw")) {
+            file.setLength(length - 4);
+        }
+        assertRefused(binary);
+    }
+
+    private static void assertRefused(File binary) {
+        try {
+            load(binary);
+            fail("The damaged file must be refused");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    private static PaymentTotals load(File binary) throws IOException {
+        try (FileChannel channel = FileChannel.open(binary.toPath(), StandardOpenOption.READ)) {
+            return new BinaryFileLoader().load(channel, 0, channel.size());
+        }
+    }
+
+    private static void writeText(OutputStream out) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"))) {
+            for (int i = 0; i < LINES; i++) {
+                writer.write("USD 1.50\nJPY 100\r\n");
+                if (i == LINES / 2) {
+                    writer.write("INVALID\n");
+                }
+            }
+            writer.write("USD -");
+            writer.write(Integer.toString(LINES));
+            writer.write("\nEUR -0.05");
+        }
+    }
+}
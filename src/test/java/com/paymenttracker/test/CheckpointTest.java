@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.Checkpoint;
+import com.paymenttracker.services.FileProgress;
+import com.paymenttracker.services.PaymentFileReader;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the checkpoints and the resumed reading of the input files.
+ * @author Jaromir Mlejnek
+ */
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that a checkpoint survives the write and read and that
+     * the reading of an appended file is resumed at the recorded offset.
+     */
+    @Test
+    public void resumeAppendedFileTest() throws IOException {
+        int usd = CurrencyCodes.pack("USD");
+        int eur = CurrencyCodes.pack("EUR");
+        File input = folder.newFile("payments.txt");
+        write(input, "USD 100\nEUR 5.25\nUSD -20", false);
+
+        PaymentTotals first = new PaymentTotals();
+        PaymentFileReader reader = new PaymentFileReader(input.getPath(), false, first);
+        reader.run();
+        assertEquals(8000, first.getTotal(usd));
+
+        File file = folder.newFile("tracker.checkpoint");
+        FileProgress progress = reader.getProgress().identify();
+        new Checkpoint(42, new int[] { usd }, new long[] { 8000 }, Collections.singletonList(progress)).write(file);
+
+        Checkpoint checkpoint = Checkpoint.read(file);
+        PaymentTotals restored = new PaymentTotals();
+        checkpoint.restore(restored);
+        assertEquals(42, checkpoint.getJournalLength());
+        assertEquals(8000, restored.getTotal(usd));
+
+        FileProgress recorded = checkpoint.getFile(input.getAbsolutePath());
+        assertEquals(input.length(), recorded.getOffset());
+        assertThat(recorded.matches(), is(true));
+
+        // The appended lines are read only
+        write(input, "\nEUR 1\nUSD 1", true);
+        assertThat(recorded.matches(), is(true));
+
+        PaymentTotals second = new PaymentTotals();
+        reader = new PaymentFileReader(input.getPath(), false, second);
+        reader.resumeFrom(recorded);
+        reader.run();
+        assertEquals(100, second.getTotal(usd));
+        assertEquals(100, second.getTotal(eur));
+
+        PaymentTotals consumed = new PaymentTotals();
+        reader.getProgress().addTo(consumed);
+        assertEquals(8100, consumed.getTotal(usd));
+        assertEquals(625, consumed.getTotal(eur));
+        assertEquals(input.length(), reader.getProgress().getOffset());
+    }
+
+    /**
+     * Tests that a rewritten file is not resumed.
+     */
+    @Test
+    public void changedFileTest() throws IOException {
+        File input = folder.newFile("payments.txt");
+        write(input, "USD 100\n", false);
+
+        PaymentFileReader reader = new PaymentFileReader(input.getPath(), false, new PaymentTotals());
+        reader.run();
+        FileProgress progress = reader.getProgress().identify();
+
+        write(input, "CZK 100\n", false);
+        input.setLastModified(progress.getLastModified() + 2000);
+        assertThat(progress.matches(), is(false));
+
+        write(input, "USD 1\n", false);
+        assertThat(progress.matches(), is(false));
+    }
+
+    private static void write(File file, String content, boolean append) throws IOException {
+        try (Writer writer = new FileWriter(file, append)) {
+            writer.write(content);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.CompressedFileLoader;
+import com.paymenttracker.services.FileProgress;
+import com.paymenttracker.services.PaymentFileReader;
+import com.paymenttracker.services.PaymentFileSetReader;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the loading of gzip-compressed payment files.
+ * @author Jaromir Mlejnek
+ */
+public class CompressedFileLoaderTest {
+
+    /**
+     * Enough lines for several decoded blocks.
+     */
+    private static final int LINES = 400000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests a file of two gzip members whose lines cross the block boundaries.
+     */
+    @Test
+    public void multiMemberTest() throws IOException {
+        int usd = CurrencyCodes.pack("USD");
+        int eur = CurrencyCodes.pack("EUR");
+        File file = folder.newFile("payments.txt.gz");
+        appendMember(file, LINES, "USD 1.25\n", "");
+        appendMember(file, 1, "INVALID\n", "EUR -3");
+
+        assertThat(CompressedFileLoader.isCompressed(file), is(true));
+        CompressedFileLoader loader = new CompressedFileLoader();
+        PaymentTotals totals = loader.load(file, 0);
+        assertEquals(LINES * 125L, totals.getTotal(usd));
+        assertEquals(-300, totals.getTotal(eur));
+        assertEquals(LINES + 1, loader.getPaymentCount());
+        assertEquals(1, loader.getErrorCount());
+        assertEquals(LINES * 9L + 8 + 6, loader.getDecodedBytes());
+    }
+
+    /**
+     * Tests the compressed files read by both readers and resumed
+     * after another member has been appended.
+     */
+    @Test
+    public void readersTest() throws IOException {
+        int usd = CurrencyCodes.pack("USD");
+        File file = folder.newFile("payments.gz");
+        appendMember(file, LINES, "USD 1\n", "");
+        File plain = folder.newFile("payments.txt");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(plain), "US-ASCII")) {
+            writer.write("USD 2\n");
+        }
+
+        PaymentTotals first = new PaymentTotals();
+        PaymentFileSetReader setReader = new PaymentFileSetReader(Arrays.asList(file, plain), 2, first);
+        setReader.run();
+        assertEquals(LINES * 100L + 200, first.getTotal(usd));
+        assertEquals(LINES * 6L, setReader.getStatistics().get(0).getBytes());
+
+        FileProgress progress = setReader.getFileProgress().get(0);
+        assertEquals(file.length(), progress.getOffset());
+
+        // Only the appended member is read
+        appendMember(file, 3, "USD 5\n", "");
+        PaymentTotals second = new PaymentTotals();
+        PaymentFileReader reader = new PaymentFileReader(file.getPath(), second);
+        reader.resumeFrom(progress);
+        reader.run();
+        assertEquals(1500, second.getTotal(usd));
+        assertEquals(file.length(), reader.getProgress().getOffset());
+    }
+
+    private static void appendMember(File file, int count, String line, String last) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(file, true)), "US-ASCII"))) {
+            for (int i = 0; i < count; i++) {
+                writer.write(line);
+            }
+            writer.write(last);
+        }
+    }
+}
@@ -17,7 +17,9 @@
 package com.paymenttracker.test;
 
 import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.CurrencySnapshot;
 import com.paymenttracker.model.Payment;
+import com.paymenttracker.utils.CurrencyCodes;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -27,6 +29,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
@@ -43,9 +46,10 @@ import org.junit.runners.MethodSorters;
 public class CurrencyHolderTest {
     
     private static final List<Payment> payments = new ArrayList<>();
-    private static final Map<String, Double> currenciesAmmount = new HashMap<>();
+    private static final Map<String, Long> currenciesAmmount = new HashMap<>();
     private static final int NUMBER_OF_THREADS = 100;
-    private static final double DELTA = 0.1;
+    private static final int NUMBER_OF_WRITERS = 4;
+    private static final int PAIRS_PER_WRITER = 200000;
     
     public CurrencyHolderTest() {        
     }
@@ -80,7 +84,7 @@ public class CurrencyHolderTest {
             if (!currenciesAmmount.containsKey(payment.getCurrencyCode())) {
                 currenciesAmmount.put(payment.getCurrencyCode(), payment.getAmount());
             } else {
-                double currencyTotal = currenciesAmmount.get(payment.getCurrencyCode());
+                long currencyTotal = currenciesAmmount.get(payment.getCurrencyCode());
                 currenciesAmmount.put(payment.getCurrencyCode(), currencyTotal + payment.getAmount());
             }
         }
@@ -91,7 +95,7 @@ public class CurrencyHolderTest {
      */
     @Test
     public void test1Create() {
-        Map<String, Double> summary = CurrencyHolder.getInstance().getCurrenciesStatus();
+        Map<String, Long> summary = CurrencyHolder.getInstance().getCurrenciesStatus();
         assertThat(summary.isEmpty(), is(true));
     }
     
@@ -104,10 +108,10 @@ public class CurrencyHolderTest {
         final Payment payment = new Payment("USD", 100);
         CurrencyHolder.getInstance().registerPayment(payment);
         
-        Map<String, Double> summary = CurrencyHolder.getInstance().getCurrenciesStatus();
+        Map<String, Long> summary = CurrencyHolder.getInstance().getCurrenciesStatus();
         assertThat(summary.size(), is(1));
         
-        assertEquals("usd = 100", 100, summary.get("USD"), DELTA);
+        assertEquals("usd = 100", Long.valueOf(100), summary.get("USD"));
     } 
     
     /**
@@ -122,7 +126,7 @@ public class CurrencyHolderTest {
     public void test3UpdateByMultipleThread() {
         // Empty the currency holder and test it
         CurrencyHolder.getInstance().resetRegister();
-        Map<String, Double> summary = CurrencyHolder.getInstance().getCurrenciesStatus();
+        Map<String, Long> summary = CurrencyHolder.getInstance().getCurrenciesStatus();
         assertThat(summary.isEmpty(), is(true));               
         
         // Create ExecuterService
@@ -161,11 +165,124 @@ public class CurrencyHolderTest {
         // Check that the currency holder has the net ammount for each currency
         // equal to the pre-calculated value in "currenciesAmmount"
         for (String key : currenciesAmmount.keySet()) {            
-            assertEquals("currency: " + key, currenciesAmmount.get(key) * NUMBER_OF_THREADS, 
-                    summary.get(key), DELTA);    
+            assertEquals("currency: " + key, Long.valueOf(currenciesAmmount.get(key) * NUMBER_OF_THREADS), 
+                    summary.get(key));    
         }
     }
             
+    /**
+     * Tests that snapshots taken while writers register payments are consistent.
+     * Every writer registers pairs of payments (USD +1, EUR -1), so a snapshot
+     * may contain at most one unfinished pair per writer.
+     */
+    @Test
+    public void test4SnapshotConsistency() throws Exception {
+        CurrencyHolder.getInstance().resetRegister();
+        final int usd = CurrencyCodes.pack("USD");
+        final int eur = CurrencyCodes.pack("EUR");
+        final AtomicBoolean inconsistent = new AtomicBoolean();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_WRITERS);
+        List<Future<?>> futureList = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_WRITERS; i++) {
+            futureList.add(executor.submit(new Runnable() {
+                
+                @Override
+                public void run() {
+                    for (int j = 0; j < PAIRS_PER_WRITER; j++) {
+                        CurrencyHolder.getInstance().registerPayment(usd, 1);
+                        CurrencyHolder.getInstance().registerPayment(eur, -1);
+                    }
+                }
+            }));
+        }
+        
+        long version = -1;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Future<?> future : futureList) {
+                running |= !future.isDone();
+            }
+            
+            CurrencySnapshot snapshot = CurrencyHolder.getInstance().snapshot();
+            long unfinished = snapshot.getTotal(usd) + snapshot.getTotal(eur);
+            if (unfinished < 0 || unfinished > NUMBER_OF_WRITERS || snapshot.getVersion() < version) {
+                inconsistent.set(true);
+            }
+            version = snapshot.getVersion();
+        }
+        executor.shutdown();
+        
+        assertThat(inconsistent.get(), is(false));
+        
+        CurrencySnapshot snapshot = CurrencyHolder.getInstance().snapshot();
+        assertEquals(NUMBER_OF_WRITERS * PAIRS_PER_WRITER, snapshot.getTotal(usd));
+        assertEquals(-NUMBER_OF_WRITERS * PAIRS_PER_WRITER, snapshot.getTotal(eur));
+        
+        // Nothing has changed - the same snapshot is returned
+        assertSame(snapshot, CurrencyHolder.getInstance().snapshot());
+    }
+            
+    /**
+     * Tests that a payment which would overflow a net amount is rejected
+     * even when the amounts are spread over the stripes of many writers.
+     */
+    @Test
+    public void test5Overflow() throws Exception {
+        CurrencyHolder.getInstance().resetRegister();
+        final int usd = CurrencyCodes.pack("USD");
+        final int eur = CurrencyCodes.pack("EUR");
+        final long amount = Long.MAX_VALUE / 1000;
+        
+        ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_WRITERS);
+        List<Future<Long>> futureList = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_WRITERS; i++) {
+            futureList.add(executor.submit(new Callable<Long>() {
+                
+                @Override
+                public Long call() {
+                    long accepted = 0;
+                    for (int j = 0; j < 1000; j++) {
+                        try {
+                            CurrencyHolder.getInstance().registerPayment(usd, amount);
+                            accepted++;
+                        } catch (ArithmeticException ex) {
+                            // Rejected
+                        }
+                        CurrencyHolder.getInstance().snapshot();
+                    }
+                    return accepted;
+                }
+            }));
+        }
+        
+        long accepted = 0;
+        for (Future<Long> future : futureList) {
+            accepted += future.get();
+        }
+        executor.shutdown();
+        
+        assertEquals(1000, accepted);
+        assertEquals(1000 * amount, CurrencyHolder.getInstance().snapshot().getTotal(usd));
+        
+        // A single payment over the limit of the stripes
+        CurrencyHolder.getInstance().registerPayment(eur, Long.MAX_VALUE - 10);
+        CurrencyHolder.getInstance().registerPayment(eur, 10);
+        try {
+            CurrencyHolder.getInstance().registerPayment(eur, 1);
+            fail("Overflow accepted");
+        } catch (ArithmeticException ex) {
+            // Expected
+        }
+        assertEquals(Long.MAX_VALUE, CurrencyHolder.getInstance().snapshot().getTotal(eur));
+        
+        // The currency leaves the exact path once its net amount is small again
+        CurrencyHolder.getInstance().registerPayment(eur, -Long.MAX_VALUE);
+        CurrencyHolder.getInstance().registerPayment(eur, 1);
+        assertEquals(1, CurrencyHolder.getInstance().snapshot().getTotal(eur));
+    }
+            
     private static class ExecuteRegisterCall implements Callable<Boolean> {
 
         public ExecuteRegisterCall() {
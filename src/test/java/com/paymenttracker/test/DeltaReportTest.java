@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.TrackerOptions;
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.services.PaymentPrinterStreamWriter;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the changed currencies of the register and the delta reports.
+ * @author Jaromir Mlejnek
+ */
+public class DeltaReportTest {
+
+    private static final int USD = CurrencyCodes.pack("USD");
+    private static final int EUR = CurrencyCodes.pack("EUR");
+    private static final int CZK = CurrencyCodes.pack("CZK");
+
+    @Before
+    @After
+    public void resetRegister() {
+        CurrencyHolder.getInstance().resetRegister();
+    }
+
+    /**
+     * Tests that the drained changes are marked once and the untouched currencies are not.
+     */
+    @Test
+    public void drainTest() {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        holder.registerPayment(USD, 100);
+        holder.registerPayment(USD, 200);
+        holder.withoutWindows().accept(EUR, 300);
+
+        BitSet changed = new BitSet();
+        holder.drainChanged(changed);
+        assertEquals(2, changed.cardinality());
+        assertTrue(changed.get(USD));
+        assertTrue(changed.get(EUR));
+
+        changed.clear();
+        holder.drainChanged(changed);
+        assertTrue(changed.isEmpty());
+
+        holder.registerPayment(CZK, 1);
+        holder.drainChanged(changed);
+        assertEquals(1, changed.cardinality());
+        assertTrue(changed.get(CZK));
+    }
+
+    /**
+     * Tests that a change drained while writers run is always in the following snapshot.
+     */
+    @Test
+    public void concurrentDrainTest() throws InterruptedException {
+        final CurrencyHolder holder = CurrencyHolder.getInstance();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    holder.registerPayment(USD, 1);
+                }
+            }
+        };
+        writer.start();
+
+        BitSet changed = new BitSet();
+        long reported = 0;
+        try {
+            for (int i = 0; i < 1000; i++) {
+                changed.clear();
+                holder.drainChanged(changed);
+                long total = holder.snapshot().getTotal(USD);
+                if (changed.get(USD)) {
+                    assertTrue(total > 0);
+                    reported = total;
+                } else {
+                    assertTrue(total >= reported);
+                }
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+
+        // A change missed by the last drain is drained by the next one
+        changed.clear();
+        holder.drainChanged(changed);
+        assertTrue(changed.get(USD) || holder.snapshot().getTotal(USD) == reported);
+    }
+
+    /**
+     * Tests that a delta report prints only the changed net amounts.
+     */
+    @Test
+    public void printerTest() throws IOException {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PaymentPrinterStreamWriter printer = new PaymentPrinterStreamWriter(new PrintStream(output, true, "US-ASCII"), null, false, true);
+
+        holder.registerPayment(USD, 1000);
+        holder.registerPayment(EUR, 500);
+        assertArrayEquals(new String[] { "EUR 5 (", "USD 10 (" }, report(printer, output));
+
+        // Nothing has changed
+        assertArrayEquals(new String[0], report(printer, output));
+
+        holder.registerPayment(EUR, -500);
+        holder.registerPayment(CZK, 100);
+        holder.registerPayment(CZK, -100);
+        assertArrayEquals(new String[] { "EUR 0 (" }, report(printer, output));
+
+        holder.registerPayment(USD, 1);
+        assertArrayEquals(new String[] { "USD 10.01 (" }, report(printer, output));
+
+        // The final report prints all the non-zero net amounts
+        printer.printAll();
+        assertArrayEquals(new String[] { "USD 10.01 (" }, lines(output));
+    }
+
+    /**
+     * Tests the options of the reports.
+     */
+    @Test
+    public void optionsTest() {
+        TrackerOptions defaults = TrackerOptions.parse(new String[0]);
+        assertEquals(TrackerOptions.DEFAULT_REPORT_INTERVAL, defaults.getReportInterval());
+        assertFalse(defaults.isDelta());
+
+        TrackerOptions options = TrackerOptions.parse(new String[] { "--report-interval=250", "--delta" });
+        assertEquals(250, options.getReportInterval());
+        assertTrue(options.isDelta());
+
+        for (String arg : new String[] { "--report-interval=0", "--report-interval=x", "--delta=1" }) {
+            try {
+                TrackerOptions.parse(new String[] { arg });
+                fail(arg);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    private static String[] report(PaymentPrinterStreamWriter printer, ByteArrayOutputStream output) throws IOException {
+        printer.run();
+        return lines(output);
+    }
+
+    /**
+     * Returns the printed lines up to the windows and clears the output.
+     */
+    private static String[] lines(ByteArrayOutputStream output) throws IOException {
+        String text = output.toString("US-ASCII");
+        output.reset();
+        if (text.isEmpty()) {
+            return new String[0];
+        }
+
+        String[] lines = text.split(System.lineSeparator());
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = lines[i].substring(0, lines[i].indexOf('(') + 1);
+        }
+        return lines;
+    }
+}
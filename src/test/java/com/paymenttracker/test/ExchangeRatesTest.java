@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.services.ExchangeRates;
+import com.paymenttracker.services.PaymentPrinterStreamWriter;
+import com.paymenttracker.services.RateTable;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the exchange rates and the converted reports.
+ * @author Jaromir Mlejnek
+ */
+public class ExchangeRatesTest {
+
+    private static final int USD = CurrencyCodes.pack("USD");
+    private static final int EUR = CurrencyCodes.pack("EUR");
+    private static final int JPY = CurrencyCodes.pack("JPY");
+    private static final int GBP = CurrencyCodes.pack("GBP");
+
+    private static final String RATES = "# rates of 2015-06-01\nBASE USD\n\nEUR 1.0842\nJPY 0.0067\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    @After
+    public void resetRegister() {
+        CurrencyHolder.getInstance().resetRegister();
+    }
+
+    /**
+     * Tests the conversion of the minor units of the currencies with a different scale.
+     */
+    @Test
+    public void convertTest() throws IOException {
+        RateTable table = RateTable.parse(RATES.getBytes(StandardCharsets.US_ASCII), "rates.txt");
+
+        assertEquals(USD, table.getBaseCurrency());
+        assertEquals(108420, table.convert(EUR, 100000));
+        assertEquals(-108420, table.convert(EUR, -100000));
+        assertEquals(6700, table.convert(JPY, 10000));
+        assertEquals(12345, table.convert(USD, 12345));
+        assertEquals(1.0, table.getRate(USD), 0.0);
+        assertTrue(table.hasRate(EUR));
+        assertFalse(table.hasRate(GBP));
+        assertEquals(-Long.MAX_VALUE, table.convert(EUR, -Long.MAX_VALUE));
+    }
+
+    /**
+     * Tests that an invalid rate file is rejected as a whole.
+     */
+    @Test
+    public void invalidTest() {
+        String[] invalid = {
+            "EUR 1.0842\n",
+            "BASE USD\nEUR\n",
+            "BASE USD\nEUR x\n",
+            "BASE USD\nEUR -1\n",
+            "BASE USD\nEUR 0\n",
+            "BASE USD\neur 1\n",
+            "BASE USD\nBASE EUR\n"
+        };
+        for (String content : invalid) {
+            try {
+                RateTable.parse(content.getBytes(StandardCharsets.US_ASCII), "rates.txt");
+                fail("Accepted " + content);
+            } catch (IOException ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Tests that a changed rate file replaces the table and a broken one keeps it.
+     */
+    @Test
+    public void reloadTest() throws Exception {
+        Logger logger = Logger.getLogger(ExchangeRates.class.getName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.OFF);
+        File file = folder.newFile("rates.txt");
+        write(file, RATES);
+
+        try (ExchangeRates rates = new ExchangeRates(file)) {
+            RateTable first = rates.getTable();
+            assertFalse(rates.reload());
+            assertSame(first, rates.getTable());
+
+            rates.start();
+            write(file, "BASE USD\nEUR 2\n");
+            long deadline = System.currentTimeMillis() + 2 * ExchangeRates.POLL_MILLIS;
+            while (rates.getTable() == first && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            RateTable second = rates.getTable();
+            assertNotSame(first, second);
+            assertEquals(200, second.convert(EUR, 100));
+            assertFalse(second.hasRate(JPY));
+
+            write(file, "BASE USD\nEUR two\n");
+            assertFalse(rates.reload());
+            assertSame(second, rates.getTable());
+            file.delete();
+            assertFalse(rates.reload());
+            assertSame(second, rates.getTable());
+        } finally {
+            logger.setLevel(level);
+        }
+    }
+
+    /**
+     * Tests the converted column and the grand total of the report.
+     */
+    @Test
+    public void printerTest() throws IOException {
+        File file = folder.newFile("rates.txt");
+        write(file, RATES);
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        holder.withoutWindows().accept(EUR, 100000);
+        holder.withoutWindows().accept(USD, 100000);
+        holder.withoutWindows().accept(GBP, 500);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ExchangeRates rates = new ExchangeRates(file)) {
+            new PaymentPrinterStreamWriter(new PrintStream(output, true, "US-ASCII"), rates).run();
+        }
+
+        String[] lines = output.toString("US-ASCII").split(System.lineSeparator());
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("EUR 1000 = USD 1084.20 (1m "));
+        assertTrue(lines[1], lines[1].startsWith("GBP 5 (1m "));
+        assertTrue(lines[2], lines[2].startsWith("USD 1000 = USD 1000 (1m "));
+        assertEquals("Total USD 2084.20 (without GBP)", lines[3]);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+    }
+}
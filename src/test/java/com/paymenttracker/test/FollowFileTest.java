@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.PaymentFileReader;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the follow mode of the file reader.
+ * @author Jaromir Mlejnek
+ */
+public class FollowFileTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that the appended lines are read once they are complete
+     * and that a truncated and a replaced file are read from the beginning.
+     */
+    @Test
+    public void followTest() throws Exception {
+        int usd = CurrencyCodes.pack("USD");
+        int eur = CurrencyCodes.pack("EUR");
+        int czk = CurrencyCodes.pack("CZK");
+        File input = folder.newFile("payments.txt");
+        write(input, "USD 1\n", false);
+
+        SynchronizedSink sink = new SynchronizedSink();
+        PaymentFileReader reader = new PaymentFileReader(input.getPath(), false, sink);
+        reader.setFollow(true);
+        reader.start();
+        try {
+            awaitTotal(sink, usd, 100);
+
+            // An incomplete line is held back
+            write(input, "USD 2", true);
+            Thread.sleep(300);
+            assertEquals(100, sink.getTotal(usd));
+            write(input, "\nUSD 3\n", true);
+            awaitTotal(sink, usd, 600);
+
+            // Truncated
+            try (FileOutputStream out = new FileOutputStream(input)) {
+                out.write("EUR 5\n".getBytes("US-ASCII"));
+            }
+            awaitTotal(sink, eur, 500);
+
+            // Replaced
+            File rotated = new File(folder.getRoot(), "payments.txt.1");
+            assertThat(input.renameTo(rotated), is(true));
+            write(rotated, "EUR 1\n", true);
+            write(input, "CZK 7\n", false);
+            awaitTotal(sink, czk, 700);
+            assertEquals(600, sink.getTotal(eur));
+            assertEquals(600, sink.getTotal(usd));
+            assertThat(reader.isAlive(), is(true));
+        } finally {
+            reader.requestStop();
+            reader.awaitStop(TIMEOUT_MILLIS);
+        }
+        assertThat(reader.isAlive(), is(false));
+        assertEquals(input.length(), reader.getProgress().getOffset());
+    }
+
+    private static void awaitTotal(SynchronizedSink sink, int currency, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sink.getTotal(currency) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, sink.getTotal(currency));
+    }
+
+    private static void write(File file, String content, boolean append) throws IOException {
+        try (Writer writer = new FileWriter(file, append)) {
+            writer.write(content);
+        }
+    }
+
+    private static class SynchronizedSink implements PaymentSink {
+
+        private final PaymentTotals totals = new PaymentTotals();
+
+        @Override
+        public synchronized void accept(int currency, long amount) {
+            totals.accept(currency, amount);
+        }
+
+        public synchronized long getTotal(int currency) {
+            return totals.getTotal(currency);
+        }
+    }
+}
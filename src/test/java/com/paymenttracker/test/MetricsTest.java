@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.PaymentFileReader;
+import com.paymenttracker.services.TrackerMetrics;
+import com.paymenttracker.utils.LatencyHistogram;
+import com.paymenttracker.utils.PaymentParserException.Reason;
+import com.paymenttracker.utils.PerThreadCounters;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the metrics primitives and the metrics of the readers.
+ * The metrics are global, so the tests check their increments.
+ * @author Jaromir Mlejnek
+ */
+public class MetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that the counters of several threads are summed.
+     */
+    @Test
+    public void countersTest() throws InterruptedException {
+        final PerThreadCounters counters = new PerThreadCounters(2);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counters.add(0, 1, 1, 2);
+                    }
+                    counters.add(1, 5);
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400000, counters.get(0));
+        assertEquals(800020, counters.get(1));
+    }
+
+    /**
+     * Tests the quantiles of the histogram stay within the bucket precision.
+     */
+    @Test
+    public void histogramTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(1000000, 10);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10010, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMax());
+        assertWithin(5000, snapshot.getQuantile(0.5));
+        assertWithin(9910, snapshot.getQuantile(0.99));
+        assertWithin(1000000, snapshot.getQuantile(0.9999));
+        assertEquals((10000 * 10001 / 2 + 10000000) / 10010.0, snapshot.getMean(), 0.001);
+        assertEquals(0, new LatencyHistogram().snapshot().getQuantile(0.99));
+    }
+
+    /**
+     * Tests that a reader records its lines and the rejected lines by the reason
+     * and that the metrics are published over JMX.
+     */
+    @Test
+    public void readerMetricsTest() throws Exception {
+        File input = folder.newFile("payments.txt");
+        try (Writer writer = new FileWriter(input)) {
+            writer.write("USD 1\nEUR 2\n\nUSD\nusd 1\nUSD 1x\nCZK 3\n");
+        }
+
+        TrackerMetrics metrics = TrackerMetrics.getInstance();
+        long lines = metrics.getLinesRead("payment-file-reader");
+        long parsed = metrics.getParsed();
+        long format = metrics.getRejected(Reason.FORMAT);
+        long currency = metrics.getRejected(Reason.CURRENCY);
+        long amount = metrics.getRejected(Reason.AMOUNT);
+        long blocks = metrics.getParseBlockLatency().getCount();
+
+        new PaymentFileReader(input.getPath(), false, new PaymentTotals()).run();
+
+        assertEquals(6, metrics.getLinesRead("payment-file-reader") - lines);
+        assertEquals(3, metrics.getParsed() - parsed);
+        assertEquals(1, metrics.getRejected(Reason.FORMAT) - format);
+        assertEquals(1, metrics.getRejected(Reason.CURRENCY) - currency);
+        assertEquals(1, metrics.getRejected(Reason.AMOUNT) - amount);
+        // One sample of the mean latency of the lines per block
+        assertEquals(1, metrics.getParseBlockLatency().getCount() - blocks);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.registerMBeans(server);
+        metrics.registerMBeans(server);
+        ObjectName ingest = new ObjectName(TrackerMetrics.DOMAIN + ":type=Ingest");
+        assertThat(server.isRegistered(ingest), is(true));
+        assertEquals(metrics.getParsed(), server.getAttribute(ingest, "Parsed"));
+        ObjectName parse = new ObjectName(TrackerMetrics.DOMAIN + ":type=BlockLatency,name=parse");
+        assertEquals(metrics.getParseBlockLatency().getCount(), server.getAttribute(parse, "Count"));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not close to " + expected,
+                actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+    }
+}
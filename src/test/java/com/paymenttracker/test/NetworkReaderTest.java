@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.ConnectionStatistics;
+import com.paymenttracker.services.PaymentNetworkReader;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+/**
+ * This class tests the network reader over the loopback.
+ * @author Jaromir Mlejnek
+ */
+public class NetworkReaderTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private static final int PRODUCERS = 4;
+
+    private static final int LINES = 1000;
+
+    /**
+     * Tests that the payments of concurrent producers are registered,
+     * that a slow producer does not block the others and that the invalid
+     * and too long lines are counted per connection.
+     */
+    @Test
+    public void listenTest() throws Exception {
+        int usd = CurrencyCodes.pack("USD");
+        int eur = CurrencyCodes.pack("EUR");
+        SynchronizedSink sink = new SynchronizedSink();
+        PaymentNetworkReader reader = new PaymentNetworkReader(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), sink);
+        reader.start();
+
+        List<Socket> producers = new ArrayList<>();
+        try {
+            // The slow producer sends an incomplete line and waits
+            Socket slow = connect(reader);
+            slow.getOutputStream().write("USD 1".getBytes("US-ASCII"));
+            slow.getOutputStream().flush();
+
+            for (int i = 0; i < PRODUCERS; i++) {
+                Socket producer = connect(reader);
+                producers.add(producer);
+                OutputStream out = producer.getOutputStream();
+                StringBuilder lines = new StringBuilder();
+                for (int j = 0; j < LINES; j++) {
+                    lines.append("EUR 1\n");
+                }
+                lines.append("INVALID\n");
+                out.write(lines.toString().getBytes("US-ASCII"));
+
+                // A line split across the writes and a too long line
+                out.write("EUR 0.".getBytes("US-ASCII"));
+                out.flush();
+                out.write("50\n".getBytes("US-ASCII"));
+                byte[] garbage = new byte[100000];
+                Arrays.fill(garbage, (byte) 'X');
+                out.write(garbage);
+                out.write("\nEUR 1\n".getBytes("US-ASCII"));
+                out.flush();
+            }
+
+            awaitTotal(sink, eur, PRODUCERS * (LINES * 100L + 150));
+            assertEquals(0, sink.getTotal(usd));
+
+            for (Socket producer : producers) {
+                ConnectionStatistics statistics = find(reader, producer);
+                assertNotNull(statistics);
+                assertEquals(LINES + 2, statistics.getPayments());
+                assertEquals(2, statistics.getRejected());
+                assertEquals(LINES * 6 + 8 + 6 + 3 + 100000 + 7, statistics.getBytes());
+            }
+
+            // The last line of a closed connection does not need the line end
+            slow.getOutputStream().write("0".getBytes("US-ASCII"));
+            slow.close();
+            awaitTotal(sink, usd, 1000);
+            assertEquals(PRODUCERS, reader.getStatistics().size());
+        } finally {
+            reader.requestStop();
+            reader.awaitStop(TIMEOUT_MILLIS);
+            for (Socket producer : producers) {
+                producer.close();
+            }
+        }
+        assertThat(reader.isAlive(), is(false));
+        assertThat(reader.getStatistics().isEmpty(), is(true));
+    }
+
+    private static Socket connect(PaymentNetworkReader reader) throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), reader.getLocalAddress().getPort());
+    }
+
+    private static ConnectionStatistics find(PaymentNetworkReader reader, Socket producer) {
+        for (ConnectionStatistics statistics : reader.getStatistics()) {
+            if (statistics.getRemoteAddress().equals(producer.getLocalSocketAddress().toString())) {
+                return statistics;
+            }
+        }
+        return null;
+    }
+
+    private static void awaitTotal(SynchronizedSink sink, int currency, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sink.getTotal(currency) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, sink.getTotal(currency));
+    }
+
+    private static class SynchronizedSink implements PaymentSink {
+
+        private final PaymentTotals totals = new PaymentTotals();
+
+        @Override
+        public synchronized void accept(int currency, long amount) {
+            totals.accept(currency, amount);
+        }
+
+        public synchronized long getTotal(int currency) {
+            return totals.getTotal(currency);
+        }
+    }
+}
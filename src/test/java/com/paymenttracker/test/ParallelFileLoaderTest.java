@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.Payment;
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.ParallelFileLoader;
+import com.paymenttracker.services.RejectedLines;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.PaymentParserException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the ParallelFileLoader class.
+ * @author Jaromir Mlejnek
+ */
+public class ParallelFileLoaderTest {
+
+    private static final String [] CURRENCIES = { "USD", "HKD", "RMB", "CZK", "EUR" };
+    private static final String [] NEWLINES = { "\n", "\r\n", "\r" };
+    private static final int NUMBER_OF_LINES = 300000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that the parallel loader computes the same totals
+     * like the sequential line by line parsing.
+     */
+    @Test
+    public void parallelLoadTest() throws IOException {
+        File file = folder.newFile("payments.txt");
+        Random random = new Random(42);
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < NUMBER_OF_LINES; i++) {
+                if (i % 1000 == 0) {
+                    writer.write("invalid line");
+                } else {
+                    writer.write(CURRENCIES[random.nextInt(CURRENCIES.length)] + "  " + (random.nextInt(20001) - 10000));
+                }
+                writer.write(NEWLINES[random.nextInt(NEWLINES.length)]);
+            }
+        }
+
+        PaymentTotals expected = readSequentially(file);
+
+        // Parse errors are expected, do not flood the test output
+        Logger logger = Logger.getLogger(RejectedLines.class.getName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.OFF);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        PaymentTotals actual;
+        try {
+            actual = new ParallelFileLoader(pool).load(file);
+        } finally {
+            pool.shutdown();
+            logger.setLevel(level);
+        }
+
+        for (String code : CURRENCIES) {
+            int currency = CurrencyCodes.pack(code);
+            assertEquals("currency: " + code, expected.getTotal(currency), actual.getTotal(currency));
+        }
+    }
+
+    private static PaymentTotals readSequentially(File file) throws IOException {
+        PaymentTotals totals = new PaymentTotals();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    Payment payment = PaymentParser.parse(line);
+                    if (payment != null) {
+                        totals.accept(CurrencyCodes.pack(payment.getCurrencyCode()), payment.getAmount());
+                    }
+                } catch (PaymentParserException ex) {
+                    // skipped like by the readers
+                }
+            }
+        }
+
+        return totals;
+    }
+}
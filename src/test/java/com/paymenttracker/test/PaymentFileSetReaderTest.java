@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.FileProgress;
+import com.paymenttracker.services.FileStatistics;
+import com.paymenttracker.services.PaymentFileSetReader;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.InputFiles;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the expansion of the input arguments and the loading
+ * of many files by {@link PaymentFileSetReader}.
+ * @author Jaromir Mlejnek
+ */
+public class PaymentFileSetReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests the expansion of files, directories and glob patterns.
+     */
+    @Test
+    public void expandTest() throws IOException {
+        File daily = folder.newFolder("daily");
+        File a = create(new File(daily, "a.txt"), "");
+        File b = create(new File(daily, "b.txt"), "");
+        create(new File(daily, ".hidden"), "");
+        File nested = folder.newFolder("daily", "2015-01");
+        File c = create(new File(nested, "c.txt"), "");
+        File d = create(new File(nested, "d.csv"), "");
+        String root = folder.getRoot().getPath() + File.separator;
+
+        assertThat(InputFiles.expand(Arrays.asList(daily.getPath())), is(Arrays.asList(a, b)));
+        assertThat(InputFiles.expand(Arrays.asList(root + "daily/*/*.txt")), is(Arrays.asList(c)));
+        assertThat(InputFiles.expand(Arrays.asList(root + "daily/**.txt")), is(Arrays.asList(c, a, b)));
+        assertThat(InputFiles.expand(Arrays.asList(root + "daily/2015-01/*", daily.getPath(), a.getPath())),
+                is(Arrays.asList(c, d, a, b)));
+        assertThat(InputFiles.expand(Arrays.asList(root + "missing/*.txt")).isEmpty(), is(true));
+    }
+
+    /**
+     * Tests that many small files and a large split file are loaded,
+     * the progress and the statistics of each file are kept.
+     */
+    @Test
+    public void loadTest() throws IOException {
+        int usd = CurrencyCodes.pack("USD");
+        int eur = CurrencyCodes.pack("EUR");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            files.add(create(new File(folder.getRoot(), "small-" + i + ".txt"), "USD 1\nEUR 2.50\nINVALID\n"));
+        }
+
+        // Large enough to be split into chunks
+        File large = new File(folder.getRoot(), "large.txt");
+        int largeLines = 2000000;
+        try (Writer writer = new BufferedWriter(new FileWriter(large))) {
+            for (int i = 0; i < largeLines; i++) {
+                writer.write("USD 1\n");
+            }
+        }
+        files.add(large);
+
+        SynchronizedSink sink = new SynchronizedSink();
+        PaymentFileSetReader reader = new PaymentFileSetReader(files, 4, sink);
+        reader.run();
+
+        assertEquals(200 * 100 + largeLines * 100L, sink.getTotal(usd));
+        assertEquals(200 * 250, sink.getTotal(eur));
+
+        List<FileStatistics> statistics = reader.getStatistics();
+        assertEquals(files.size(), statistics.size());
+        long errors = 0;
+        long payments = 0;
+        for (FileStatistics file : statistics) {
+            errors += file.getErrors();
+            payments += file.getPayments();
+        }
+        assertEquals(200, errors);
+        assertEquals(200 * 2 + largeLines, payments);
+
+        List<FileProgress> progress = reader.getFileProgress();
+        assertEquals(files.size(), progress.size());
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(files.get(i).length(), progress.get(i).getOffset());
+        }
+    }
+
+    private static File create(File file, String content) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
+    private static class SynchronizedSink implements PaymentSink {
+
+        private final PaymentTotals totals = new PaymentTotals();
+
+        @Override
+        public synchronized void accept(int currency, long amount) {
+            totals.accept(currency, amount);
+        }
+
+        public synchronized long getTotal(int currency) {
+            return totals.getTotal(currency);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.PaymentJournal;
+import com.paymenttracker.services.PaymentNetworkReader;
+import com.paymenttracker.services.TrackerMetrics;
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentSink;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the PaymentJournal class.
+ * @author Jaromir Mlejnek
+ */
+public class PaymentJournalTest {
+
+    private static final int NUMBER_OF_THREADS = 8;
+    private static final int PAYMENTS_PER_THREAD = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that the payments appended by many threads are passed to the target
+     * and replayed from the journal once it's opened again.
+     */
+    @Test
+    public void groupCommitAndReplayTest() throws Exception {
+        final int usd = CurrencyCodes.pack("USD");
+        final int czk = CurrencyCodes.pack("CZK");
+        File file = folder.newFile("payments.journal");
+        file.delete();
+
+        final PaymentTotals totals = new PaymentTotals();
+        final PaymentJournal journal = new PaymentJournal(file, new SynchronizedSink(totals));
+        assertEquals(0, journal.replay(new PaymentTotals()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+        List<Future<Boolean>> futureList = new ArrayList<>();
+
+        for (int i = 0; i < NUMBER_OF_THREADS; i++) {
+            futureList.add(executor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    for (int j = 0; j < PAYMENTS_PER_THREAD; j++) {
+                        journal.accept(usd, 125);
+                        journal.accept(czk, -1);
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        for (Future<Boolean> future : futureList) {
+            future.get();
+        }
+        executor.shutdown();
+
+        PaymentJournal.Statistics statistics = journal.getStatistics();
+        journal.close();
+
+        assertEquals(2L * NUMBER_OF_THREADS * PAYMENTS_PER_THREAD, statistics.getPayments());
+        assertThat(statistics.getCommits() <= statistics.getPayments(), is(true));
+        assertEquals(125L * NUMBER_OF_THREADS * PAYMENTS_PER_THREAD, totals.getTotal(usd));
+
+        PaymentTotals replayed = new PaymentTotals();
+        PaymentJournal reopened = new PaymentJournal(file, replayed);
+        assertEquals(2L * NUMBER_OF_THREADS * PAYMENTS_PER_THREAD, reopened.replay(replayed));
+        reopened.close();
+
+        assertEquals(totals.getTotal(usd), replayed.getTotal(usd));
+        assertEquals(totals.getTotal(czk), replayed.getTotal(czk));
+    }
+
+    /**
+     * Tests that a torn batch at the end of the journal is discarded
+     * and the journal can be appended again.
+     */
+    @Test
+    public void tornTailTest() throws Exception {
+        int usd = CurrencyCodes.pack("USD");
+        File file = folder.newFile("torn.journal");
+        file.delete();
+
+        PaymentJournal journal = new PaymentJournal(file, new PaymentTotals());
+        journal.accept(usd, 100);
+        journal.accept(usd, 200);
+        journal.close();
+
+        // Simulate a crash in the middle of a batch write
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        Logger logger = Logger.getLogger(PaymentJournal.class.getName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.OFF);
+        try {
+            journal = new PaymentJournal(file, new PaymentTotals());
+            journal.accept(usd, 400);
+            journal.close();
+
+            PaymentTotals replayed = new PaymentTotals();
+            journal = new PaymentJournal(file, replayed);
+            assertEquals(2, journal.replay(replayed));
+            journal.close();
+            assertEquals(500, replayed.getTotal(usd));
+        } finally {
+            logger.setLevel(level);
+        }
+    }
+
+    /**
+     * Tests that a journal of the first version (without the accounts)
+     * is replayed and appended in its own format.
+     */
+    @Test
+    public void firstVersionTest() throws Exception {
+        int usd = CurrencyCodes.pack("USD");
+        File file = folder.newFile("v1.journal");
+        ByteBuffer payload = ByteBuffer.allocate(10);
+        payload.putShort((short) usd);
+        payload.putLong(100);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        ByteBuffer content = ByteBuffer.allocate(4 + 8 + 10);
+        content.putInt(0x50544A31);
+        content.putInt(1);
+        content.putInt((int) crc.getValue());
+        content.put(payload.array());
+        Files.write(file.toPath(), content.array());
+
+        Logger logger = Logger.getLogger(PaymentJournal.class.getName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.OFF);
+        try {
+            PaymentJournal journal = new PaymentJournal(file, new PaymentTotals());
+            journal.accept(AccountCodes.pack("ACC42"), usd, 50);
+            journal.close();
+            assertEquals(4 + 2 * (8 + 10), file.length());
+
+            PaymentTotals replayed = new PaymentTotals();
+            journal = new PaymentJournal(file, replayed);
+            assertEquals(2, journal.replay(replayed));
+            journal.close();
+            assertEquals(150, replayed.getTotal(usd));
+        } finally {
+            logger.setLevel(level);
+        }
+    }
+
+    /**
+     * Tests that the network reader journals the payments of a read with one
+     * commit and that the commits are published over JMX.
+     */
+    @Test
+    public void networkTest() throws Exception {
+        int usd = CurrencyCodes.pack("USD");
+        File file = folder.newFile("network.journal");
+        file.delete();
+
+        PaymentTotals totals = new PaymentTotals();
+        PaymentJournal journal = new PaymentJournal(file, new SynchronizedSink(totals));
+        PaymentNetworkReader reader = new PaymentNetworkReader(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), journal);
+        reader.start();
+        try (Socket producer = new Socket(InetAddress.getLoopbackAddress(), reader.getLocalAddress().getPort())) {
+            OutputStream out = producer.getOutputStream();
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                lines.append("USD 1 ACC").append(i % 10).append('\n');
+            }
+            out.write(lines.toString().getBytes("US-ASCII"));
+            out.flush();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (journal.getStatistics().getPayments() < 1000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        } finally {
+            reader.requestStop();
+            reader.awaitStop(5000);
+        }
+
+        PaymentJournal.Statistics statistics = journal.getStatistics();
+        assertEquals(1000, statistics.getPayments());
+        assertEquals(100000, totals.getTotal(usd));
+        // The lines are read by a few reads, not a commit per payment
+        assertThat(statistics.getCommits() < 100, is(true));
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        TrackerMetrics.getInstance().registerJournal(server, journal);
+        assertEquals(statistics.getCommits(), server.getAttribute(new ObjectName(TrackerMetrics.DOMAIN + ":type=Journal"), "Commits"));
+        assertEquals(statistics.getCommits(), server.getAttribute(
+                new ObjectName(TrackerMetrics.DOMAIN + ":type=Latency,name=commit"), "Count"));
+        journal.close();
+
+        PaymentTotals replayed = new PaymentTotals();
+        PaymentJournal reopened = new PaymentJournal(file, replayed);
+        assertEquals(1000, reopened.replay(replayed));
+        reopened.close();
+        assertEquals(100000, replayed.getTotal(usd));
+    }
+
+    private static final class SynchronizedSink implements PaymentSink {
+
+        private final PaymentSink target;
+
+        SynchronizedSink(PaymentSink target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void accept(int currency, long amount) {
+            target.accept(currency, amount);
+        }
+    }
+}
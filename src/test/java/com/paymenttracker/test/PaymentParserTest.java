@@ -18,8 +18,13 @@ package com.paymenttracker.test;
 
 import static org.junit.Assert.assertEquals;
 import com.paymenttracker.model.Payment;
+import com.paymenttracker.utils.AccountCodes;
+import com.paymenttracker.utils.AccountPaymentSink;
+import com.paymenttracker.utils.CurrencyCodes;
 import com.paymenttracker.utils.PaymentParserException;
 import com.paymenttracker.utils.PaymentParser;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -33,8 +38,8 @@ import org.junit.runners.Parameterized.Parameters;
 @RunWith(value = Parameterized.class)
 public class PaymentParserTest {
     
-    private static final Payment PLUS_PAYMENT = new Payment("USD", 100);
-    private static final Payment MINUS_PAYMENT = new Payment("USD", -100);
+    private static final Payment PLUS_PAYMENT = new Payment("USD", 10000);
+    private static final Payment MINUS_PAYMENT = new Payment("USD", -10000);
     
     private final String line;
     private final Payment payment;
@@ -60,6 +65,37 @@ public class PaymentParserTest {
             { "  USD \t  100", PLUS_PAYMENT },
             { "  USD \t  -100", MINUS_PAYMENT },
             { "  USD \t  -dasdas", null },
+            { "U1D 100", null },
+            { "U-D 100", null },
+            { "USD 100.00", PLUS_PAYMENT },
+            { "USD +100.", PLUS_PAYMENT },
+            { "USD 100.000", PLUS_PAYMENT },
+            { "USD 0.01", new Payment("USD", 1) },
+            { "USD -.5", new Payment("USD", -50) },
+            { "USD 100.001", null },
+            { "USD 1e2", null },
+            { "USD -0.1e3", null },
+            { "USD 0x64", null },
+            { "USD NaN", null },
+            { "USD 100d", null },
+            { "USD 92233720368547758.07", new Payment("USD", Long.MAX_VALUE) },
+            { "USD 92233720368547758.08", null },
+            { "USD 99999999999999999999", null },
+            { "JPY 100", new Payment("JPY", 100) },
+            { "JPY 100.5", null },
+            { "KWD 1.234", new Payment("KWD", 1234) },
+            { "USD 100.0.0", null },
+            { "USD 100 ACC42", new Payment("USD", 10000, "ACC42") },
+            { "  USD \t -100\t007  ", new Payment("USD", -10000, "007") },
+            { "USD 1 ABCDEFGHIJKL", new Payment("USD", 100, "ABCDEFGHIJKL") },
+            { "USD 1 ABCDEFGHIJKLM", null },
+            { "USD 100 ACC-42", null },
+            { "USD 100 ACC 42", null },
+            { "USD 1x ACC42", null },
+            { "USD .", null },
+            { "USD -", null },
+            { "   ", null },
+            { "", null },
         });
     }
 
@@ -79,4 +115,84 @@ public class PaymentParserTest {
                 
         assertEquals(payment, parsedPayment);        
     }
+    
+    /**
+     * Tests that the byte array parser returns the same results as the String parser.
+     */
+    @Test
+    public void byteParserTest() {
+        byte [] bytes = ("#" + line + "#").getBytes(StandardCharsets.UTF_8);
+        CapturingSink sink = new CapturingSink();
+        
+        try {
+            PaymentParser.parse(bytes, 1, bytes.length - 1, sink);
+            
+        } catch (PaymentParserException ex) {            
+            sink.payment = null;            
+        }
+        
+        assertEquals(payment, sink.payment);
+    }
+    
+    /**
+     * Tests that the direct byte buffer parser returns the same results as the String parser.
+     */
+    @Test
+    public void directBufferParserTest() {
+        byte [] bytes = line.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        CapturingSink sink = new CapturingSink();
+        
+        try {
+            PaymentParser.parse(buffer, 0, bytes.length, sink);
+            
+        } catch (PaymentParserException ex) {            
+            sink.payment = null;            
+        }
+        
+        assertEquals(payment, sink.payment);
+    }
+    
+    /**
+     * Tests that the non-throwing parser accepts and rejects the same lines
+     * as the String parser and reports the same reason of the rejection.
+     */
+    @Test
+    public void tryParserTest() {
+        byte [] bytes = ("#" + line + "#").getBytes(StandardCharsets.UTF_8);
+        CapturingSink sink = new CapturingSink();
+        PaymentParserException.Reason reason = null;
+        
+        try {
+            PaymentParser.parse(line);
+            
+        } catch (PaymentParserException ex) {            
+            reason = ex.getReason();
+        }
+        
+        int result = PaymentParser.tryParse(bytes, 1, bytes.length - 1, sink);
+        if (reason != null) {
+            assertEquals(PaymentParser.REJECTED, result);
+            assertEquals(reason, PaymentParser.reasonOf(bytes, 1, bytes.length - 1));
+        } else {
+            assertEquals(payment != null ? PaymentParser.PARSED : PaymentParser.EMPTY, result);
+        }
+        assertEquals(payment, sink.payment);
+    }
+    
+    private static class CapturingSink implements AccountPaymentSink {
+        
+        private Payment payment;
+
+        @Override
+        public void accept(int currency, long amount) {
+            payment = new Payment(CurrencyCodes.unpack(currency), amount);
+        }
+
+        @Override
+        public void accept(long account, int currency, long amount) {
+            payment = new Payment(CurrencyCodes.unpack(currency), amount, AccountCodes.unpack(account));
+        }
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.PaymentPipeline;
+import com.paymenttracker.services.TrackerMetrics;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentSink;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * This class tests the PaymentPipeline class.
+ * @author Jaromir Mlejnek
+ */
+public class PaymentPipelineTest {
+
+    private static final int NUMBER_OF_THREADS = 8;
+    private static final int PAYMENTS_PER_THREAD = 100000;
+    private static final int CAPACITY = 1024;
+
+    /**
+     * Tests that all the payments put into a small pipeline by many threads
+     * reach the target, even though the readers are slowed down by back-pressure.
+     */
+    @Test
+    public void multipleProducersTest() throws Exception {
+        final int usd = CurrencyCodes.pack("USD");
+        final int czk = CurrencyCodes.pack("CZK");
+        final PaymentTotals totals = new PaymentTotals();
+        final PaymentPipeline pipeline = new PaymentPipeline(totals, CAPACITY);
+        pipeline.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+        List<Future<Boolean>> futureList = new ArrayList<>();
+
+        for (int i = 0; i < NUMBER_OF_THREADS; i++) {
+            futureList.add(executor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    for (int j = 0; j < PAYMENTS_PER_THREAD; j++) {
+                        pipeline.accept(usd, 1);
+                        pipeline.accept(czk, -2);
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        for (Future<Boolean> future : futureList) {
+            future.get();
+        }
+        executor.shutdown();
+        pipeline.close();
+
+        PaymentPipeline.Statistics statistics = pipeline.getStatistics();
+        assertEquals(2L * NUMBER_OF_THREADS * PAYMENTS_PER_THREAD, statistics.getPublished());
+        assertEquals(statistics.getPublished(), statistics.getConsumed());
+        assertEquals(0, statistics.getDepth());
+
+        assertEquals(NUMBER_OF_THREADS * PAYMENTS_PER_THREAD, totals.getTotal(usd));
+        assertEquals(-2 * NUMBER_OF_THREADS * PAYMENTS_PER_THREAD, totals.getTotal(czk));
+    }
+
+    /**
+     * Tests that the payments which fail in the target are counted and skipped,
+     * the aggregator keeps applying the following payments, and that the counters
+     * of the pipeline are published over JMX.
+     */
+    @Test
+    public void failureTest() throws Exception {
+        final int usd = CurrencyCodes.pack("USD");
+        final PaymentTotals totals = new PaymentTotals();
+        PaymentPipeline pipeline = new PaymentPipeline(new PaymentSink() {
+
+            @Override
+            public void accept(int currency, long amount) {
+                if (amount == 7) {
+                    throw new ArithmeticException("Overflow");
+                }
+                if (amount == 13) {
+                    throw new IllegalStateException("Broken target");
+                }
+                totals.accept(currency, amount);
+            }
+        }, CAPACITY);
+        pipeline.start();
+
+        // More payments than the buffer holds, the producer would block on a dead aggregator
+        for (int i = 0; i < 4 * CAPACITY; i++) {
+            pipeline.accept(usd, 1);
+            if (i % 512 == 0) {
+                pipeline.accept(usd, 7);
+                pipeline.accept(usd, 13);
+            }
+        }
+        pipeline.flush();
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        TrackerMetrics.getInstance().registerPipeline(server, pipeline);
+        ObjectName name = new ObjectName(TrackerMetrics.DOMAIN + ":type=Pipeline");
+        assertEquals(4L * CAPACITY + 16, server.getAttribute(name, "Consumed"));
+        assertEquals(16L, server.getAttribute(name, "Failures"));
+        pipeline.close();
+
+        PaymentPipeline.Statistics statistics = pipeline.getStatistics();
+        assertEquals(16, statistics.getFailures());
+        assertEquals(4 * CAPACITY, totals.getTotal(usd));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.PaymentStatistics;
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.PaymentPipeline;
+import com.paymenttracker.services.PaymentPrinterStreamWriter;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentParser;
+import com.paymenttracker.utils.QuantileSketch;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the statistics of the sizes of the payments.
+ * @author Jaromir Mlejnek
+ */
+public class PaymentStatisticsTest {
+
+    private static final int USD = CurrencyCodes.pack("USD");
+    private static final int EUR = CurrencyCodes.pack("EUR");
+
+    @Before
+    @After
+    public void resetRegister() {
+        CurrencyHolder.getInstance().resetRegister();
+    }
+
+    /**
+     * Tests the exact values and the error of the quantiles of a sketch.
+     */
+    @Test
+    public void sketchTest() {
+        assertEquals(0, QuantileSketch.Snapshot.EMPTY.getCount());
+        assertEquals(0, QuantileSketch.Snapshot.EMPTY.getMin());
+        assertEquals(0, QuantileSketch.Snapshot.EMPTY.getQuantile(0.5));
+
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 1; i <= 100000; i++) {
+            sketch.record(i);
+        }
+        QuantileSketch.Snapshot snapshot = sketch.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(100000, snapshot.getMax());
+        assertEquals(50000.5, snapshot.getMean(), 1e-9);
+        assertQuantile(50000, snapshot.getQuantile(0.5));
+        assertQuantile(99000, snapshot.getQuantile(0.99));
+        assertQuantile(99900, snapshot.getQuantile(0.999));
+        assertEquals(100000, snapshot.getQuantile(1));
+
+        // Merging the snapshots of two halves gives the snapshot of the whole
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        for (int i = 1; i <= 100000; i++) {
+            (i <= 50000 ? low : high).record(i);
+        }
+        QuantileSketch.Snapshot merged = high.snapshot().merge(low.snapshot());
+        assertEquals(snapshot.getCount(), merged.getCount());
+        assertEquals(snapshot.getMin(), merged.getMin());
+        assertEquals(snapshot.getMax(), merged.getMax());
+        assertEquals(snapshot.getMean(), merged.getMean(), 1e-9);
+        for (double quantile : new double[] { 0.1, 0.5, 0.9, 0.99, 0.999 }) {
+            assertEquals(snapshot.getQuantile(quantile), merged.getQuantile(quantile));
+        }
+
+        QuantileSketch extreme = new QuantileSketch();
+        extreme.record(Long.MAX_VALUE);
+        extreme.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, extreme.snapshot().getQuantile(0.5));
+        assertEquals(Long.MAX_VALUE, extreme.snapshot().getMean(), 1e3);
+    }
+
+    /**
+     * Tests that the sketches of concurrent writers are merged.
+     */
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        final PaymentStatistics statistics = CurrencyHolder.getInstance().getStatistics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final long size = (t + 1) * 100;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        statistics.record(USD, i % 2 == 0 ? size : -size);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        QuantileSketch.Snapshot snapshot = CurrencyHolder.getInstance().getStatistics(USD);
+        assertEquals(40000, snapshot.getCount());
+        assertEquals(100, snapshot.getMin());
+        assertEquals(400, snapshot.getMax());
+        assertEquals(250, snapshot.getMean(), 1e-9);
+        assertQuantile(200, snapshot.getQuantile(0.5));
+        assertEquals(0, CurrencyHolder.getInstance().getStatistics(EUR).getCount());
+
+        CurrencyHolder.getInstance().resetRegister();
+        assertEquals(0, CurrencyHolder.getInstance().getStatistics(USD).getCount());
+    }
+
+    /**
+     * Tests that the sketches of the terminated writers are kept merged,
+     * so the short-lived threads do not add up.
+     */
+    @Test
+    public void retireTest() throws InterruptedException {
+        final PaymentStatistics statistics = CurrencyHolder.getInstance().getStatistics();
+        for (int t = 1; t <= 50; t++) {
+            final long size = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        statistics.record(USD, size);
+                    }
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        assertEquals(0, statistics.getWriterCount());
+
+        statistics.record(USD, 1000);
+        assertEquals(1, statistics.getWriterCount());
+        QuantileSketch.Snapshot usd = statistics.snapshot(USD);
+        assertEquals(5001, usd.getCount());
+        assertEquals(1, usd.getMin());
+        assertEquals(1000, usd.getMax());
+        assertEquals((100 * 50 * 51 / 2 + 1000) / 5001.0, usd.getMean(), 1e-9);
+    }
+
+    /**
+     * Tests that the payments of the partial totals are recorded once the totals
+     * are registered, and the rejected lines and the net amounts are not.
+     */
+    @Test
+    public void totalsTest() throws Exception {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        PaymentTotals totals = new PaymentTotals();
+        parse("USD 100", totals);
+        parse("USD -20.5 ACC42", totals);
+        parse("USD 0.01", totals);
+        parse("EUR 3", totals);
+        assertEquals(PaymentParser.REJECTED, tryParse("USD 1.001", totals));
+        assertEquals(PaymentParser.REJECTED, tryParse("XYZ", totals));
+        assertTrue(PaymentParser.parse(bytes(" USD  7 "), 0, 8, totals));
+        assertEquals(4, totals.getStatistics(USD).getCount());
+        assertEquals(0, holder.getStatistics(USD).getCount());
+
+        // The totals pass the pipeline as a whole
+        long registrations = holder.getRegistrations(USD);
+        PaymentPipeline pipeline = new PaymentPipeline(holder);
+        pipeline.start();
+        pipeline.acceptTotals(totals);
+        pipeline.close();
+
+        QuantileSketch.Snapshot usd = holder.getStatistics(USD);
+        assertEquals(4, usd.getCount());
+        assertEquals(1, usd.getMin());
+        assertEquals(10000, usd.getMax());
+        assertEquals((10000 + 2050 + 1 + 700) / 4.0, usd.getMean(), 1e-9);
+        assertEquals(10000 - 2050 + 1 + 700, holder.snapshot().getTotal(USD));
+        assertEquals(1, holder.getStatistics(EUR).getCount());
+        // The totals count as their payments
+        assertEquals(4, holder.getRegistrations(USD) - registrations);
+
+        // The progress of a file and the restored net amounts are not payments
+        PaymentTotals consumed = new PaymentTotals(false);
+        consumed.merge(totals);
+        consumed.accept(USD, 5);
+        assertEquals(0, consumed.getStatistics(USD).getCount());
+        holder.withoutWindows().accept(USD, 5);
+        holder.registerPayment(USD, 5);
+        assertEquals(5, holder.getStatistics(USD).getCount());
+    }
+
+    /**
+     * Tests the statistics in the report.
+     */
+    @Test
+    public void printerTest() throws IOException {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        for (long amount : new long[] { 1000, 1000, 50000 }) {
+            holder.registerPayment(USD, amount);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PaymentPrinterStreamWriter(new PrintStream(output, true, "US-ASCII"), null, true).run();
+
+        String[] lines = output.toString("US-ASCII").split(System.lineSeparator());
+        assertEquals(1, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("USD 520 (1m 520, "));
+        assertTrue(lines[0], lines[0].endsWith(") [n 3, min 10, max 500, mean 173.33, p50 10.07, p99 500, p99.9 500]"));
+    }
+
+    private static void assertQuantile(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / QuantileSketch.SUB_BUCKETS + 1);
+    }
+
+    private static void parse(String line, PaymentTotals totals) {
+        assertEquals(PaymentParser.PARSED, tryParse(line, totals));
+    }
+
+    private static int tryParse(String line, PaymentTotals totals) {
+        byte[] bytes = bytes(line);
+        return PaymentParser.tryParse(bytes, 0, bytes.length, totals);
+    }
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.services.PaymentQueryServer;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the HTTP query endpoint. The register is reset
+ * before and after the test, the other tests expect it empty.
+ * @author Jaromir Mlejnek
+ */
+public class QueryServerTest {
+
+    private static final String NL = System.lineSeparator();
+
+    private PaymentQueryServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        CurrencyHolder.getInstance().resetRegister();
+        server = new PaymentQueryServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                CurrencyHolder.getInstance());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        CurrencyHolder.getInstance().resetRegister();
+    }
+
+    /**
+     * Tests the responses of all the currencies and of one currency,
+     * the caching by the version and the errors.
+     */
+    @Test
+    public void queryTest() throws IOException {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        holder.registerPayment(CurrencyCodes.pack("USD"), 1050);
+        holder.registerPayment(CurrencyCodes.pack("CZK"), -200);
+
+        HttpURLConnection connection = open("/totals");
+        assertEquals(200, connection.getResponseCode());
+        String etag = connection.getHeaderField("ETag");
+        String version = etag.substring(1, etag.length() - 1);
+        assertEquals("{\"version\":" + version + ",\"totals\":{\"CZK\":-2,\"USD\":10.50}}", read(connection));
+
+        assertEquals("CZK -2" + NL + "USD 10.50" + NL, read(open("/totals?format=text")));
+        assertEquals("{\"version\":" + version + ",\"currency\":\"USD\",\"total\":10.50}", read(open("/totals/USD")));
+        assertEquals("USD 10.50" + NL, read(open("/totals/USD?format=text")));
+
+        // Unchanged version
+        connection = open("/totals");
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+
+        // A new payment makes a new version
+        holder.registerPayment(CurrencyCodes.pack("USD"), 1);
+        connection = open("/totals");
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("CZK -2" + NL + "USD 10.51" + NL, read(open("/totals?format=text")));
+
+        assertEquals(404, open("/totals/EUR").getResponseCode());
+        assertEquals(400, open("/totals/U1D").getResponseCode());
+        assertEquals(400, open("/totals?format=xml").getResponseCode());
+        assertEquals(404, open("/totals/USD/EUR").getResponseCode());
+        connection = open("/totals");
+        connection.setRequestMethod("POST");
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        URL url = new URL("http", "127.0.0.1", server.getLocalAddress().getPort(), path);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.PaymentTotals;
+import com.paymenttracker.services.ParallelFileLoader;
+import com.paymenttracker.services.PaymentFileReader;
+import com.paymenttracker.services.RejectedLines;
+import com.paymenttracker.services.TrackerMetrics;
+import com.paymenttracker.utils.CurrencyCodes;
+import com.paymenttracker.utils.PaymentParserException.Reason;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the dead-letter file of the rejected lines.
+ * @author Jaromir Mlejnek
+ */
+public class RejectedLinesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File deadLetter;
+
+    @Before
+    public void openDeadLetter() throws IOException {
+        deadLetter = new File(folder.getRoot(), "rejected.txt");
+        RejectedLines.getInstance().open(deadLetter);
+    }
+
+    @After
+    public void closeDeadLetter() throws IOException {
+        RejectedLines.getInstance().close();
+    }
+
+    /**
+     * Tests that the sequential reader writes the rejected lines with their
+     * numbers ("\r\n" is one line end) and counts them by the reason.
+     */
+    @Test
+    public void sequentialTest() throws IOException {
+        File input = folder.newFile("payments.txt");
+        try (Writer writer = new FileWriter(input)) {
+            writer.write("USD 1\r\nbad\r\n\r\nusd 1\nEUR 2\rUSD 1 2 3\nUSD x");
+        }
+
+        TrackerMetrics metrics = TrackerMetrics.getInstance();
+        long format = metrics.getRejected(Reason.FORMAT);
+        long currency = metrics.getRejected(Reason.CURRENCY);
+        long amount = metrics.getRejected(Reason.AMOUNT);
+
+        PaymentTotals totals = new PaymentTotals();
+        new PaymentFileReader(input.getPath(), false, totals).run();
+        RejectedLines.getInstance().close();
+
+        assertEquals(100, totals.getTotal(CurrencyCodes.pack("USD")));
+        assertEquals(200, totals.getTotal(CurrencyCodes.pack("EUR")));
+        assertEquals(Arrays.asList(
+                input.getPath() + "\t2\tbad",
+                input.getPath() + "\t4\tusd 1",
+                input.getPath() + "\t6\tUSD 1 2 3",
+                input.getPath() + "\t7\tUSD x"), readDeadLetter());
+        assertEquals(2, metrics.getRejected(Reason.FORMAT) - format);
+        assertEquals(1, metrics.getRejected(Reason.CURRENCY) - currency);
+        assertEquals(1, metrics.getRejected(Reason.AMOUNT) - amount);
+    }
+
+    /**
+     * Tests that the chunks of the parallel loader number their lines
+     * continuously across the chunk boundaries.
+     */
+    @Test
+    public void parallelTest() throws IOException {
+        File input = folder.newFile("payments.txt");
+        int lines = 600000;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(input))) {
+            for (int i = 1; i <= lines; i++) {
+                writer.write(i % 100000 == 1 || i == lines ? "invalid " + i : "USD 1");
+                writer.write(i % 2 == 0 ? "\r\n" : "\n");
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelFileLoader loader = new ParallelFileLoader(pool);
+            loader.load(input);
+            assertEquals(7, loader.getErrorCount());
+        } finally {
+            pool.shutdown();
+        }
+        RejectedLines.getInstance().close();
+
+        List<String> rejected = readDeadLetter();
+        Collections.sort(rejected);
+        assertEquals(Arrays.asList(
+                input.getPath() + "\t1\tinvalid 1",
+                input.getPath() + "\t100001\tinvalid 100001",
+                input.getPath() + "\t200001\tinvalid 200001",
+                input.getPath() + "\t300001\tinvalid 300001",
+                input.getPath() + "\t400001\tinvalid 400001",
+                input.getPath() + "\t500001\tinvalid 500001",
+                input.getPath() + "\t600000\tinvalid 600000"), rejected);
+    }
+
+    private List<String> readDeadLetter() throws IOException {
+        return Files.readAllLines(deadLetter.toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.services.AsyncReportSink;
+import com.paymenttracker.services.ExchangeRates;
+import com.paymenttracker.services.PaymentPrinterStreamWriter;
+import com.paymenttracker.services.ReportBuffer;
+import com.paymenttracker.services.ReportChannel;
+import com.paymenttracker.services.ReportFormat;
+import com.paymenttracker.services.ReportSink;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the report formats, the asynchronous report sink
+ * and the rolling of the report files.
+ * @author Jaromir Mlejnek
+ */
+public class ReportSinkTest {
+
+    private static final int USD = CurrencyCodes.pack("USD");
+    private static final int EUR = CurrencyCodes.pack("EUR");
+    private static final int GBP = CurrencyCodes.pack("GBP");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    @After
+    public void resetRegister() {
+        CurrencyHolder.getInstance().resetRegister();
+    }
+
+    /**
+     * Tests the CSV and the JSON lines reports.
+     */
+    @Test
+    public void formatsTest() throws IOException {
+        File file = folder.newFile("rates.txt");
+        Files.write(file.toPath(), "BASE USD\nEUR 1.0842\n".getBytes(StandardCharsets.US_ASCII));
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        holder.withoutWindows().accept(EUR, 100000);
+        holder.withoutWindows().accept(GBP, -550);
+
+        String[] csv;
+        String[] json;
+        try (ExchangeRates rates = new ExchangeRates(file)) {
+            csv = report(ReportFormat.forName(ReportFormat.CSV), rates).split("\n");
+            json = report(ReportFormat.forName(ReportFormat.JSON), rates).split("\n");
+        }
+
+        assertEquals(3, csv.length);
+        assertTrue(csv[0], csv[0].matches("\\d+,EUR,1000,USD,1084.20,0,0,0,,,,,,,"));
+        assertTrue(csv[1], csv[1].matches("\\d+,GBP,-5.50,,,0,0,0,,,,,,,"));
+        assertTrue(csv[2], csv[2].matches("\\d+,TOTAL,,USD,1084.20,,,,,,,,,,"));
+        for (String row : csv) {
+            assertEquals(row, 15, row.split(",", -1).length);
+        }
+
+        assertEquals(3, json.length);
+        assertTrue(json[0], json[0].matches("\\{\"time\":\\d+,\"currency\":\"EUR\",\"amount\":1000,"
+                + "\"converted\":\\{\"currency\":\"USD\",\"amount\":1084.20\\},\"windows\":\\{\"1m\":0,\"1h\":0,\"1d\":0\\}\\}"));
+        assertTrue(json[1], json[1].matches("\\{\"time\":\\d+,\"currency\":\"GBP\",\"amount\":-5.50,\"windows\":\\{.*\\}\\}"));
+        assertTrue(json[2], json[2].matches("\\{\"time\":\\d+,\"total\":\\{\"currency\":\"USD\",\"amount\":1084.20,\"without\":\\[\"GBP\"\\]\\}\\}"));
+
+        try {
+            ReportFormat.forName("xml");
+            fail("Unknown format accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that the pending reports are coalesced and dropped over the limit.
+     */
+    @Test
+    public void coalesceTest() throws IOException {
+        File file = new File(folder.getRoot(), "reports.txt");
+        AsyncReportSink sink = new AsyncReportSink(new ReportChannel(file, 0, 0), 16);
+
+        // The writer is not started, so the reports stay pending
+        assertTrue(sink.publish(buffer("delta 1\n"), false));
+        assertTrue(sink.publish(buffer("delta 2\n"), false));
+        assertFalse(sink.publish(buffer("delta 3\n"), false));
+        assertEquals(1, sink.getCoalesced());
+        assertEquals(1, sink.getDropped());
+
+        sink.publish(buffer("full 4\n"), true);
+        sink.publish(buffer("delta 5\n"), false);
+        assertEquals(3, sink.getCoalesced());
+        sink.close();
+
+        assertEquals("full 4\ndelta 5\n", read(file));
+        assertFalse(sink.publish(buffer("late\n"), true));
+        assertEquals(2, sink.getDropped());
+    }
+
+    /**
+     * Tests that the background writer writes all the reports of a fast output.
+     */
+    @Test
+    public void writerTest() throws IOException {
+        File file = new File(folder.getRoot(), "reports.txt");
+        AsyncReportSink sink = new AsyncReportSink(new ReportChannel(file, 0, 0));
+        sink.start();
+        StringBuilder expected = new StringBuilder();
+        ReportBuffer report = new ReportBuffer(16);
+        for (int i = 0; i < 1000; i++) {
+            report.reset();
+            report.writeAscii("report ");
+            report.writeLong(i);
+            report.write('\n');
+            expected.append("report ").append(i).append('\n');
+            sink.publish(report, false);
+        }
+        sink.close();
+
+        assertEquals(0, sink.getDropped());
+        assertEquals(expected.toString(), read(file));
+    }
+
+    /**
+     * Tests that a delta report dropped by a slow output is followed by a complete report.
+     */
+    @Test
+    public void droppedDeltaTest() throws IOException {
+        File file = new File(folder.getRoot(), "reports.txt");
+        // The writer is not started, so the output is too slow for any report but the first one
+        AsyncReportSink sink = new AsyncReportSink(new ReportChannel(file, 0, 0), 32);
+        PaymentPrinterStreamWriter printer = new PaymentPrinterStreamWriter(sink,
+                ReportFormat.forName(ReportFormat.CSV), null, false, true);
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+
+        holder.registerPayment(USD, 100);
+        printer.run();
+        holder.registerPayment(EUR, 200);
+        printer.run();
+        assertEquals(1, sink.getDropped());
+
+        // Nothing has changed since, the changes of the dropped report come again
+        printer.run();
+        sink.close();
+        String[] rows = read(file).split("\n");
+        assertEquals(2, rows.length);
+        assertTrue(rows[0], rows[0].matches("\\d+,EUR,2,.*"));
+        assertTrue(rows[1], rows[1].matches("\\d+,USD,1,.*"));
+    }
+
+    /**
+     * Tests the rolling of the report file by the size.
+     */
+    @Test
+    public void rollTest() throws IOException {
+        File file = new File(folder.getRoot(), "reports.txt");
+        Files.write(file.toPath(), "old\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(new File(file.getPath() + ".1").toPath(), new byte[0]);
+
+        try (ReportChannel channel = new ReportChannel(file, 20, 0)) {
+            for (int i = 0; i < 5; i++) {
+                channel.write(buffer("report " + i + "\n"));
+            }
+        }
+
+        assertEquals("old\nreport 0\n", read(new File(file.getPath() + ".2")));
+        assertEquals("report 1\nreport 2\n", read(new File(file.getPath() + ".3")));
+        assertEquals("report 3\nreport 4\n", read(file));
+        assertFalse(new File(file.getPath() + ".4").exists());
+    }
+
+    private static String report(ReportFormat format, ExchangeRates rates) {
+        final StringBuilder output = new StringBuilder();
+        ReportSink sink = new ReportSink() {
+            @Override
+            public boolean publish(ReportBuffer report, boolean complete) {
+                output.append(new String(report.toByteArray(), StandardCharsets.US_ASCII));
+                return true;
+            }
+        };
+        new PaymentPrinterStreamWriter(sink, format, rates, false, false).run();
+        return output.toString();
+    }
+
+    private static ReportBuffer buffer(String content) {
+        ReportBuffer buffer = new ReportBuffer(16);
+        buffer.writeAscii(content);
+        return buffer;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Jaromir Mlejnek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.paymenttracker.test;
+
+import com.paymenttracker.model.BucketRing;
+import com.paymenttracker.model.CurrencyHolder;
+import com.paymenttracker.model.CurrencySnapshot;
+import com.paymenttracker.model.SlidingWindow;
+import com.paymenttracker.utils.CurrencyCodes;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the sliding windows of the net amounts.
+ * @author Jaromir Mlejnek
+ */
+public class SlidingWindowTest {
+
+    private static final int USD = CurrencyCodes.pack("USD");
+    private static final int EUR = CurrencyCodes.pack("EUR");
+
+    @Before
+    @After
+    public void resetRegister() {
+        CurrencyHolder.getInstance().resetRegister();
+    }
+
+    /**
+     * Tests that the buckets leave the windows as the time goes on.
+     */
+    @Test
+    public void slidingTest() {
+        BucketRing ring = new BucketRing(1000, 10);
+        SlidingWindow window = new SlidingWindow("10s", ring, 10);
+        SlidingWindow shorter = new SlidingWindow("2s", ring, 2);
+        long start = 1000000;
+
+        ring.add(USD, 100, start);
+        ring.add(USD, -30, start + 999);
+        ring.add(EUR, 5, start + 4000);
+        ring.add(USD, 1, start + 9500);
+
+        assertEquals(10000, window.getLengthMillis());
+        assertEquals(71, window.getTotal(USD, start + 9999));
+        assertEquals(5, window.getTotal(EUR, start + 9999));
+        assertEquals(1, shorter.getTotal(USD, start + 9999));
+        assertEquals(0, shorter.getTotal(EUR, start + 9999));
+
+        // The first bucket has left the window
+        assertEquals(1, window.getTotal(USD, start + 10000));
+
+        // The bucket of the first payments is reused
+        ring.add(USD, 7, start + 10000);
+        assertEquals(8, window.getTotal(USD, start + 10000));
+        assertEquals(5, window.getTotal(EUR, start + 10000));
+        assertEquals(0, window.getTotal(EUR, start + 14000));
+        assertEquals(0, window.getTotal(USD, start + 100000));
+        assertEquals(0, window.getTotal(CurrencyCodes.pack("CZK"), start));
+
+        // A payment older than the ring is not added
+        ring.add(USD, 1000, start);
+        assertEquals(8, window.getTotal(USD, start + 10000));
+    }
+
+    /**
+     * Tests that concurrent writers which move the window on lose no payment
+     * of the current window.
+     */
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        final BucketRing ring = new BucketRing(1, 4);
+        final int payments = 100000;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < payments; j++) {
+                        // Every payment moves the window by a bucket, the last 10 share one
+                        ring.add(USD, 1, Math.min(j, payments - 10));
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The window holds the last 4 x 10 payments of each writer and the 3 x 4 payments
+        // of the preceding buckets, a writer preempted between the check of its bucket
+        // and the update may add one older payment
+        long total = ring.getTotal(USD, payments - 10, 4);
+        assertTrue(total + " payments in the window", total >= 4 * 13 && total <= 4 * 14);
+    }
+
+    /**
+     * Tests that the register adds the payments to its windows, except
+     * the payments restored after a restart.
+     */
+    @Test
+    public void registerTest() {
+        CurrencyHolder holder = CurrencyHolder.getInstance();
+        holder.registerPayment(USD, 1000);
+        holder.registerPayment(USD, -250);
+        holder.withoutWindows().accept(USD, 50000);
+
+        assertEquals(3, holder.getWindows().size());
+        for (SlidingWindow window : holder.getWindows()) {
+            assertEquals(750, holder.getWindowTotal(USD, window));
+            assertEquals(0, holder.getWindowTotal(EUR, window));
+        }
+        assertEquals(50750, holder.snapshot().getTotal(USD));
+
+        holder.resetRegister();
+        assertEquals(0, holder.getWindowTotal(USD, holder.getWindows().get(0)));
+    }
+
+    /**
+     * Tests that a detailed snapshot holds the windows and the statistics
+     * taken with its net amounts while the payments are registered.
+     */
+    @Test
+    public void detailedTest() throws InterruptedException {
+        final CurrencyHolder holder = CurrencyHolder.getInstance();
+        final int writers = 4;
+        final int payments = 50000;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < payments; j++) {
+                        holder.registerPayment(USD, 1);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        int snapshots = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            CurrencySnapshot snapshot = holder.detailedSnapshot(true);
+            if (!snapshot.contains(USD)) {
+                continue;
+            }
+            int index = 0;
+            while (snapshot.getCurrencyAt(index) != USD) {
+                index++;
+            }
+            // The windows and the statistics hold exactly the payments of the net amount
+            long total = snapshot.getTotalAt(index);
+            for (int w = 0; w < holder.getWindows().size(); w++) {
+                assertEquals(total, snapshot.getWindowTotalAt(w, index));
+            }
+            assertEquals(total, snapshot.getStatisticsAt(index).getCount());
+            snapshots++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(snapshots > 0);
+
+        CurrencySnapshot snapshot = holder.detailedSnapshot(false);
+        assertEquals(writers * payments, snapshot.getTotal(USD));
+        assertEquals(writers * payments, snapshot.getWindowTotalAt(0, 0));
+        try {
+            snapshot.getStatisticsAt(0);
+            fail("The snapshot has no statistics");
+        } catch (IllegalStateException e) {
+            // The statistics were not requested
+        }
+        try {
+            holder.snapshot().getWindowTotalAt(0, 0);
+            fail("The snapshot has no windows");
+        } catch (IllegalStateException e) {
+            // The snapshot is not detailed
+        }
+    }
+}